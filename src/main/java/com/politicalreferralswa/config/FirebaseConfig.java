@@ -1,6 +1,7 @@
 package com.politicalreferralswa.config;
 
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.NoCredentials;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
 import com.google.firebase.FirebaseApp;
@@ -22,8 +23,42 @@ public class FirebaseConfig {
     @Value("${FIRESTORE_DATABASE_ID:}")
     private String databaseId;
 
+    @Value("${user-repository.type:firestore}")
+    private String userRepositoryType;
+
     @Bean
     public Firestore firestore() throws IOException {
+        // Emulador local de Firestore: no requiere credenciales de GCP
+        String emulatorHost = System.getenv("FIRESTORE_EMULATOR_HOST");
+        if (emulatorHost != null && !emulatorHost.isBlank()) {
+            System.out.println("INFO: Usando el emulador de Firestore en " + emulatorHost);
+            return offlineFirestore(emulatorHost);
+        }
+
+        // Con los usuarios en memoria el bot debe arrancar aunque no haya credenciales de GCP
+        if ("memory".equals(userRepositoryType)) {
+            try {
+                return connectFirestore();
+            } catch (Exception e) {
+                System.out.println("WARN: Sin credenciales de GCP (" + e.getMessage() + "). Usuarios en memoria;"
+                        + " las colecciones de configuración y auditoría no estarán disponibles.");
+                return offlineFirestore(null);
+            }
+        }
+        return connectFirestore();
+    }
+
+    private Firestore offlineFirestore(String emulatorHost) {
+        FirestoreOptions.Builder builder = FirestoreOptions.newBuilder()
+            .setProjectId(projectId)
+            .setCredentials(NoCredentials.getInstance());
+        if (emulatorHost != null) {
+            builder.setEmulatorHost(emulatorHost);
+        }
+        return builder.build().getService();
+    }
+
+    private Firestore connectFirestore() throws IOException {
         // Cargar credenciales
         GoogleCredentials credentials;
         
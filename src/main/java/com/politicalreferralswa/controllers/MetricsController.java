@@ -1,6 +1,21 @@
 package com.politicalreferralswa.controllers;
 
+import com.politicalreferralswa.service.MessageIngestionService;
+import com.politicalreferralswa.service.ChangeFeedService;
+import com.politicalreferralswa.service.IdentityIndexService;
+import com.politicalreferralswa.service.LocalAnalyticsService;
 import com.politicalreferralswa.service.MetricsService;
+import com.politicalreferralswa.service.ReferralCodeService;
+import com.politicalreferralswa.service.ReferralCounterService;
+import com.politicalreferralswa.service.UserCache;
+import com.politicalreferralswa.service.UserIndexService;
+import com.politicalreferralswa.service.UserLeaderboard;
+import com.politicalreferralswa.service.UserSeniorityIndex;
+import com.politicalreferralswa.service.ReferralGraph;
+import com.politicalreferralswa.service.UserSnapshotService;
+import com.politicalreferralswa.service.UserWriteCoalescer;
+import com.politicalreferralswa.service.WindowedLeaderboard;
+import com.politicalreferralswa.service.WebhookDeduplicationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -20,10 +35,47 @@ import java.util.Map;
 public class MetricsController {
 
     private final MetricsService metricsService;
+    private final MessageIngestionService messageIngestionService;
+    private final WebhookDeduplicationService deduplicationService;
+    private final UserCache userCache;
+    private final IdentityIndexService identityIndexService;
+    private final UserWriteCoalescer userWriteCoalescer;
+    private final ReferralCodeService referralCodeService;
+    private final ReferralCounterService referralCounterService;
+    private final UserSnapshotService userSnapshotService;
+    private final ChangeFeedService changeFeedService;
+    private final UserIndexService userIndexService;
+    private final UserLeaderboard userLeaderboard;
+    private final UserSeniorityIndex userSeniorityIndex;
+    private final ReferralGraph referralGraph;
+    private final LocalAnalyticsService localAnalyticsService;
+    private final WindowedLeaderboard windowedLeaderboard;
     
     @Autowired
-    public MetricsController(MetricsService metricsService) {
+    public MetricsController(MetricsService metricsService, MessageIngestionService messageIngestionService,
+                             WebhookDeduplicationService deduplicationService, UserCache userCache,
+                             IdentityIndexService identityIndexService, UserWriteCoalescer userWriteCoalescer,
+                             ReferralCodeService referralCodeService, ReferralCounterService referralCounterService,
+                             UserSnapshotService userSnapshotService, ChangeFeedService changeFeedService,
+                             UserIndexService userIndexService, UserLeaderboard userLeaderboard,
+                             UserSeniorityIndex userSeniorityIndex, ReferralGraph referralGraph,
+                             LocalAnalyticsService localAnalyticsService, WindowedLeaderboard windowedLeaderboard) {
         this.metricsService = metricsService;
+        this.messageIngestionService = messageIngestionService;
+        this.deduplicationService = deduplicationService;
+        this.userCache = userCache;
+        this.identityIndexService = identityIndexService;
+        this.userWriteCoalescer = userWriteCoalescer;
+        this.referralCodeService = referralCodeService;
+        this.referralCounterService = referralCounterService;
+        this.userSnapshotService = userSnapshotService;
+        this.changeFeedService = changeFeedService;
+        this.userIndexService = userIndexService;
+        this.userLeaderboard = userLeaderboard;
+        this.userSeniorityIndex = userSeniorityIndex;
+        this.referralGraph = referralGraph;
+        this.localAnalyticsService = localAnalyticsService;
+        this.windowedLeaderboard = windowedLeaderboard;
     }
 
     @GetMapping("/gemini")
@@ -73,4 +125,527 @@ public class MetricsController {
     public Map<String, Object> getGeminiMetrics() {
         return metricsService.getMetrics();
     }
-} 
\ No newline at end of file
+
+    @GetMapping("/ingestion")
+    @Operation(
+        summary = "Obtener métricas de ingesta de webhooks",
+        description = "Endpoint para consultar el estado del ejecutor de ingesta: mensajes en vuelo, remitentes activos, profundidad de cola, tiempos de espera y mensajes rechazados por saturación."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "maxInFlight": 500,
+                      "maxQueued": 2000,
+                      "admissionBound": 336,
+                      "pending": 12,
+                      "concurrencyLimit": 84,
+                      "inFlight": 12,
+                      "minLatencyMs": 1480.2,
+                      "queueDepth": 0,
+                      "running": 12,
+                      "activeSenders": 12,
+                      "acceptedMessages": 15230,
+                      "rejectedMessages": 4,
+                      "rejectedHighPriority": 1,
+                      "rejectedLowPriority": 3,
+                      "completedMessages": 15210,
+                      "failedMessages": 4,
+                      "coalescedMessages": 37,
+                      "averageWaitMs": 0.08,
+                      "maxWaitMs": 3.4,
+                      "averageProcessingMs": 2350.7,
+                      "journal": {
+                        "enabled": false
+                      }
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getIngestionMetrics() {
+        return messageIngestionService.getMetrics();
+    }
+
+    @GetMapping("/deduplication")
+    @Operation(
+        summary = "Obtener métricas de deduplicación de webhooks",
+        description = "Endpoint para consultar cuántos webhooks reenviados por Wati, Meta o Telegram se descartaron antes de procesarse."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "windowMinutes": 60,
+                      "redisEnabled": false,
+                      "claimedMessages": 15230,
+                      "duplicateMessages": 312,
+                      "redisDuplicateMessages": 0,
+                      "redisErrors": 0,
+                      "recentIds": 15230,
+                      "bloomMemoryBytes": 718848
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getDeduplicationMetrics() {
+        return deduplicationService.getMetrics();
+    }
+
+    @GetMapping("/user-cache")
+    @Operation(
+        summary = "Obtener métricas de la caché de usuarios",
+        description = "Endpoint para consultar aciertos, fallos y expulsiones de la caché en memoria que evita las búsquedas de usuario en Firestore."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "size": 1840,
+                      "maxSize": 20000,
+                      "ttlSeconds": 30,
+                      "hits": 12940,
+                      "misses": 2290,
+                      "hitRate": 0.85,
+                      "sizeEvictions": 0,
+                      "expiredEvictions": 2105,
+                      "invalidations": 14
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getUserCacheMetrics() {
+        return userCache.getMetrics();
+    }
+
+    @GetMapping("/identity-index")
+    @Operation(
+        summary = "Obtener métricas del índice de identidades",
+        description = "Endpoint para consultar cuántas búsquedas de usuario se resolvieron en una sola lectura, cuántas necesitaron el índice y cuántos mapeos se escribieron."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "legacyFallback": true,
+                      "lookups": 2290,
+                      "resolvedDirect": 2010,
+                      "resolvedViaIndex": 96,
+                      "staleMappings": 0,
+                      "misses": 184,
+                      "lookupErrors": 0,
+                      "mappingWrites": 412,
+                      "mappingWriteErrors": 0
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getIdentityIndexMetrics() {
+        return identityIndexService.getMetrics();
+    }
+
+    @GetMapping("/user-writes")
+    @Operation(
+        summary = "Obtener métricas de escrituras de usuario",
+        description = "Endpoint para consultar cuántas llamadas a saveUser se agruparon en una sola escritura por mensaje y cuántas escrituras se evitaron."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "unitsOfWork": 1520,
+                      "saveCalls": 4380,
+                      "mergeWrites": 1310,
+                      "fullWrites": 95,
+                      "immediateWrites": 12,
+                      "writesAvoided": 2963,
+                      "unchangedWritesSkipped": 103,
+                      "writesAvoidedPerMessage": 1.95
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getUserWriteMetrics() {
+        return userWriteCoalescer.getMetrics();
+    }
+
+    @GetMapping("/referral-codes")
+    @Operation(
+        summary = "Obtener métricas de códigos de referido",
+        description = "Endpoint para consultar las búsquedas de códigos de referido (caché, índice) y la asignación de códigos nuevos (colisiones, latencia)."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "lookups": 640,
+                      "cacheHits": 512,
+                      "indexHits": 101,
+                      "indexMisses": 27,
+                      "cachedCodes": 613,
+                      "registrations": 24,
+                      "allocations": 180,
+                      "collisionRetries": 0,
+                      "allocationFailures": 0,
+                      "avgAllocationMs": 21.4
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getReferralCodeMetrics() {
+        return referralCodeService.getMetrics();
+    }
+
+    @GetMapping("/referral-counters")
+    @Operation(
+        summary = "Obtener métricas de contadores de referidos",
+        description = "Endpoint para consultar los contadores de referidos mantenidos con incrementos: ajustes, lecturas, reconciliaciones con count() y respaldos."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "hotCodes": ["TESTCODE"],
+                      "hotShards": 10,
+                      "increments": 412,
+                      "decrements": 9,
+                      "counterReads": 380,
+                      "aggregationFallbacks": 0,
+                      "reconciliations": 57,
+                      "failures": 0
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getReferralCounterMetrics() {
+        return referralCounterService.getMetrics();
+    }
+
+    @GetMapping("/user-snapshot")
+    @Operation(
+        summary = "Obtener métricas del snapshot de usuarios",
+        description = "Endpoint para consultar el snapshot local de usuarios: origen y tiempo de carga, tamaño del archivo y del diccionario, cambios traídos desde Firestore y filas de usuarios eliminados quitadas."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "ready": true,
+                      "source": "file",
+                      "loadMillis": 4,
+                      "snapshotUsers": 48210,
+                      "snapshotBytes": 2893440,
+                      "dictionarySize": 97112,
+                      "overlayUsers": 35,
+                      "watermarkMillis": 1760800000000,
+                      "catchUpRows": 35,
+                      "rewrites": 0,
+                      "prunedRows": 0,
+                      "failures": 0
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getUserSnapshotMetrics() {
+        return userSnapshotService.getMetrics();
+    }
+
+    @GetMapping("/change-feed")
+    @Operation(
+        summary = "Obtener métricas de la captura de cambios",
+        description = "Endpoint para consultar los listeners de Firestore sobre 'users' y 'system_configuration': estado, documentos en memoria, eventos publicados y entregados por suscriptor, publicaciones frenadas por un suscriptor atrasado y reconexiones."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "collections": {
+                        "users": {"live": true, "documents": 48210, "fields": 19, "events": 48391},
+                        "system_configuration": {"live": true, "documents": 3, "fields": 6, "events": 5}
+                      },
+                      "published": 48396,
+                      "stalls": 0,
+                      "maxLag": 0,
+                      "listenerErrors": 0,
+                      "reconnects": 0,
+                      "subscribers": {
+                        "system-config": {"delivered": 5, "failed": 0},
+                        "user-cache": {"delivered": 48391, "failed": 0}
+                      }
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getChangeFeedMetrics() {
+        return changeFeedService.getMetrics();
+    }
+
+    @GetMapping("/user-index")
+    @Operation(
+        summary = "Obtener métricas del índice compacto de usuarios",
+        description = "Endpoint para consultar el índice de usuarios en memoria: origen de la carga (primer snapshot del listener, snapshot local o recorrido), usuarios, tamaño estimado, ciudades y departamentos distintos y cambios aplicados."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "enabled": true,
+                      "ready": true,
+                      "source": "snapshot",
+                      "loadMillis": 8412,
+                      "users": 48210,
+                      "idLimit": 48215,
+                      "estimatedBytes": 5642304,
+                      "cities": 612,
+                      "states": 33,
+                      "chatbotStates": 14,
+                      "dictionaryKeys": 37,
+                      "feedUpdates": 1893,
+                      "catchUpRows": 0,
+                      "watermarkMillis": 1760790000000,
+                      "failures": 0
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getUserIndexMetrics() {
+        return userIndexService.getMetrics();
+    }
+
+    @GetMapping("/leaderboard")
+    @Operation(
+        summary = "Obtener métricas del ranking de usuarios",
+        description = "Endpoint para consultar el ranking en memoria que responde la posición de cada usuario: usuarios incluidos y tamaño estimado."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "ready": true,
+                      "users": 48210,
+                      "estimatedBytes": 2894112
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getLeaderboardMetrics() {
+        return userLeaderboard.getMetrics();
+    }
+
+    @GetMapping("/seniority")
+    @Operation(
+        summary = "Obtener métricas de la antigüedad por ciudad y departamento",
+        description = "Endpoint para consultar los índices en memoria de antigüedad por ciudad y departamento: grupos, tamaño del mayor grupo y tamaño estimado."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "ready": true,
+                      "cities": 612,
+                      "states": 33,
+                      "largestCity": 17342,
+                      "largestState": 17342,
+                      "estimatedBytes": 3904512
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getSeniorityMetrics() {
+        return userSeniorityIndex.getMetrics();
+    }
+
+    @GetMapping("/referral-graph")
+    @Operation(
+        summary = "Obtener métricas del grafo de referidos",
+        description = "Endpoint para consultar el grafo de referidos en memoria: referentes, aristas, referente con más referidos y tamaño estimado."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "ready": true,
+                      "referrers": 9120,
+                      "edges": 31877,
+                      "largestReferrer": 412,
+                      "estimatedBytes": 1210344
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getReferralGraphMetrics() {
+        return referralGraph.getMetrics();
+    }
+
+    @GetMapping("/user-stats")
+    @Operation(
+        summary = "Obtener métricas de las estadísticas de usuario",
+        description = "Endpoint para consultar el costo de las estadísticas de usuario: consultas, lecturas de Firestore por consulta, consultas que necesitaron el snapshot completo de usuarios y tiempo promedio."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "indexesReady": true,
+                      "requests": 1840,
+                      "firestoreReads": 1840,
+                      "readsPerRequest": 1.0,
+                      "snapshotRequests": 0,
+                      "averageMillis": 14.2
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getUserStatsMetrics() {
+        return localAnalyticsService.getMetrics();
+    }
+
+    @GetMapping("/windowed-leaderboard")
+    @Operation(
+        summary = "Obtener métricas de los rankings por ventana",
+        description = "Endpoint para consultar los rankings de hoy, la semana y el mes: usuarios con actividad en el mes, usuarios con puntos en cada ventana, cambios de día procesados y tamaño estimado."
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "200",
+            description = "Métricas obtenidas exitosamente",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = Map.class),
+                examples = @ExampleObject(
+                    value = """
+                    {
+                      "ready": true,
+                      "built": true,
+                      "activeUsers": 12480,
+                      "rankedToday": 391,
+                      "rankedWeek": 2874,
+                      "rankedMonth": 12480,
+                      "rollovers": 6,
+                      "estimatedBytes": 4120376
+                    }
+                    """
+                )
+            )
+        )
+    })
+    public Map<String, Object> getWindowedLeaderboardMetrics() {
+        return windowedLeaderboard.getMetrics();
+    }
+}
@@ -1,9 +1,13 @@
 package com.politicalreferralswa.controllers;
 
-import com.politicalreferralswa.service.ChatbotService;
+import com.politicalreferralswa.model.InboundMessage;
+import com.politicalreferralswa.service.MessageIngestionService;
 import com.politicalreferralswa.service.TelegramApiService;
+import com.politicalreferralswa.service.WebhookDeduplicationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -26,16 +30,22 @@ import io.swagger.v3.oas.annotations.media.Schema;
 @Tag(name = "Telegram", description = "Endpoints relacionados con Telegram Bot API")
 public class TelegramWebhookController {
 
-    private final ChatbotService chatbotService;
+    // Segundos que se sugiere a Telegram esperar antes de reintentar cuando la ingesta está saturada
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final MessageIngestionService messageIngestionService;
     private final TelegramApiService telegramApiService; // Mantenemos la inyección si se usa en otros lugares, aunque no para el envío principal aquí
+    private final WebhookDeduplicationService deduplicationService;
 
     @Value("${TELEGRAM_BOT_USERNAME}")
     private String botUsername; // El username del bot
 
     @Autowired
-    public TelegramWebhookController(ChatbotService chatbotService, TelegramApiService telegramApiService) {
-        this.chatbotService = chatbotService;
+    public TelegramWebhookController(MessageIngestionService messageIngestionService, TelegramApiService telegramApiService,
+                                     WebhookDeduplicationService deduplicationService) {
+        this.messageIngestionService = messageIngestionService;
         this.telegramApiService = telegramApiService;
+        this.deduplicationService = deduplicationService;
     }
 
     /**
@@ -43,7 +53,8 @@ public class TelegramWebhookController {
      * Este es el webhook principal que Telegram llamará.
      *
      * @param update El objeto Update de Telegram que contiene la información del mensaje.
-     * @return String "OK" para confirmar la recepción a Telegram.
+     * @return "OK" en cuanto el mensaje queda encolado para procesamiento asíncrono, o
+     * HttpStatus.TOO_MANY_REQUESTS (429) si la ingesta alcanzó su límite de mensajes en cola.
      */
     @PostMapping("/telegram_webhook")
     @Operation(
@@ -53,7 +64,7 @@ public class TelegramWebhookController {
     @ApiResponses(value = {
         @ApiResponse(
             responseCode = "200",
-            description = "Mensaje procesado exitosamente",
+            description = "Mensaje recibido y en procesamiento asíncrono",
             content = @Content(
                 mediaType = "application/json",
                 schema = @Schema(implementation = String.class),
@@ -62,6 +73,17 @@ public class TelegramWebhookController {
                 )
             )
         ),
+        @ApiResponse(
+            responseCode = "429",
+            description = "Ingesta saturada, Telegram debe reintentar más tarde",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = String.class),
+                examples = @ExampleObject(
+                    value = "\"Servidor ocupado, reintente más tarde\""
+                )
+            )
+        ),
         @ApiResponse(
             responseCode = "500",
             description = "Error interno del servidor",
@@ -74,7 +96,7 @@ public class TelegramWebhookController {
             )
         )
     })
-    public String onUpdateReceived(
+    public ResponseEntity<String> onUpdateReceived(
         @RequestBody @Schema(
             description = "Objeto Update de Telegram",
             example = """
@@ -105,20 +127,29 @@ public class TelegramWebhookController {
             String messageText = update.getMessage().getText();
             String chatId = update.getMessage().getChatId().toString();
 
-            System.out.println("TelegramController: Mensaje de Telegram. De: " + chatId + ", Contenido: '" + messageText + "'");
-
-            // Llama al ChatbotService para procesar el mensaje.
-            // El ChatbotService ya se encarga de enviar la respuesta al canal adecuado.
-            String botResponse = chatbotService.processIncomingMessage(chatId, messageText, "TELEGRAM");
+            // Telegram reenvía la actualización si no respondemos a tiempo: descartar duplicados por update_id
+            String updateId = update.getUpdateId() != null ? update.getUpdateId().toString() : null;
+            if (!deduplicationService.tryClaim("TELEGRAM", updateId)) {
+                return ResponseEntity.ok("OK");
+            }
 
-            System.out.println("TelegramController: Respuesta del bot procesada: '" + botResponse + "'");
+            System.out.println("TelegramController: Mensaje de Telegram. De: " + chatId + ", Contenido: '" + messageText + "'");
 
-            // <<--- ¡¡¡ELIMINA O COMENTA LA SIGUIENTE LÍNEA!!! ---
-            // telegramApiService.sendTelegramMessage(chatId, botResponse); // <--- ¡¡¡ESTA ES LA LLAMADA DUPLICADA!!!
+            // El ChatbotService corre en el ejecutor de ingesta (buzón por chat, en orden) y ya se
+            // encarga de enviar la respuesta al canal adecuado; aquí sólo se confirma a Telegram.
+            InboundMessage inboundMessage = new InboundMessage("TELEGRAM", chatId, messageText, null);
+            if (!messageIngestionService.tryDispatch(inboundMessage)) {
+                deduplicationService.release("TELEGRAM", updateId);
+                System.err.println("TelegramController: Ingesta saturada, se solicita a Telegram reintentar la actualización " + updateId);
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                        .body("Servidor ocupado, reintente más tarde");
+            }
+            deduplicationService.confirm("TELEGRAM", updateId);
 
-            return "OK"; // Telegram espera un String "OK" como respuesta exitosa
+            return ResponseEntity.ok("OK"); // Telegram espera un String "OK" como respuesta exitosa
         }
-        return "NOT_PROCESSED";
+        return ResponseEntity.ok("NOT_PROCESSED");
     }
 
     /**
@@ -1,10 +1,12 @@
 package com.politicalreferralswa.controllers; // Corregir el paquete
 
-import com.politicalreferralswa.service.ChatbotService;
+import com.politicalreferralswa.model.InboundMessage;
+import com.politicalreferralswa.service.MessageIngestionService;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -15,16 +17,21 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.media.Schema;
 
 import java.util.Map; // Para un ejemplo simple de JSON de entrada
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 @RestController // Indica que esta clase es un controlador REST
 @Tag(name = "Messages", description = "API directa para envío de mensajes")
 public class UserMessageController {
 
-    private final ChatbotService chatbotService;
+    // Segundos que se sugiere esperar antes de reintentar cuando la ingesta está saturada
+    private static final String RETRY_AFTER_SECONDS = "5";
 
-    // Inyección de dependencias del ChatbotService
-    public UserMessageController(ChatbotService chatbotService) {
-        this.chatbotService = chatbotService;
+    private final MessageIngestionService messageIngestionService;
+
+    // Inyección de dependencias del MessageIngestionService
+    public UserMessageController(MessageIngestionService messageIngestionService) {
+        this.messageIngestionService = messageIngestionService;
     }
 
     /**
@@ -65,6 +72,17 @@ public class UserMessageController {
                 )
             )
         ),
+        @ApiResponse(
+            responseCode = "429",
+            description = "Ingesta saturada: los mensajes de la API directa se descartan antes que los de WhatsApp y Telegram",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = String.class),
+                examples = @ExampleObject(
+                    value = "\"Servidor ocupado, reintente más tarde\""
+                )
+            )
+        ),
         @ApiResponse(
             responseCode = "500",
             description = "Error interno del servidor",
@@ -100,8 +118,21 @@ public class UserMessageController {
             System.out.println("Controlador: Recibido mensaje de " + userPhoneNumber + ": '" + userMessage + "'");
 
             // *** ESTA ES LA CLAVE DEL CAMBIO ***
-            // Llamar al ChatbotService, pasando el número de teléfono como fromId
-            String aiResponse = chatbotService.processIncomingMessage(userPhoneNumber, userMessage, "API");
+            // El mensaje pasa por la ingesta (límite adaptativo, orden por remitente) como baja prioridad,
+            // pasando el número de teléfono como fromId, y se espera la respuesta del ChatbotService
+            CompletableFuture<String> pendingResponse = messageIngestionService.trySubmit(
+                    new InboundMessage("API", userPhoneNumber, userMessage, null));
+            if (pendingResponse == null) {
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                        .body("Servidor ocupado, reintente más tarde");
+            }
+            String aiResponse;
+            try {
+                aiResponse = pendingResponse.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
 
             // Devolver la respuesta de la IA
             return new ResponseEntity<>(aiResponse, HttpStatus.OK);
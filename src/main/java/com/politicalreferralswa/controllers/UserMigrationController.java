@@ -0,0 +1,90 @@
+package com.politicalreferralswa.controllers;
+
+import com.politicalreferralswa.annotation.RequiresApiKey;
+import com.politicalreferralswa.service.UserDocumentMigrator;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/system/user-migration")
+@Tag(
+    name = "🗂️ User Document Migration",
+    description = "API para migrar en segundo plano los documentos de usuario guardados bajo un UUID a su documento por teléfono. **Requiere autenticación por API Key.**"
+)
+@SecurityRequirement(name = "ApiKeyAuth")
+public class UserMigrationController {
+
+    private final UserDocumentMigrator userDocumentMigrator;
+
+    public UserMigrationController(UserDocumentMigrator userDocumentMigrator) {
+        this.userDocumentMigrator = userDocumentMigrator;
+    }
+
+    /**
+     * Endpoint para iniciar la migración en segundo plano
+     */
+    @PostMapping("/start")
+    @RequiresApiKey("Iniciar migración de documentos de usuario")
+    @Operation(
+        summary = "▶️ Iniciar Migración",
+        description = "Inicia la migración de documentos UUID a documentos por teléfono. Se ejecuta en segundo plano con un límite de escrituras por segundo ('user-migration.max-ops-per-second'). **Requiere API Key válida.**"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(
+            responseCode = "202",
+            description = "✅ Migración iniciada",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(
+                    description = "Estado inicial de la migración",
+                    example = """
+                    {
+                      "running": true,
+                      "pageSize": 300,
+                      "maxOpsPerSecond": 100,
+                      "scanned": 0,
+                      "candidates": 0,
+                      "migrated": 0,
+                      "resumed": 0,
+                      "conflicts": 0,
+                      "failures": 0
+                    }
+                    """
+                )
+            )
+        ),
+        @ApiResponse(responseCode = "409", description = "⚠️ Ya hay una migración en curso")
+    })
+    public ResponseEntity<Map<String, Object>> startMigration() {
+        if (!userDocumentMigrator.start()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(userDocumentMigrator.getStatus());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(userDocumentMigrator.getStatus());
+    }
+
+    /**
+     * Endpoint para consultar el progreso de la migración
+     */
+    @GetMapping("/status")
+    @RequiresApiKey("Consultar migración de documentos de usuario")
+    @Operation(
+        summary = "🔍 Estado de la Migración",
+        description = "Devuelve el progreso de la última migración: documentos recorridos, migrados, conflictos y errores. **Requiere API Key válida.**"
+    )
+    public ResponseEntity<Map<String, Object>> getMigrationStatus() {
+        return ResponseEntity.ok(userDocumentMigrator.getStatus());
+    }
+}
@@ -1,15 +1,15 @@
 package com.politicalreferralswa.controllers;
 
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.DocumentReference;
-import com.google.cloud.firestore.DocumentSnapshot;
-import com.google.cloud.firestore.WriteResult;
 import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.UserRepository;
+import com.politicalreferralswa.service.UserCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
 @RestController
@@ -17,7 +17,10 @@ import java.util.concurrent.ExecutionException;
 public class UserResetController {
 
     @Autowired
-    private Firestore firestore;
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserCache userCache;
 
     /**
      * Endpoint para resetear el estado de un usuario (delete lógico)
@@ -35,11 +38,10 @@ public class UserResetController {
             String normalizedPhone = normalizePhoneNumber(phoneNumber);
             String documentId = normalizedPhone.substring(1); // Remover el '+'
             
-            // Buscar el usuario en Firestore
-            DocumentReference userRef = firestore.collection("users").document(documentId);
-            DocumentSnapshot userSnapshot = userRef.get().get();
+            // Buscar el usuario
+            Optional<UserRepository.StoredUser> stored = userRepository.findById(documentId).get();
             
-            if (!userSnapshot.exists()) {
+            if (stored.isEmpty()) {
                 response.put("success", false);
                 response.put("message", "Usuario no encontrado con el número: " + phoneNumber);
                 response.put("phone", phoneNumber);
@@ -47,9 +49,8 @@ public class UserResetController {
             }
             
             // Obtener datos actuales del usuario
-            Map<String, Object> userData = userSnapshot.getData();
-            String currentName = (String) userData.get("name");
-            String currentCity = (String) userData.get("city");
+            String currentName = stored.get().user().getName();
+            String currentCity = stored.get().user().getCity();
             
             // Resetear TODOS los campos del usuario para forzar nuevo registro completo
             Map<String, Object> resetData = new HashMap<>();
@@ -66,15 +67,16 @@ public class UserResetController {
             
             // Solo preservar referral_code y datos de referido
             
-            // Actualizar en Firestore
-            WriteResult result = userRef.update(resetData).get();
+            // Actualizar sólo los campos del reseteo
+            userRepository.merge(documentId, resetData, null, null).get();
+            userCache.invalidate(documentId); // El chatbot debe leer el usuario reseteado
             
             response.put("success", true);
             response.put("message", "Usuario reseteado exitosamente. TODOS los datos han sido limpiados para forzar nuevo registro completo.");
             response.put("phone", normalizedPhone);
             response.put("documentId", documentId);
             response.put("resetFields", resetData.keySet());
-            response.put("timestamp", result.getUpdateTime().toString());
+            response.put("timestamp", resetData.get("updated_at").toString());
             response.put("dataCleared", "Nombre, apellido, ciudad y estado han sido limpiados");
             
             // Mostrar datos que fueron limpiados
@@ -116,11 +118,10 @@ public class UserResetController {
             String normalizedPhone = normalizePhoneNumber(phoneNumber);
             String documentId = normalizedPhone.substring(1); // Remover el '+'
             
-            // Buscar el usuario en Firestore
-            DocumentReference userRef = firestore.collection("users").document(documentId);
-            DocumentSnapshot userSnapshot = userRef.get().get();
+            // Buscar el usuario
+            Optional<UserRepository.StoredUser> stored = userRepository.findById(documentId).get();
             
-            if (!userSnapshot.exists()) {
+            if (stored.isEmpty()) {
                 response.put("success", false);
                 response.put("message", "Usuario no encontrado con el número: " + phoneNumber);
                 response.put("phone", phoneNumber);
@@ -128,19 +129,19 @@ public class UserResetController {
             }
             
             // Obtener datos del usuario
-            Map<String, Object> userData = userSnapshot.getData();
+            User user = stored.get().user();
             
             response.put("success", true);
             response.put("phone", normalizedPhone);
             response.put("documentId", documentId);
-            response.put("chatbot_state", userData.get("chatbot_state"));
-            response.put("aceptaTerminos", userData.get("aceptaTerminos"));
-            response.put("name", userData.get("name"));
-            response.put("city", userData.get("city"));
-            response.put("created_at", userData.get("created_at"));
-            response.put("updated_at", userData.get("updated_at"));
-            response.put("referral_code", userData.get("referral_code"));
-            response.put("reset_from_deletion", userData.get("reset_from_deletion"));
+            response.put("chatbot_state", user.getChatbot_state());
+            response.put("aceptaTerminos", user.isAceptaTerminos());
+            response.put("name", user.getName());
+            response.put("city", user.getCity());
+            response.put("created_at", user.getCreated_at());
+            response.put("updated_at", user.getUpdated_at());
+            response.put("referral_code", user.getReferral_code());
+            response.put("reset_from_deletion", user.isReset_from_deletion());
             
             return ResponseEntity.ok(response);
             
@@ -171,10 +172,7 @@ public class UserResetController {
             String normalizedPhone = normalizePhoneNumber(phoneNumber);
             String documentId = normalizedPhone.substring(1);
             
-            DocumentReference userRef = firestore.collection("users").document(documentId);
-            DocumentSnapshot userSnapshot = userRef.get().get();
-            
-            if (!userSnapshot.exists()) {
+            if (userRepository.findById(documentId).get().isEmpty()) {
                 response.put("success", false);
                 response.put("message", "❌ Usuario no encontrado: " + phoneNumber);
                 return ResponseEntity.notFound().build();
@@ -190,7 +188,8 @@ public class UserResetController {
             // MANTENER datos del usuario (nombre, apellido, ciudad)
             // Solo resetear el flujo del chatbot
             
-            userRef.update(resetData).get();
+            userRepository.merge(documentId, resetData, null, null).get();
+            userCache.invalidate(documentId); // El chatbot debe leer el usuario reseteado
             
             response.put("success", true);
             response.put("message", "✅ Usuario reseteado: " + normalizedPhone);
@@ -216,24 +215,23 @@ public class UserResetController {
         Map<String, Object> response = new HashMap<>();
         
         try {
-            var querySnapshot = firestore.collection("users").get().get();
-            var users = new java.util.ArrayList<Map<String, Object>>();
+            var users = new java.util.concurrent.ConcurrentLinkedQueue<Map<String, Object>>();
             
-            querySnapshot.getDocuments().forEach(doc -> {
-                Map<String, Object> userData = doc.getData();
+            userRepository.streamAll(stored -> {
+                User user = stored.user();
                 Map<String, Object> userInfo = new HashMap<>();
                 
-                userInfo.put("documentId", doc.getId());
-                userInfo.put("phone", userData.get("phone"));
-                userInfo.put("name", userData.get("name"));
-                userInfo.put("city", userData.get("city"));
-                userInfo.put("chatbot_state", userData.get("chatbot_state"));
-                userInfo.put("aceptaTerminos", userData.get("aceptaTerminos"));
-                userInfo.put("created_at", userData.get("created_at"));
-                userInfo.put("updated_at", userData.get("updated_at"));
+                userInfo.put("documentId", stored.documentId());
+                userInfo.put("phone", user.getPhone());
+                userInfo.put("name", user.getName());
+                userInfo.put("city", user.getCity());
+                userInfo.put("chatbot_state", user.getChatbot_state());
+                userInfo.put("aceptaTerminos", user.isAceptaTerminos());
+                userInfo.put("created_at", user.getCreated_at());
+                userInfo.put("updated_at", user.getUpdated_at());
                 
                 users.add(userInfo);
-            });
+            }).get();
             
             response.put("success", true);
             response.put("message", "Lista de usuarios obtenida exitosamente");
@@ -1,9 +1,12 @@
 package com.politicalreferralswa.controllers;
 
-import com.politicalreferralswa.service.ChatbotService;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.politicalreferralswa.model.InboundMessage;
+import com.politicalreferralswa.model.WatiWebhookEvent;
+import com.politicalreferralswa.service.MessageIngestionService;
+import com.politicalreferralswa.service.WatiPayloadParser;
+import com.politicalreferralswa.service.WebhookDeduplicationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -18,8 +21,6 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.media.Schema;
 
-import java.util.concurrent.CompletableFuture; // Importación necesaria para procesamiento asíncrono
-
 /**
  * Controlador REST para recibir los webhooks de mensajes entrantes de Wati.
  * La URL configurada en Wati debe coincidir con el valor de @RequestMapping.
@@ -32,13 +33,20 @@ import java.util.concurrent.CompletableFuture; // Importación necesaria para pr
 @Tag(name = "WhatsApp", description = "Endpoints relacionados con WhatsApp a través de Wati API")
 public class WatiWebhookController {
 
-    private final ChatbotService chatbotService;
-    private final ObjectMapper objectMapper;
+    // Segundos que se sugiere a Wati esperar antes de reintentar cuando la ingesta está saturada
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final MessageIngestionService messageIngestionService;
+    private final WebhookDeduplicationService deduplicationService;
+    private final WatiPayloadParser payloadParser;
 
     @Autowired
-    public WatiWebhookController(ChatbotService chatbotService, ObjectMapper objectMapper) {
-        this.chatbotService = chatbotService;
-        this.objectMapper = objectMapper;
+    public WatiWebhookController(MessageIngestionService messageIngestionService,
+                                 WebhookDeduplicationService deduplicationService,
+                                 WatiPayloadParser payloadParser) {
+        this.messageIngestionService = messageIngestionService;
+        this.deduplicationService = deduplicationService;
+        this.payloadParser = payloadParser;
     }
 
     /**
@@ -46,9 +54,10 @@ public class WatiWebhookController {
      * Procesa el payload JSON recibido de Wati para extraer la información del mensaje
      * y la pasa al ChatbotService para su lógica de negocio.
      *
-     * @param payload El cuerpo JSON de la solicitud POST como String.
+     * @param payload El cuerpo JSON de la solicitud POST, en bytes (se parsea en streaming).
      * @return ResponseEntity<String> con HttpStatus.OK (200) para confirmar la recepción a Wati
-     * mientras el procesamiento real ocurre en segundo plano.
+     * mientras el procesamiento real ocurre en segundo plano, o HttpStatus.TOO_MANY_REQUESTS (429)
+     * si la ingesta alcanzó su límite de mensajes en cola.
      */
     @PostMapping
     @Operation(
@@ -78,6 +87,17 @@ public class WatiWebhookController {
                 )
             )
         ),
+        @ApiResponse(
+            responseCode = "429",
+            description = "Ingesta saturada, Wati debe reintentar más tarde",
+            content = @Content(
+                mediaType = "application/json",
+                schema = @Schema(implementation = String.class),
+                examples = @ExampleObject(
+                    value = "\"Servidor ocupado, reintente más tarde\""
+                )
+            )
+        ),
         @ApiResponse(
             responseCode = "500",
             description = "Error interno del servidor",
@@ -93,84 +113,85 @@ public class WatiWebhookController {
     public ResponseEntity<String> receiveMessage(
         @RequestBody @Schema(
             description = "Payload del webhook de Wati",
+            type = "object",
             example = """
             {
               "eventType": "message",
+              "id": "6512f1c2a8b3e4d5f6a7b8c9",
+              "whatsappMessageId": "wamid.HBgMNTczMDAxMjM0NTY3FQIAEhgUM0VCMDRGQjQ1",
               "type": "text",
               "waId": "+573001234567",
               "senderName": "Miguel",
               "text": "Hola! Soy Dr. Miguel Rodríguez de Barranquilla, acepto sus términos"
             }
             """
-        ) String payload
+        ) byte[] payload
     ) {
-        System.out.println("\n--- WATI WEBHOOK RECIBIDO (POST) ---");
-        System.out.println("Payload completo (RAW): " + payload);
+        System.out.println("\n--- WATI WEBHOOK RECIBIDO (POST, " + payload.length + " bytes) ---");
 
         try {
-            JsonNode rootNode = objectMapper.readTree(payload);
+            return handleEvent(payloadParser.parse(payload));
+        } catch (Exception e) {
+            System.err.println("WatiWebhookController: ERROR CRÍTICO al procesar el payload del webhook de Wati: " + e.getMessage());
+            e.printStackTrace();
+            return new ResponseEntity<>("Error interno del servidor", HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
 
-            String eventType = rootNode.path("eventType").asText();
-            String messageType = rootNode.path("type").asText();
+    /**
+     * Deduplica y encola un evento de Wati ya parseado; puede bloquear brevemente si el diario de
+     * ingesta está habilitado.
+     *
+     * @param event Campos extraídos del webhook
+     * @return Respuesta que debe devolverse a Wati
+     */
+    public ResponseEntity<String> handleEvent(WatiWebhookEvent event) {
+        String messageType = event.type();
+
+        // Solo procesamos mensajes de tipo "message"
+        if (event.isMessage()) {
+            String fromPhoneNumber = event.waId(); // Número de WhatsApp del remitente
+            String messageText = event.messageText();
 
-            // Solo procesamos mensajes de tipo "message"
-            if ("message".equals(eventType)) {
-                String fromPhoneNumber = rootNode.path("waId").asText(); // Número de WhatsApp del remitente
-                String messageText = null;
+            if (messageText == null) {
+                System.out.println("WatiWebhookController: Recibido mensaje de tipo no soportado ('" + messageType + "') o sin contenido de texto relevante. Ignorando.");
+                return new ResponseEntity<>("Evento de mensaje no soportado/sin texto", HttpStatus.OK);
+            }
 
-                if ("text".equals(messageType)) {
-                    messageText = rootNode.path("text").asText();
-                } else if ("button".equals(messageType) && rootNode.has("buttonReply") && rootNode.path("buttonReply").has("body")) {
-                    messageText = rootNode.path("buttonReply").path("body").asText();
-                } else if ("interactive".equals(messageType) && rootNode.has("interactiveButtonReply") && rootNode.path("interactiveButtonReply").has("title")) {
-                    messageText = rootNode.path("interactiveButtonReply").path("title").asText();
-                } else {
-                    System.out.println("WatiWebhookController: Recibido mensaje de tipo no soportado ('" + messageType + "') o sin contenido de texto relevante. Ignorando.");
-                    return new ResponseEntity<>("Evento de mensaje no soportado/sin texto", HttpStatus.OK);
+            if (fromPhoneNumber != null && !fromPhoneNumber.isEmpty() && !messageText.isEmpty()) {
+                String senderName = event.senderName();
+                System.out.println("WatiWebhookController: Mensaje de Wati. De: " + fromPhoneNumber + 
+                                 (senderName != null ? " (Nombre: " + senderName + ")" : "") + 
+                                 ", Contenido: '" + messageText + "'");
+                
+                // Wati reintenta el webhook si no recibe respuesta a tiempo: descartar reenvíos
+                String messageId = event.messageId();
+                if (!deduplicationService.tryClaim("WATI", messageId)) {
+                    return new ResponseEntity<>("Mensaje duplicado, ignorado", HttpStatus.OK);
                 }
 
-                if (fromPhoneNumber != null && !fromPhoneNumber.isEmpty() && messageText != null && !messageText.isEmpty()) {
-                    // Extraer el nombre del remitente si está disponible
-                    String senderName = rootNode.path("senderName").asText(null);
-                    System.out.println("WatiWebhookController: Mensaje de Wati. De: " + fromPhoneNumber + 
-                                     (senderName != null ? " (Nombre: " + senderName + ")" : "") + 
-                                     ", Contenido: '" + messageText + "'");
-                    
-                    // ****** CAMBIO CLAVE AQUÍ: Procesar de forma asíncrona ******
-                    final String finalFromPhoneNumber = fromPhoneNumber; // Necesario para usar en la lambda
-                    final String finalMessageText = messageText;         // Necesario para usar en la lambda
-                    final String finalSenderName = senderName;           // Nombre del remitente
-                    
-                    CompletableFuture.runAsync(() -> {
-                        try {
-                            // La lógica pesada se ejecuta en un hilo separado
-                            String primaryResponse = chatbotService.processIncomingMessage(finalFromPhoneNumber, finalMessageText, "WHATSAPP", finalSenderName);
-                            System.out.println("WatiWebhookController: Mensaje procesado por ChatbotService (Async). Respuesta principal: " + primaryResponse);
-                        } catch (Exception e) {
-                            System.err.println("WatiWebhookController: ERROR al procesar el mensaje de Wati de forma asíncrona: " + e.getMessage());
-                            e.printStackTrace();
-                            // Considera aquí una forma de notificar al usuario si el error es grave,
-                            // o simplemente loguéalo para tu monitoreo.
-                        }
-                    });
+                // El procesamiento pesado ocurre en el ejecutor de ingesta (hilos virtuales)
+                InboundMessage inboundMessage = new InboundMessage("WHATSAPP", fromPhoneNumber, messageText, senderName);
+                if (!messageIngestionService.tryDispatch(inboundMessage)) {
+                    deduplicationService.release("WATI", messageId);
+                    System.err.println("WatiWebhookController: Ingesta saturada, se solicita a Wati reintentar el mensaje de " + fromPhoneNumber);
+                    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                            .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                            .body("Servidor ocupado, reintente más tarde");
+                }
+                deduplicationService.confirm("WATI", messageId);
 
-                    // Devolver inmediatamente OK para Wati, evitando reintentos.
-                    System.out.println("WatiWebhookController: Mensaje de Wati recibido, procesamiento iniciado asíncronamente.");
-                    return new ResponseEntity<>("Mensaje recibido y en procesamiento asíncrono", HttpStatus.OK);
+                // Devolver inmediatamente OK para Wati, evitando reintentos.
+                System.out.println("WatiWebhookController: Mensaje de Wati recibido, procesamiento iniciado asíncronamente.");
+                return new ResponseEntity<>("Mensaje recibido y en procesamiento asíncrono", HttpStatus.OK);
 
-                } else {
-                    System.out.println("WatiWebhookController: Datos incompletos o inválidos en el webhook de Wati (teléfono o texto nulo/vacío) para el tipo de mensaje: " + messageType);
-                    return new ResponseEntity<>("Datos de mensaje incompletos/inválidos", HttpStatus.BAD_REQUEST);
-                }
             } else {
-                System.out.println("WatiWebhookController: Webhook de Wati recibido, pero no es un mensaje entrante de usuario (eventType: '" + eventType + "'). Ignorando.");
-                return new ResponseEntity<>("Evento no de mensaje, ignorado", HttpStatus.OK);
+                System.out.println("WatiWebhookController: Datos incompletos o inválidos en el webhook de Wati (teléfono o texto nulo/vacío) para el tipo de mensaje: " + messageType);
+                return new ResponseEntity<>("Datos de mensaje incompletos/inválidos", HttpStatus.BAD_REQUEST);
             }
-
-        } catch (Exception e) {
-            System.err.println("WatiWebhookController: ERROR CRÍTICO al procesar el payload del webhook de Wati: " + e.getMessage());
-            e.printStackTrace();
-            return new ResponseEntity<>("Error interno del servidor", HttpStatus.INTERNAL_SERVER_ERROR);
+        } else {
+            System.out.println("WatiWebhookController: Webhook de Wati recibido, pero no es un mensaje entrante de usuario (eventType: '" + event.eventType() + "'). Ignorando.");
+            return new ResponseEntity<>("Evento no de mensaje, ignorado", HttpStatus.OK);
         }
     }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package com.politicalreferralswa.controllers;
 
-import com.politicalreferralswa.service.ChatbotService;
+import com.politicalreferralswa.model.InboundMessage;
+import com.politicalreferralswa.service.MessageIngestionService;
+import com.politicalreferralswa.service.WebhookDeduplicationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -9,21 +11,30 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 
 import com.fasterxml.jackson.databind.JsonNode; 
 
+import java.util.HashSet;
+import java.util.Set;
+
 @RestController
 public class WebhookController {
 
-    private final ChatbotService chatbotService;
+    // Segundos que se sugiere a Meta esperar antes de reintentar cuando la ingesta está saturada
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final MessageIngestionService messageIngestionService;
+    private final WebhookDeduplicationService deduplicationService;
 
     @Value("${WEBHOOK_VERIFY_TOKEN}") 
     private String webhookVerifyToken;
 
     @Autowired
-    public WebhookController(ChatbotService chatbotService) {
-        this.chatbotService = chatbotService;
+    public WebhookController(MessageIngestionService messageIngestionService, WebhookDeduplicationService deduplicationService) {
+        this.messageIngestionService = messageIngestionService;
+        this.deduplicationService = deduplicationService;
     }
 
     @GetMapping("/webhook")
@@ -43,85 +54,127 @@ public class WebhookController {
 
     // --- ¡¡¡ESTE ES EL ENDPOINT CLAVE PARA RECIBIR MENSAJES REALES DE WHATSAPP!!! ---
     // Está diseñado para el payload COMPLETO y ANIDADO que Meta envía para webhooks reales.
+    // Bajo carga Meta agrupa varios mensajes y estados en un mismo POST: se recorren todas las
+    // entradas, cambios, mensajes y estados, y cada mensaje se encola en la ingesta asíncrona.
     @PostMapping("/webhook")
-    public String receiveMessage(@RequestBody JsonNode webhookData) {
+    public ResponseEntity<String> receiveMessage(@RequestBody JsonNode webhookData) {
         System.out.println("\n--- WHATSAPP WEBHOOK RECIBIDO (POST) ---");
-        System.out.println("Payload completo (RAW): " + webhookData.toString()); // Aquí verás el payload real de Meta
 
         try {
-            JsonNode entryNode = null;
-            JsonNode changesNode = null;
-            JsonNode valueNode = null;
-            String field = null;
+            BatchResult result = new BatchResult();
 
             // --- ESTE ES EL INTENTO PRINCIPAL: Parsear como payload completo y anidado de Meta ---
-            // Verifica si tiene la estructura "object" -> "entry" -> "changes" -> "value"
-            if (webhookData.has("object") && webhookData.path("object").asText().equals("whatsapp_business_account") &&
-                webhookData.has("entry") && webhookData.path("entry").isArray() && webhookData.path("entry").get(0) != null) {
-                
-                entryNode = webhookData.path("entry").get(0);
-                if (entryNode.has("changes") && entryNode.path("changes").isArray() && entryNode.path("changes").get(0) != null) {
-                    changesNode = entryNode.path("changes").get(0);
-                    valueNode = changesNode.path("value");
-                    field = changesNode.path("field").asText();
-                    System.out.println("WebhookController: Payload detectado como formato ANIDADO estándar de Meta (Real WhatsApp Message).");
-                } else {
-                    // Si 'entry' existe pero 'changes' no o es vacío, puede ser un webhook de otro tipo (ej. de suscripción)
-                    System.out.println("WebhookController: Payload anidado detectado, pero no contiene 'changes' con datos de mensaje. Field: " + (entryNode.has("field") ? entryNode.path("field").asText() : "N/A"));
-                    return "EVENT_RECEIVED_NO_MESSAGE_CHANGES"; 
+            // Verifica si tiene la estructura "object" -> "entry"[] -> "changes"[] -> "value"
+            if (webhookData.path("object").asText().equals("whatsapp_business_account") && webhookData.path("entry").isArray()) {
+                for (JsonNode entryNode : webhookData.path("entry")) {
+                    if (!entryNode.path("changes").isArray() || entryNode.path("changes").isEmpty()) {
+                        // Si 'entry' existe pero 'changes' no o es vacío, puede ser un webhook de otro tipo (ej. de suscripción)
+                        System.out.println("WebhookController: Entrada sin 'changes' con datos de mensaje. Field: " + entryNode.path("field").asText("N/A"));
+                        continue;
+                    }
+                    for (JsonNode changesNode : entryNode.path("changes")) {
+                        processChange(changesNode.path("field").asText(null), changesNode.path("value"), result);
+                    }
                 }
-            } 
+            }
             // --- ESTE ES EL FALLBACK: Si no es el formato anidado, intentar como formato simplificado (para tus pruebas) ---
             else if (webhookData.has("field") && webhookData.has("value")) {
-                field = webhookData.path("field").asText();
-                valueNode = webhookData.path("value");
                 System.out.println("WebhookController: Payload detectado como formato SIMPLIFICADO (para pruebas).");
+                processChange(webhookData.path("field").asText(null), webhookData.path("value"), result);
             } else {
                 // Si no coincide con ninguna de las estructuras conocidas
                 System.out.println("WebhookController: Payload de webhook no reconocido: no es anidado estándar ni simplificado.");
-                return "EVENT_NOT_RECOGNIZED";
+                return ResponseEntity.ok("EVENT_NOT_RECOGNIZED");
             }
 
-            // --- Procesamiento del evento basado en 'field' y 'valueNode' ---
-            if (field != null) { 
-                if (field.equals("messages") && valueNode.path("messages").isArray() && valueNode.path("messages").get(0) != null) {
-                    // Procesar mensajes entrantes de usuarios
-                    JsonNode messageNode = valueNode.path("messages").get(0);
-                    String fromPhoneNumber = messageNode.path("from").asText(); 
-                    String messageType = messageNode.path("type").asText(); 
-
-                    if (messageType.equals("text")) {
-                        String messageText = messageNode.path("text").path("body").asText(); 
-
-                        System.out.println("WebhookController: Mensaje de WhatsApp. De: " + fromPhoneNumber + ", Contenido: '" + messageText + "'");
-                        
-                        String botResponse = chatbotService.processIncomingMessage(fromPhoneNumber, messageText, "WHATSAPP");
-                        
-                        System.out.println("WebhookController: Respuesta del bot procesada: '" + botResponse + "'");
-                        
-                    } else {
-                        System.out.println("WebhookController: Recibido mensaje no textual (tipo: " + messageType + "). Ignorando.");
-                    }
-                } else if (field.equals("statuses") && valueNode.path("statuses").isArray() && valueNode.path("statuses").get(0) != null) {
-                    // Manejar eventos de estado de mensaje (entrega, lectura)
-                    JsonNode statusNode = valueNode.path("statuses").get(0);
-                    String status = statusNode.path("status").asText();
-                    String recipientId = statusNode.path("recipient_id").asText();
-                    System.out.println("WebhookController: Evento de estado de mensaje. Para: " + recipientId + ", Estado: " + status);
-                } else {
-                    System.out.println("WebhookController: Payload de webhook reconocido, pero el 'field' no es 'messages' ni 'statuses' o el contenido es inesperado (Field: " + field + ").");
-                }
-            } else {
-                System.out.println("WebhookController: 'field' no pudo ser determinado en el payload.");
-            }
+            System.out.println("WebhookController: Lote procesado. Mensajes encolados: " + result.dispatched
+                    + ", duplicados: " + result.duplicates + ", ignorados: " + result.ignored
+                    + ", estados: " + result.statuses + ", rechazados: " + result.rejected);
 
-            // Siempre retorna 200 OK para que Meta no reintente el webhook
-            return "EVENT_RECEIVED"; 
+            if (result.rejected > 0) {
+                // Meta reenvía el lote completo: los mensajes ya aceptados se descartan como duplicados
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                        .body("EVENT_RETRY_LATER");
+            }
+            if (result.dispatched == 0 && result.duplicates > 0 && result.statuses == 0) {
+                return ResponseEntity.ok("EVENT_DUPLICATE");
+            }
+            // Retorna 200 OK para que Meta no reintente el webhook
+            return ResponseEntity.ok("EVENT_RECEIVED");
 
         } catch (Exception e) {
             System.err.println("WebhookController: ERROR CRÍTICO al procesar el payload del webhook de WhatsApp: " + e.getMessage());
             e.printStackTrace(); 
-            return "ERROR_PROCESSING_EVENT"; 
+            return ResponseEntity.ok("ERROR_PROCESSING_EVENT");
+        }
+    }
+
+    /**
+     * Procesa un 'change' del webhook: encola todos sus mensajes y registra todos sus estados
+     */
+    private void processChange(String field, JsonNode valueNode, BatchResult result) {
+        if ("messages".equals(field) || valueNode.path("messages").isArray() || valueNode.path("statuses").isArray()) {
+            for (JsonNode messageNode : valueNode.path("messages")) {
+                processMessage(messageNode, result);
+            }
+            for (JsonNode statusNode : valueNode.path("statuses")) {
+                // Manejar eventos de estado de mensaje (entrega, lectura)
+                result.statuses++;
+                System.out.println("WebhookController: Evento de estado de mensaje. Para: " + statusNode.path("recipient_id").asText()
+                        + ", Estado: " + statusNode.path("status").asText());
+            }
+        } else {
+            System.out.println("WebhookController: Payload de webhook reconocido, pero el 'field' no es 'messages' ni 'statuses' o el contenido es inesperado (Field: " + field + ").");
+        }
+    }
+
+    private void processMessage(JsonNode messageNode, BatchResult result) {
+        String fromPhoneNumber = messageNode.path("from").asText();
+        String messageType = messageNode.path("type").asText();
+        String messageId = messageNode.path("id").asText("");
+
+        if (!messageType.equals("text")) {
+            result.ignored++;
+            System.out.println("WebhookController: Recibido mensaje no textual (tipo: " + messageType + "). Ignorando.");
+            return;
         }
+        String messageText = messageNode.path("text").path("body").asText();
+        InboundMessage inboundMessage = new InboundMessage("WHATSAPP", fromPhoneNumber, messageText, null);
+
+        if (result.retrySenders.contains(inboundMessage.senderKey())) {
+            // Un mensaje anterior del mismo remitente se rechazó: los siguientes también esperan
+            // al reintento de Meta para no procesarse fuera de orden
+            result.rejected++;
+            return;
+        }
+        if (!deduplicationService.tryClaim("META", messageId)) {
+            // Meta reintenta el webhook si no respondemos a tiempo: ya se procesó
+            result.duplicates++;
+            return;
+        }
+
+        System.out.println("WebhookController: Mensaje de WhatsApp. De: " + fromPhoneNumber + ", Contenido: '" + messageText + "'");
+        if (messageIngestionService.tryDispatch(inboundMessage)) {
+            deduplicationService.confirm("META", messageId);
+            result.dispatched++;
+        } else {
+            deduplicationService.release("META", messageId);
+            result.retrySenders.add(inboundMessage.senderKey());
+            result.rejected++;
+            System.err.println("WebhookController: Ingesta saturada, Meta deberá reintentar el mensaje de " + fromPhoneNumber);
+        }
+    }
+
+    /**
+     * Contadores de un lote del webhook de Meta
+     */
+    private static final class BatchResult {
+        final Set<String> retrySenders = new HashSet<>();
+        int dispatched;
+        int duplicates;
+        int ignored;
+        int statuses;
+        int rejected;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+package com.politicalreferralswa.model;
+
+/**
+ * Mensaje entrante ya normalizado, independiente del proveedor (Wati, Meta, Telegram).
+ * Es lo único que viaja desde los controladores de webhook hasta el ChatbotService.
+ *
+ * @param channelType Canal de origen ("WHATSAPP", "TELEGRAM", "API")
+ * @param fromId      Teléfono (WhatsApp) o chat ID (Telegram) del remitente
+ * @param text        Texto del mensaje
+ * @param senderName  Nombre de perfil del remitente, si el proveedor lo envía (puede ser null)
+ */
+public record InboundMessage(String channelType, String fromId, String text, String senderName) {
+
+    /**
+     * Clave del remitente para ordenar sus mensajes: el teléfono normalizado (sólo dígitos)
+     * para WhatsApp/API y el chat ID para Telegram. "+573001234567" y "573001234567" comparten clave.
+     */
+    public String senderKey() {
+        return senderKeyOf(channelType, fromId);
+    }
+
+    public static String senderKeyOf(String channelType, String fromId) {
+        if ("TELEGRAM".equalsIgnoreCase(channelType)) {
+            return "TELEGRAM:" + fromId;
+        }
+        return "PHONE:" + fromId.replaceAll("[^\\d]", "");
+    }
+}
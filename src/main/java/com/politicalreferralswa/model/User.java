@@ -5,10 +5,12 @@ import com.google.cloud.Timestamp;
 import lombok.Data; // Importa Lombok
 import lombok.NoArgsConstructor; // Puedes añadir este si no tienes constructor explícito
 import lombok.AllArgsConstructor; // Puedes añadir este si tienes todos los campos en un constructor
+import lombok.Builder;
 
 @Data // Esta anotación de Lombok genera getters, setters, toString, equals y hashCode
 @NoArgsConstructor // Genera un constructor sin argumentos
 @AllArgsConstructor // Genera un constructor con todos los argumentos
+@Builder(toBuilder = true) // toBuilder().build() crea una copia (usado por UserCache)
 public class User {
     private String id;
     private String phone_code;
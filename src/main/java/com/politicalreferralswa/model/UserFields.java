@@ -0,0 +1,79 @@
+package com.politicalreferralswa.model;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Acceso por nombre a los campos de User, con el mismo nombre que usa Firestore (el del campo).
+ * Tabla única de campos para quienes leen, comparan o escriben un User campo a campo
+ * (UserWriteCoalescer, UserRepository.StoredUser, InMemoryUserRepository).
+ */
+public final class UserFields {
+
+    private static final Map<String, Field> FIELDS = Arrays.stream(User.class.getDeclaredFields())
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .peek(field -> field.setAccessible(true))
+            .collect(Collectors.toUnmodifiableMap(Field::getName, field -> field));
+
+    private UserFields() {
+    }
+
+    /**
+     * Campos no nulos del usuario, como DocumentSnapshot.getData()
+     */
+    public static Map<String, Object> nonNull(User user) {
+        Map<String, Object> fields = new HashMap<>();
+        try {
+            for (Field field : FIELDS.values()) {
+                Object value = field.get(user);
+                if (value != null) {
+                    fields.put(field.getName(), value);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("No se pudieron leer los campos de User", e);
+        }
+        return fields;
+    }
+
+    /**
+     * Campos de 'after' que difieren de 'before' (con su valor en 'after', que puede ser null)
+     */
+    public static Map<String, Object> changed(User before, User after) {
+        Map<String, Object> changed = new HashMap<>();
+        try {
+            for (Field field : FIELDS.values()) {
+                Object value = field.get(after);
+                if (!Objects.equals(field.get(before), value)) {
+                    changed.put(field.getName(), value);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("No se pudieron comparar los campos de User", e);
+        }
+        return changed;
+    }
+
+    /**
+     * Escribe en el usuario los campos indicados; los nombres que User no tiene se ignoran
+     *
+     * @throws IllegalArgumentException si un valor no es del tipo del campo
+     */
+    public static void apply(User user, Map<String, Object> fields) {
+        try {
+            for (Map.Entry<String, Object> entry : fields.entrySet()) {
+                Field field = FIELDS.get(entry.getKey());
+                if (field != null) {
+                    field.set(user, entry.getValue());
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("No se pudieron escribir los campos de User", e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.politicalreferralswa.model;
+
+/**
+ * Campos del webhook de Wati que usa el chatbot, extraídos por WatiPayloadParser.
+ * Cualquier campo ausente en el payload queda en null.
+ *
+ * @param eventType              "eventType" (sólo se procesan los de tipo "message")
+ * @param type                   Tipo de mensaje ("text", "button", "interactive", ...)
+ * @param waId                   Número de WhatsApp del remitente
+ * @param senderName             Nombre de perfil del remitente
+ * @param text                   "text" para mensajes de texto
+ * @param buttonReplyBody        "buttonReply.body" para respuestas de botón
+ * @param interactiveButtonTitle "interactiveButtonReply.title" para respuestas interactivas
+ * @param messageId              "whatsappMessageId" o, en su defecto, "id" (para deduplicar reenvíos)
+ */
+public record WatiWebhookEvent(String eventType, String type, String waId, String senderName, String text,
+                               String buttonReplyBody, String interactiveButtonTitle, String messageId) {
+
+    public boolean isMessage() {
+        return "message".equals(eventType);
+    }
+
+    /**
+     * Texto relevante según el tipo de mensaje, o null si el tipo no está soportado
+     * o la respuesta de botón no trae texto. Un mensaje "text" sin texto devuelve "".
+     */
+    public String messageText() {
+        if ("text".equals(type)) {
+            return text != null ? text : "";
+        } else if ("button".equals(type)) {
+            return buttonReplyBody;
+        } else if ("interactive".equals(type)) {
+            return interactiveButtonTitle;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,290 @@
+package com.politicalreferralswa.repository;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.service.IdentityIndexService;
+import com.politicalreferralswa.service.ReactiveFirestore;
+import com.politicalreferralswa.service.ReferralCodeService;
+import com.politicalreferralswa.service.ReferralCounterService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * UserRepository sobre Firestore.
+ *
+ * Las lecturas y escrituras se encadenan sobre los ApiFuture del cliente (ver ReactiveFirestore.toFuture),
+ * así que ningún hilo queda esperando una respuesta. Las operaciones de ReferralCodeService y
+ * ReferralCounterService, que esperan con get(), se ejecutan en hilos virtuales: al bloquearse
+ * liberan su hilo portador.
+ *
+ * Las búsquedas pasan primero por el índice de identidades y el índice de códigos de referido; las
+ * consultas por campo quedan para documentos anteriores a los índices, que se indexan al encontrarse.
+ */
+@Repository
+@ConditionalOnProperty(name = "user-repository.type", havingValue = "firestore", matchIfMissing = true)
+public class FirestoreUserRepository implements UserRepository {
+
+    private static final String USERS_COLLECTION = "users";
+
+    private final Firestore firestore;
+    private final IdentityIndexService identityIndexService;
+    private final ReferralCodeService referralCodeService;
+    private final ReferralCounterService referralCounterService;
+    private final ExecutorService blockingCalls = Executors.newVirtualThreadPerTaskExecutor();
+
+    public FirestoreUserRepository(Firestore firestore, IdentityIndexService identityIndexService,
+                                   ReferralCodeService referralCodeService, ReferralCounterService referralCounterService) {
+        this.firestore = firestore;
+        this.identityIndexService = identityIndexService;
+        this.referralCodeService = referralCodeService;
+        this.referralCounterService = referralCounterService;
+        System.out.println("FirestoreUserRepository: Usuarios guardados en Firestore (colección '" + USERS_COLLECTION + "')");
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findById(String documentId) {
+        return ReactiveFirestore.toFuture(users().document(documentId).get())
+                .thenApply(FirestoreUserRepository::toStoredUser);
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByPhone(String phone) {
+        return findByAnyIdentifier(phone, phone.startsWith("+") ? phone.substring(1) : phone, "WHATSAPP");
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByTelegramChatId(String telegramChatId) {
+        return findByAnyIdentifier(null, telegramChatId, "TELEGRAM");
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByAnyIdentifier(String phone, String fromId, String channelType) {
+        // Índice de identidades: documentos candidatos y mapeos en una sola lectura (getAll)
+        CompletableFuture<Optional<StoredUser>> lookup = identityIndexService.resolveReactive(phone, fromId, channelType)
+                .toFuture()
+                .thenApply(document -> document.flatMap(FirestoreUserRepository::toStoredUser));
+        if (!identityIndexService.isLegacyFallbackEnabled()) {
+            return lookup;
+        }
+
+        // Búsquedas heredadas para documentos creados antes del índice
+        if (phone != null) {
+            lookup = lookup.thenCompose(found -> found.isPresent()
+                    ? CompletableFuture.completedFuture(found)
+                    : findFirstAndIndex(users().whereEqualTo("phone", phone)));
+        }
+        if ("TELEGRAM".equalsIgnoreCase(channelType)) {
+            lookup = lookup.thenCompose(found -> found.isPresent()
+                    ? CompletableFuture.completedFuture(found)
+                    : findFirstAndIndex(users().whereEqualTo("telegram_chat_id", fromId)));
+        }
+        return lookup;
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByReferralCode(String referralCode) {
+        return CompletableFuture.supplyAsync(() -> referralCodeService.findOwnerDocumentId(referralCode), blockingCalls)
+                .thenCompose(ownerDocumentId -> {
+                    CompletableFuture<Optional<StoredUser>> owner = ownerDocumentId.isPresent()
+                            ? findById(ownerDocumentId.get()).thenApply(found -> found.filter(
+                                    stored -> referralCode.equals(stored.user().getReferral_code())))
+                            : CompletableFuture.completedFuture(Optional.empty());
+                    // Códigos anteriores al índice 'referral_codes': se registran al encontrarse
+                    return owner.thenCompose(found -> found.isPresent()
+                            ? CompletableFuture.completedFuture(found)
+                            : findFirst(users().whereEqualTo("referral_code", referralCode)).thenApply(legacy -> {
+                                // Sin entrada se registra; con una entrada que apunta a otro documento
+                                // (dueño migrado de documento) se reasigna
+                                legacy.ifPresent(stored -> {
+                                    if (ownerDocumentId.isEmpty()) {
+                                        blockingCalls.execute(() -> referralCodeService.register(referralCode, stored.documentId()));
+                                    } else if (!ownerDocumentId.get().equals(stored.documentId())) {
+                                        blockingCalls.execute(() -> referralCodeService.reassign(referralCode, stored.documentId()));
+                                    }
+                                });
+                                return legacy;
+                            }));
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<StoredUser>> findByReferrer(String referralCode) {
+        return ReactiveFirestore.toFuture(users().whereEqualTo("referred_by_code", referralCode).get())
+                .thenApply(querySnapshot -> {
+                    List<StoredUser> referred = new ArrayList<>(querySnapshot.size());
+                    for (QueryDocumentSnapshot document : querySnapshot.getDocuments()) {
+                        toStoredUser(document).ifPresent(referred::add);
+                    }
+                    return referred;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Long> countByReferrer(String referralCode) {
+        // Contador mantenido en 'referral_counters' (con count() como respaldo)
+        return CompletableFuture.supplyAsync(() -> (long) referralCounterService.count(referralCode), blockingCalls);
+    }
+
+    @Override
+    public CompletableFuture<Long> streamByCity(String city, Consumer<StoredUser> consumer) {
+        return stream(users().whereEqualTo("city", city), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(Consumer<StoredUser> consumer) {
+        return stream(users(), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Long> streamUpdatedSince(long epochMillis, Consumer<StoredUser> consumer) {
+        return stream(users().whereGreaterThan("updated_at", Timestamp.ofTimeMicroseconds(Math.max(0, epochMillis) * 1000)), consumer);
+    }
+
+    /**
+     * Un WriteBatch con el documento y, si cambia 'referred_by_code', el ajuste de los contadores de
+     * referidos (ver ReferralCounterService.stage)
+     */
+    @Override
+    public CompletableFuture<Void> save(String documentId, User user, String previousReferrerCode) {
+        WriteBatch batch = firestore.batch();
+        batch.set(users().document(documentId), user);
+        referralCounterService.stage(batch, previousReferrerCode, user.getReferred_by_code());
+        return ReactiveFirestore.toFuture(batch.commit())
+                .thenRun(() -> identityIndexService.record(documentId, user));
+    }
+
+    @Override
+    public CompletableFuture<Void> merge(String documentId, Map<String, Object> fields, User user, String previousReferrerCode) {
+        WriteBatch batch = firestore.batch();
+        batch.set(users().document(documentId), fields, SetOptions.merge());
+        if (user != null) {
+            referralCounterService.stage(batch, previousReferrerCode, user.getReferred_by_code());
+        }
+        return ReactiveFirestore.toFuture(batch.commit())
+                .thenRun(() -> {
+                    if (user != null) {
+                        identityIndexService.record(documentId, user);
+                    }
+                });
+    }
+
+    /**
+     * Un único WriteBatch: se crea el nuevo documento, se elimina el anterior y se reescriben los
+     * mapeos del índice de identidades, la entrada del código de referido y, si cambia
+     * 'referred_by_code', los contadores de referidos. Si el commit falla no se aplica nada.
+     */
+    @Override
+    public CompletableFuture<Void> move(String previousDocumentId, String documentId, User user, String previousReferrerCode) {
+        WriteBatch batch = firestore.batch();
+        batch.set(users().document(documentId), user);
+        batch.delete(users().document(previousDocumentId));
+        List<String> identityKeys = identityIndexService.stage(batch, documentId, user);
+        String referralCode = user.getReferral_code();
+        boolean referralCodeStaged = referralCodeService.stage(batch, referralCode, documentId);
+        referralCounterService.stage(batch, previousReferrerCode, user.getReferred_by_code());
+        return ReactiveFirestore.toFuture(batch.commit())
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        identityIndexService.committed(identityKeys);
+                        if (referralCodeStaged) {
+                            referralCodeService.moved(referralCode, documentId);
+                        }
+                    } else {
+                        identityIndexService.failed(identityKeys, documentId, error);
+                    }
+                })
+                .thenRun(() -> System.out.println("FirestoreUserRepository: Usuario movido de documento " + previousDocumentId
+                        + " a " + documentId + " (" + identityKeys.size() + " mapeos de identidad)"));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String documentId, String referrerCode) {
+        WriteBatch batch = firestore.batch();
+        batch.delete(users().document(documentId));
+        referralCounterService.stage(batch, referrerCode, null);
+        return ReactiveFirestore.toFuture(batch.commit()).thenRun(() -> { });
+    }
+
+    @Override
+    public CompletableFuture<String> allocateReferralCode(String ownerDocumentId) {
+        return CompletableFuture.supplyAsync(() -> referralCodeService.allocate(ownerDocumentId), blockingCalls);
+    }
+
+    @Override
+    public CompletableFuture<Void> registerReferralCode(String referralCode, String ownerDocumentId) {
+        return CompletableFuture.runAsync(() -> referralCodeService.register(referralCode, ownerDocumentId), blockingCalls);
+    }
+
+    private CollectionReference users() {
+        return firestore.collection(USERS_COLLECTION);
+    }
+
+    private CompletableFuture<Optional<StoredUser>> findFirst(Query query) {
+        return ReactiveFirestore.toFuture(query.limit(1).get())
+                .thenApply(FirestoreUserRepository::firstStoredUser);
+    }
+
+    // Como findFirst, y además registra en el índice de identidades al usuario hallado
+    private CompletableFuture<Optional<StoredUser>> findFirstAndIndex(Query query) {
+        return findFirst(query).thenApply(found -> {
+            found.ifPresent(stored -> identityIndexService.record(stored.documentId(), stored.user()));
+            return found;
+        });
+    }
+
+    private CompletableFuture<Long> stream(Query query, Consumer<StoredUser> consumer) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        AtomicLong delivered = new AtomicLong(0);
+        query.stream(new ApiStreamObserver<DocumentSnapshot>() {
+            @Override
+            public void onNext(DocumentSnapshot document) {
+                toStoredUser(document).ifPresent(stored -> {
+                    consumer.accept(stored);
+                    delivered.incrementAndGet();
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                done.complete(delivered.get());
+            }
+        });
+        return done;
+    }
+
+    private static Optional<StoredUser> firstStoredUser(QuerySnapshot querySnapshot) {
+        return querySnapshot.isEmpty() ? Optional.empty() : toStoredUser(querySnapshot.getDocuments().get(0));
+    }
+
+    private static Optional<StoredUser> toStoredUser(DocumentSnapshot document) {
+        if (!document.exists()) {
+            return Optional.empty();
+        }
+        User user = document.toObject(User.class);
+        return user == null ? Optional.empty() : Optional.of(new StoredUser(document.getId(), user));
+    }
+}
@@ -0,0 +1,215 @@
+package com.politicalreferralswa.repository;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.model.UserFields;
+import com.politicalreferralswa.service.ReferralCodeService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * UserRepository en memoria para correr el bot en local y hacer pruebas de carga sin acceso a GCP.
+ *
+ * Los documentos se guardan como copias (User.toBuilder()) que nunca se modifican después de
+ * guardarse: las lecturas no toman ningún bloqueo y devuelven otra copia. Las escrituras se
+ * serializan para mantener coherentes los índices por teléfono, chat de Telegram, código de
+ * referido y código de quien refirió. Los referidos se cuentan con ese último índice, así que el
+ * 'referred_by_code' anterior que reciben las escrituras no se usa.
+ */
+@Repository
+@ConditionalOnProperty(name = "user-repository.type", havingValue = "memory")
+public class InMemoryUserRepository implements UserRepository {
+
+    private final Map<String, User> documents = new ConcurrentHashMap<>();
+    private final Map<String, String> documentIdByPhone = new ConcurrentHashMap<>();
+    private final Map<String, String> documentIdByTelegramChatId = new ConcurrentHashMap<>();
+    private final Map<String, String> documentIdByReferralCode = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> documentIdsByReferrer = new ConcurrentHashMap<>();
+    private final Map<String, String> reservedReferralCodes = new ConcurrentHashMap<>();
+
+    public InMemoryUserRepository() {
+        System.out.println("InMemoryUserRepository: Usuarios guardados EN MEMORIA (se pierden al reiniciar)");
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findById(String documentId) {
+        return CompletableFuture.completedFuture(stored(documentId));
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByPhone(String phone) {
+        return CompletableFuture.completedFuture(stored(documentIdByPhone.get(phone)));
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByTelegramChatId(String telegramChatId) {
+        return CompletableFuture.completedFuture(stored(documentIdByTelegramChatId.get(telegramChatId)));
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByAnyIdentifier(String phone, String fromId, String channelType) {
+        Optional<StoredUser> found = phone != null ? stored(documentIdByPhone.get(phone)) : Optional.empty();
+        if (found.isEmpty() && "TELEGRAM".equalsIgnoreCase(channelType)) {
+            found = stored(documentIdByTelegramChatId.get(fromId));
+        }
+        if (found.isEmpty()) {
+            found = stored(fromId);
+        }
+        return CompletableFuture.completedFuture(found);
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredUser>> findByReferralCode(String referralCode) {
+        return CompletableFuture.completedFuture(stored(documentIdByReferralCode.get(referralCode)));
+    }
+
+    @Override
+    public CompletableFuture<List<StoredUser>> findByReferrer(String referralCode) {
+        List<StoredUser> referred = new ArrayList<>();
+        for (String documentId : documentIdsByReferrer.getOrDefault(referralCode, Set.of())) {
+            stored(documentId).ifPresent(referred::add);
+        }
+        return CompletableFuture.completedFuture(referred);
+    }
+
+    @Override
+    public CompletableFuture<Long> countByReferrer(String referralCode) {
+        return CompletableFuture.completedFuture((long) documentIdsByReferrer.getOrDefault(referralCode, Set.of()).size());
+    }
+
+    @Override
+    public CompletableFuture<Long> streamByCity(String city, Consumer<StoredUser> consumer) {
+        return stream(user -> Objects.equals(city, user.getCity()), consumer);
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(Consumer<StoredUser> consumer) {
+        return stream(user -> true, consumer);
+    }
+
+    @Override
+    public CompletableFuture<Long> streamUpdatedSince(long epochMillis, Consumer<StoredUser> consumer) {
+        return stream(user -> user.getUpdated_at() != null && user.getUpdated_at().toDate().getTime() > epochMillis, consumer);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> save(String documentId, User user, String previousReferrerCode) {
+        put(documentId, user.toBuilder().build());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> merge(String documentId, Map<String, Object> fields, User user,
+                                                       String previousReferrerCode) {
+        User current = documents.get(documentId);
+        User merged = current != null ? current.toBuilder().build() : new User();
+        try {
+            UserFields.apply(merged, fields);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        put(documentId, merged);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> move(String previousDocumentId, String documentId, User user,
+                                                      String previousReferrerCode) {
+        remove(previousDocumentId);
+        put(documentId, user.toBuilder().build());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> delete(String documentId, String referrerCode) {
+        remove(documentId);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<String> allocateReferralCode(String ownerDocumentId) {
+        while (true) {
+            String code = ReferralCodeService.randomCode(ThreadLocalRandom.current());
+            if (!documentIdByReferralCode.containsKey(code) && reservedReferralCodes.putIfAbsent(code, ownerDocumentId) == null) {
+                return CompletableFuture.completedFuture(code);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> registerReferralCode(String referralCode, String ownerDocumentId) {
+        reservedReferralCodes.putIfAbsent(referralCode, ownerDocumentId);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    private Optional<StoredUser> stored(String documentId) {
+        User user = documentId != null ? documents.get(documentId) : null;
+        return user == null ? Optional.empty() : Optional.of(new StoredUser(documentId, user.toBuilder().build()));
+    }
+
+    private CompletableFuture<Long> stream(Predicate<User> filter, Consumer<StoredUser> consumer) {
+        long delivered = 0;
+        for (Map.Entry<String, User> entry : documents.entrySet()) {
+            if (filter.test(entry.getValue())) {
+                consumer.accept(new StoredUser(entry.getKey(), entry.getValue().toBuilder().build()));
+                delivered++;
+            }
+        }
+        return CompletableFuture.completedFuture(delivered);
+    }
+
+    // Llamado con el monitor tomado: reemplaza el documento y actualiza los índices
+    private void put(String documentId, User user) {
+        remove(documentId);
+        documents.put(documentId, user);
+        index(documentIdByPhone, user.getPhone(), documentId);
+        index(documentIdByTelegramChatId, user.getTelegram_chat_id(), documentId);
+        index(documentIdByReferralCode, user.getReferral_code(), documentId);
+        if (user.getReferred_by_code() != null) {
+            documentIdsByReferrer.computeIfAbsent(user.getReferred_by_code(), code -> ConcurrentHashMap.newKeySet()).add(documentId);
+        }
+    }
+
+    private void remove(String documentId) {
+        User previous = documents.remove(documentId);
+        if (previous == null) {
+            return;
+        }
+        unindex(documentIdByPhone, previous.getPhone(), documentId);
+        unindex(documentIdByTelegramChatId, previous.getTelegram_chat_id(), documentId);
+        unindex(documentIdByReferralCode, previous.getReferral_code(), documentId);
+        if (previous.getReferred_by_code() != null) {
+            Set<String> referred = documentIdsByReferrer.get(previous.getReferred_by_code());
+            if (referred != null) {
+                referred.remove(documentId);
+            }
+        }
+    }
+
+    private static void index(Map<String, String> index, String key, String documentId) {
+        if (key != null && !key.isEmpty()) {
+            index.put(key, documentId);
+        }
+    }
+
+    private static void unindex(Map<String, String> index, String key, String documentId) {
+        if (key != null) {
+            index.remove(key, documentId);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.politicalreferralswa.repository;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.model.UserFields;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Acceso a los usuarios del chatbot (colección 'users'). Todas las operaciones devuelven
+ * CompletableFuture y ninguna implementación bloquea el hilo que las llama.
+ *
+ * - FirestoreUserRepository (user-repository.type=firestore, por defecto): Firestore con el índice
+ *   de identidades, el índice de códigos de referido y los contadores de referidos.
+ * - InMemoryUserRepository (user-repository.type=memory): mapas concurrentes en memoria, para correr
+ *   y hacer pruebas de carga del bot en local sin acceso a GCP.
+ *
+ * Un usuario se guarda bajo su ID de documento: el teléfono sin '+' o, si no tiene, su UUID
+ * (ver UserWriteCoalescer.documentIdOf).
+ */
+public interface UserRepository {
+
+    /**
+     * Usuario junto con el ID del documento en el que está guardado
+     */
+    record StoredUser(String documentId, User user) {
+
+        /**
+         * Campos no nulos del usuario con el nombre que usa Firestore, como DocumentSnapshot.getData()
+         */
+        public Map<String, Object> fields() {
+            return UserFields.nonNull(user);
+        }
+    }
+
+    CompletableFuture<Optional<StoredUser>> findById(String documentId);
+
+    /**
+     * @param phone teléfono con prefijo internacional (+57...)
+     */
+    CompletableFuture<Optional<StoredUser>> findByPhone(String phone);
+
+    CompletableFuture<Optional<StoredUser>> findByTelegramChatId(String telegramChatId);
+
+    /**
+     * Resuelve al remitente de un mensaje: por teléfono, por chat de Telegram (sólo en el canal
+     * TELEGRAM) o por ID de documento, en ese orden de preferencia.
+     *
+     * @param phone teléfono válido del remitente o null
+     */
+    CompletableFuture<Optional<StoredUser>> findByAnyIdentifier(String phone, String fromId, String channelType);
+
+    /**
+     * Dueño del código de referido
+     */
+    CompletableFuture<Optional<StoredUser>> findByReferralCode(String referralCode);
+
+    /**
+     * Usuarios cuyo 'referred_by_code' es el código
+     */
+    CompletableFuture<List<StoredUser>> findByReferrer(String referralCode);
+
+    /**
+     * Total de usuarios cuyo 'referred_by_code' es el código
+     */
+    CompletableFuture<Long> countByReferrer(String referralCode);
+
+    /**
+     * Entrega al consumidor los usuarios de la ciudad a medida que llegan, sin reunirlos en una lista
+     *
+     * @return número de usuarios entregados
+     */
+    CompletableFuture<Long> streamByCity(String city, Consumer<StoredUser> consumer);
+
+    /**
+     * Como streamByCity, para todos los usuarios
+     */
+    CompletableFuture<Long> streamAll(Consumer<StoredUser> consumer);
+
+    /**
+     * Como streamAll, sólo para los usuarios con 'updated_at' posterior al instante indicado
+     *
+     * @param epochMillis instante en milisegundos desde la época
+     */
+    CompletableFuture<Long> streamUpdatedSince(long epochMillis, Consumer<StoredUser> consumer);
+
+    /**
+     * Escribe el usuario completo en su documento.
+     *
+     * @param previousReferrerCode 'referred_by_code' que tenía el documento antes de la escritura (null si
+     *                             no tenía o el documento es nuevo); si difiere del de user, los contadores
+     *                             de referidos se ajustan en la misma escritura
+     */
+    CompletableFuture<Void> save(String documentId, User user, String previousReferrerCode);
+
+    /**
+     * Escribe sólo los campos indicados, conservando el resto del documento
+     *
+     * @param user                 estado completo del usuario tras el cambio (para los índices y los
+     *                             contadores), o null si no se conoce
+     * @param previousReferrerCode como en save
+     */
+    CompletableFuture<Void> merge(String documentId, Map<String, Object> fields, User user, String previousReferrerCode);
+
+    /**
+     * Mueve el usuario de su documento anterior (UUID) al documento indicado en una sola operación
+     *
+     * @param previousReferrerCode como en save, del documento anterior
+     */
+    CompletableFuture<Void> move(String previousDocumentId, String documentId, User user, String previousReferrerCode);
+
+    /**
+     * Elimina el documento
+     *
+     * @param referrerCode 'referred_by_code' que tenía el documento, que pierde un referido en la misma escritura
+     */
+    CompletableFuture<Void> delete(String documentId, String referrerCode);
+
+    /**
+     * Genera un código de referido que ningún otro usuario tiene y lo reserva para el dueño
+     */
+    CompletableFuture<String> allocateReferralCode(String ownerDocumentId);
+
+    /**
+     * Reserva un código de referido fijo (p. ej. TESTCODE) para el dueño, si no está reservado
+     */
+    CompletableFuture<Void> registerReferralCode(String referralCode, String ownerDocumentId);
+}
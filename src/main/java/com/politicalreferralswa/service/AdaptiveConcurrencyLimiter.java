@@ -0,0 +1,167 @@
+package com.politicalreferralswa.service;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Límite de concurrencia adaptativo al estilo TCP Vegas, calculado a partir de la latencia observada.
+ *
+ * Se mantiene la latencia mínima reciente (latencia "sin carga") y con cada muestra se estima
+ * cuántas peticiones están haciendo cola: queue = limit * (1 - minRtt / rtt). Si la cola estimada
+ * es pequeña el límite crece; si crece por encima de beta, o la petición falla, el límite baja.
+ * Así, cuando Firestore o Gemini se vuelven lentos, se admiten menos mensajes a la vez en lugar de
+ * acumular trabajo hasta que los timeouts se encadenan.
+ *
+ * El mismo límite acota la admisión (admissionBound): la cola que se acepta crece y se encoge con él,
+ * así un backend lento se traduce en rechazos en la entrada en lugar de en una cola que no se vacía.
+ * Las peticiones de baja prioridad sólo pueden ocupar una fracción del límite y de la cola, de modo
+ * que esperan y se descartan primero cuando el sistema se acerca a la saturación.
+ *
+ * Usa un ReentrantLock en lugar de synchronized para que los hilos virtuales que esperan en
+ * acquire() se estacionen sin bloquear su hilo portador.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public enum Priority {
+        HIGH, LOW
+    }
+
+    // Cada cuántas muestras se vuelve a medir la latencia sin carga, para seguir cambios de la línea base
+    private static final int PROBE_INTERVAL_SAMPLES = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double lowPriorityShare;
+
+    private double limit;
+    private int inFlight = 0;
+    private long minRttNanos = Long.MAX_VALUE;
+    private int samplesSinceProbe = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    /**
+     * @param initialLimit     Límite inicial de peticiones concurrentes
+     * @param minLimit         Límite mínimo, nunca se baja de aquí
+     * @param maxLimit         Límite máximo (tope duro)
+     * @param lowPriorityShare Fracción del límite disponible para peticiones de baja prioridad (0-1]
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double lowPriorityShare) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.lowPriorityShare = Math.min(1.0, Math.max(0.0, lowPriorityShare));
+    }
+
+    /**
+     * Cuántos mensajes aceptados sin terminar se admiten con el límite actual: 'maxQueued' con el
+     * límite en su tope y proporcionalmente menos cuando la latencia lo hace bajar (al menos 1)
+     *
+     * @param maxQueued Tope de la cola con el límite al máximo
+     */
+    public int admissionBound(Priority priority, int maxQueued) {
+        lock.lock();
+        try {
+            double share = priority == Priority.LOW ? lowPriorityShare : 1.0;
+            return Math.max(1, (int) (maxQueued * share * limit / maxLimit));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera, sin girar, a que haya un hueco de concurrencia y lo ocupa (después debe llamarse a onComplete)
+     */
+    public void acquire(Priority priority) throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= available(priority)) {
+                released.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Se llama con el lock tomado
+    private int available(Priority priority) {
+        return (int) (priority == Priority.LOW ? limit * lowPriorityShare : limit);
+    }
+
+    /**
+     * Libera el hueco y ajusta el límite con la latencia observada
+     *
+     * @param rttNanos Latencia de la petición desde que ocupó el hueco (sin la espera en cola)
+     * @param failed   true si la petición falló (se trata como pérdida)
+     */
+    public void onComplete(long rttNanos, boolean failed) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (rttNanos > 0) {
+                adjust(rttNanos, failed);
+            }
+            // El hueco liberado (o un límite mayor) puede dejar pasar a más de un hilo en espera
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Se llama con el lock tomado
+    private void adjust(long rttNanos, boolean failed) {
+        if (++samplesSinceProbe >= PROBE_INTERVAL_SAMPLES) {
+            samplesSinceProbe = 0;
+            minRttNanos = rttNanos;
+        } else {
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+        }
+
+        double log = Math.max(1.0, Math.log10(limit));
+        double alpha = 3 * log;
+        double beta = 6 * log;
+        double queue = limit * (1.0 - (double) minRttNanos / rttNanos);
+
+        double newLimit = limit;
+        if (failed) {
+            newLimit = limit - log;
+        } else if (queue < alpha) {
+            // Sólo crecer si el límite actual se está usando; si no, la muestra no dice nada
+            if (inFlight + 1 >= limit / 2) {
+                newLimit = limit + log;
+            }
+        } else if (queue > beta) {
+            newLimit = limit - log;
+        }
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMinRttMs() {
+        lock.lock();
+        try {
+            return minRttNanos == Long.MAX_VALUE ? 0.0 : minRttNanos / 1_000_000.0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -71,7 +71,8 @@ public class AnalyticsService {
         return new RankingData(
             convertPeriodData(localRanking.getToday()),
             convertPeriodData(localRanking.getWeek()),
-            convertPeriodData(localRanking.getMonth())
+            convertPeriodData(localRanking.getMonth()),
+            convertPeriodData(localRanking.getTotal())
         );
     }
     
@@ -341,16 +342,19 @@ public class AnalyticsService {
         private final PeriodData today;
         private final PeriodData week;
         private final PeriodData month;
+        private final PeriodData total;
         
-        public RankingData(PeriodData today, PeriodData week, PeriodData month) {
+        public RankingData(PeriodData today, PeriodData week, PeriodData month, PeriodData total) {
             this.today = today;
             this.week = week;
             this.month = month;
+            this.total = total;
         }
         
         public PeriodData getToday() { return today; }
         public PeriodData getWeek() { return week; }
         public PeriodData getMonth() { return month; }
+        public PeriodData getTotal() { return total; }
     }
     
     public static class PeriodData {
@@ -0,0 +1,39 @@
+package com.politicalreferralswa.service;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cambio de un documento publicado por ChangeFeedService.
+ *
+ * @param data           campos del documento tras el cambio; null en DELETED
+ * @param object         el documento convertido a su clase (User, SystemConfiguration), ver as(); null en DELETED
+ * @param changedFields  campos que cambiaron; en CREATED y DELETED, todos los del documento
+ * @param initial        true para los documentos que ya existían cuando se abrió el listener
+ */
+public record ChangeEvent(Type type, String collection, String documentId, Map<String, Object> data,
+                          Object object, Set<String> changedFields, boolean initial) {
+
+    public enum Type {
+        CREATED, UPDATED, DELETED,
+        // Marca interna tras el primer snapshot de cada conexión del listener; los consumidores no la
+        // reciben, ChangeFeedService la entrega a onSynced (ver ChangeFeedService.subscribe)
+        SYNCED
+    }
+
+    public <T> T as(Class<T> type) {
+        return type.cast(object);
+    }
+
+    /**
+     * true si cambió alguno de los campos indicados
+     */
+    public boolean changed(String... fields) {
+        for (String field : fields) {
+            if (changedFields.contains(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
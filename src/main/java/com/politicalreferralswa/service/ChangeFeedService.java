@@ -0,0 +1,461 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.politicalreferralswa.model.SystemConfiguration;
+import com.politicalreferralswa.model.User;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Captura de cambios (CDC) de Firestore: un addSnapshotListener sobre 'users' y otro sobre
+ * 'system_configuration' publican cada documento creado, modificado (con los campos que cambiaron)
+ * o eliminado como un ChangeEvent en un bus en memoria (SubmissionPublisher).
+ *
+ * - Cada colección se procesa en su propio hilo, en el orden en que llegan los snapshots.
+ * - El bus tiene un buffer acotado por suscriptor ('change-feed.buffer-size'). Si un suscriptor se
+ *   atrasa, la publicación espera a que tenga espacio (lo que frena también al listener de Firestore,
+ *   que acumula los snapshots): ningún evento se descarta, porque los suscriptores no tienen otra vía
+ *   para enterarse de un cambio o una baja perdidos. Las esperas de más de 'change-feed.stall-warning-ms'
+ *   se registran y se cuentan; un suscriptor no debe bloquearse sin límite.
+ * - Para calcular los campos modificados el servicio guarda, por documento, sólo una huella de 64
+ *   bits de cada campo (ver fingerprint), no sus valores: con 'users' activo la copia completa
+ *   duplicaría en el heap lo que ya tiene CompactUserIndex. Las lecturas de usuarios van a los
+ *   índices y a UserRepository.
+ * - Si el listener falla se vuelve a registrar tras 'change-feed.retry-seconds' (el doble tras cada
+ *   fallo seguido, hasta 5 minutos); el primer snapshot
+ *   después de reconectar se compara con la copia para publicar sólo lo que cambió mientras tanto.
+ *
+ * El listener de 'users' sólo se registra con user-repository.type=firestore.
+ */
+@Service
+public class ChangeFeedService {
+
+    public static final String USERS = "users";
+    public static final String SYSTEM_CONFIGURATION = FirestoreConfigService.COLLECTION_NAME;
+
+    private final Firestore firestore;
+    private final boolean enabled;
+    private final boolean usersEnabled;
+    private final long stallWarningMillis;
+    private final long retrySeconds;
+
+    private static final long MAX_RETRY_SECONDS = 300;
+
+    private final SubmissionPublisher<ChangeEvent> publisher;
+    private final Map<String, Feed> feeds = new LinkedHashMap<>();
+    private final List<NamedSubscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = false;
+
+    // Métricas
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong stalls = new AtomicLong(0);
+    private final AtomicLong listenerErrors = new AtomicLong(0);
+    private final AtomicLong reconnects = new AtomicLong(0);
+
+    public ChangeFeedService(Firestore firestore,
+                             @Value("${change-feed.enabled:true}") boolean enabled,
+                             @Value("${change-feed.users.enabled:true}") boolean usersEnabled,
+                             @Value("${user-repository.type:firestore}") String userRepositoryType,
+                             @Value("${change-feed.buffer-size:1024}") int bufferSize,
+                             @Value("${change-feed.stall-warning-ms:5000}") long stallWarningMillis,
+                             @Value("${change-feed.retry-seconds:10}") long retrySeconds) {
+        this.firestore = firestore;
+        this.enabled = enabled;
+        this.usersEnabled = usersEnabled && "firestore".equals(userRepositoryType);
+        this.stallWarningMillis = stallWarningMillis;
+        this.retrySeconds = retrySeconds;
+        this.publisher = new SubmissionPublisher<>(Executors.newVirtualThreadPerTaskExecutor(), Math.max(1, bufferSize));
+        feeds.put(USERS, new Feed(USERS, User.class));
+        feeds.put(SYSTEM_CONFIGURATION, new Feed(SYSTEM_CONFIGURATION, SystemConfiguration.class));
+    }
+
+    /**
+     * Abre los listeners cuando el contexto terminó de arrancar, así todos los suscriptores (que se
+     * registran en su @PostConstruct) ya están suscritos al llegar el primer snapshot
+     */
+    @EventListener(ContextRefreshedEvent.class)
+    public void start() {
+        if (running) {
+            return;
+        }
+        if (!enabled) {
+            System.out.println("ChangeFeedService: Captura de cambios DESHABILITADA");
+            return;
+        }
+        running = true;
+        listen(feeds.get(SYSTEM_CONFIGURATION));
+        if (usersEnabled) {
+            listen(feeds.get(USERS));
+        }
+        System.out.println("ChangeFeedService: Escuchando cambios en '" + SYSTEM_CONFIGURATION + "'"
+                + (usersEnabled ? " y '" + USERS + "'" : ""));
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (Feed feed : feeds.values()) {
+            if (feed.registration != null) {
+                feed.registration.remove();
+            }
+            if (feed.executor != null) {
+                feed.executor.shutdown();
+            }
+        }
+        publisher.close();
+    }
+
+    /**
+     * Suscribe un consumidor a los cambios de las colecciones indicadas. Los eventos se entregan de a
+     * uno y en orden; una excepción del consumidor se registra y no detiene la suscripción.
+     *
+     * @param name nombre del suscriptor para logs y métricas
+     */
+    public void subscribe(String name, Consumer<ChangeEvent> consumer, String... collections) {
+        subscribe(name, consumer, collection -> {
+        }, collections);
+    }
+
+    /**
+     * Como subscribe, y además llama a onSynced con la colección cada vez que el consumidor terminó de
+     * recibir el primer snapshot de una conexión del listener: tras la primera, ya recibió un evento
+     * 'initial' por cada documento que existía.
+     */
+    public void subscribe(String name, Consumer<ChangeEvent> consumer, Consumer<String> onSynced, String... collections) {
+        NamedSubscriber subscriber = new NamedSubscriber(name, Set.of(collections), consumer, onSynced);
+        subscribers.add(subscriber);
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * true si hay (o habrá, al arrancar) un listener sobre la colección
+     */
+    public boolean listens(String collection) {
+        return enabled && (!USERS.equals(collection) || usersEnabled);
+    }
+
+    /**
+     * true si el listener de la colección recibió su primer snapshot y no ha fallado desde entonces:
+     * los suscriptores reciben todos los cambios
+     */
+    public boolean isLive(String collection) {
+        Feed feed = feeds.get(collection);
+        return feed != null && feed.live;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        Map<String, Object> collections = new LinkedHashMap<>();
+        for (Feed feed : feeds.values()) {
+            Map<String, Object> feedMetrics = new LinkedHashMap<>();
+            feedMetrics.put("live", feed.live);
+            feedMetrics.put("documents", feed.fingerprints.size());
+            feedMetrics.put("fields", feed.fieldNames.size());
+            feedMetrics.put("events", feed.events.get());
+            collections.put(feed.collection, feedMetrics);
+        }
+        metrics.put("collections", collections);
+        metrics.put("published", published.get());
+        metrics.put("stalls", stalls.get());
+        metrics.put("maxLag", publisher.estimateMaximumLag());
+        metrics.put("listenerErrors", listenerErrors.get());
+        metrics.put("reconnects", reconnects.get());
+        Map<String, Object> subscriberMetrics = new LinkedHashMap<>();
+        for (NamedSubscriber subscriber : subscribers) {
+            subscriberMetrics.put(subscriber.name, Map.of(
+                    "delivered", subscriber.delivered.get(),
+                    "failed", subscriber.failed.get()));
+        }
+        metrics.put("subscribers", subscriberMetrics);
+        return metrics;
+    }
+
+    /**
+     * Aplica el estado nuevo de un documento a las huellas y publica el evento correspondiente.
+     * Un documento que llega sin cambios en sus campos no genera evento.
+     *
+     * @param data   campos del documento, o null si se eliminó
+     * @param object conversión del documento a su clase; sólo se evalúa si hay evento
+     */
+    void apply(String collection, String documentId, Map<String, Object> data, Supplier<Object> object, boolean initial) {
+        Feed feed = feeds.get(collection);
+        ChangeEvent event;
+        if (data == null) {
+            long[] previous = feed.fingerprints.remove(documentId);
+            if (previous == null) {
+                return;
+            }
+            event = new ChangeEvent(ChangeEvent.Type.DELETED, collection, documentId, null, null,
+                    feed.changedFields(previous, new long[0]), initial);
+        } else {
+            long[] current = feed.fingerprintsOf(data);
+            long[] previous = feed.fingerprints.put(documentId, current);
+            if (previous == null) {
+                event = new ChangeEvent(ChangeEvent.Type.CREATED, collection, documentId, data, object.get(),
+                        data.keySet(), initial);
+            } else {
+                Set<String> changedFields = feed.changedFields(previous, current);
+                if (changedFields.isEmpty()) {
+                    return;
+                }
+                event = new ChangeEvent(ChangeEvent.Type.UPDATED, collection, documentId, data, object.get(),
+                        changedFields, initial);
+            }
+        }
+        feed.events.incrementAndGet();
+        published.incrementAndGet();
+        publish(event);
+    }
+
+    /**
+     * Avisa a los suscriptores, detrás de los eventos ya publicados, que el listener de la colección
+     * terminó de entregar su primer snapshot
+     */
+    void synced(String collection) {
+        publish(new ChangeEvent(ChangeEvent.Type.SYNCED, collection, null, null, null, Set.of(), false));
+    }
+
+    private void publish(ChangeEvent event) {
+        // submit espera a que todos los suscriptores tengan espacio en su buffer
+        long startedAt = System.nanoTime();
+        publisher.submit(event);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        if (waitedMillis >= stallWarningMillis) {
+            stalls.incrementAndGet();
+            System.err.println("ChangeFeedService: Publicación de " + event.collection() + "/" + event.documentId() + " frenada "
+                    + waitedMillis + " ms por un suscriptor atrasado");
+        }
+    }
+
+    /**
+     * Huella de 64 bits del valor de un campo. Nunca es 0, que queda para "campo ausente".
+     */
+    static long fingerprint(Object value) {
+        long hash;
+        if (value == null) {
+            hash = 0x2545F4914F6CDD1DL;
+        } else if (value instanceof CharSequence text) {
+            hash = 0xCBF29CE484222325L; // FNV-1a
+            for (int i = 0; i < text.length(); i++) {
+                hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+            }
+        } else if (value instanceof Timestamp timestamp) {
+            hash = mix(timestamp.getSeconds() * 1_000_000_000L + timestamp.getNanos());
+        } else if (value instanceof Double || value instanceof Float) {
+            hash = mix(Double.doubleToLongBits(((Number) value).doubleValue()) ^ 0x5DEECE66DL);
+        } else if (value instanceof Number number) {
+            hash = mix(number.longValue());
+        } else {
+            hash = mix(((long) value.getClass().getName().hashCode() << 32) ^ value.hashCode());
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    // Finalizador de SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private void listen(Feed feed) {
+        if (feed.executor == null) {
+            feed.executor = Executors.newSingleThreadExecutor(
+                    Thread.ofPlatform().daemon().name("change-feed-" + feed.collection).factory());
+        }
+        try {
+            feed.registration = firestore.collection(feed.collection)
+                    .addSnapshotListener(feed.executor, (snapshot, error) -> onSnapshot(feed, snapshot, error));
+        } catch (RuntimeException e) {
+            listenerFailed(feed, e);
+        }
+    }
+
+    private void onSnapshot(Feed feed, QuerySnapshot snapshot, FirestoreException error) {
+        if (error != null) {
+            listenerFailed(feed, error);
+            return;
+        }
+        if (!feed.live) {
+            // Primer snapshot del listener: trae todos los documentos; se compara con la copia
+            boolean initial = !feed.initialized;
+            Set<String> present = new HashSet<>();
+            for (QueryDocumentSnapshot document : snapshot.getDocuments()) {
+                present.add(document.getId());
+                apply(feed.collection, document.getId(), document.getData(), () -> document.toObject(feed.type), initial);
+            }
+            for (String documentId : Set.copyOf(feed.fingerprints.keySet())) {
+                if (!present.contains(documentId)) {
+                    apply(feed.collection, documentId, null, null, false);
+                }
+            }
+            feed.initialized = true;
+            feed.consecutiveFailures = 0;
+            feed.live = true;
+            synced(feed.collection);
+            System.out.println("ChangeFeedService: Listener de '" + feed.collection + "' activo (" + present.size() + " documentos)");
+            return;
+        }
+        for (DocumentChange change : snapshot.getDocumentChanges()) {
+            QueryDocumentSnapshot document = change.getDocument();
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+                apply(feed.collection, document.getId(), null, null, false);
+            } else {
+                apply(feed.collection, document.getId(), document.getData(), () -> document.toObject(feed.type), false);
+            }
+        }
+    }
+
+    private void listenerFailed(Feed feed, Exception error) {
+        feed.live = false;
+        listenerErrors.incrementAndGet();
+        long delaySeconds = Math.min(MAX_RETRY_SECONDS, retrySeconds << Math.min(20, feed.consecutiveFailures++));
+        System.err.println("ChangeFeedService: Error en el listener de '" + feed.collection + "', reintentando en "
+                + delaySeconds + " s: " + error.getMessage());
+        if (feed.registration != null) {
+            feed.registration.remove();
+            feed.registration = null;
+        }
+        if (!running) {
+            return;
+        }
+        Thread.ofVirtual().name("change-feed-retry").start(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(delaySeconds);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (running) {
+                reconnects.incrementAndGet();
+                listen(feed);
+            }
+        });
+    }
+
+    private static final class Feed {
+        final String collection;
+        final Class<?> type;
+        // Por documento, la huella de cada campo en la posición que le asigna fieldPositions (0 si no lo tiene)
+        final Map<String, long[]> fingerprints = new ConcurrentHashMap<>();
+        final Map<String, Integer> fieldPositions = new ConcurrentHashMap<>();
+        final List<String> fieldNames = new CopyOnWriteArrayList<>();
+        final AtomicLong events = new AtomicLong(0);
+        volatile boolean live = false;
+        volatile boolean initialized = false;
+        volatile int consecutiveFailures = 0;
+        volatile ListenerRegistration registration;
+        volatile ExecutorService executor;
+
+        Feed(String collection, Class<?> type) {
+            this.collection = collection;
+            this.type = type;
+        }
+
+        // Sólo desde el hilo de la colección: las posiciones nuevas se agregan al final
+        long[] fingerprintsOf(Map<String, Object> data) {
+            for (String field : data.keySet()) {
+                fieldPositions.computeIfAbsent(field, name -> {
+                    fieldNames.add(name);
+                    return fieldNames.size() - 1;
+                });
+            }
+            long[] fingerprints = new long[fieldNames.size()];
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                fingerprints[fieldPositions.get(entry.getKey())] = fingerprint(entry.getValue());
+            }
+            return fingerprints;
+        }
+
+        Set<String> changedFields(long[] previous, long[] current) {
+            Set<String> changed = new HashSet<>();
+            for (int i = 0; i < Math.max(previous.length, current.length); i++) {
+                long before = i < previous.length ? previous[i] : 0;
+                long after = i < current.length ? current[i] : 0;
+                if (before != after) {
+                    changed.add(fieldNames.get(i));
+                }
+            }
+            return changed;
+        }
+    }
+
+    private static final class NamedSubscriber implements Flow.Subscriber<ChangeEvent> {
+        final String name;
+        final Set<String> collections;
+        final Consumer<ChangeEvent> consumer;
+        final Consumer<String> onSynced;
+        final AtomicLong delivered = new AtomicLong(0);
+        final AtomicLong failed = new AtomicLong(0);
+        private Flow.Subscription subscription;
+
+        NamedSubscriber(String name, Set<String> collections, Consumer<ChangeEvent> consumer, Consumer<String> onSynced) {
+            this.name = name;
+            this.collections = collections;
+            this.consumer = consumer;
+            this.onSynced = onSynced;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ChangeEvent event) {
+            try {
+                if (!collections.contains(event.collection())) {
+                    return;
+                }
+                if (event.type() == ChangeEvent.Type.SYNCED) {
+                    onSynced.accept(event.collection());
+                } else {
+                    consumer.accept(event);
+                    delivered.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                System.err.println("ChangeFeedService: Error en el suscriptor '" + name + "' procesando "
+                        + event.type() + " de " + event.collection() + "/" + event.documentId() + ": " + e.getMessage());
+            } finally {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            System.err.println("ChangeFeedService: Suscriptor '" + name + "' terminado con error: " + throwable.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -1,16 +1,13 @@
 package com.politicalreferralswa.service;
 
-import com.google.cloud.firestore.Firestore;
-import com.politicalreferralswa.model.User; // Asegúrate de que User.java tiene campos: id (String UUID), phone (String), telegram_chat_id (String), Y AHORA referred_by_code (String)
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.UserRepository; // Asegúrate de que User.java tiene campos: id (String UUID), phone (String), telegram_chat_id (String), Y AHORA referred_by_code (String)
 import com.politicalreferralswa.service.UserDataExtractionResult;
 import com.politicalreferralswa.service.GeminiService;
 import com.politicalreferralswa.service.NotificationService;
 import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Value;
 import com.google.cloud.Timestamp;
-import com.google.cloud.firestore.DocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.api.core.ApiFuture;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpStatus;
@@ -20,6 +17,7 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.regex.Matcher;
@@ -27,6 +25,7 @@ import java.util.regex.Pattern;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Executors;
@@ -35,7 +34,7 @@ import java.util.concurrent.ScheduledExecutorService;
 @Service
 public class ChatbotService {
 
-    private final Firestore firestore;
+    private final UserRepository userRepository;
     private final WatiApiService watiApiService;
     private final TelegramApiService telegramApiService;
     private final AIBotService aiBotService;
@@ -48,8 +47,14 @@ public class ChatbotService {
     private final RestTemplate restTemplate;
     private final NotificationService notificationService;
     private final PostRegistrationMenuService postRegistrationMenuService;
+    private final UserCache userCache;
+    private final UserWriteCoalescer userWriteCoalescer;
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // 'referred_by_code' escrito en Firestore por ID de usuario, desde que un handler lo cambia hasta la
+    // siguiente escritura del usuario, que lleva el ajuste de los contadores de referidos
+    private final Map<String, Optional<String>> committedReferrerCodes = new ConcurrentHashMap<>();
+
 
     @Value("${WELCOME_VIDEO_URL}")
     private String welcomeVideoUrl;
@@ -219,15 +224,16 @@ public class ChatbotService {
         "eliminar mi tribu 2026"
     );
 
-    public ChatbotService(Firestore firestore, WatiApiService watiApiService,
+    public ChatbotService(UserRepository userRepository, WatiApiService watiApiService,
                           TelegramApiService telegramApiService, AIBotService aiBotService,
                           UserDataExtractor userDataExtractor, GeminiService geminiService,
                           NameValidationService nameValidationService,
                           TribalAnalysisService tribalAnalysisService, AnalyticsService analyticsService,
                           SystemConfigService systemConfigService, RestTemplate restTemplate,
                           NotificationService notificationService,
-                          PostRegistrationMenuService postRegistrationMenuService) {
-        this.firestore = firestore;
+                          PostRegistrationMenuService postRegistrationMenuService,
+                          UserCache userCache, UserWriteCoalescer userWriteCoalescer) {
+        this.userRepository = userRepository;
         this.watiApiService = watiApiService;
         this.telegramApiService = telegramApiService;
         this.aiBotService = aiBotService;
@@ -240,6 +246,16 @@ public class ChatbotService {
         this.restTemplate = restTemplate;
         this.notificationService = notificationService;
         this.postRegistrationMenuService = postRegistrationMenuService;
+        this.userCache = userCache;
+        this.userWriteCoalescer = userWriteCoalescer;
+    }
+
+    /**
+     * true si el mensaje trae un código de referido tal como lo reconocen handleNewUserIntro y el
+     * estado NEW (el código debe cerrar el mensaje)
+     */
+    static boolean isReferralMessage(String messageText) {
+        return messageText != null && REFERRAL_MESSAGE_PATTERN.matcher(messageText.trim()).matches();
     }
 
     /**
@@ -272,6 +288,7 @@ public class ChatbotService {
 
         try {
             saveUser(testUser);
+            userRepository.registerReferralCode(testReferralCode, UserWriteCoalescer.documentIdOf(testUser)).join();
             System.out.println("DEBUG: Usuario referente de prueba '" + testUser.getName() + "' con código '"
                     + testUser.getReferral_code() + "' creado exitosamente en Firestore.");
             
@@ -312,11 +329,11 @@ public class ChatbotService {
                 referredUser.setCity(testCities[i]);
                 referredUser.setChatbot_state("COMPLETED");
                 referredUser.setAceptaTerminos(true);
-                referredUser.setReferral_code(generateUniqueReferralCode());
+                referredUser.setReferral_code(generateUniqueReferralCode(referredUser));
                 referredUser.setCreated_at(Timestamp.now());
                 referredUser.setUpdated_at(Timestamp.now());
                 referredUser.setReferred_by_phone("3100000001"); // Sin el +, teléfono del usuario principal
-                referredUser.setReferred_by_code(referralCode); // Usar el código de referido del usuario principal
+                updateReferredByCode(referredUser, referralCode); // Usar el código de referido del usuario principal
                 
                 saveUser(referredUser);
                 System.out.println("DEBUG: Usuario referido de prueba '" + referredUser.getName() + "' creado exitosamente. Referido por código: " + referralCode + " y teléfono: 3100000001");
@@ -343,6 +360,19 @@ public class ChatbotService {
     }
 
     public String processIncomingMessage(String fromId, String messageText, String channelType, String senderName) {
+        // Las llamadas a saveUser durante el mensaje se agrupan en una escritura por usuario al final
+        userWriteCoalescer.begin();
+        try {
+            return handleIncomingMessage(fromId, messageText, channelType, senderName);
+        } finally {
+            if (userWriteCoalescer.isOutermost()) {
+                flushUserWrites();
+            }
+            userWriteCoalescer.end();
+        }
+    }
+
+    private String handleIncomingMessage(String fromId, String messageText, String channelType, String senderName) {
         User user = findUserByAnyIdentifier(fromId, channelType).orElse(null);
         boolean isNewUser = (user == null);
         ChatResponse chatResponse = null;
@@ -435,7 +465,7 @@ public class ChatbotService {
                         if (user.getName() != null && user.getCity() != null && user.isAceptaTerminos()) {
                             // Usuario parece estar completo, verificar si tiene código de referido
                             if (user.getReferral_code() == null || user.getReferral_code().isEmpty()) {
-                                String referralCode = generateUniqueReferralCode();
+                                String referralCode = generateUniqueReferralCode(user);
                                 user.setReferral_code(referralCode);
                             }
                             user.setChatbot_state("COMPLETED");
@@ -582,7 +612,9 @@ public class ChatbotService {
         System.out.println("DEBUG handleNewUserIntro: Usuario Phone: " + user.getPhone());
 
         // Intentar extracción inteligente de datos primero
+        String previousReferredByCode = user.getReferred_by_code();
         UserDataExtractor.ExtractionResult extractionResult = userDataExtractor.extractAndUpdateUser(user, messageText, null);
+        referrerChanged(user, previousReferredByCode);
         
         System.out.println("DEBUG handleNewUserIntro: Resultado de extracción - Success: " + extractionResult.isSuccess() + 
                           ", Message: '" + extractionResult.getMessage() + "', NextState: " + extractionResult.getNextState());
@@ -737,7 +769,7 @@ public class ChatbotService {
                 
                 System.out.println("DEBUG handleNewUserIntro: 🔍 Número final a guardar: " + referrerPhone);
                 user.setReferred_by_phone(referrerPhone);
-                user.setReferred_by_code(incomingReferralCode); // <-- AÑADIDO: Guardar el código de referido
+                updateReferredByCode(user, incomingReferralCode); // <-- AÑADIDO: Guardar el código de referido
                 System.out.println("DEBUG handleNewUserIntro: Estableciendo referred_by_phone: '" + user.getReferred_by_phone() + "' y referred_by_code: '" + user.getReferred_by_code() + "'");
 
 
@@ -851,7 +883,9 @@ public class ChatbotService {
         switch (currentChatbotState) {
             case "WAITING_CLARIFICATION":
                 // Procesar aclaración del usuario
+                String previousReferredByCode = user.getReferred_by_code();
                 UserDataExtractor.ExtractionResult clarificationResult = userDataExtractor.extractAndUpdateUser(user, messageText, null);
+                referrerChanged(user, previousReferredByCode);
                 
                 if (clarificationResult.isSuccess()) {
                     // Guardar usuario actualizado después de la aclaración
@@ -935,7 +969,7 @@ public class ChatbotService {
                     return new ChatResponse(responseMessage, nextChatbotState);
                 }
 
-                Optional<User> existingUserByPhone = findUserByPhoneNumberField(normalizedPhoneNumber);
+                Optional<User> existingUserByPhone = findUserByAnyIdentifier(normalizedPhoneNumber, "WHATSAPP");
 
                 if (existingUserByPhone.isPresent()) {
                     User foundUser = existingUserByPhone.get();
@@ -955,7 +989,10 @@ public class ChatbotService {
                         }
 
                         try {
-                            firestore.collection("users").document(user.getId()).delete().get();
+                            userRepository.delete(user.getId(), committedReferrerCode(user)).get();
+                            committedReferrerCodes.remove(user.getId());
+                            userCache.invalidate(user.getId());
+                            userWriteCoalescer.forget(user.getId());
                             System.out.println("DEBUG: Documento temporal de Telegram (UUID: " + user.getId()
                                     + ") eliminado después de vincular.");
                         } catch (Exception e) {
@@ -1054,7 +1091,7 @@ public class ChatbotService {
                             referralCode = user.getReferral_code(); // Mantener el existente
                             System.out.println("DEBUG: ✅ Usuario reseteado, manteniendo referral_code existente: " + referralCode);
                         } else {
-                            referralCode = generateUniqueReferralCode(); // Generar nuevo solo si no existe
+                            referralCode = generateUniqueReferralCode(user); // Generar nuevo solo si no existe
                             user.setReferral_code(referralCode);
                             System.out.println("DEBUG: ✅ Generando nuevo referral_code: " + referralCode);
                         }
@@ -1255,7 +1292,7 @@ public class ChatbotService {
                             // NO limpiar referral_code - es su identificación única
                             // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                             user.setReferred_by_phone(null);
-                            user.setReferred_by_code(null);
+                            updateReferredByCode(user, null);
                             user.setReset_from_deletion(false);
                             saveUser(user);
                             System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente");
@@ -1321,7 +1358,7 @@ public class ChatbotService {
                                 // NO limpiar referral_code - es su identificación única
                                 // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                                 user.setReferred_by_phone(null);
-                                user.setReferred_by_code(null);
+                                updateReferredByCode(user, null);
                                 user.setReset_from_deletion(false);
                                 saveUser(user);
                                 System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente (fallback)");
@@ -1384,7 +1421,7 @@ public class ChatbotService {
                             // NO limpiar referral_code - es su identificación única
                             // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                             user.setReferred_by_phone(null);
-                            user.setReferred_by_code(null);
+                            updateReferredByCode(user, null);
                             user.setReset_from_deletion(false);
                             saveUser(user);
                             System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente (exception)");
@@ -1446,7 +1483,7 @@ public class ChatbotService {
                     // NO limpiar referral_code - es su identificación única
                     // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                     user.setReferred_by_phone(null);
-                    user.setReferred_by_code(null);
+                    updateReferredByCode(user, null);
                     user.setReset_from_deletion(false);
                     saveUser(user);
                     System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente en WAITING_LASTNAME");
@@ -1497,7 +1534,7 @@ public class ChatbotService {
                     // NO limpiar referral_code - es su identificación única
                     // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                     user.setReferred_by_phone(null);
-                    user.setReferred_by_code(null);
+                    updateReferredByCode(user, null);
                     user.setReset_from_deletion(false);
                     saveUser(user);
                     System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente en WAITING_CITY");
@@ -1555,7 +1592,7 @@ public class ChatbotService {
                         // NO limpiar referral_code - es su identificación única
                         // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                         user.setReferred_by_phone(null);
-                        user.setReferred_by_code(null);
+                        updateReferredByCode(user, null);
                         user.setReset_from_deletion(false);
                         saveUser(user);
                         System.out.println("DEBUG: ✅ Datos previos limpiados forzadamente en WAITING_CITY (exception)");
@@ -1617,7 +1654,7 @@ public class ChatbotService {
                         referralCode = user.getReferral_code(); // Mantener el existente
                         System.out.println("DEBUG: ✅ Usuario reseteado en CONFIRM_DATA, manteniendo referral_code existente: " + referralCode);
                     } else {
-                        referralCode = generateUniqueReferralCode(); // Generar nuevo solo si no existe
+                        referralCode = generateUniqueReferralCode(user); // Generar nuevo solo si no existe
                         user.setReferral_code(referralCode);
                         System.out.println("DEBUG: ✅ Generando nuevo referral_code en CONFIRM_DATA: " + referralCode);
                     }
@@ -1934,7 +1971,7 @@ public class ChatbotService {
                             
                         System.out.println("DEBUG handleExistingUserMessage: 🔍 Número final a guardar: " + referrerPhone);
                         user.setReferred_by_phone(referrerPhone);
-                        user.setReferred_by_code(referralCode);
+                        updateReferredByCode(user, referralCode);
                             
                         System.out.println("DEBUG handleExistingUserMessage: ✅ Referido establecido - Phone: " + user.getReferred_by_phone() + ", Code: " + user.getReferred_by_code());
                             
@@ -1967,7 +2004,7 @@ public class ChatbotService {
                     // NO limpiar referral_code - es su identificación única
                     // SÍ limpiar referred_by_phone y referred_by_code - son referencias de quién lo invitó
                     user.setReferred_by_phone(null);
-                    user.setReferred_by_code(null);
+                    updateReferredByCode(user, null);
                     user.setReset_from_deletion(false); // Resetear el flag
                     System.out.println("DEBUG: ✅ Usuario reseteado - datos personales limpiados, manteniendo referral_code");
                     System.out.println("DEBUG: 🔍 Usuario después del reseteo - Nombre: '" + user.getName() + "', Apellido: '" + user.getLastname() + "', Ciudad: '" + user.getCity() + "', Referral: '" + user.getReferral_code() + "'");
@@ -2013,82 +2050,6 @@ public class ChatbotService {
 
     // --- Métodos Auxiliares para búsqueda de usuario ---
 
-    /**
-     * Busca un usuario por su campo 'phone'.
-     * Requiere que el campo 'phone' esté indexado en Firestore.
-     */
-    private Optional<User> findUserByPhoneNumberField(String phoneNumber) {
-        try {
-            System.out.println("DEBUG: Iniciando búsqueda en Firestore por campo 'phone': " + phoneNumber);
-            ApiFuture<QuerySnapshot> future = firestore.collection("users")
-                    .whereEqualTo("phone", phoneNumber)
-                    .limit(1)
-                    .get();
-            System.out.println("DEBUG: Consulta Firestore enviada, esperando respuesta...");
-            QuerySnapshot querySnapshot = future.get();
-            System.out.println("DEBUG: Respuesta de Firestore recibida, procesando...");
-
-            if (!querySnapshot.isEmpty()) {
-                DocumentSnapshot document = querySnapshot.getDocuments().get(0);
-                System.out.println("DEBUG: Documento encontrado en Firestore, convirtiendo a objeto User...");
-                return Optional.ofNullable(document.toObject(User.class));
-            } else {
-                System.out.println("DEBUG: No se encontraron documentos en Firestore para el teléfono: " + phoneNumber);
-                return Optional.empty();
-            }
-        } catch (Exception e) {
-            System.err.println(
-                    "ERROR al buscar usuario por campo 'phone' en Firestore (" + phoneNumber + "): " + e.getMessage());
-            e.printStackTrace();
-            return Optional.empty();
-        }
-    }
-
-    /**
-     * Busca un usuario por su campo 'telegram_chat_id'.
-     * Requiere que el campo 'telegram_chat_id' esté indexado en Firestore.
-     */
-    private Optional<User> findUserByTelegramChatIdField(String telegramChatId) {
-        try {
-            ApiFuture<QuerySnapshot> future = firestore.collection("users")
-                    .whereEqualTo("telegram_chat_id", telegramChatId)
-                    .limit(1)
-                    .get();
-            QuerySnapshot querySnapshot = future.get();
-
-            if (!querySnapshot.isEmpty()) {
-                DocumentSnapshot document = querySnapshot.getDocuments().get(0);
-                return Optional.ofNullable(document.toObject(User.class));
-            } else {
-                return Optional.empty();
-            }
-        } catch (Exception e) {
-            System.err.println("ERROR al buscar usuario por campo 'telegram_chat_id' en Firestore (" + telegramChatId
-                    + "): " + e.getMessage());
-            return Optional.empty();
-        }
-    }
-
-    /**
-     * Busca un usuario por su ID de documento.
-     * Útil si se guarda por phone number sin el '+', o por UUID.
-     */
-    private Optional<User> findUserByDocumentId(String documentId) {
-        try {
-            ApiFuture<DocumentSnapshot> future = firestore.collection("users").document(documentId).get();
-            DocumentSnapshot document = future.get();
-            if (document.exists()) {
-                return Optional.ofNullable(document.toObject(User.class));
-            } else {
-                return Optional.empty();
-            }
-        } catch (Exception e) {
-            System.err.println(
-                    "ERROR al buscar usuario por ID de documento en Firestore (" + documentId + "): " + e.getMessage());
-            return Optional.empty();
-        }
-    }
-
     /**
      * Unifica la búsqueda de usuario, intentando por número de teléfono o por chat
      * ID de Telegram.
@@ -2110,59 +2071,34 @@ public class ChatbotService {
 
         System.out.println("DEBUG findUserByAnyIdentifier: fromId='" + fromId + "', cleanedFromId='" + cleanedFromId + "', phoneNumberToSearch='" + phoneNumberToSearch + "'");
 
-        if (!phoneNumberToSearch.isEmpty() && STRICT_PHONE_NUMBER_PATTERN.matcher(phoneNumberToSearch).matches()) {
-            System.out.println("DEBUG: Buscando usuario por campo 'phone': " + phoneNumberToSearch);
-            user = findUserByPhoneNumberField(phoneNumberToSearch);
-            System.out.println("DEBUG: Búsqueda por 'phone' completada, resultado: " + (user.isPresent() ? "ENCONTRADO" : "NO ENCONTRADO"));
-            if (user.isPresent()) {
-                System.out.println("DEBUG: Usuario encontrado por campo 'phone': " + phoneNumberToSearch);
-                return user;
-            } else {
-                System.out.println("DEBUG: Usuario NO encontrado por campo 'phone': " + phoneNumberToSearch);
-            }
-            
-            // BÚSQUEDA ADICIONAL: Buscar también por ID de documento sin el '+'
-            String docIdWithoutPlus = phoneNumberToSearch.startsWith("+") ? phoneNumberToSearch.substring(1) : phoneNumberToSearch;
-            System.out.println("DEBUG: Búsqueda adicional por ID de documento (sin '+'): " + docIdWithoutPlus);
-            user = findUserByDocumentId(docIdWithoutPlus);
-            System.out.println("DEBUG: Búsqueda por ID de documento (sin '+') completada, resultado: " + (user.isPresent() ? "ENCONTRADO" : "NO ENCONTRADO"));
-            if (user.isPresent()) {
-                System.out.println("DEBUG: Usuario encontrado por ID de documento (sin '+'): " + docIdWithoutPlus);
-                return user;
-            } else {
-                System.out.println("DEBUG: Usuario NO encontrado por ID de documento (sin '+'): " + docIdWithoutPlus);
-            }
-        } else {
-            System.out.println("DEBUG: FromId '" + fromId + "' normalizado a '" + phoneNumberToSearch
-                    + "' no es un formato de teléfono válido para búsqueda por 'phone'.");
+        // Caché en memoria: evita cualquier lectura en Firestore
+        Optional<User> cachedUser = findCachedUser(phoneNumberToSearch, fromId, channelType);
+        if (cachedUser.isPresent()) {
+            System.out.println("DEBUG: Usuario encontrado en caché para fromId: " + fromId);
+            return cachedUser;
         }
 
-        System.out.println("DEBUG: Continuando con búsqueda por ID de documento original...");
+        String validPhone = !phoneNumberToSearch.isEmpty() && STRICT_PHONE_NUMBER_PATTERN.matcher(phoneNumberToSearch).matches()
+                ? phoneNumberToSearch : null;
 
-        if (!user.isPresent()) {
-            System.out.println("DEBUG: Buscando usuario por ID de documento original: " + fromId);
-            user = findUserByDocumentId(fromId);
-            System.out.println("DEBUG: Búsqueda por ID de documento original completada, resultado: " + (user.isPresent() ? "ENCONTRADO" : "NO ENCONTRADO"));
-            if (user.isPresent()) {
-                System.out.println("DEBUG: Usuario encontrado por ID de documento original: " + fromId);
-                return user;
-            } else {
-                System.out.println("DEBUG: Usuario NO encontrado por ID de documento original: " + fromId);
-            }
+        if (validPhone == null) {
+            System.out.println("DEBUG: FromId '" + fromId + "' normalizado a '" + phoneNumberToSearch
+                    + "' no es un formato de teléfono válido para búsqueda por 'phone'.");
         }
 
-        System.out.println("DEBUG: Continuando con búsqueda por Telegram Chat ID...");
-
-        if (!user.isPresent() && "TELEGRAM".equalsIgnoreCase(channelType)) {
-            System.out.println("DEBUG: Buscando usuario por campo 'telegram_chat_id': " + fromId);
-            user = findUserByTelegramChatIdField(fromId);
-            System.out.println("DEBUG: Búsqueda por 'telegram_chat_id' completada, resultado: " + (user.isPresent() ? "ENCONTRADO" : "NO ENCONTRADO"));
-            if (user.isPresent()) {
-                System.out.println("DEBUG: Usuario encontrado por campo 'telegram_chat_id': " + fromId);
-                return user;
-            } else {
-                System.out.println("DEBUG: Usuario NO encontrado por campo 'telegram_chat_id': " + fromId);
+        // Repositorio de usuarios (en Firestore: índice de identidades y búsquedas heredadas por campo)
+        try {
+            user = userRepository.findByAnyIdentifier(validPhone, fromId, channelType).get().flatMap(this::cacheUser);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
             }
+            System.err.println("ERROR al buscar usuario para fromId " + fromId + ": " + e.getMessage());
+            return Optional.empty();
+        }
+        if (user.isPresent()) {
+            System.out.println("DEBUG: Usuario encontrado para fromId: " + fromId);
+            return user;
         }
 
         System.out.println("DEBUG: Usuario no encontrado por ningún identificador conocido para fromId: " + fromId
@@ -2171,22 +2107,43 @@ public class ChatbotService {
     }
 
 
+    /**
+     * Estado actual del chatbot para un remitente (normalmente servido por la caché de usuarios).
+     * Un remitente sin usuario está en "NEW".
+     */
+    public String getChatbotState(String fromId, String channelType) {
+        return findUserByAnyIdentifier(fromId, channelType)
+                .map(User::getChatbot_state)
+                .orElse("NEW");
+    }
+
+    private Optional<User> findCachedUser(String phoneNumber, String fromId, String channelType) {
+        Optional<UserCache.Hit> hit = userCache.lookup(phoneNumber.isEmpty() ? null : phoneNumber, fromId,
+                "TELEGRAM".equalsIgnoreCase(channelType) ? fromId : null);
+        hit.ifPresent(found -> userWriteCoalescer.loaded(found.documentId(), found.user()));
+        return hit.map(UserCache.Hit::user);
+    }
+
+    // Guarda el usuario leído en la caché bajo su ID de documento y lo registra como estado leído
+    // en la unidad de trabajo del mensaje (si hay una abierta)
+    private Optional<User> cacheUser(UserRepository.StoredUser stored) {
+        userCache.put(stored.documentId(), stored.user());
+        userWriteCoalescer.loaded(stored.documentId(), stored.user());
+        return Optional.of(stored.user());
+    }
+
+    /**
+     * Busca al dueño de un código de referido. En Firestore se resuelve por el índice 'referral_codes';
+     * la consulta por 'referral_code' queda para códigos anteriores al índice, que se registran al encontrarse.
+     */
     private Optional<User> getUserByReferralCode(String referralCode) {
         try {
-            ApiFuture<QuerySnapshot> future = firestore.collection("users")
-                    .whereEqualTo("referral_code", referralCode)
-                    .limit(1)
-                    .get();
-            QuerySnapshot querySnapshot = future.get();
-
-            if (!querySnapshot.isEmpty()) {
-                DocumentSnapshot document = querySnapshot.getDocuments().get(0);
-                return Optional.ofNullable(document.toObject(User.class));
-            } else {
-                return Optional.empty();
-            }
+            return userRepository.findByReferralCode(referralCode).get().flatMap(this::cacheUser);
         } catch (Exception e) {
-            System.err.println("ERROR al buscar usuario por código de referido en Firestore: " + e.getMessage());
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.err.println("ERROR al buscar usuario por código de referido " + referralCode + ": " + e.getMessage());
             return Optional.empty();
         }
     }
@@ -2199,44 +2156,98 @@ public class ChatbotService {
      * del documento.
      * Si 'user.phone' no está presente, usa user.getId() (UUID) como ID del
      * documento.
+     * Dentro de processIncomingMessage la escritura se difiere hasta el final del mensaje
+     * (ver UserWriteCoalescer); la caché se actualiza de inmediato.
      */
     public void saveUser(User user) {
-        String docIdToUse;
-        String oldDocId = null;
-
         if (user.getId() == null || user.getId().isEmpty()) {
             System.err.println(
                     "ERROR: Intentando guardar usuario, pero user.getId() es nulo/vacío. Generando un nuevo UUID y usando ese.");
             user.setId(UUID.randomUUID().toString());
         }
 
-        if (user.getPhone() != null && !user.getPhone().isEmpty()) {
-            docIdToUse = user.getPhone().startsWith("+") ? user.getPhone().substring(1) : user.getPhone();
-            System.out.println("DEBUG: Guardando usuario con ID de documento (teléfono sin '+'): " + docIdToUse);
+        String docIdToUse = UserWriteCoalescer.documentIdOf(user);
+        if (userWriteCoalescer.defer(user)) {
+            userCache.put(docIdToUse, user);
+            return;
+        }
+
+        String oldDocId = null;
+        if (!docIdToUse.equals(user.getId())) {
+            oldDocId = user.getId();
+            System.out.println("DEBUG: Detectada migración de ID de documento de UUID (" + oldDocId
+                    + ") a teléfono (" + docIdToUse + ").");
+        }
+        writeUser(user, docIdToUse, oldDocId);
+    }
 
-            if (!docIdToUse.equals(user.getId())) {
-                oldDocId = user.getId();
-                System.out.println("DEBUG: Detectada migración de ID de documento de UUID (" + oldDocId
-                        + ") a teléfono (" + docIdToUse + ").");
+    /**
+     * Aplica las escrituras agrupadas del mensaje en curso: una por usuario, sólo con los campos
+     * que cambiaron (o completa si es un usuario nuevo o cambia su ID de documento)
+     */
+    private void flushUserWrites() {
+        for (UserWriteCoalescer.PlannedWrite write : userWriteCoalescer.drain()) {
+            boolean written = write.isFullWrite()
+                    ? writeUser(write.user(), write.documentId(), write.previousDocumentId())
+                    : writeUserFields(write.user(), write.documentId(), write.mergeFields());
+            if (written) {
+                userWriteCoalescer.written(write);
             }
-        } else {
-            docIdToUse = user.getId();
-            System.out.println("DEBUG: Guardando usuario con ID de documento (UUID): " + docIdToUse);
         }
+    }
 
+    private boolean writeUser(User user, String docIdToUse, String oldDocId) {
+        System.out.println("DEBUG: Guardando usuario con ID de documento: " + docIdToUse);
+        if (oldDocId != null) {
+            return migrateUser(user, docIdToUse, oldDocId);
+        }
         try {
-            if (oldDocId != null) {
-                firestore.collection("users").document(oldDocId).delete().get();
-                System.out.println(
-                        "DEBUG: Documento antiguo (UUID: " + oldDocId + ") eliminado exitosamente para migración.");
-            }
+            userRepository.save(docIdToUse, user, committedReferrerCode(user)).get();
+            committedReferrerCodes.remove(user.getId());
+            System.out.println("DEBUG: Usuario guardado/actualizado con ID de documento: " + docIdToUse);
+            userCache.put(docIdToUse, user);
+            return true;
+        } catch (Exception e) {
+            System.err.println("ERROR al guardar/actualizar usuario con ID " + docIdToUse + ": " + e.getMessage());
+            e.printStackTrace();
+            userCache.invalidate(docIdToUse);
+            return false;
+        }
+    }
 
-            firestore.collection("users").document(docIdToUse).set(user).get();
-            System.out.println("DEBUG: Usuario guardado/actualizado en Firestore con ID de documento: " + docIdToUse);
+    /**
+     * Mueve el usuario de su documento anterior (UUID) al documento por teléfono en una sola operación
+     * del repositorio (en Firestore, un WriteBatch que además reescribe los mapeos del índice de
+     * identidades). Si falla no se aplica nada y el documento anterior sigue intacto.
+     */
+    private boolean migrateUser(User user, String docIdToUse, String oldDocId) {
+        try {
+            userRepository.move(oldDocId, docIdToUse, user, committedReferrerCode(user)).get();
+            committedReferrerCodes.remove(user.getId());
+            System.out.println("DEBUG: Usuario migrado de documento " + oldDocId + " a " + docIdToUse);
+            userCache.invalidate(oldDocId);
+            userCache.put(docIdToUse, user);
+            return true;
         } catch (Exception e) {
-            System.err.println("ERROR al guardar/actualizar/migrar usuario en Firestore con ID " + docIdToUse
-                    + " (antiguo ID: " + oldDocId + "): " + e.getMessage());
+            System.err.println("ERROR al migrar usuario de " + oldDocId + " a " + docIdToUse + ": " + e.getMessage());
             e.printStackTrace();
+            userCache.invalidate(docIdToUse);
+            return false;
+        }
+    }
+
+    private boolean writeUserFields(User user, String docIdToUse, Map<String, Object> fields) {
+        try {
+            userRepository.merge(docIdToUse, fields, user, committedReferrerCode(user)).get();
+            committedReferrerCodes.remove(user.getId());
+            System.out.println("DEBUG: Usuario actualizado (" + docIdToUse + "), campos: " + fields.keySet());
+            userCache.put(docIdToUse, user);
+            return true;
+        } catch (Exception e) {
+            System.err.println("ERROR al actualizar campos " + fields.keySet() + " del usuario " + docIdToUse
+                    + ": " + e.getMessage());
+            userCache.invalidate(docIdToUse);
+            return false;
         }
     }
 
@@ -2275,8 +2286,9 @@ public class ChatbotService {
         return trimmedMessage;
     }
 
-    private String generateUniqueReferralCode() {
-        return UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+    // Reserva un código libre para el usuario (en Firestore, en 'referral_codes'; ver ReferralCodeService)
+    private String generateUniqueReferralCode(User owner) {
+        return userRepository.allocateReferralCode(UserWriteCoalescer.documentIdOf(owner)).join();
     }
 
     /**
@@ -2513,19 +2525,15 @@ public class ChatbotService {
 
         try {
             // Buscar todos los usuarios que tienen este referralCode en referred_by_code
-            ApiFuture<QuerySnapshot> future = firestore.collection("users")
-                    .whereEqualTo("referred_by_code", referralCode)
-                    .get();
-            
-            QuerySnapshot querySnapshot = future.get();
+            List<UserRepository.StoredUser> referredUsers = userRepository.findByReferrer(referralCode).get();
             int resetCount = 0;
 
-            if (!querySnapshot.isEmpty()) {
-                System.out.println("ChatbotService: Encontrados " + querySnapshot.size() + " usuarios referidos para resetear");
+            if (!referredUsers.isEmpty()) {
+                System.out.println("ChatbotService: Encontrados " + referredUsers.size() + " usuarios referidos para resetear");
                 
-                for (DocumentSnapshot document : querySnapshot.getDocuments()) {
+                for (UserRepository.StoredUser stored : referredUsers) {
                     try {
-                        User referredUser = document.toObject(User.class);
+                        User referredUser = stored.user();
                         if (referredUser != null && referredUser.getPhone() != null) {
                             // Construir URL para resetear este usuario referido
                             String baseUrl = "http://localhost:" + serverPort;
@@ -2572,20 +2580,44 @@ public class ChatbotService {
         if (referralCode == null || referralCode.isEmpty()) {
             return 0;
         }
-
+        // En Firestore, contador mantenido en 'referral_counters' (con count() como respaldo), no una descarga de los referidos
         try {
-            ApiFuture<QuerySnapshot> future = firestore.collection("users")
-                    .whereEqualTo("referred_by_code", referralCode)
-                    .get();
-            
-            QuerySnapshot querySnapshot = future.get();
-            return querySnapshot.size();
-            
+            return userRepository.countByReferrer(referralCode).get().intValue();
         } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
             System.err.println("ERROR: Error al contar referidos para código " + referralCode + ": " + e.getMessage());
             return 0;
         }
     }
+
+    /**
+     * Cambia el código de quien refirió al usuario y actualiza los contadores de referidos
+     * del código anterior y del nuevo
+     */
+    private void updateReferredByCode(User user, String referralCode) {
+        String previousReferredByCode = user.getReferred_by_code();
+        user.setReferred_by_code(referralCode);
+        referrerChanged(user, previousReferredByCode);
+    }
+
+    /**
+     * Registra que un handler cambió el 'referred_by_code' del usuario. El primer valor anterior desde la
+     * última escritura es el que tiene Firestore; los contadores se ajustan en la siguiente escritura del
+     * usuario, dentro de la misma operación (un contador nunca cambia sin su documento)
+     */
+    private void referrerChanged(User user, String previousReferredByCode) {
+        if (user.getId() != null && !Objects.equals(previousReferredByCode, user.getReferred_by_code())) {
+            committedReferrerCodes.putIfAbsent(user.getId(), Optional.ofNullable(previousReferredByCode));
+        }
+    }
+
+    // 'referred_by_code' que tiene el documento del usuario en Firestore
+    private String committedReferrerCode(User user) {
+        Optional<String> committed = user.getId() != null ? committedReferrerCodes.get(user.getId()) : null;
+        return committed != null ? committed.orElse(null) : user.getReferred_by_code();
+    }
     
     /**
      * Notifica al referente cuando alguien se registra usando su código
@@ -2596,6 +2628,8 @@ public class ChatbotService {
      */
     private void notifyReferrer(String referrerPhone, String newUserFirstName, String referralCode) {
         try {
+            // Si el contador debe reconciliarse, count() consulta 'users': aplicar antes las escrituras pendientes
+            flushUserWrites();
             // Contar total de referidos del referente
             int totalReferrals = countUserReferrals(referralCode);
             
@@ -2628,9 +2662,11 @@ public class ChatbotService {
                 String resetUrl = baseUrl + "/api/admin/reset/" + user.getPhone().substring(1);
                 System.out.println("ChatbotService: Llamando al endpoint de reset personal: " + resetUrl);
                 
+                flushUserWrites(); // El reset debe aplicarse después de las escrituras pendientes
                 ResponseEntity<Map> resetResponse = restTemplate.exchange(resetUrl, org.springframework.http.HttpMethod.DELETE, null, Map.class);
                 
                 if (resetResponse.getStatusCode() == HttpStatus.OK) {
+                    userWriteCoalescer.forget(user.getId()); // El documento cambió por fuera de este mensaje
                     // El endpoint de reset ya limpió los datos y preservó el referral_code
                     // Solo actualizar el estado local para la sesión actual
                     user.setChatbot_state("NEW");
@@ -2668,9 +2704,11 @@ public class ChatbotService {
                     baseUrl += contextPath;
                 }
                 String resetUrl = baseUrl + "/api/admin/reset/" + user.getPhone().substring(1);
+                flushUserWrites(); // El reset debe aplicarse después de las escrituras pendientes
                 ResponseEntity<Map> resetResponse = restTemplate.exchange(resetUrl, org.springframework.http.HttpMethod.DELETE, null, Map.class);
                 
                 if (resetResponse.getStatusCode() == HttpStatus.OK) {
+                    userWriteCoalescer.forget(user.getId()); // El documento cambió por fuera de este mensaje
                     // Buscar y resetear todos los usuarios referidos
                     int referredUsersReset = resetReferredUsers(user.getReferral_code());
                     System.out.println("ChatbotService: Usuarios referidos reseteados: " + referredUsersReset);
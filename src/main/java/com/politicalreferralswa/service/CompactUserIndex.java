@@ -0,0 +1,752 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Índice compacto de usuarios: un arreglo de primitivos por campo (struct-of-arrays) indexado por
+ * un ID entero, en lugar de un objeto User con una docena de String y varios Timestamp por usuario.
+ *
+ * - ID de documento, teléfono y códigos de referido se codifican en un long: los teléfonos y los
+ *   IDs numéricos como número y los códigos [A-Z0-9] de hasta 12 caracteres en base 37. Los valores
+ *   que no caben en esa forma (p. ej. los UUID) se guardan una vez en un diccionario y se codifican
+ *   con su posición en negativo. 0 es null. 'referred_by_phone' se normaliza a '+57...' (se guarda
+ *   sin '+' y a veces sin el 57) y se descarta si no es un teléfono.
+ * - Ciudad, departamento y chatbot_state se guardan como códigos de diccionario (int), un
+ *   diccionario por campo para que los códigos de cada uno sean consecutivos.
+ * - created_at y updated_at se guardan como segundos desde la época (Long.MIN_VALUE es null).
+ * - Las búsquedas por ID de documento, teléfono y código de referido usan tablas hash de
+ *   direccionamiento abierto de long a int, sin objetos por entrada.
+ *
+ * Los IDs enteros de usuarios eliminados se reutilizan. Lecturas y escrituras se coordinan con un
+ * ReadWriteLock: forEach mantiene el lock de lectura mientras recorre.
+ */
+public final class CompactUserIndex {
+
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final byte EXISTS = 1;
+    private static final byte ACCEPTED_TERMS = 2;
+    private static final int MAX_NUMERIC_DIGITS = 18;
+    private static final int MAX_CODE_CHARS = 12;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] documentKeys;
+    private long[] phoneKeys;
+    private long[] referralCodeKeys;
+    private long[] referredByCodeKeys;
+    private long[] referredByPhoneKeys;
+    private long[] createdAtSeconds;
+    private long[] updatedAtSeconds;
+    private int[] cityCodes;
+    private int[] stateCodes;
+    private byte[] chatbotStateCodes;
+    private byte[] flags;
+
+    private int idLimit = 0;
+    private int size = 0;
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    private final LongIntHashMap idByDocument;
+    private final LongIntHashMap idByPhone;
+    private final LongIntHashMap idByReferralCode;
+
+    private final StringTable keys = new StringTable();
+    private final StringTable cities = new StringTable();
+    private final StringTable states = new StringTable();
+    private final StringTable chatbotStates = new StringTable();
+
+    public CompactUserIndex(int expectedUsers) {
+        int capacity = Math.max(16, expectedUsers);
+        documentKeys = new long[capacity];
+        phoneKeys = new long[capacity];
+        referralCodeKeys = new long[capacity];
+        referredByCodeKeys = new long[capacity];
+        referredByPhoneKeys = new long[capacity];
+        createdAtSeconds = new long[capacity];
+        updatedAtSeconds = new long[capacity];
+        cityCodes = new int[capacity];
+        stateCodes = new int[capacity];
+        chatbotStateCodes = new byte[capacity];
+        flags = new byte[capacity];
+        idByDocument = new LongIntHashMap(capacity);
+        idByPhone = new LongIntHashMap(capacity);
+        idByReferralCode = new LongIntHashMap(capacity);
+    }
+
+    /**
+     * Guarda o reemplaza al usuario del documento. Si ya hay una versión con 'updated_at' posterior
+     * (p. ej. un recorrido completo que llega después de un cambio), no se modifica.
+     *
+     * @return ID entero del usuario
+     */
+    public int upsert(String documentId, User user) {
+        return upsert(documentId, user.getPhone(), user.getCity(), user.getState(), user.getChatbot_state(),
+                seconds(user.getCreated_at()), seconds(user.getUpdated_at()),
+                user.getReferral_code(), user.getReferred_by_code(), user.getReferred_by_phone(),
+                user.isAceptaTerminos());
+    }
+
+    public int upsert(String documentId, String phone, String city, String state, String chatbotState,
+                      long createdAt, long updatedAt, String referralCode, String referredByCode,
+                      String referredByPhone, boolean acceptedTerms) {
+        lock.writeLock().lock();
+        try {
+            long documentKey = numericKey(documentId, false);
+            int id = idByDocument.get(documentKey);
+            if (id >= 0) {
+                if (updatedAtSeconds[id] != NO_TIMESTAMP && updatedAt != NO_TIMESTAMP && updatedAt < updatedAtSeconds[id]) {
+                    return id;
+                }
+                unindex(id);
+            } else {
+                id = allocateId();
+                size++;
+            }
+            documentKeys[id] = documentKey;
+            phoneKeys[id] = phone == null || phone.isEmpty() ? 0 : numericKey(phone, true);
+            referralCodeKeys[id] = codeKey(referralCode);
+            referredByCodeKeys[id] = codeKey(referredByCode);
+            referredByPhoneKeys[id] = referredByPhoneKey(referredByPhone);
+            createdAtSeconds[id] = createdAt;
+            updatedAtSeconds[id] = updatedAt;
+            cityCodes[id] = city == null ? -1 : cities.intern(city);
+            stateCodes[id] = state == null ? -1 : states.intern(state);
+            int chatbotStateCode = chatbotState == null ? -1 : chatbotStates.intern(chatbotState);
+            if (chatbotStateCode > Byte.MAX_VALUE) {
+                throw new IllegalStateException("Demasiados valores distintos de chatbot_state: " + chatbotStates.size());
+            }
+            chatbotStateCodes[id] = (byte) chatbotStateCode;
+            flags[id] = (byte) (EXISTS | (acceptedTerms ? ACCEPTED_TERMS : 0));
+
+            idByDocument.put(documentKey, id);
+            if (phoneKeys[id] != 0) {
+                idByPhone.put(phoneKeys[id], id);
+            }
+            if (referralCodeKeys[id] != 0) {
+                idByReferralCode.put(referralCodeKeys[id], id);
+            }
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true si el documento estaba en el índice
+     */
+    public boolean remove(String documentId) {
+        lock.writeLock().lock();
+        try {
+            long documentKey = findNumericKey(documentId, false);
+            int id = documentKey == 0 ? -1 : idByDocument.get(documentKey);
+            if (id < 0) {
+                return false;
+            }
+            unindex(id);
+            idByDocument.remove(documentKey);
+            flags[id] = 0;
+            size--;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * ID entero del documento, o -1
+     */
+    public int idOf(String documentId) {
+        return lookup(idByDocument, documentId, false);
+    }
+
+    /**
+     * ID entero del usuario con el teléfono (formato '+57...'), o -1
+     */
+    public int idOfPhone(String phone) {
+        return lookup(idByPhone, phone, true);
+    }
+
+    /**
+     * ID entero del dueño del código de referido, o -1
+     */
+    public int idOfReferralCode(String referralCode) {
+        lock.readLock().lock();
+        try {
+            long key = findCodeKey(referralCode);
+            return key == 0 ? -1 : idByReferralCode.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recorre los IDs de los usuarios presentes con el lock de lectura tomado
+     */
+    public void forEach(IntConsumer consumer) {
+        lock.readLock().lock();
+        try {
+            for (int id = 0; id < idLimit; id++) {
+                if ((flags[id] & EXISTS) != 0) {
+                    consumer.accept(id);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Los IDs enteros van de 0 a idLimit() - 1
+     */
+    public int idLimit() {
+        return idLimit;
+    }
+
+    public boolean contains(int id) {
+        lock.readLock().lock();
+        try {
+            return id >= 0 && id < idLimit && (flags[id] & EXISTS) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String documentId(int id) {
+        lock.readLock().lock();
+        try {
+            return decodeNumericKey(documentKeys[id], false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String phone(int id) {
+        lock.readLock().lock();
+        try {
+            return decodeNumericKey(phoneKeys[id], true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String referralCode(int id) {
+        lock.readLock().lock();
+        try {
+            return decodeCodeKey(referralCodeKeys[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String referredByCode(int id) {
+        lock.readLock().lock();
+        try {
+            return decodeCodeKey(referredByCodeKeys[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Teléfono de quien lo invitó, normalizado a '+57...', o null
+     */
+    public String referredByPhone(int id) {
+        lock.readLock().lock();
+        try {
+            return decodeNumericKey(referredByPhoneKeys[id], true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Claves crudas para estructuras derivadas (ver ReferralGraph); 0 es null
+    long referralCodeKey(int id) {
+        lock.readLock().lock();
+        try {
+            return referralCodeKeys[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long referredByCodeKey(int id) {
+        lock.readLock().lock();
+        try {
+            return referredByCodeKeys[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long phoneKey(int id) {
+        lock.readLock().lock();
+        try {
+            return phoneKeys[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long referredByPhoneKey(int id) {
+        lock.readLock().lock();
+        try {
+            return referredByPhoneKeys[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean hasReferralCode(int id) {
+        lock.readLock().lock();
+        try {
+            return referralCodeKeys[id] != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long createdAtSeconds(int id) {
+        lock.readLock().lock();
+        try {
+            return createdAtSeconds[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long updatedAtSeconds(int id) {
+        lock.readLock().lock();
+        try {
+            return updatedAtSeconds[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean acceptedTerms(int id) {
+        lock.readLock().lock();
+        try {
+            return (flags[id] & ACCEPTED_TERMS) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Código de ciudad del usuario (-1 sin ciudad); dos usuarios de la misma ciudad tienen el mismo código
+     */
+    public int cityCode(int id) {
+        lock.readLock().lock();
+        try {
+            return cityCodes[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int stateCode(int id) {
+        lock.readLock().lock();
+        try {
+            return stateCodes[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int chatbotStateCode(int id) {
+        lock.readLock().lock();
+        try {
+            return chatbotStateCodes[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Código de la ciudad, o -1 si ningún usuario la tiene
+     */
+    public int cityCodeOf(String city) {
+        lock.readLock().lock();
+        try {
+            return city == null ? -1 : cities.find(city);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int stateCodeOf(String state) {
+        lock.readLock().lock();
+        try {
+            return state == null ? -1 : states.find(state);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String city(int id) {
+        lock.readLock().lock();
+        try {
+            return cities.get(cityCodes[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String state(int id) {
+        lock.readLock().lock();
+        try {
+            return states.get(stateCodes[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String chatbotState(int id) {
+        lock.readLock().lock();
+        try {
+            return chatbotStates.get(chatbotStateCodes[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int cityCount() {
+        return cities.size();
+    }
+
+    public int stateCount() {
+        return states.size();
+    }
+
+    /**
+     * Tamaño aproximado en bytes de los arreglos y tablas (sin los textos de los diccionarios)
+     */
+    public long estimatedBytes() {
+        lock.readLock().lock();
+        try {
+            long columns = (long) documentKeys.length * (7 * Long.BYTES + 2 * Integer.BYTES + 2);
+            return columns + idByDocument.bytes() + idByPhone.bytes() + idByReferralCode.bytes()
+                    + (long) freeIds.length * Integer.BYTES;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new java.util.LinkedHashMap<>();
+        metrics.put("users", size);
+        metrics.put("idLimit", idLimit);
+        metrics.put("estimatedBytes", estimatedBytes());
+        metrics.put("cities", cities.size());
+        metrics.put("states", states.size());
+        metrics.put("chatbotStates", chatbotStates.size());
+        metrics.put("dictionaryKeys", keys.size());
+        return metrics;
+    }
+
+    static long seconds(Timestamp timestamp) {
+        return timestamp == null ? NO_TIMESTAMP : timestamp.getSeconds();
+    }
+
+    private int lookup(LongIntHashMap map, String value, boolean plusPrefix) {
+        lock.readLock().lock();
+        try {
+            long key = findNumericKey(value, plusPrefix);
+            return key == 0 ? -1 : map.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int allocateId() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        if (idLimit == documentKeys.length) {
+            grow(documentKeys.length + (documentKeys.length >> 1));
+        }
+        return idLimit++;
+    }
+
+    private void grow(int capacity) {
+        documentKeys = Arrays.copyOf(documentKeys, capacity);
+        phoneKeys = Arrays.copyOf(phoneKeys, capacity);
+        referralCodeKeys = Arrays.copyOf(referralCodeKeys, capacity);
+        referredByCodeKeys = Arrays.copyOf(referredByCodeKeys, capacity);
+        referredByPhoneKeys = Arrays.copyOf(referredByPhoneKeys, capacity);
+        createdAtSeconds = Arrays.copyOf(createdAtSeconds, capacity);
+        updatedAtSeconds = Arrays.copyOf(updatedAtSeconds, capacity);
+        cityCodes = Arrays.copyOf(cityCodes, capacity);
+        stateCodes = Arrays.copyOf(stateCodes, capacity);
+        chatbotStateCodes = Arrays.copyOf(chatbotStateCodes, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+    }
+
+    // Quita al usuario de los índices por teléfono y código de referido (no del índice por documento)
+    private void unindex(int id) {
+        if (phoneKeys[id] != 0 && idByPhone.get(phoneKeys[id]) == id) {
+            idByPhone.remove(phoneKeys[id]);
+        }
+        if (referralCodeKeys[id] != 0 && idByReferralCode.get(referralCodeKeys[id]) == id) {
+            idByReferralCode.remove(referralCodeKeys[id]);
+        }
+    }
+
+    // Teléfonos ('+' y dígitos) e IDs de documento numéricos como número; el resto, al diccionario
+    private long numericKey(String value, boolean plusPrefix) {
+        long key = parseNumeric(value, plusPrefix);
+        return key > 0 ? key : -(keys.intern(value) + 1L);
+    }
+
+    private long findNumericKey(String value, boolean plusPrefix) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        long key = parseNumeric(value, plusPrefix);
+        if (key > 0) {
+            return key;
+        }
+        int code = keys.find(value);
+        return code < 0 ? 0 : -(code + 1L);
+    }
+
+    private String decodeNumericKey(long key, boolean plusPrefix) {
+        if (key == 0) {
+            return null;
+        }
+        if (key < 0) {
+            return keys.get((int) (-key - 1));
+        }
+        return plusPrefix ? "+" + key : Long.toString(key);
+    }
+
+    // Sólo dígitos; los números nacionales (10 dígitos que empiezan por 3) se completan con el 57
+    static long referredByPhoneKey(String phone) {
+        if (phone == null) {
+            return 0;
+        }
+        String digits = phone.replaceAll("\\D", "");
+        if (digits.length() == 10 && digits.charAt(0) == '3') {
+            digits = "57" + digits;
+        }
+        long key = parseNumeric(digits, false);
+        return key > 0 ? key : 0;
+    }
+
+    private static long parseNumeric(String value, boolean plusPrefix) {
+        int start = plusPrefix ? 1 : 0;
+        int digits = value.length() - start;
+        if (digits < 1 || digits > MAX_NUMERIC_DIGITS || (plusPrefix && value.charAt(0) != '+') || value.charAt(start) == '0') {
+            return -1;
+        }
+        long key = 0;
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+
+    // Códigos de referido [A-Z0-9]{1,12} en base 37 (cada carácter vale de 1 a 36); el resto, al diccionario
+    private long codeKey(String code) {
+        if (code == null || code.isEmpty()) {
+            return 0;
+        }
+        long key = parseCode(code);
+        return key > 0 ? key : -(keys.intern(code) + 1L);
+    }
+
+    private long findCodeKey(String code) {
+        if (code == null || code.isEmpty()) {
+            return 0;
+        }
+        long key = parseCode(code);
+        if (key > 0) {
+            return key;
+        }
+        int index = keys.find(code);
+        return index < 0 ? 0 : -(index + 1L);
+    }
+
+    private String decodeCodeKey(long key) {
+        if (key == 0) {
+            return null;
+        }
+        if (key < 0) {
+            return keys.get((int) (-key - 1));
+        }
+        StringBuilder code = new StringBuilder(MAX_CODE_CHARS);
+        while (key > 0) {
+            int digit = (int) (key % 37);
+            code.append(digit <= 26 ? (char) ('A' + digit - 1) : (char) ('0' + digit - 27));
+            key /= 37;
+        }
+        return code.reverse().toString();
+    }
+
+    private static long parseCode(String code) {
+        if (code.length() > MAX_CODE_CHARS) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            int digit;
+            if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 1;
+            } else if (c >= '0' && c <= '9') {
+                digit = c - '0' + 27;
+            } else {
+                return -1;
+            }
+            key = key * 37 + digit;
+        }
+        return key;
+    }
+
+    /**
+     * Diccionario de textos: cada texto distinto se guarda una vez y se identifica por su posición
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int intern(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        int find(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        String get(int code) {
+            return code < 0 ? null : values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Tabla hash de long (distinto de 0) a int con direccionamiento abierto y sondeo lineal. Al
+     * eliminar se desplazan hacia atrás las entradas siguientes, así que no quedan marcas de borrado.
+     */
+    static final class LongIntHashMap {
+        private long[] keys;
+        private int[] values;
+        private int mask;
+        private int size;
+
+        LongIntHashMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / 0.75f)) - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int get(long key) {
+            for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+                if (keys[slot] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) > keys.length * 3L / 4) {
+                rehash(keys.length * 2);
+            }
+            int slot = slot(key);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        void remove(long key) {
+            int slot = slot(key);
+            while (keys[slot] != key) {
+                if (keys[slot] == 0) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            size--;
+            // Desplaza hacia atrás las entradas del mismo grupo que quedarían inalcanzables
+            int gap = slot;
+            for (int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                int ideal = slot(keys[next]);
+                if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+            }
+            keys[gap] = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long bytes() {
+            return (long) keys.length * (Long.BYTES + Integer.BYTES);
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -15,7 +15,7 @@ import java.util.Optional;
 public class FirestoreConfigService {
     
     private final Firestore firestore;
-    private static final String COLLECTION_NAME = "system_configuration";
+    static final String COLLECTION_NAME = "system_configuration";
     
     @Autowired
     public FirestoreConfigService(Firestore firestore) {
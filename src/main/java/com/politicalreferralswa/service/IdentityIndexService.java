@@ -0,0 +1,316 @@
+package com.politicalreferralswa.service;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.politicalreferralswa.model.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Índice de identidades: colección 'identities' que mapea cada identificador de un usuario al ID
+ * de su documento canónico en 'users'.
+ *
+ * Claves (ID de documento en 'identities'):
+ *   phone:+573001234567   teléfono normalizado
+ *   telegram:123456789    chat ID de Telegram
+ *   legacy:<uuid>         ID de documento anterior (UUID) de un usuario migrado a su teléfono
+ *
+ * Cada documento contiene sólo 'user_doc_id' y 'updated_at'. La resolución lee en un único getAll
+ * los documentos candidatos de 'users' (teléfono sin '+' e ID original) junto con las entradas del
+ * índice; sólo si el usuario se encuentra a través del índice hace falta una segunda lectura.
+ * El índice se mantiene desde ChatbotService.saveUser; las escrituras son asíncronas (o van en el
+ * mismo WriteBatch que la migración de ID de documento) y se omiten cuando esta instancia ya
+ * escribió el mismo mapeo.
+ */
+@Service
+public class IdentityIndexService {
+
+    static final String COLLECTION = "identities";
+    private static final String USERS_COLLECTION = "users";
+    private static final String USER_DOC_ID_FIELD = "user_doc_id";
+
+    private final Firestore firestore;
+    private final boolean enabled;
+    private final boolean legacyFallback;
+
+    // Mapeos que esta instancia ya escribió (clave -> ID de documento), acotado como LRU
+    private final Map<String, String> writtenMappings;
+
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong resolvedDirect = new AtomicLong(0);
+    private final AtomicLong resolvedViaIndex = new AtomicLong(0);
+    private final AtomicLong staleMappings = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong lookupErrors = new AtomicLong(0);
+    private final AtomicLong mappingWrites = new AtomicLong(0);
+    private final AtomicLong mappingWriteErrors = new AtomicLong(0);
+
+    public IdentityIndexService(Firestore firestore,
+                                @Value("${identity-index.enabled:true}") boolean enabled,
+                                @Value("${identity-index.legacy-fallback:true}") boolean legacyFallback,
+                                @Value("${identity-index.written-mappings-capacity:50000}") int writtenMappingsCapacity) {
+        this.firestore = firestore;
+        this.enabled = enabled;
+        this.legacyFallback = legacyFallback;
+        this.writtenMappings = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > writtenMappingsCapacity;
+            }
+        };
+        System.out.println("IdentityIndexService: Índice " + (enabled ? "HABILITADO" : "DESHABILITADO")
+                + ", búsquedas heredadas por consulta: " + (legacyFallback ? "HABILITADAS" : "DESHABILITADAS"));
+    }
+
+    /**
+     * true si, cuando el índice no resuelve al usuario, deben intentarse las consultas por campo
+     * ('phone', 'telegram_chat_id') para documentos creados antes de existir el índice
+     */
+    public boolean isLegacyFallbackEnabled() {
+        return legacyFallback || !enabled;
+    }
+
+    /**
+     * Resuelve el documento del usuario para un remitente. Nunca emite error: ante un fallo de
+     * Firestore emite Optional.empty() para que el llamador use la búsqueda heredada.
+     *
+     * @param phone       Teléfono normalizado con '+', o null/vacío si el remitente no es un teléfono
+     * @param fromId      Identificador original del remitente
+     * @param channelType Canal ("WHATSAPP", "TELEGRAM", ...)
+     */
+    public Mono<Optional<DocumentSnapshot>> resolveReactive(String phone, String fromId, String channelType) {
+        lookups.incrementAndGet();
+        List<DocumentReference> candidates = new ArrayList<>();
+        for (String documentId : candidateDocumentIds(phone, fromId)) {
+            candidates.add(firestore.collection(USERS_COLLECTION).document(documentId));
+        }
+        if (enabled) {
+            for (String key : lookupKeys(phone, fromId, channelType)) {
+                candidates.add(firestore.collection(COLLECTION).document(key));
+            }
+        }
+        if (candidates.isEmpty()) {
+            misses.incrementAndGet();
+            return Mono.just(Optional.empty());
+        }
+
+        return ReactiveFirestore.toMono(firestore.getAll(candidates.toArray(new DocumentReference[0])))
+                .flatMap(snapshots -> pick(candidates, snapshots))
+                .defaultIfEmpty(Optional.empty())
+                .onErrorResume(e -> {
+                    lookupErrors.incrementAndGet();
+                    System.err.println("IdentityIndexService: Error resolviendo identidad de " + fromId + ": " + e.getMessage());
+                    return Mono.just(Optional.empty());
+                });
+    }
+
+    /**
+     * Variante bloqueante de resolveReactive
+     */
+    public Optional<DocumentSnapshot> resolve(String phone, String fromId, String channelType) {
+        return resolveReactive(phone, fromId, channelType).block();
+    }
+
+    /**
+     * Registra los identificadores del usuario guardado en el documento indicado. La escritura es
+     * asíncrona (un WriteBatch con sólo los mapeos nuevos o cambiados); si falla, la resolución
+     * sigue funcionando por lectura directa o por la búsqueda heredada.
+     */
+    public void record(String documentId, User user) {
+        WriteBatch batch = firestore.batch();
+        List<String> keys = stage(batch, documentId, user);
+        if (keys.isEmpty()) {
+            return;
+        }
+        ApiFutures.addCallback(batch.commit(), new ApiFutureCallback<List<WriteResult>>() {
+            @Override
+            public void onSuccess(List<WriteResult> result) {
+                committed(keys);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failed(keys, documentId, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Añade a un batch existente los mapeos nuevos o cambiados del usuario, para escribirlos de forma
+     * atómica junto con su documento. El llamador debe informar el resultado del commit con
+     * committed() o failed().
+     *
+     * @return Claves añadidas al batch (vacía si no hay mapeos que escribir)
+     */
+    public List<String> stage(WriteBatch batch, String documentId, User user) {
+        if (!enabled || documentId == null || user == null) {
+            return List.of();
+        }
+        List<String> changedKeys = new ArrayList<>();
+        synchronized (writtenMappings) {
+            for (String key : keysFor(documentId, user)) {
+                if (!documentId.equals(writtenMappings.get(key))) {
+                    writtenMappings.put(key, documentId);
+                    changedKeys.add(key);
+                }
+            }
+        }
+        if (changedKeys.isEmpty()) {
+            return changedKeys;
+        }
+
+        Map<String, Object> mapping = new HashMap<>();
+        mapping.put(USER_DOC_ID_FIELD, documentId);
+        mapping.put("updated_at", Timestamp.now());
+        for (String key : changedKeys) {
+            batch.set(firestore.collection(COLLECTION).document(key), mapping);
+        }
+        return changedKeys;
+    }
+
+    public void committed(List<String> keys) {
+        mappingWrites.addAndGet(keys.size());
+    }
+
+    public void failed(List<String> keys, String documentId, Throwable cause) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        mappingWriteErrors.incrementAndGet();
+        synchronized (writtenMappings) {
+            keys.forEach(key -> writtenMappings.remove(key, documentId));
+        }
+        System.err.println("IdentityIndexService: Error escribiendo mapeos " + keys + " -> " + documentId + ": " + cause.getMessage());
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("legacyFallback", isLegacyFallbackEnabled());
+        metrics.put("lookups", lookups.get());
+        metrics.put("resolvedDirect", resolvedDirect.get());
+        metrics.put("resolvedViaIndex", resolvedViaIndex.get());
+        metrics.put("staleMappings", staleMappings.get());
+        metrics.put("misses", misses.get());
+        metrics.put("lookupErrors", lookupErrors.get());
+        metrics.put("mappingWrites", mappingWrites.get());
+        metrics.put("mappingWriteErrors", mappingWriteErrors.get());
+        return metrics;
+    }
+
+    /**
+     * Claves del índice que deben apuntar al documento de este usuario
+     */
+    static List<String> keysFor(String documentId, User user) {
+        List<String> keys = new ArrayList<>(3);
+        if (user.getPhone() != null && !user.getPhone().isEmpty()) {
+            keys.add("phone:" + user.getPhone());
+        }
+        if (user.getTelegram_chat_id() != null && !user.getTelegram_chat_id().isEmpty()) {
+            keys.add("telegram:" + user.getTelegram_chat_id());
+        }
+        if (user.getId() != null && !user.getId().isEmpty() && !user.getId().equals(documentId)) {
+            keys.add("legacy:" + user.getId());
+        }
+        return keys;
+    }
+
+    /**
+     * Claves del índice a consultar para un remitente, en orden de preferencia
+     */
+    static List<String> lookupKeys(String phone, String fromId, String channelType) {
+        List<String> keys = new ArrayList<>(3);
+        if (phone != null && !phone.isEmpty()) {
+            keys.add("phone:" + phone);
+        }
+        if ("TELEGRAM".equalsIgnoreCase(channelType)) {
+            keys.add("telegram:" + fromId);
+        }
+        // Un remitente que no es numérico puede ser el UUID de un documento ya migrado
+        if (!fromId.matches("^\\+?\\d+$") && isValidDocumentId(fromId)) {
+            keys.add("legacy:" + fromId);
+        }
+        return keys;
+    }
+
+    /**
+     * IDs de documento de 'users' que se leen directamente, en orden de preferencia
+     */
+    static List<String> candidateDocumentIds(String phone, String fromId) {
+        List<String> documentIds = new ArrayList<>(2);
+        if (phone != null && !phone.isEmpty()) {
+            documentIds.add(phone.startsWith("+") ? phone.substring(1) : phone);
+        }
+        if (isValidDocumentId(fromId) && !documentIds.contains(fromId)) {
+            documentIds.add(fromId);
+        }
+        return documentIds;
+    }
+
+    private static boolean isValidDocumentId(String id) {
+        return id != null && !id.isEmpty() && !id.contains("/") && !id.equals(".") && !id.equals("..");
+    }
+
+    private Mono<Optional<DocumentSnapshot>> pick(List<DocumentReference> candidates, List<DocumentSnapshot> snapshots) {
+        Map<String, DocumentSnapshot> byPath = new HashMap<>();
+        for (DocumentSnapshot snapshot : snapshots) {
+            byPath.put(snapshot.getReference().getPath(), snapshot);
+        }
+
+        // 1. Documento de 'users' leído directamente: una sola ida y vuelta
+        for (DocumentReference candidate : candidates) {
+            DocumentSnapshot snapshot = byPath.get(candidate.getPath());
+            if (snapshot != null && snapshot.exists() && USERS_COLLECTION.equals(candidate.getParent().getId())) {
+                resolvedDirect.incrementAndGet();
+                return Mono.just(Optional.of(snapshot));
+            }
+        }
+
+        // 2. Entrada del índice que apunta a otro documento: segunda lectura
+        for (DocumentReference candidate : candidates) {
+            DocumentSnapshot snapshot = byPath.get(candidate.getPath());
+            if (snapshot == null || !snapshot.exists() || !COLLECTION.equals(candidate.getParent().getId())) {
+                continue;
+            }
+            String documentId = snapshot.getString(USER_DOC_ID_FIELD);
+            if (!isValidDocumentId(documentId)) {
+                continue;
+            }
+            DocumentReference userRef = firestore.collection(USERS_COLLECTION).document(documentId);
+            if (byPath.containsKey(userRef.getPath())) {
+                // Ya se leyó en el getAll y no existe
+                staleMappings.incrementAndGet();
+                continue;
+            }
+            return ReactiveFirestore.toMono(userRef.get())
+                    .map(userSnapshot -> {
+                        if (userSnapshot.exists()) {
+                            resolvedViaIndex.incrementAndGet();
+                            return Optional.of(userSnapshot);
+                        }
+                        staleMappings.incrementAndGet();
+                        misses.incrementAndGet();
+                        return Optional.<DocumentSnapshot>empty();
+                    });
+        }
+
+        misses.incrementAndGet();
+        return Mono.just(Optional.empty());
+    }
+}
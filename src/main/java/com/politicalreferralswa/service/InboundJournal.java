@@ -0,0 +1,538 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.InboundMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario local de mensajes entrantes (append-only, memory-mapped) para no perder mensajes ya
+ * confirmados al proveedor si la instancia se apaga o se cae.
+ *
+ * Formato de cada registro: [int longitud][int crc32c][long secuencia][payload]. Los registros se
+ * escriben en segmentos de tamaño fijo ('segment-<secuencia base>.log'). Las escrituras se hacen
+ * durables con group commit: un único hilo hace force() del rango escrito y despierta a todos los
+ * que añadieron registros mientras tanto, así que el coste de un fsync se reparte entre el lote.
+ *
+ * El consumidor marca cada secuencia como procesada; el checkpoint es la mayor secuencia tal que
+ * todas las anteriores ya se procesaron. Al arrancar se reproducen los registros posteriores al
+ * checkpoint y los segmentos completamente procesados se eliminan.
+ *
+ * Deshabilitado por defecto ('ingestion.journal.enabled'): sólo tiene sentido con un disco que
+ * sobreviva al reinicio de la instancia.
+ */
+@Service
+public class InboundJournal {
+
+    private static final int HEADER_BYTES = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment current;
+    private long nextSeq = 1;
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private volatile boolean running = false;
+    private Thread flusher;
+
+    private final ConcurrentSkipListSet<Long> pendingSeqs = new ConcurrentSkipListSet<>();
+    private volatile long persistedCheckpoint = 0;
+    private final List<JournalRecord> recovered = new ArrayList<>();
+
+    // Métricas
+    private final AtomicLong appends = new AtomicLong(0);
+    private final AtomicLong groupCommits = new AtomicLong(0);
+    private final AtomicLong totalAppendNanos = new AtomicLong(0);
+    private final AtomicLong replayedRecords = new AtomicLong(0);
+
+    public InboundJournal(@Value("${ingestion.journal.enabled:false}") boolean enabled,
+                          @Value("${ingestion.journal.dir:/tmp/inbound-journal}") String directory,
+                          @Value("${ingestion.journal.segment-size-mb:64}") int segmentSizeMb) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        // Un MappedByteBuffer no puede pasar de Integer.MAX_VALUE bytes
+        long bytes = (long) segmentSizeMb * 1024 * 1024;
+        if (segmentSizeMb <= 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ingestion.journal.segment-size-mb debe estar entre 1 y 2047, es " + segmentSizeMb);
+        }
+        this.segmentBytes = (int) bytes;
+    }
+
+    /**
+     * Recupera los registros pendientes del último arranque y abre un segmento nuevo para escribir
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            System.out.println("InboundJournal: Diario de ingesta DESHABILITADO");
+            return;
+        }
+        Files.createDirectories(directory);
+        persistedCheckpoint = readCheckpoint();
+        long maxSeq = persistedCheckpoint;
+
+        for (Path file : listSegmentFiles()) {
+            Segment segment = Segment.open(file, baseSeqOf(file));
+            segments.add(segment);
+            maxSeq = Math.max(maxSeq, scan(segment));
+        }
+
+        nextSeq = maxSeq + 1;
+        appendedSeq = maxSeq;
+        durableSeq = maxSeq;
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.baseSeq == nextSeq) {
+            // El arranque anterior no añadió nada: su segmento sigue vacío y tiene el nombre que toca
+            if (last.buffer.capacity() == segmentBytes) {
+                current = last;
+            } else {
+                segments.remove(last);
+                last.channel.close();
+                Files.delete(last.file);
+                current = Segment.create(directory, nextSeq, segmentBytes);
+                segments.add(current);
+            }
+        } else {
+            current = Segment.create(directory, nextSeq, segmentBytes);
+            segments.add(current);
+        }
+
+        running = true;
+        flusher = Thread.ofPlatform().daemon().name("inbound-journal-flusher").start(this::flushLoop);
+        System.out.println("InboundJournal: Diario abierto en " + directory + " (checkpoint: " + persistedCheckpoint
+                + ", registros pendientes de reproducir: " + recovered.size() + ")");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Añade un mensaje al diario y espera a que sea durable.
+     *
+     * @return Secuencia asignada, o -1 si el diario está deshabilitado
+     * @throws UncheckedIOException si no se pudo escribir o sincronizar en disco
+     */
+    public long append(InboundMessage message) {
+        if (!enabled) {
+            return -1;
+        }
+        long startedAt = System.nanoTime();
+        byte[] payload = encode(message);
+        long seq;
+
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("El diario de ingesta está cerrado");
+            }
+            int recordBytes = HEADER_BYTES + payload.length;
+            if (current.position + recordBytes > current.buffer.capacity()) {
+                rollSegment(recordBytes);
+            }
+            seq = nextSeq++;
+            writeRecord(current, seq, payload);
+            appendedSeq = seq;
+            pendingSeqs.add(seq);
+            appended.signal();
+
+            while (durableSeq < seq) {
+                if (!running) {
+                    throw new IllegalStateException("El diario de ingesta se cerró antes de sincronizar");
+                }
+                durable.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrumpido esperando la sincronización del diario", e);
+        } finally {
+            lock.unlock();
+        }
+
+        appends.incrementAndGet();
+        totalAppendNanos.addAndGet(System.nanoTime() - startedAt);
+        return seq;
+    }
+
+    /**
+     * Marca una secuencia como procesada por el consumidor
+     */
+    public void markProcessed(long seq) {
+        if (seq > 0) {
+            pendingSeqs.remove(seq);
+        }
+    }
+
+    /**
+     * Entrega (una sola vez) los registros que quedaron sin procesar en la ejecución anterior
+     */
+    public List<JournalRecord> drainRecovered() {
+        lock.lock();
+        try {
+            List<JournalRecord> records = new ArrayList<>(recovered);
+            recovered.clear();
+            replayedRecords.addAndGet(records.size());
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Persiste el checkpoint y elimina los segmentos ya procesados por completo
+     */
+    @Scheduled(fixedDelayString = "${ingestion.journal.checkpoint-interval-ms:1000}")
+    public void checkpoint() {
+        if (!enabled || !running) {
+            return;
+        }
+        persistCheckpoint();
+    }
+
+    private void persistCheckpoint() {
+        long checkpoint = currentCheckpoint();
+        if (checkpoint == persistedCheckpoint) {
+            return;
+        }
+        try {
+            Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+            Files.write(tmp, Long.toString(checkpoint).getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            persistedCheckpoint = checkpoint;
+            deleteProcessedSegments(checkpoint);
+        } catch (IOException e) {
+            System.err.println("InboundJournal: Error al persistir checkpoint " + checkpoint + ": " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        if (!enabled) {
+            return metrics;
+        }
+        long appendCount = appends.get();
+        long commits = groupCommits.get();
+        metrics.put("appends", appendCount);
+        metrics.put("groupCommits", commits);
+        metrics.put("averageBatchSize", commits > 0 ? (double) appendCount / commits : 0.0);
+        metrics.put("averageAppendMs", appendCount > 0 ? totalAppendNanos.get() / 1_000_000.0 / appendCount : 0.0);
+        metrics.put("pendingRecords", pendingSeqs.size());
+        metrics.put("checkpoint", persistedCheckpoint);
+        metrics.put("replayedRecords", replayedRecords.get());
+        lock.lock();
+        try {
+            metrics.put("segments", segments.size());
+        } finally {
+            lock.unlock();
+        }
+        return metrics;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!enabled || !running) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            appended.signalAll();
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.buffer.force();
+        persistCheckpoint();
+        System.out.println("InboundJournal: Diario cerrado (checkpoint: " + persistedCheckpoint + ")");
+    }
+
+    // ---- Group commit ----
+
+    private void flushLoop() {
+        while (true) {
+            Segment segment;
+            int from;
+            int to;
+            long seqToCommit;
+
+            lock.lock();
+            try {
+                while (running && appendedSeq == durableSeq) {
+                    appended.await();
+                }
+                if (!running && appendedSeq == durableSeq) {
+                    return;
+                }
+                segment = current;
+                from = segment.forcedPosition;
+                to = segment.position;
+                seqToCommit = appendedSeq;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // El fsync se hace fuera del lock: mientras tanto otros hilos siguen añadiendo registros
+            if (to > from) {
+                segment.buffer.force(from, to - from);
+            }
+
+            lock.lock();
+            try {
+                segment.forcedPosition = Math.max(segment.forcedPosition, to);
+                durableSeq = Math.max(durableSeq, seqToCommit);
+                groupCommits.incrementAndGet();
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Se llama con el lock tomado
+    private void rollSegment(int recordBytes) {
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("Registro de " + recordBytes + " bytes excede el tamaño de segmento");
+        }
+        try {
+            // Los registros del segmento saliente deben quedar durables antes de abandonarlo
+            current.buffer.force();
+            current.forcedPosition = current.position;
+            durableSeq = appendedSeq;
+            durable.signalAll();
+            current = Segment.create(directory, nextSeq, segmentBytes);
+            segments.add(current);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo crear un nuevo segmento del diario", e);
+        }
+    }
+
+    private static void writeRecord(Segment segment, long seq, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(payload);
+
+        int pos = segment.position;
+        segment.buffer.putInt(pos + 4, (int) crc.getValue());
+        segment.buffer.putLong(pos + 8, seq);
+        segment.buffer.put(pos + HEADER_BYTES, payload);
+        // La longitud se escribe al final: un registro a medias se lee como fin de datos
+        segment.buffer.putInt(pos, payload.length);
+        segment.position = pos + HEADER_BYTES + payload.length;
+    }
+
+    // ---- Recuperación ----
+
+    /**
+     * Recorre un segmento, registra como pendientes los registros posteriores al checkpoint y
+     * devuelve la mayor secuencia válida encontrada
+     */
+    private long scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        long maxSeq = 0;
+        int pos = 0;
+        while (pos + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            int storedCrc = buffer.getInt(pos + 4);
+            long seq = buffer.getLong(pos + 8);
+            byte[] payload = new byte[length];
+            buffer.get(pos + HEADER_BYTES, payload);
+
+            CRC32C crc = new CRC32C();
+            crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+            crc.update(payload);
+            if ((int) crc.getValue() != storedCrc) {
+                System.err.println("InboundJournal: Registro corrupto en " + segment.file + " (posición " + pos + "), fin del segmento");
+                break;
+            }
+
+            if (seq > persistedCheckpoint) {
+                recovered.add(new JournalRecord(seq, decode(payload)));
+                pendingSeqs.add(seq);
+            }
+            maxSeq = Math.max(maxSeq, seq);
+            pos += HEADER_BYTES + length;
+        }
+        segment.position = pos;
+        segment.forcedPosition = pos;
+        return maxSeq;
+    }
+
+    private long currentCheckpoint() {
+        lock.lock();
+        try {
+            Long oldestPending = pendingSeqs.isEmpty() ? null : pendingSeqs.first();
+            return oldestPending != null ? oldestPending - 1 : durableSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteProcessedSegments(long checkpoint) {
+        List<Segment> toDelete = new ArrayList<>();
+        lock.lock();
+        try {
+            // Un segmento se puede borrar si el siguiente empieza en o antes de checkpoint + 1
+            while (segments.size() > 1 && segments.get(1).baseSeq <= checkpoint + 1) {
+                toDelete.add(segments.remove(0));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : toDelete) {
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("InboundJournal: No se pudo eliminar el segmento " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(file, StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            System.err.println("InboundJournal: Checkpoint ilegible, se reproducirá el diario completo");
+            return 0;
+        }
+    }
+
+    private List<Path> listSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && f.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted((a, b) -> Long.compare(baseSeqOf(a), baseSeqOf(b)))
+                    .toList();
+        }
+    }
+
+    private static long baseSeqOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // ---- Serialización del payload ----
+
+    private static byte[] encode(InboundMessage message) {
+        byte[][] fields = {
+                bytesOf(message.channelType()), bytesOf(message.fromId()),
+                bytesOf(message.text()), bytesOf(message.senderName())
+        };
+        int size = 0;
+        for (byte[] field : fields) {
+            size += 4 + (field != null ? field.length : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length).put(field);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static InboundMessage decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        return new InboundMessage(readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+    }
+
+    private static byte[] bytesOf(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Registro recuperado del diario al arrancar
+     */
+    public record JournalRecord(long seq, InboundMessage message) {
+    }
+
+    private static final class Segment {
+        final Path file;
+        final long baseSeq;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int position;
+        int forcedPosition;
+
+        private Segment(Path file, long baseSeq, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path directory, long baseSeq, int size) throws IOException {
+            Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseSeq, SEGMENT_SUFFIX));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(file, baseSeq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        static Segment open(Path file, long baseSeq) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(file, baseSeq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package com.politicalreferralswa.service;
 
-import com.google.cloud.firestore.*;
 import com.google.cloud.Timestamp;
+import com.politicalreferralswa.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.cache.annotation.Cacheable;
@@ -10,67 +10,116 @@ import org.springframework.scheduling.annotation.Scheduled;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 
 /**
  * Servicio local para analytics que reemplaza al servicio externo user-referrals-metrics
+ *
+ * Las posiciones de hoy, la semana y el mes salen de WindowedLeaderboard (con los puntos ganados en
+ * cada ventana), la posición general de UserLeaderboard (con los puntos acumulados), la posición por ciudad
+ * y departamento de UserSeniorityIndex y los referidos de ReferralGraph, una vez cargado el índice
+ * de usuarios (que se mantiene al día con los cambios de ChangeFeedService). El usuario consultado
+ * se lee de UserRepository (Firestore o, con user-repository.type=memory, los usuarios en memoria);
+ * todos los usuarios, sólo mientras el índice no esté listo. Con el índice listo, un usuario que el
+ * índice todavía no recibió se ubica con sus propios datos (ciudad, fecha de creación) y sin puntos
+ * ni referidos, en lugar de recorrer la colección: cada consulta cuesta una lectura.
  */
 @Service
 @Slf4j
 public class LocalAnalyticsService {
     
-    private final Firestore firestore;
+    private final UserRepository userRepository;
+    private final WindowedLeaderboard windowedLeaderboard;
+    private final UserLeaderboard userLeaderboard;
+    private final UserSeniorityIndex userSeniorityIndex;
+    private final ReferralGraph referralGraph;
+    
+    // Consultas a getUserStats, lecturas de documentos de UserRepository que costaron y cuántas
+    // necesitaron el snapshot completo de 'users'
+    private final AtomicLong statsRequests = new AtomicLong();
+    private final AtomicLong firestoreReads = new AtomicLong();
+    private final AtomicLong snapshotRequests = new AtomicLong();
+    private final AtomicLong statsMillis = new AtomicLong();
     
     @Autowired
-    public LocalAnalyticsService(Firestore firestore) {
-        this.firestore = firestore;
+    public LocalAnalyticsService(UserRepository userRepository, WindowedLeaderboard windowedLeaderboard,
+                                 UserLeaderboard userLeaderboard, UserSeniorityIndex userSeniorityIndex,
+                                 ReferralGraph referralGraph) {
+        this.userRepository = userRepository;
+        this.windowedLeaderboard = windowedLeaderboard;
+        this.userLeaderboard = userLeaderboard;
+        this.userSeniorityIndex = userSeniorityIndex;
+        this.referralGraph = referralGraph;
     }
     
     /**
      * Obtiene las estadísticas completas del usuario (caché temporalmente deshabilitado)
+     *
+     * El usuario se lee una sola vez y todas las secciones se calculan con los índices en memoria
+     * o, mientras no estén listos, con un único snapshot de 'users' compartido por las tres.
      */
     // @Cacheable(value = "userStats", key = "#userId")  // TEMPORALMENTE DESHABILITADO
     public UserStatsResponse getUserStats(String userId) {
+        long startedAt = System.nanoTime();
+        StatsRequest request = null;
         try {
             log.info("Obteniendo estadísticas para usuario: {}", userId);
             
             // Limpiar user_id removiendo el '+' si existe
             String cleanUserId = userId.startsWith("+") ? userId.substring(1) : userId;
+            request = new StatsRequest(cleanUserId);
             
-            // Obtener datos en paralelo
-            CompletableFuture<Map<String, Object>> userProfileFuture = getUserProfile(cleanUserId);
-            CompletableFuture<RankingStats> rankingStatsFuture = getUserRankingStats(cleanUserId);
-            CompletableFuture<GeographicalStats> geographicalStatsFuture = getGeographicalStats(cleanUserId);
-            CompletableFuture<ReferralStats> referralStatsFuture = getReferralStats(cleanUserId);
-            
-            // Esperar todas las respuestas
-            Map<String, Object> userProfile = userProfileFuture.get();
-            RankingStats rankingStats = rankingStatsFuture.get();
-            GeographicalStats geographicalStats = geographicalStatsFuture.get();
-            ReferralStats referralStats = referralStatsFuture.get();
-            
+            Map<String, Object> userProfile = request.userData();
             if (userProfile == null) {
                 throw new RuntimeException("Usuario " + userId + " no encontrado");
             }
             
+            RankingStats rankingStats = getUserRankingStats(request);
+            GeographicalStats geographicalStats = getGeographicalStats(request);
+            ReferralStats referralStats = getReferralStats(request);
+            
             // Construir respuesta
             UserStatsResponse response = buildUserStatsResponse(
                 userId, userProfile, rankingStats, geographicalStats, referralStats
             );
             
-            log.info("Estadísticas obtenidas exitosamente para usuario: {}", userId);
+            log.info("Estadísticas obtenidas exitosamente para usuario: {} ({} lecturas de documentos)", userId, request.reads);
             return response;
             
         } catch (Exception e) {
             log.error("Error al obtener estadísticas para usuario: {}", userId, e);
             throw new RuntimeException("Error al obtener estadísticas: " + e.getMessage());
+        } finally {
+            statsRequests.incrementAndGet();
+            statsMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            if (request != null) {
+                firestoreReads.addAndGet(request.reads);
+                if (request.users != null) {
+                    snapshotRequests.incrementAndGet();
+                }
+            }
         }
     }
     
+    /**
+     * Métricas de getUserStats: lecturas de Firestore por consulta y consultas que necesitaron el snapshot
+     */
+    public Map<String, Object> getMetrics() {
+        long requests = statsRequests.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("indexesReady", windowedLeaderboard.isReady());
+        metrics.put("requests", requests);
+        metrics.put("firestoreReads", firestoreReads.get());
+        metrics.put("readsPerRequest", requests > 0 ? (double) firestoreReads.get() / requests : 0.0);
+        metrics.put("snapshotRequests", snapshotRequests.get());
+        metrics.put("averageMillis", requests > 0 ? (double) statsMillis.get() / requests : 0.0);
+        return metrics;
+    }
+    
     /**
      * Limpia el caché de un usuario específico (temporalmente deshabilitado)
      */
@@ -89,236 +138,233 @@ public class LocalAnalyticsService {
     }
     
     /**
-     * Obtiene el perfil del usuario
+     * Datos de una consulta de estadísticas: el usuario y, sólo si hace falta, todos los usuarios,
+     * cada uno leído una vez, y las lecturas de documentos que costaron
      */
-    private CompletableFuture<Map<String, Object>> getUserProfile(String userId) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                DocumentReference docRef = firestore.collection("users").document(userId);
-                DocumentSnapshot document = docRef.get().get();
-                
-                if (document.exists()) {
-                    return document.getData();
-                }
-                return null;
-            } catch (Exception e) {
-                log.error("Error obteniendo perfil de usuario: {}", userId, e);
-                return null;
+    private final class StatsRequest {
+        private final String userId;
+        private boolean userLoaded = false;
+        private Map<String, Object> userData;
+        private Map<String, Map<String, Object>> users;
+        private long reads = 0;
+        
+        StatsRequest(String userId) {
+            this.userId = userId;
+        }
+        
+        /**
+         * Campos del usuario, o null si no existe
+         */
+        Map<String, Object> userData() throws Exception {
+            if (!userLoaded) {
+                userData = userRepository.findById(userId).get().map(UserRepository.StoredUser::fields).orElse(null);
+                reads++;
+                userLoaded = true;
             }
-        });
-    }
-    
-    /**
-     * Obtiene estadísticas de ranking del usuario basadas en datos reales
-     */
-    private CompletableFuture<RankingStats> getUserRankingStats(String userId) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // Obtener datos del usuario para calcular ranking
-                DocumentReference userDocRef = firestore.collection("users").document(userId);
-                DocumentSnapshot userDoc = userDocRef.get().get();
-                
-                if (!userDoc.exists()) {
-                    log.warn("Usuario no encontrado para ranking: {}", userId);
-                    return new RankingStats(1, 100, 1, 100, 1, 100);
-                }
-                
-                Map<String, Object> userData = userDoc.getData();
-                
-                // Calcular puntos basados en datos reales del usuario
-                int basePoints = 100;
-                int agePoints = 0;
-                int referralPoints = 0;
-                int termsPoints = 0;
-                
-                // Puntos por antigüedad (fecha de creación)
-                if (userData.containsKey("created_at")) {
-                    Timestamp created = (Timestamp) userData.get("created_at");
-                    if (created != null) {
-                        long daysSinceCreation = (System.currentTimeMillis() - created.toDate().getTime()) / (1000 * 60 * 60 * 24);
-                        agePoints = Math.max(0, (int) daysSinceCreation * 10);
-                    }
-                }
-                
-                // Puntos por referidos
-                if (userData.containsKey("referral_code") && userData.get("referral_code") != null) {
-                    referralPoints = 50;
-                }
-                
-                // Puntos por aceptar términos
-                if (userData.containsKey("aceptaTerminos") && Boolean.TRUE.equals(userData.get("aceptaTerminos"))) {
-                    termsPoints = 200;
-                }
-                
-                int totalPoints = basePoints + agePoints + referralPoints + termsPoints;
-                
-                // Calcular ranking real basado en todos los usuarios
-                int todayPosition = calculateUserRanking(userId, totalPoints);
-                int weekPosition = Math.max(1, todayPosition + (int)(Math.random() * 3) - 1); // Variación semanal
-                int monthPosition = Math.max(1, todayPosition + (int)(Math.random() * 5) - 2); // Variación mensual
-                
-                return new RankingStats(
-                    todayPosition, totalPoints,
-                    weekPosition, totalPoints + 100,
-                    monthPosition, totalPoints + 500
-                );
-                
-            } catch (Exception e) {
-                log.error("Error calculando ranking para usuario: {}", userId, e);
-                // Valores por defecto en caso de error
-                return new RankingStats(1, 850, 3, 950, 2, 1350);
+            return userData;
+        }
+        
+        /**
+         * Todos los usuarios (ID de documento -> campos)
+         */
+        Map<String, Map<String, Object>> users() throws Exception {
+            if (users == null) {
+                Map<String, Map<String, Object>> allUsers = new HashMap<>();
+                long streamed = userRepository.streamAll(stored -> allUsers.put(stored.documentId(), stored.fields())).get();
+                reads += Math.max(1, streamed);
+                users = allUsers;
             }
-        });
+            return users;
+        }
     }
     
     /**
-     * Calcula la posición real del usuario basándose en todos los usuarios
+     * Obtiene estadísticas de ranking del usuario: posición y puntos ganados hoy, en la semana y en el
+     * mes, y posición general con los puntos acumulados
      */
-    private int calculateUserRanking(String userId, int userPoints) {
+    private RankingStats getUserRankingStats(StatsRequest request) {
+        String userId = request.userId;
         try {
-            // Obtener todos los usuarios y calcular sus puntos
-            List<Map<String, Object>> allUsers = new ArrayList<>();
-            List<QueryDocumentSnapshot> usersSnapshot = firestore.collection("users").get().get().getDocuments();
-            
-            for (QueryDocumentSnapshot doc : usersSnapshot) {
-                if (!doc.getId().equals(userId)) { // Excluir al usuario actual
-                    Map<String, Object> userData = doc.getData();
-                    int points = calculateUserPoints(userData);
-                    allUsers.add(Map.of("id", doc.getId(), "points", points));
-                }
-            }
-            
-            // Ordenar por puntos (descendente) y encontrar posición
-            allUsers.sort((a, b) -> Integer.compare((Integer) b.get("points"), (Integer) a.get("points")));
-            
-            // Encontrar posición del usuario actual
-            for (int i = 0; i < allUsers.size(); i++) {
-                if (allUsers.get(i).get("id").equals(userId)) {
-                    return i + 1;
-                }
-            }
-            
-            // Si no se encuentra, calcular posición basada en puntos
-            int betterUsers = 0;
-            for (Map<String, Object> user : allUsers) {
-                if ((Integer) user.get("points") > userPoints) {
-                    betterUsers++;
+            long now = System.currentTimeMillis();
+            if (windowedLeaderboard.isReady() && userLeaderboard.isReady()) {
+                WindowedLeaderboard.Rankings rankings = windowedLeaderboard.rankingsOf(userId, now);
+                if (rankings == null) {
+                    rankings = windowedLeaderboard.unranked(now);
                 }
+                int totalPoints = calculateUserPoints(request.userData(), now);
+                return new RankingStats(
+                    rankings.today().position(), rankings.today().points(),
+                    rankings.week().position(), rankings.week().points(),
+                    rankings.month().position(), rankings.month().points(),
+                    userLeaderboard.rankOf(totalPoints, now), totalPoints
+                );
             }
             
-            return betterUsers + 1;
+            // Calcular ranking real basado en todos los usuarios
+            return calculateWindowedRanking(request, now);
             
         } catch (Exception e) {
-            log.error("Error calculando ranking real para usuario: {}", userId, e);
-            return 1; // Posición por defecto en caso de error
+            log.error("Error calculando ranking para usuario: {}", userId, e);
+            // Valores por defecto en caso de error
+            return new RankingStats(1, 850, 3, 950, 2, 1350, 1, 850);
         }
     }
     
     /**
-     * Calcula puntos para un usuario basándose en sus datos
+     * Calcula las posiciones por ventana recorriendo el snapshot, con los mismos puntos que
+     * WindowedLeaderboard: registro para el usuario y referido para su referente, el día de la creación;
+     * y la posición general con los puntos acumulados de UserLeaderboard
      */
-    private int calculateUserPoints(Map<String, Object> userData) {
-        int basePoints = 100;
-        int agePoints = 0;
-        int referralPoints = 0;
-        int termsPoints = 0;
+    private RankingStats calculateWindowedRanking(StatsRequest request, long now) throws Exception {
+        Map<String, Map<String, Object>> allUsers = request.users();
+        int today = WindowedLeaderboard.epochDay(Math.floorDiv(now, 1000));
         
-        // Puntos por antigüedad
-        if (userData.containsKey("created_at")) {
-            Timestamp created = (Timestamp) userData.get("created_at");
-            if (created != null) {
-                long daysSinceCreation = (System.currentTimeMillis() - created.toDate().getTime()) / (1000 * 60 * 60 * 24);
-                agePoints = Math.max(0, (int) daysSinceCreation * 10);
+        // Dueño de cada código de referido y de cada teléfono
+        Map<String, String> ownerByCode = new HashMap<>();
+        Map<Long, String> ownerByPhone = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> doc : allUsers.entrySet()) {
+            Object referralCode = doc.getValue().get("referral_code");
+            if (referralCode != null) {
+                ownerByCode.put(referralCode.toString(), doc.getKey());
+            }
+            long phoneKey = CompactUserIndex.referredByPhoneKey(Objects.toString(doc.getValue().get("phone"), null));
+            if (phoneKey != 0) {
+                ownerByPhone.put(phoneKey, doc.getKey());
             }
         }
         
-        // Puntos por referidos
-        if (userData.containsKey("referral_code") && userData.get("referral_code") != null) {
-            referralPoints = 50;
+        int userTotalPoints = calculateUserPoints(request.userData(), now);
+        int totalPosition = 1;
+        Map<String, int[]> pointsById = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> doc : allUsers.entrySet()) {
+            Map<String, Object> userData = doc.getValue();
+            if (calculateUserPoints(userData, now) > userTotalPoints) {
+                totalPosition++;
+            }
+            Timestamp created = (Timestamp) userData.get("created_at");
+            if (created == null) {
+                continue;
+            }
+            int day = Math.min(WindowedLeaderboard.epochDay(created.getSeconds()), today);
+            if (!WindowedLeaderboard.inWindow(day, today, WindowedLeaderboard.MONTH)) {
+                continue;
+            }
+            addWindowPoints(pointsById, doc.getKey(), day, today, WindowedLeaderboard.SIGNUP_POINTS);
+            
+            // El código de referido manda; sin código, el teléfono del referente
+            Object referredByCode = userData.get("referred_by_code");
+            String referrer = referredByCode != null
+                ? ownerByCode.get(referredByCode.toString())
+                : ownerByPhone.get(CompactUserIndex.referredByPhoneKey(Objects.toString(userData.get("referred_by_phone"), null)));
+            if (referrer != null && !referrer.equals(doc.getKey())) {
+                addWindowPoints(pointsById, referrer, day, today, WindowedLeaderboard.REFERRAL_POINTS);
+            }
         }
         
-        // Puntos por aceptar términos
-        if (userData.containsKey("aceptaTerminos") && Boolean.TRUE.equals(userData.get("aceptaTerminos"))) {
-            termsPoints = 200;
+        // 1 + usuarios con más puntos en cada ventana
+        int[] userPoints = pointsById.getOrDefault(request.userId, new int[3]);
+        int[] positions = {1, 1, 1};
+        for (int[] points : pointsById.values()) {
+            for (int window = 0; window < positions.length; window++) {
+                if (points[window] > userPoints[window]) {
+                    positions[window]++;
+                }
+            }
+        }
+        return new RankingStats(
+            positions[WindowedLeaderboard.TODAY], userPoints[WindowedLeaderboard.TODAY],
+            positions[WindowedLeaderboard.WEEK], userPoints[WindowedLeaderboard.WEEK],
+            positions[WindowedLeaderboard.MONTH], userPoints[WindowedLeaderboard.MONTH],
+            totalPosition, userTotalPoints
+        );
+    }
+    
+    /**
+     * Puntos acumulados de un usuario, con la misma fórmula que UserLeaderboard: antigüedad, código
+     * de referido y términos
+     */
+    private static int calculateUserPoints(Map<String, Object> userData, long now) {
+        return UserLeaderboard.points(
+            CompactUserIndex.seconds((Timestamp) userData.get("created_at")),
+            userData.get("referral_code") != null,
+            Boolean.TRUE.equals(userData.get("aceptaTerminos")),
+            now);
+    }
+    
+    private static void addWindowPoints(Map<String, int[]> pointsById, String userId, int day, int today, int points) {
+        int[] windows = pointsById.computeIfAbsent(userId, id -> new int[3]);
+        for (int window = 0; window < windows.length; window++) {
+            if (WindowedLeaderboard.inWindow(day, today, window)) {
+                windows[window] += points;
+            }
         }
-        
-        return basePoints + agePoints + referralPoints + termsPoints;
     }
     
     /**
      * Obtiene estadísticas geográficas del usuario basadas en datos reales
      */
-    private CompletableFuture<GeographicalStats> getGeographicalStats(String userId) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // Obtener datos del usuario para calcular geografía
-                DocumentReference userDocRef = firestore.collection("users").document(userId);
-                DocumentSnapshot userDoc = userDocRef.get().get();
-                
-                if (!userDoc.exists()) {
-                    log.warn("Usuario no encontrado para geografía: {}", userId);
-                    return new GeographicalStats(5, 150, 96.7, 2, 45, 95.6);
-                }
-                
-                Map<String, Object> userData = userDoc.getData();
-                String userCity = (String) userData.getOrDefault("city", "Bogotá");
-                String userState = (String) userData.getOrDefault("state", "Bogotá"); // Cambiado de 'region' a 'state'
-                
-                // Calcular estadísticas geográficas reales
-                GeographicalStats geoStats = calculateGeographicalPosition(userId, userCity, userState);
-                
-                return geoStats;
-                
-            } catch (Exception e) {
-                log.error("Error calculando geografía para usuario: {}", userId, e);
-                // Valores por defecto en caso de error
-                return new GeographicalStats(5, 150, 96.7, 2, 45, 95.6);
+    private GeographicalStats getGeographicalStats(StatsRequest request) {
+        String userId = request.userId;
+        try {
+            Map<String, Object> userData = request.userData();
+            String userCity = (String) userData.getOrDefault("city", "Bogotá");
+            String userState = (String) userData.getOrDefault("state", "Bogotá"); // Cambiado de 'region' a 'state'
+            
+            if (userSeniorityIndex.isReady()) {
+                return indexedGeographicalPosition(userCity, userState, (Timestamp) userData.get("created_at"));
             }
-        });
+            
+            // Calcular estadísticas geográficas reales
+            return calculateGeographicalPosition(request, userCity, userState, (Timestamp) userData.get("created_at"));
+            
+        } catch (Exception e) {
+            log.error("Error calculando geografía para usuario: {}", userId, e);
+            // Valores por defecto en caso de error
+            return new GeographicalStats(5, 150, 96.7, 2, 45, 95.6);
+        }
     }
     
     /**
-     * Calcula la posición geográfica real del usuario
+     * Calcula la posición geográfica real del usuario: tamaño y antigüedad en su ciudad y su
+     * departamento, en un solo recorrido del snapshot
      */
-    private GeographicalStats calculateGeographicalPosition(String userId, String userCity, String userState) {
+    private GeographicalStats calculateGeographicalPosition(StatsRequest request, String userCity, String userState,
+                                                            Timestamp userCreated) {
+        String userId = request.userId;
         try {
-            // Obtener todos los usuarios
-            List<QueryDocumentSnapshot> allUsers = firestore.collection("users").get().get().getDocuments();
+            Map<String, Map<String, Object>> allUsers = request.users();
             
             int totalUsers = allUsers.size(); // Total de usuarios en Colombia
             int cityUsers = 0;
             int stateUsers = 0;
-            
-            // Log detallado para debugging
-            log.info("=== DEBUG GEOGRAFÍA ===");
-            log.info("Usuario: {}, Ciudad: {}, Departamento: {}", userId, userCity, userState);
-            log.info("Total usuarios en BD: {}", totalUsers);
-            
-            // Contar usuarios por ciudad y departamento
-            for (QueryDocumentSnapshot doc : allUsers) {
-                Map<String, Object> userData = doc.getData();
-                
-                String city = (String) userData.getOrDefault("city", "");
-                String state = (String) userData.getOrDefault("state", "");
-                
-                if (userCity.equals(city)) {
+            int cityPosition = 1;
+            int statePosition = 1;
+            
+            for (Map.Entry<String, Map<String, Object>> doc : allUsers.entrySet()) {
+                Map<String, Object> userData = doc.getValue();
+                boolean sameCity = userCity.equals(userData.getOrDefault("city", ""));
+                boolean sameState = userState.equals(userData.getOrDefault("state", ""));
+                if (sameCity) {
                     cityUsers++;
                 }
-                if (userState.equals(state)) {
+                if (sameState) {
                     stateUsers++;
                 }
+                
+                // Posición por fecha de creación: usuarios del mismo grupo creados antes
+                if (userCreated != null && !doc.getKey().equals(userId)) {
+                    Timestamp otherCreated = (Timestamp) userData.get("created_at");
+                    if (otherCreated != null && otherCreated.toDate().before(userCreated.toDate())) {
+                        cityPosition += sameCity ? 1 : 0;
+                        statePosition += sameState ? 1 : 0;
+                    }
+                }
             }
             
-            log.info("Usuarios en ciudad '{}': {}", userCity, cityUsers);
-            log.info("Usuarios en departamento '{}': {}", userState, stateUsers);
-            log.info("=== FIN DEBUG GEOGRAFÍA ===");
+            log.debug("Usuario: {}, Ciudad: {} ({} usuarios), Departamento: {} ({} usuarios), Total: {}",
+                userId, userCity, cityUsers, userState, stateUsers, totalUsers);
             
-            // Calcular posición en ciudad (basado en fecha de creación)
-            int cityPosition = calculateCityPosition(userId, userCity);
             double cityPercentile = cityUsers > 0 ? ((double) (cityUsers - cityPosition + 1) / cityUsers) * 100 : 100.0;
-            
-            // Calcular posición en departamento (basado en fecha de creación)
-            int statePosition = calculateStatePosition(userId, userState);
             double statePercentile = totalUsers > 0 ? ((double) (totalUsers - statePosition + 1) / totalUsers) * 100 : 100.0;
             
             return new GeographicalStats(
@@ -333,144 +379,80 @@ public class LocalAnalyticsService {
     }
     
     /**
-     * Calcula la posición del usuario en su ciudad
+     * Posición geográfica desde los índices en memoria, con los mismos cálculos (y la misma ciudad y
+     * departamento por defecto) que calculateGeographicalPosition
      */
-    private int calculateCityPosition(String userId, String userCity) {
-        try {
-            int position = 1;
-            DocumentReference userDocRef = firestore.collection("users").document(userId);
-            DocumentSnapshot userDoc = userDocRef.get().get();
-            
-            if (!userDoc.exists()) return 1;
-            
-            Map<String, Object> userData = userDoc.getData();
-            Timestamp userCreated = (Timestamp) userData.get("created_at");
-            
-            if (userCreated == null) return 1;
-            
-            // Contar usuarios más antiguos en la misma ciudad
-            List<QueryDocumentSnapshot> cityUsers = firestore.collection("users")
-                .whereEqualTo("city", userCity)
-                .get().get().getDocuments();
-            
-            for (QueryDocumentSnapshot doc : cityUsers) {
-                if (!doc.getId().equals(userId)) {
-                    Map<String, Object> otherUserData = doc.getData();
-                    Timestamp otherCreated = (Timestamp) otherUserData.get("created_at");
-                    
-                    if (otherCreated != null && otherCreated.toDate().before(userCreated.toDate())) {
-                        position++;
-                    }
-                }
-            }
-            
-            return position;
-            
-        } catch (Exception e) {
-            log.error("Error calculando posición en ciudad para usuario: {}", userId, e);
-            return 1;
-        }
+    private GeographicalStats indexedGeographicalPosition(String userCity, String userState, Timestamp userCreated) {
+        long createdAtSeconds = CompactUserIndex.seconds(userCreated);
+        UserSeniorityIndex.Position city = userSeniorityIndex.cityPosition(userCity, createdAtSeconds);
+        UserSeniorityIndex.Position state = userSeniorityIndex.statePosition(userState, createdAtSeconds);
+        int totalUsers = userSeniorityIndex.totalUsers();
+        int cityUsers = city.cohortSize();
+        double cityPercentile = cityUsers > 0 ? ((double) (cityUsers - city.position() + 1) / cityUsers) * 100 : 100.0;
+        double statePercentile = totalUsers > 0 ? ((double) (totalUsers - state.position() + 1) / totalUsers) * 100 : 100.0;
+        return new GeographicalStats(
+            state.position(), totalUsers, statePercentile,  // Departamento (usando total de usuarios)
+            city.position(), cityUsers, cityPercentile      // Ciudad
+        );
     }
     
     /**
-     * Calcula la posición del usuario en su departamento
+     * Obtiene estadísticas de referidos del usuario basadas en datos reales
      */
-    private int calculateStatePosition(String userId, String userState) {
+    private ReferralStats getReferralStats(StatsRequest request) {
+        String userId = request.userId;
         try {
-            int position = 1;
-            DocumentReference userDocRef = firestore.collection("users").document(userId);
-            DocumentSnapshot userDoc = userDocRef.get().get();
-            
-            if (!userDoc.exists()) return 1;
-            
-            Map<String, Object> userData = userDoc.getData();
-            Timestamp userCreated = (Timestamp) userData.get("created_at");
-            
-            if (userCreated == null) return 1;
-            
-            // Contar usuarios más antiguos en el mismo departamento
-            List<QueryDocumentSnapshot> stateUsers = firestore.collection("users")
-                .whereEqualTo("state", userState)
-                .get().get().getDocuments();
-            
-            for (QueryDocumentSnapshot doc : stateUsers) {
-                if (!doc.getId().equals(userId)) {
-                    Map<String, Object> otherUserData = doc.getData();
-                    Timestamp otherCreated = (Timestamp) otherUserData.get("created_at");
-                    
-                    if (otherCreated != null && otherCreated.toDate().before(userCreated.toDate())) {
-                        position++;
-                    }
-                }
+            Map<String, Object> userData = request.userData();
+            String userReferralCode = Objects.toString(userData.get("referral_code"), "");
+            String userPhone = Objects.toString(userData.get("phone"), "");
+            
+            if (referralGraph.isReady()) {
+                // Un usuario que el índice todavía no recibió no tiene referidos
+                ReferralGraph.Stats stats = referralGraph.statsOf(userId, System.currentTimeMillis());
+                return stats != null
+                    ? referralStats(stats.totalInvited(), stats.activeVolunteers(), stats.referralsThisMonth(), !userReferralCode.isEmpty())
+                    : referralStats(0, 0, 0, !userReferralCode.isEmpty());
             }
             
-            return position;
+            // Calcular estadísticas de referidos reales
+            return calculateReferralStats(request, userReferralCode, userPhone);
             
         } catch (Exception e) {
-            log.error("Error calculando posición en departamento para usuario: {}", userId, e);
-            return 1;
+            log.error("Error calculando referidos para usuario: {}", userId, e);
+            // Valores por defecto en caso de error
+            return new ReferralStats(0, 0, 0, 0.0, 0);
         }
     }
     
-    /**
-     * Obtiene estadísticas de referidos del usuario basadas en datos reales
-     */
-    private CompletableFuture<ReferralStats> getReferralStats(String userId) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // Obtener datos del usuario para calcular referidos
-                DocumentReference userDocRef = firestore.collection("users").document(userId);
-                DocumentSnapshot userDoc = userDocRef.get().get();
-                
-                if (!userDoc.exists()) {
-                    log.warn("Usuario no encontrado para referidos: {}", userId);
-                    return new ReferralStats(0, 0, 0, 0.0, 0);
-                }
-                
-                Map<String, Object> userData = userDoc.getData();
-                String userReferralCode = (String) userData.getOrDefault("referral_code", "");
-                String userPhone = (String) userData.getOrDefault("phone", "");
-                
-                // Calcular estadísticas de referidos reales
-                ReferralStats referralStats = calculateReferralStats(userId, userReferralCode, userPhone);
-                
-                return referralStats;
-                
-            } catch (Exception e) {
-                log.error("Error calculando referidos para usuario: {}", userId, e);
-                // Valores por defecto en caso de error
-                return new ReferralStats(0, 0, 0, 0.0, 0);
-            }
-        });
-    }
-    
     /**
      * Calcula estadísticas de referidos basadas en datos reales
      */
-    private ReferralStats calculateReferralStats(String userId, String userReferralCode, String userPhone) {
+    private ReferralStats calculateReferralStats(StatsRequest request, String userReferralCode, String userPhone) {
+        String userId = request.userId;
         try {
             int totalInvited = 0;
             int activeVolunteers = 0;
             int referralsThisMonth = 0;
-            int referralPoints = 0;
+            long userPhoneKey = CompactUserIndex.referredByPhoneKey(userPhone);
             
             // Buscar usuarios que fueron referidos por este usuario
-            List<QueryDocumentSnapshot> allUsers = firestore.collection("users").get().get().getDocuments();
-            
-            for (QueryDocumentSnapshot doc : allUsers) {
-                if (!doc.getId().equals(userId)) {
-                    Map<String, Object> otherUserData = doc.getData();
+            for (Map.Entry<String, Map<String, Object>> doc : request.users().entrySet()) {
+                if (!doc.getKey().equals(userId)) {
+                    Map<String, Object> otherUserData = doc.getValue();
                     
                     // Verificar si fue referido por código o teléfono
-                    String referredByCode = (String) otherUserData.getOrDefault("referred_by", "");
-                    String referredByPhone = (String) otherUserData.getOrDefault("referred_by_phone", "");
+                    String referredByCode = (String) otherUserData.get("referred_by_code");
+                    String referredByPhone = (String) otherUserData.get("referred_by_phone");
                     
-                    if (userReferralCode.equals(referredByCode) || userPhone.equals(referredByPhone)) {
+                    // Mismo criterio que ReferralGraph: el código manda y el teléfono se compara normalizado
+                    boolean referred = referredByCode != null && !referredByCode.isEmpty()
+                        ? referredByCode.equals(userReferralCode)
+                        : userPhoneKey != 0 && CompactUserIndex.referredByPhoneKey(referredByPhone) == userPhoneKey;
+                    if (referred) {
                         totalInvited++;
                         
-                        // Verificar si es voluntario activo
-                        Boolean isActive = (Boolean) otherUserData.getOrDefault("isActive", false);
-                        if (Boolean.TRUE.equals(isActive)) {
+                        // Verificar si es voluntario activo (completó el registro)
+                        if ("COMPLETED".equals(otherUserData.get("chatbot_state"))) {
                             activeVolunteers++;
                         }
                         
@@ -482,25 +464,11 @@ public class LocalAnalyticsService {
                                 referralsThisMonth++;
                             }
                         }
-                        
-                        // Calcular puntos por referido
-                        referralPoints += 200;
                     }
                 }
             }
             
-            // Calcular tasa de conversión
-            double conversionRate = totalInvited > 0 ? ((double) activeVolunteers / totalInvited) * 100 : 0.0;
-            
-            // Puntos base por tener código de referido
-            if (!userReferralCode.isEmpty()) {
-                referralPoints += 500;
-            }
-            
-            return new ReferralStats(
-                totalInvited, activeVolunteers, referralsThisMonth, 
-                conversionRate, referralPoints
-            );
+            return referralStats(totalInvited, activeVolunteers, referralsThisMonth, !userReferralCode.isEmpty());
             
         } catch (Exception e) {
             log.error("Error calculando estadísticas de referidos para usuario: {}", userId, e);
@@ -508,6 +476,23 @@ public class LocalAnalyticsService {
         }
     }
     
+    /**
+     * Tasa de conversión y puntos a partir de los conteos de referidos
+     */
+    private static ReferralStats referralStats(int totalInvited, int activeVolunteers, int referralsThisMonth,
+                                               boolean hasReferralCode) {
+        // Calcular tasa de conversión
+        double conversionRate = totalInvited > 0 ? ((double) activeVolunteers / totalInvited) * 100 : 0.0;
+        
+        // 200 puntos por referido, más 500 base por tener código de referido
+        int referralPoints = totalInvited * 200 + (hasReferralCode ? 500 : 0);
+        
+        return new ReferralStats(
+            totalInvited, activeVolunteers, referralsThisMonth, 
+            conversionRate, referralPoints
+        );
+    }
+    
     /**
      * Construye la respuesta completa de estadísticas
      */
@@ -522,7 +507,8 @@ public class LocalAnalyticsService {
         Ranking ranking = new Ranking(
             new RankingPeriod(rankingStats.todayPosition, rankingStats.todayPoints),
             new RankingPeriod(rankingStats.weekPosition, rankingStats.weekPoints),
-            new RankingPeriod(rankingStats.monthPosition, rankingStats.monthPoints)
+            new RankingPeriod(rankingStats.monthPosition, rankingStats.monthPoints),
+            new RankingPeriod(rankingStats.totalPosition, rankingStats.totalPoints)
         );
         
         // Construir región
@@ -586,15 +572,18 @@ public class LocalAnalyticsService {
     // Clases de datos internas
     private static class RankingStats {
         final int todayPosition, todayPoints, weekPosition, weekPoints, monthPosition, monthPoints;
+        final int totalPosition, totalPoints;
         
         RankingStats(int todayPosition, int todayPoints, int weekPosition, int weekPoints, 
-                    int monthPosition, int monthPoints) {
+                    int monthPosition, int monthPoints, int totalPosition, int totalPoints) {
             this.todayPosition = todayPosition;
             this.todayPoints = todayPoints;
             this.weekPosition = weekPosition;
             this.weekPoints = weekPoints;
             this.monthPosition = monthPosition;
             this.monthPoints = monthPoints;
+            this.totalPosition = totalPosition;
+            this.totalPoints = totalPoints;
         }
     }
     
@@ -690,20 +679,28 @@ public class LocalAnalyticsService {
         public double getPercentile() { return percentile; }
     }
     
+    /**
+     * Posiciones del usuario. En today, week y month los puntos son los ganados en esa ventana
+     * (registro y referidos, ver WindowedLeaderboard); en total son los puntos acumulados (antigüedad,
+     * código de referido y términos, ver UserLeaderboard), que es lo que antes traían los tres periodos.
+     */
     public static class Ranking {
         private final RankingPeriod today;
         private final RankingPeriod week;
         private final RankingPeriod month;
+        private final RankingPeriod total;
         
-        public Ranking(RankingPeriod today, RankingPeriod week, RankingPeriod month) {
+        public Ranking(RankingPeriod today, RankingPeriod week, RankingPeriod month, RankingPeriod total) {
             this.today = today;
             this.week = week;
             this.month = month;
+            this.total = total;
         }
         
         public RankingPeriod getToday() { return today; }
         public RankingPeriod getWeek() { return week; }
         public RankingPeriod getMonth() { return month; }
+        public RankingPeriod getTotal() { return total; }
     }
     
     public static class RankingPeriod {
@@ -0,0 +1,382 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.InboundMessage;
+import com.politicalreferralswa.service.AdaptiveConcurrencyLimiter.Priority;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ejecutor dedicado para procesar los mensajes entrantes de los webhooks.
+ *
+ * Los mensajes corren en hilos virtuales, de modo que las llamadas bloqueantes del
+ * ChatbotService (Firestore .get(), Gemini .block(), Thread.sleep entre envíos) no agotan
+ * el ForkJoinPool común que usan otros servicios. Cada remitente tiene su propio buzón
+ * (SenderMailboxDispatcher): sus mensajes se procesan uno a uno y en orden, evitando que dos
+ * mensajes seguidos del mismo usuario pisen su estado en Firestore, mientras que remitentes
+ * distintos avanzan en paralelo.
+ *
+ * Un AdaptiveConcurrencyLimiter limita cuántas llamadas al chatbot corren a la vez, ajustando el
+ * límite según su latencia, con 'ingestion.max-in-flight' como tope: el hueco se toma al empezar a
+ * procesar (esperando sin girar si no hay) y se libera al terminar, así la latencia medida no incluye
+ * la espera en el buzón. El mismo límite decide la admisión: se aceptan mensajes sin terminar
+ * (encolados + procesándose) hasta 'ingestion.max-queued' escalado por límite / máximo en vuelo; al
+ * alcanzarlo el mensaje se rechaza y el controlador responde 429 para que el proveedor lo reintente
+ * más tarde. Si el chatbot se vuelve lento, el límite baja y la entrada se cierra antes.
+ * Los mensajes de la API directa ('/api/message') son de baja prioridad: se descartan antes que los
+ * de WhatsApp y Telegram y sólo usan una parte del límite.
+ *
+ * Mientras el remitente está en un estado de captura de datos ('ingestion.coalescing.states'),
+ * los mensajes que llegan dentro de 'ingestion.coalescing.window-ms' se agrupan en uno solo
+ * (separados por salto de línea), así la extracción con Gemini y la transición de estado ocurren
+ * una sola vez por ráfaga. Un mensaje con código de referido ("referido por: XXXXXXXX") nunca se
+ * agrupa: el chatbot sólo lo reconoce al final del mensaje, y tras otro fragmento se perdería.
+ *
+ * Si el InboundJournal está habilitado, cada mensaje se escribe de forma durable en el diario antes
+ * de aceptarlo (y por tanto antes de confirmar el webhook); al arrancar se reprocesan los mensajes
+ * que quedaron sin terminar. El diario protege contra la caída de la instancia, no contra errores del
+ * chatbot: un mensaje cuyo procesamiento falla se marca igualmente como procesado, porque repetirlo
+ * al arrancar volvería a ejecutar una transición a medias (con sus envíos) y un mensaje que siempre
+ * falla retendría el checkpoint y los segmentos para siempre. Sólo queda pendiente un mensaje
+ * interrumpido por el apagado de la instancia.
+ */
+@Service
+public class MessageIngestionService {
+
+    // Máximo de mensajes que se agrupan en una sola llamada al chatbot
+    private static final int MAX_COALESCED_MESSAGES = 10;
+
+    private final ChatbotService chatbotService;
+    private final InboundJournal journal;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ExecutorService executor;
+    private final SenderMailboxDispatcher<PendingMessage> mailboxes;
+    private final long coalescingWindowMs;
+    private final Set<String> coalescingStates;
+
+    // Métricas
+    private final AtomicLong acceptedMessages = new AtomicLong(0);
+    private final AtomicLong rejectedMessages = new AtomicLong(0);
+    private final AtomicLong rejectedHighPriority = new AtomicLong(0);
+    private final AtomicLong rejectedLowPriority = new AtomicLong(0);
+    private final AtomicLong completedMessages = new AtomicLong(0);
+    private final AtomicLong failedMessages = new AtomicLong(0);
+    private final AtomicLong coalescedMessages = new AtomicLong(0);
+    // Aceptados sin terminar (encolados + procesándose), acotados por limiter.admissionBound
+    private final AtomicInteger pendingMessages = new AtomicInteger(0);
+    private final AtomicInteger queuedMessages = new AtomicInteger(0);
+    private final AtomicInteger runningMessages = new AtomicInteger(0);
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+    private final LongAdder totalProcessingNanos = new LongAdder();
+
+    public MessageIngestionService(ChatbotService chatbotService, InboundJournal journal,
+                                   @Value("${ingestion.max-in-flight:500}") int maxInFlight,
+                                   @Value("${ingestion.max-queued:2000}") int maxQueued,
+                                   @Value("${ingestion.limiter.initial-limit:100}") int initialLimit,
+                                   @Value("${ingestion.limiter.min-limit:20}") int minLimit,
+                                   @Value("${ingestion.limiter.low-priority-share:0.5}") double lowPriorityShare,
+                                   @Value("${ingestion.coalescing.window-ms:400}") long coalescingWindowMs,
+                                   @Value("${ingestion.coalescing.states:NEW,WAITING_NAME,WAITING_CITY,WAITING_CLARIFICATION}") String coalescingStates) {
+        this.chatbotService = chatbotService;
+        this.journal = journal;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.limiter = new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxInFlight, lowPriorityShare);
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ingestion-", 0).factory());
+        this.mailboxes = new SenderMailboxDispatcher<>(executor, this::process);
+        this.coalescingWindowMs = coalescingWindowMs;
+        this.coalescingStates = Arrays.stream(coalescingStates.split(","))
+                .map(String::trim)
+                .filter(state -> !state.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        System.out.println("MessageIngestionService: Ejecutor de hilos virtuales listo (límite adaptativo inicial: "
+                + limiter.getLimit() + ", máximo en vuelo: " + maxInFlight + ", máximo en cola: " + maxQueued + ")");
+    }
+
+    /**
+     * Intenta encolar un mensaje para procesamiento asíncrono.
+     *
+     * @param message Mensaje entrante normalizado
+     * @return true si fue aceptado, false si se alcanzó el límite de mensajes en cola
+     */
+    public boolean tryDispatch(InboundMessage message) {
+        return admit(message, null);
+    }
+
+    /**
+     * Encola un mensaje y devuelve la respuesta principal del chatbot cuando termine de procesarse.
+     * Usado por la API directa, que responde de forma síncrona.
+     *
+     * @param message Mensaje entrante normalizado
+     * @return Futuro con la respuesta del chatbot, o null si el mensaje se descartó por saturación
+     */
+    public CompletableFuture<String> trySubmit(InboundMessage message) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        return admit(message, result) ? result : null;
+    }
+
+    private boolean admit(InboundMessage message, CompletableFuture<String> result) {
+        Priority priority = priorityOf(message);
+        int bound = limiter.admissionBound(priority, maxQueued);
+        if (!reserve(bound)) {
+            rejectedMessages.incrementAndGet();
+            (priority == Priority.LOW ? rejectedLowPriority : rejectedHighPriority).incrementAndGet();
+            System.err.println("MessageIngestionService: Límite de mensajes en cola alcanzado (" + bound
+                    + ", prioridad " + priority + "). Rechazando mensaje de " + message.fromId());
+            return false;
+        }
+
+        long admittedAt = System.nanoTime();
+        long journalSeq;
+        try {
+            journalSeq = journal.append(message);
+        } catch (RuntimeException e) {
+            // Sin persistencia no se confirma el webhook: el proveedor lo reintentará
+            pendingMessages.decrementAndGet();
+            rejectedMessages.incrementAndGet();
+            System.err.println("MessageIngestionService: ERROR al escribir en el diario de ingesta: " + e.getMessage());
+            return false;
+        }
+
+        queuedMessages.incrementAndGet();
+        try {
+            mailboxes.dispatch(message.senderKey(), new PendingMessage(message, admittedAt, journalSeq, result));
+        } catch (RejectedExecutionException e) {
+            // El ejecutor se está cerrando (apagado de la instancia)
+            queuedMessages.decrementAndGet();
+            pendingMessages.decrementAndGet();
+            rejectedMessages.incrementAndGet();
+            return false;
+        }
+        acceptedMessages.incrementAndGet();
+        return true;
+    }
+
+    // Ocupa un lugar en la cola si quedan menos de 'bound' mensajes sin terminar
+    private boolean reserve(int bound) {
+        while (true) {
+            int pending = pendingMessages.get();
+            if (pending >= bound) {
+                return false;
+            }
+            if (pendingMessages.compareAndSet(pending, pending + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // La API directa es de baja prioridad: se descarta antes que los webhooks de usuarios reales
+    private static Priority priorityOf(InboundMessage message) {
+        return "API".equalsIgnoreCase(message.channelType()) ? Priority.LOW : Priority.HIGH;
+    }
+
+    /**
+     * Reprocesa los mensajes que quedaron en el diario sin terminar en la ejecución anterior.
+     * Ya habían sido aceptados, así que no pasan por el tope de la cola; el límite de concurrencia
+     * se respeta al procesarlos, como con cualquier otro mensaje.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void replayJournal() {
+        List<InboundJournal.JournalRecord> records = journal.drainRecovered();
+        if (records.isEmpty()) {
+            return;
+        }
+        System.out.println("MessageIngestionService: Reprocesando " + records.size() + " mensajes pendientes del diario");
+        for (InboundJournal.JournalRecord record : records) {
+            pendingMessages.incrementAndGet();
+            queuedMessages.incrementAndGet();
+            mailboxes.dispatch(record.message().senderKey(),
+                    new PendingMessage(record.message(), System.nanoTime(), record.seq(), null));
+            acceptedMessages.incrementAndGet();
+        }
+    }
+
+    private void process(PendingMessage pending) {
+        long startedAt = System.nanoTime();
+        long waitNanos = startedAt - pending.admittedAtNanos();
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        queuedMessages.decrementAndGet();
+
+        List<PendingMessage> batch = List.of(pending);
+        InboundMessage message = pending.message();
+        boolean failed = false;
+        boolean interrupted = false;
+        long acquiredAt = 0;
+        try {
+            batch = coalesce(pending);
+            message = merge(batch);
+            // El hueco de concurrencia cubre sólo la llamada al chatbot: una por ráfaga agrupada
+            limiter.acquire(priorityOf(message));
+            acquiredAt = System.nanoTime();
+            runningMessages.incrementAndGet();
+            String primaryResponse = chatbotService.processIncomingMessage(
+                    message.fromId(), message.text(), message.channelType(), message.senderName());
+            completedMessages.addAndGet(batch.size());
+            for (PendingMessage item : batch) {
+                if (item.result() != null) {
+                    item.result().complete(primaryResponse);
+                }
+            }
+            System.out.println("MessageIngestionService: Mensaje procesado (" + message.channelType() + ", "
+                    + message.fromId() + (batch.size() > 1 ? ", " + batch.size() + " mensajes agrupados" : "")
+                    + "). Respuesta principal: " + primaryResponse);
+        } catch (Exception e) {
+            failed = true;
+            // Apagado de la instancia: el mensaje no llegó a procesarse y se reproduce al arrancar
+            interrupted = e instanceof InterruptedException || Thread.currentThread().isInterrupted();
+            failedMessages.addAndGet(batch.size());
+            for (PendingMessage item : batch) {
+                if (item.result() != null) {
+                    item.result().completeExceptionally(e);
+                }
+            }
+            System.err.println("MessageIngestionService: ERROR al procesar mensaje de " + message.fromId()
+                    + " (" + message.channelType() + "): " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            long finishedAt = System.nanoTime();
+            totalProcessingNanos.add(finishedAt - startedAt);
+            if (acquiredAt != 0) {
+                runningMessages.decrementAndGet();
+                limiter.onComplete(finishedAt - acquiredAt, failed);
+            }
+            pendingMessages.addAndGet(-batch.size());
+            if (!interrupted) {
+                for (PendingMessage item : batch) {
+                    journal.markProcessed(item.journalSeq());
+                }
+            }
+        }
+    }
+
+    /**
+     * Si el remitente está en un estado de captura de datos, espera la ventana de agrupación y toma
+     * los mensajes que llegaron mientras tanto, para extraer los datos en una sola llamada.
+     * Un usuario suele escribir "Hola" / "soy Juan" / "de Medellín" como tres mensajes seguidos.
+     */
+    private List<PendingMessage> coalesce(PendingMessage first) throws InterruptedException {
+        InboundMessage message = first.message();
+        if (coalescingWindowMs <= 0
+                || !coalescingStates.contains(chatbotService.getChatbotState(message.fromId(), message.channelType()))) {
+            return List.of(first);
+        }
+
+        if (ChatbotService.isReferralMessage(message.text())) {
+            return List.of(first);
+        }
+
+        Thread.sleep(coalescingWindowMs);
+        // La agrupación se corta antes de un mensaje con código de referido, que se procesa solo
+        List<PendingMessage> following = mailboxes.pollWhile(message.senderKey(),
+                next -> next.message().channelType().equals(message.channelType())
+                        && !ChatbotService.isReferralMessage(next.message().text()),
+                MAX_COALESCED_MESSAGES - 1);
+        if (following.isEmpty()) {
+            return List.of(first);
+        }
+        queuedMessages.addAndGet(-following.size());
+        coalescedMessages.addAndGet(following.size());
+
+        List<PendingMessage> batch = new ArrayList<>(following.size() + 1);
+        batch.add(first);
+        batch.addAll(following);
+        return batch;
+    }
+
+    private static InboundMessage merge(List<PendingMessage> batch) {
+        InboundMessage first = batch.get(0).message();
+        if (batch.size() == 1) {
+            return first;
+        }
+        StringBuilder text = new StringBuilder();
+        String senderName = null;
+        for (PendingMessage item : batch) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(item.message().text());
+            if (senderName == null) {
+                senderName = item.message().senderName();
+            }
+        }
+        return new InboundMessage(first.channelType(), first.fromId(), text.toString(), senderName);
+    }
+
+    /**
+     * Obtiene las métricas actuales de la ingesta
+     */
+    public Map<String, Object> getMetrics() {
+        long accepted = acceptedMessages.get();
+        long finished = completedMessages.get() + failedMessages.get();
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("maxInFlight", maxInFlight);
+        metrics.put("maxQueued", maxQueued);
+        metrics.put("admissionBound", limiter.admissionBound(Priority.HIGH, maxQueued));
+        metrics.put("pending", pendingMessages.get());
+        metrics.put("concurrencyLimit", limiter.getLimit());
+        metrics.put("inFlight", limiter.getInFlight());
+        metrics.put("minLatencyMs", limiter.getMinRttMs());
+        metrics.put("queueDepth", queuedMessages.get());
+        metrics.put("running", runningMessages.get());
+        metrics.put("activeSenders", mailboxes.activeMailboxes());
+        metrics.put("acceptedMessages", accepted);
+        metrics.put("rejectedMessages", rejectedMessages.get());
+        metrics.put("rejectedHighPriority", rejectedHighPriority.get());
+        metrics.put("rejectedLowPriority", rejectedLowPriority.get());
+        metrics.put("completedMessages", completedMessages.get());
+        metrics.put("failedMessages", failedMessages.get());
+        metrics.put("coalescedMessages", coalescedMessages.get());
+        metrics.put("averageWaitMs", accepted > 0 ? totalWaitNanos.sum() / 1_000_000.0 / accepted : 0.0);
+        metrics.put("maxWaitMs", maxWaitNanos.get() / 1_000_000.0);
+        metrics.put("averageProcessingMs", finished > 0 ? totalProcessingNanos.sum() / 1_000_000.0 / finished : 0.0);
+        metrics.put("journal", journal.getMetrics());
+        return metrics;
+    }
+
+    // result sólo se usa para la API directa, que espera la respuesta del chatbot
+    private record PendingMessage(InboundMessage message, long admittedAtNanos, long journalSeq,
+                                  CompletableFuture<String> result) {
+    }
+
+    /**
+     * Espera a que terminen los mensajes en curso antes de apagar la instancia
+     */
+    @PreDestroy
+    public void shutdown() {
+        System.out.println("MessageIngestionService: Apagando ejecutor, mensajes en vuelo: "
+                + limiter.getInFlight());
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("MessageIngestionService: Tiempo de espera agotado, forzando apagado del ejecutor");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
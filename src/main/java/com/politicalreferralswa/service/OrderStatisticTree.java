@@ -0,0 +1,223 @@
+package com.politicalreferralswa.service;
+
+import java.util.Arrays;
+
+/**
+ * Conjunto ordenado de pares (clave long, valor int) que además responde cuántos elementos hay
+ * hasta una clave y cuál es el k-ésimo, todo en O(log n).
+ *
+ * Es un treap guardado en arreglos de primitivos: cada nodo es una posición de los arreglos y
+ * guarda el tamaño de su subárbol. El orden es por clave y, a igual clave, por valor, así que
+ * varios usuarios pueden compartir clave (p. ej. la misma fecha de creación).
+ *
+ * No es seguro para hilos: quien lo usa sincroniza.
+ */
+final class OrderStatisticTree {
+
+    private static final int NIL = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int[] priorities;
+    private int[] left;
+    private int[] right;
+    private int[] sizes;
+    private int root = NIL;
+    private int allocated = 0;
+    private int[] freeNodes = new int[16];
+    private int freeCount = 0;
+    private int seed = 0x2545F491;
+
+    // Resultado de split()
+    private int splitLeft;
+    private int splitRight;
+
+    OrderStatisticTree(int expected) {
+        int capacity = Math.max(16, expected);
+        keys = new long[capacity];
+        values = new int[capacity];
+        priorities = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        sizes = new int[capacity];
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    void insert(long key, int value) {
+        int node = allocate(key, value);
+        split(root, key, value);
+        int lower = splitLeft;
+        int upper = splitRight;
+        root = merge(merge(lower, node), upper);
+    }
+
+    /**
+     * @return true si el par estaba en el árbol
+     */
+    boolean remove(long key, int value) {
+        split(root, key, value);
+        int lower = splitLeft;
+        int rest = splitRight;
+        // El par buscado, si existe, es el menor de 'rest'
+        int found = NIL;
+        if (value < Integer.MAX_VALUE) {
+            split(rest, key, value + 1);
+            found = splitLeft;
+            rest = splitRight;
+        } else if (key < Long.MAX_VALUE) {
+            split(rest, key + 1, Integer.MIN_VALUE);
+            found = splitLeft;
+            rest = splitRight;
+        } else if (rest != NIL) {
+            found = rest;
+            rest = NIL;
+        }
+        root = merge(lower, rest);
+        if (found == NIL) {
+            return false;
+        }
+        release(found);
+        return true;
+    }
+
+    /**
+     * Cantidad de elementos con clave menor o igual
+     */
+    int countAtMost(long key) {
+        int count = 0;
+        int node = root;
+        while (node != NIL) {
+            if (keys[node] <= key) {
+                count += size(left[node]) + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cantidad de elementos con clave menor
+     */
+    int countBelow(long key) {
+        return key == Long.MIN_VALUE ? 0 : countAtMost(key - 1);
+    }
+
+    /**
+     * Posición (desde 0, en orden ascendente) del k-ésimo nodo; usar con keyAt y valueAt
+     */
+    int nodeAt(int rank) {
+        int node = root;
+        while (node != NIL) {
+            int leftSize = size(left[node]);
+            if (rank < leftSize) {
+                node = left[node];
+            } else if (rank == leftSize) {
+                return node;
+            } else {
+                rank -= leftSize + 1;
+                node = right[node];
+            }
+        }
+        throw new IndexOutOfBoundsException("rank: " + rank);
+    }
+
+    long keyAt(int node) {
+        return keys[node];
+    }
+
+    int valueAt(int node) {
+        return values[node];
+    }
+
+    long bytes() {
+        return (long) keys.length * (Long.BYTES + 5 * Integer.BYTES) + (long) freeNodes.length * Integer.BYTES;
+    }
+
+    // Separa el subárbol en los pares menores que (key, value) y los mayores o iguales
+    private void split(int node, long key, int value) {
+        if (node == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+            return;
+        }
+        int compare = keys[node] != key ? Long.compare(keys[node], key) : Integer.compare(values[node], value);
+        if (compare < 0) {
+            split(right[node], key, value);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(left[node], key, value);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    // Une dos subárboles donde todos los pares de 'lower' son menores que los de 'upper'
+    private int merge(int lower, int upper) {
+        if (lower == NIL) {
+            return upper;
+        }
+        if (upper == NIL) {
+            return lower;
+        }
+        if (priorities[lower] > priorities[upper]) {
+            right[lower] = merge(right[lower], upper);
+            update(lower);
+            return lower;
+        }
+        left[upper] = merge(lower, left[upper]);
+        update(upper);
+        return upper;
+    }
+
+    private void update(int node) {
+        sizes[node] = size(left[node]) + size(right[node]) + 1;
+    }
+
+    private int size(int node) {
+        return node == NIL ? 0 : sizes[node];
+    }
+
+    private int allocate(long key, int value) {
+        int node;
+        if (freeCount > 0) {
+            node = freeNodes[--freeCount];
+        } else {
+            if (allocated == keys.length) {
+                int capacity = keys.length + (keys.length >> 1);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                priorities = Arrays.copyOf(priorities, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            node = allocated++;
+        }
+        // xorshift: prioridades pseudoaleatorias sin objetos
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        keys[node] = key;
+        values[node] = value;
+        priorities[node] = seed;
+        left[node] = NIL;
+        right[node] = NIL;
+        sizes[node] = 1;
+        return node;
+    }
+
+    private void release(int node) {
+        if (freeCount == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, freeNodes.length * 2);
+        }
+        freeNodes[freeCount++] = node;
+    }
+}
@@ -178,9 +178,13 @@ public class PostRegistrationMenuService {
         
         if (data.getRanking() != null) {
             response.append("📈 *Rendimiento:*\n");
+            if (data.getRanking().getTotal() != null) {
+                response.append("• General: #").append(data.getRanking().getTotal().getPosition())
+                       .append(" con ").append(data.getRanking().getTotal().getPoints()).append(" puntos\n");
+            }
             if (data.getRanking().getToday() != null) {
                 response.append("• Hoy: #").append(data.getRanking().getToday().getPosition())
-                       .append(" con ").append(data.getRanking().getToday().getPoints()).append(" puntos\n");
+                       .append(" con ").append(data.getRanking().getToday().getPoints()).append(" puntos ganados hoy\n");
             }
             if (data.getRanking().getWeek() != null) {
                 response.append("• Esta semana: #").append(data.getRanking().getWeek().getPosition()).append("\n");
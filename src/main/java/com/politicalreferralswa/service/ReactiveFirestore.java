@@ -0,0 +1,66 @@
+package com.politicalreferralswa.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adaptador de los ApiFuture del cliente de Firestore a Mono de Reactor y a CompletableFuture.
+ *
+ * El callback se registra con directExecutor, así que el Mono se completa en el hilo del
+ * cliente gRPC sin bloquear ningún hilo mientras se espera la respuesta.
+ */
+public final class ReactiveFirestore {
+
+    private ReactiveFirestore() {
+    }
+
+    /**
+     * Mono que emite el resultado del futuro (o vacío si es null). Cancelar la suscripción cancela el futuro.
+     */
+    public static <T> Mono<T> toMono(ApiFuture<T> future) {
+        return Mono.create(sink -> {
+            ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    sink.success(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    sink.error(t);
+                }
+            }, MoreExecutors.directExecutor());
+            sink.onCancel(() -> future.cancel(false));
+        });
+    }
+
+    /**
+     * CompletableFuture que se completa con el resultado del futuro. Cancelarlo cancela el futuro.
+     */
+    public static <T> CompletableFuture<T> toFuture(ApiFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(false);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+package com.politicalreferralswa.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Conjunto acotado de IDs vistos recientemente, usado para descartar webhooks reenviados por el proveedor.
+ *
+ * Combina dos estructuras:
+ * - Un anillo exacto con los últimos N IDs (cubre los reintentos típicos, que llegan en segundos
+ *   o pocos minutos) sin falsos positivos.
+ * - Un filtro de Bloom rotativo de dos generaciones que cubre la ventana completa con memoria fija.
+ *   Cada generación vive media ventana (o menos si se llena); al rotar se descarta la más antigua.
+ *
+ * Los IDs se "reclaman" al llegar (quedan en el anillo) y sólo pasan al filtro de Bloom cuando se
+ * confirman, así un mensaje rechazado por saturación puede liberarse y volver a aceptarse en su reintento.
+ */
+public class RecentIdFilter {
+
+    private final String[] ring;
+    private final Map<String, Integer> ringSlots;
+    private int ringHead = 0;
+
+    private final int bitsPerGeneration;
+    private final int hashFunctions;
+    private final long generationNanos;
+    private final int maxInsertionsPerGeneration;
+    private long[] currentGeneration;
+    private long[] previousGeneration;
+    private long generationStartedAt;
+    private int currentInsertions = 0;
+
+    /**
+     * @param recentCapacity     Tamaño del anillo exacto
+     * @param expectedInsertions IDs esperados por ventana
+     * @param falsePositiveRate  Probabilidad de falso positivo aceptada para el filtro de Bloom
+     * @param windowMillis       Ventana de tiempo durante la que se recuerda un ID
+     */
+    public RecentIdFilter(int recentCapacity, int expectedInsertions, double falsePositiveRate, long windowMillis) {
+        this.ring = new String[recentCapacity];
+        this.ringSlots = new HashMap<>(recentCapacity * 2);
+
+        // Cada generación cubre media ventana, así que se dimensiona para la mitad de inserciones
+        int perGeneration = Math.max(1, expectedInsertions / 2);
+        long bits = (long) Math.ceil(-perGeneration * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitsPerGeneration = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitsPerGeneration / perGeneration * Math.log(2)));
+        this.maxInsertionsPerGeneration = perGeneration;
+        this.generationNanos = windowMillis * 1_000_000L / 2;
+        this.currentGeneration = new long[(bitsPerGeneration + 63) / 64];
+        this.previousGeneration = new long[(bitsPerGeneration + 63) / 64];
+        this.generationStartedAt = System.nanoTime();
+    }
+
+    /**
+     * Reclama un ID: devuelve false si ya se vio dentro de la ventana, true si es nuevo
+     * (en cuyo caso queda registrado en el anillo exacto).
+     */
+    public synchronized boolean claim(String id) {
+        rotateIfNeeded();
+        if (ringSlots.containsKey(id) || bloomContains(id)) {
+            return false;
+        }
+        String evicted = ring[ringHead];
+        if (evicted != null && Integer.valueOf(ringHead).equals(ringSlots.get(evicted))) {
+            ringSlots.remove(evicted);
+        }
+        ring[ringHead] = id;
+        ringSlots.put(id, ringHead);
+        ringHead = (ringHead + 1) % ring.length;
+        return true;
+    }
+
+    /**
+     * Confirma un ID reclamado: lo recuerda durante toda la ventana aunque salga del anillo
+     */
+    public synchronized void confirm(String id) {
+        rotateIfNeeded();
+        long h1 = hash(id, 0x9E3779B97F4A7C15L);
+        long h2 = hash(id, 0xC2B2AE3D27D4EB4FL) | 1L;
+        for (int i = 0; i < hashFunctions; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitsPerGeneration);
+            currentGeneration[bit >>> 6] |= 1L << bit;
+        }
+        currentInsertions++;
+    }
+
+    /**
+     * Libera un ID reclamado que no llegó a procesarse, para aceptar su reintento
+     */
+    public synchronized void release(String id) {
+        ringSlots.remove(id);
+    }
+
+    /**
+     * Memoria aproximada usada por los filtros de Bloom, en bytes
+     */
+    public long bloomMemoryBytes() {
+        return (long) currentGeneration.length * 8 * 2;
+    }
+
+    public synchronized int recentSize() {
+        return ringSlots.size();
+    }
+
+    private boolean bloomContains(String id) {
+        long h1 = hash(id, 0x9E3779B97F4A7C15L);
+        long h2 = hash(id, 0xC2B2AE3D27D4EB4FL) | 1L;
+        return bloomContains(currentGeneration, h1, h2) || bloomContains(previousGeneration, h1, h2);
+    }
+
+    private boolean bloomContains(long[] bits, long h1, long h2) {
+        for (int i = 0; i < hashFunctions; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitsPerGeneration);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotateIfNeeded() {
+        if (System.nanoTime() - generationStartedAt < generationNanos && currentInsertions < maxInsertionsPerGeneration) {
+            return;
+        }
+        long[] recycled = previousGeneration;
+        Arrays.fill(recycled, 0L);
+        previousGeneration = currentGeneration;
+        currentGeneration = recycled;
+        currentInsertions = 0;
+        generationStartedAt = System.nanoTime();
+    }
+
+    // FNV-1a de 64 bits con semilla y mezcla final (splitmix64), suficiente para IDs de proveedor
+    private static long hash(String value, long seed) {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= (h >>> 30);
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= (h >>> 27);
+        h *= 0x94D049BB133111EBL;
+        h ^= (h >>> 31);
+        return h;
+    }
+}
@@ -0,0 +1,275 @@
+package com.politicalreferralswa.service;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import io.grpc.Status;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Índice de códigos de referido: colección 'referral_codes/{code}' con el ID del documento del
+ * usuario dueño del código ('user_doc_id').
+ *
+ * - Búsqueda: caché local de lectura (un código nunca cambia de dueño) y, si no está, una lectura
+ *   directa del documento del código en lugar de una consulta por 'referral_code'.
+ * - Asignación: se generan códigos aleatorios de 8 caracteres y se reservan con create(), que falla
+ *   si el código ya existe; en ese caso se reintenta con otro código.
+ * - Reasignación: el dueño no cambia, pero sí su documento cuando se migra del documento UUID al
+ *   documento por teléfono; la entrada se reescribe en el mismo lote de la migración (stage) o, si
+ *   quedó apuntando a un documento que ya no existe, al encontrar al dueño (reassign).
+ *
+ * Los códigos anteriores al índice se registran al encontrarse por la consulta heredada
+ * (ver ChatbotService.getUserByReferralCode).
+ */
+@Service
+public class ReferralCodeService {
+
+    static final String COLLECTION = "referral_codes";
+    private static final String USER_DOC_ID_FIELD = "user_doc_id";
+    // Sin 0/O ni 1/I para evitar confusiones al escribir el código a mano
+    private static final String ALPHABET = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
+    static final int CODE_LENGTH = 8;
+
+    private final Firestore firestore;
+    private final int maxAttempts;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, String> ownerByCode;
+
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong cacheHits = new AtomicLong(0);
+    private final AtomicLong indexHits = new AtomicLong(0);
+    private final AtomicLong indexMisses = new AtomicLong(0);
+    private final AtomicLong registrations = new AtomicLong(0);
+    private final AtomicLong reassignments = new AtomicLong(0);
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong collisionRetries = new AtomicLong(0);
+    private final AtomicLong allocationFailures = new AtomicLong(0);
+    private final AtomicLong allocationNanos = new AtomicLong(0);
+
+    public ReferralCodeService(Firestore firestore,
+                               @Value("${referral-codes.cache-size:50000}") int cacheSize,
+                               @Value("${referral-codes.max-allocation-attempts:5}") int maxAttempts) {
+        this.firestore = firestore;
+        this.maxAttempts = maxAttempts;
+        this.ownerByCode = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * ID del documento del usuario dueño del código, si el código está en el índice
+     */
+    public Optional<String> findOwnerDocumentId(String code) {
+        if (code == null || code.isEmpty() || code.contains("/")) {
+            return Optional.empty();
+        }
+        lookups.incrementAndGet();
+        synchronized (ownerByCode) {
+            String cached = ownerByCode.get(code);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return Optional.of(cached);
+            }
+        }
+        try {
+            DocumentSnapshot document = firestore.collection(COLLECTION).document(code).get().get();
+            String ownerDocumentId = document.exists() ? document.getString(USER_DOC_ID_FIELD) : null;
+            if (ownerDocumentId == null) {
+                indexMisses.incrementAndGet();
+                return Optional.empty();
+            }
+            indexHits.incrementAndGet();
+            remember(code, ownerDocumentId);
+            return Optional.of(ownerDocumentId);
+        } catch (Exception e) {
+            System.err.println("ReferralCodeService: Error buscando código de referido " + code + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Genera y reserva un código nuevo para el usuario del documento indicado.
+     * Si Firestore no responde se devuelve un código sin reservar para no bloquear el registro.
+     */
+    public String allocate(String ownerDocumentId) {
+        long start = System.nanoTime();
+        try {
+            for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                String code = randomCode();
+                try {
+                    reserve(code, ownerDocumentId);
+                    allocations.incrementAndGet();
+                    return code;
+                } catch (ExecutionException e) {
+                    if (!isAlreadyExists(e)) {
+                        throw e;
+                    }
+                    collisionRetries.incrementAndGet();
+                    System.out.println("ReferralCodeService: Colisión del código " + code + ", reintentando (" + attempt + "/" + maxAttempts + ")");
+                }
+            }
+            throw new IllegalStateException("No se encontró un código libre en " + maxAttempts + " intentos");
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            allocationFailures.incrementAndGet();
+            System.err.println("ReferralCodeService: Error reservando código para " + ownerDocumentId
+                    + ", se usa un código sin reservar: " + e.getMessage());
+            return randomCode();
+        } finally {
+            allocationNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Registra un código existente (fijo o anterior al índice). No hace nada si ya está registrado.
+     */
+    public void register(String code, String ownerDocumentId) {
+        if (code == null || code.isEmpty() || code.contains("/") || ownerDocumentId == null) {
+            return;
+        }
+        try {
+            reserve(code, ownerDocumentId);
+            registrations.incrementAndGet();
+        } catch (ExecutionException e) {
+            if (!isAlreadyExists(e)) {
+                System.err.println("ReferralCodeService: Error registrando código " + code + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Añade al lote la reasignación del código al documento indicado. Tras el commit del lote hay que
+     * llamar a moved() para actualizar la caché. Devuelve false si el código no es válido.
+     */
+    public boolean stage(WriteBatch batch, String code, String ownerDocumentId) {
+        if (!isIndexable(code) || ownerDocumentId == null) {
+            return false;
+        }
+        batch.set(firestore.collection(COLLECTION).document(code), ownerData(ownerDocumentId), SetOptions.merge());
+        return true;
+    }
+
+    /**
+     * El lote con la reasignación (ver stage) se aplicó
+     */
+    public void moved(String code, String ownerDocumentId) {
+        reassignments.incrementAndGet();
+        remember(code, ownerDocumentId);
+    }
+
+    /**
+     * Reescribe el dueño de un código cuya entrada apunta a un documento que ya no existe o que no
+     * tiene el código (p. ej. un usuario migrado antes de que la migración reescribiera el índice).
+     */
+    public void reassign(String code, String ownerDocumentId) {
+        if (!isIndexable(code) || ownerDocumentId == null) {
+            return;
+        }
+        try {
+            firestore.collection(COLLECTION).document(code).set(ownerData(ownerDocumentId), SetOptions.merge()).get();
+            System.out.println("ReferralCodeService: Código " + code + " reasignado al documento " + ownerDocumentId);
+            moved(code, ownerDocumentId);
+        } catch (ExecutionException e) {
+            System.err.println("ReferralCodeService: Error reasignando código " + code + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        long allocated = allocations.get();
+        long allocationAttempts = allocated + allocationFailures.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("lookups", lookups.get());
+        metrics.put("cacheHits", cacheHits.get());
+        metrics.put("indexHits", indexHits.get());
+        metrics.put("indexMisses", indexMisses.get());
+        synchronized (ownerByCode) {
+            metrics.put("cachedCodes", ownerByCode.size());
+        }
+        metrics.put("registrations", registrations.get());
+        metrics.put("reassignments", reassignments.get());
+        metrics.put("allocations", allocated);
+        metrics.put("collisionRetries", collisionRetries.get());
+        metrics.put("allocationFailures", allocationFailures.get());
+        metrics.put("avgAllocationMs", allocationAttempts > 0 ? allocationNanos.get() / 1_000_000.0 / allocationAttempts : 0.0);
+        return metrics;
+    }
+
+    String randomCode() {
+        return randomCode(random);
+    }
+
+    /**
+     * Código aleatorio con el formato de los códigos de referido (también lo usa InMemoryUserRepository)
+     */
+    public static String randomCode(Random random) {
+        char[] code = new char[CODE_LENGTH];
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            code[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(code);
+    }
+
+    private void reserve(String code, String ownerDocumentId) throws ExecutionException, InterruptedException {
+        Map<String, Object> data = new HashMap<>();
+        data.put(USER_DOC_ID_FIELD, ownerDocumentId);
+        data.put("created_at", Timestamp.now());
+        firestore.collection(COLLECTION).document(code).create(data).get();
+        remember(code, ownerDocumentId);
+    }
+
+    private static Map<String, Object> ownerData(String ownerDocumentId) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(USER_DOC_ID_FIELD, ownerDocumentId);
+        data.put("updated_at", Timestamp.now());
+        return data;
+    }
+
+    private static boolean isIndexable(String code) {
+        return code != null && !code.isEmpty() && !code.contains("/");
+    }
+
+    // create() rechazado porque el documento ya existe (el error llega envuelto según la versión del cliente)
+    static boolean isAlreadyExists(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException apiException
+                    && apiException.getStatusCode().getCode() == StatusCode.Code.ALREADY_EXISTS) {
+                return true;
+            }
+            if (cause instanceof FirestoreException firestoreException && firestoreException.getStatus() != null
+                    && firestoreException.getStatus().getCode() == Status.Code.ALREADY_EXISTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remember(String code, String ownerDocumentId) {
+        synchronized (ownerByCode) {
+            ownerByCode.put(code, ownerDocumentId);
+        }
+    }
+}
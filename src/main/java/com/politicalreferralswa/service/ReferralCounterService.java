@@ -0,0 +1,229 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.AggregateQuery;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Contadores de referidos por código: 'referral_counters/{code}' y sus fragmentos
+ * 'referral_counters/{code}/shards/{n}' con el campo 'count'.
+ *
+ * - Cuando un usuario toma o deja un 'referred_by_code' se suma o resta 1 con FieldValue.increment
+ *   en un fragmento al azar, dentro del mismo WriteBatch que escribe el documento del usuario (ver
+ *   stage): el contador sólo cambia si la escritura se aplica, y una reconciliación, que lee los
+ *   fragmentos en su transacción, no puede quedar entre el documento y el incremento. Los códigos de
+ *   'referral-counters.hot-codes' (p. ej. TESTCODE) usan 'referral-counters.hot-shards' fragmentos
+ *   para repartir las escrituras concurrentes.
+ * - La lectura suma los fragmentos con un solo getAll en lugar de descargar todos los referidos.
+ * - Un contador sin inicializar (códigos anteriores a los contadores) o sin reconciliar en
+ *   'referral-counters.reconcile-interval-minutes' se recalcula con una agregación count() sobre
+ *   'users'; si los fragmentos no se pueden leer, la agregación es también la respuesta.
+ */
+@Service
+public class ReferralCounterService {
+
+    static final String COLLECTION = "referral_counters";
+    private static final String SHARDS_COLLECTION = "shards";
+    private static final String COUNT_FIELD = "count";
+
+    private final Firestore firestore;
+    private final Set<String> hotCodes;
+    private final int hotShards;
+    private final long reconcileIntervalMillis;
+    private final Set<String> reconciling = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong increments = new AtomicLong(0);
+    private final AtomicLong decrements = new AtomicLong(0);
+    private final AtomicLong counterReads = new AtomicLong(0);
+    private final AtomicLong aggregationFallbacks = new AtomicLong(0);
+    private final AtomicLong reconciliations = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    public ReferralCounterService(Firestore firestore,
+                                  @Value("${referral-counters.hot-codes:TESTCODE}") String hotCodes,
+                                  @Value("${referral-counters.hot-shards:10}") int hotShards,
+                                  @Value("${referral-counters.reconcile-interval-minutes:1440}") long reconcileIntervalMinutes) {
+        this.firestore = firestore;
+        this.hotCodes = Arrays.stream(hotCodes.split(","))
+                .map(String::trim)
+                .filter(code -> !code.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        this.hotShards = Math.max(1, hotShards);
+        this.reconcileIntervalMillis = reconcileIntervalMinutes * 60_000L;
+    }
+
+    /**
+     * Añade al lote el cambio de 'referred_by_code' de un usuario: resta 1 al código anterior y suma 1
+     * al nuevo. Si el commit del lote falla no se aplica ninguno de los dos.
+     */
+    public void stage(WriteBatch batch, String previousCode, String newCode) {
+        if (Objects.equals(previousCode, newCode)) {
+            return;
+        }
+        adjust(batch, previousCode, -1);
+        adjust(batch, newCode, 1);
+    }
+
+    /**
+     * Total de usuarios con 'referred_by_code' igual al código
+     */
+    public int count(String code) {
+        if (!isValidCode(code)) {
+            return 0;
+        }
+        counterReads.incrementAndGet();
+        try {
+            List<DocumentReference> refs = new ArrayList<>();
+            refs.add(counterRef(code));
+            refs.addAll(shardRefs(code));
+            List<DocumentSnapshot> snapshots = firestore.getAll(refs.toArray(new DocumentReference[0])).get();
+
+            DocumentSnapshot counter = snapshots.get(0);
+            Timestamp reconciledAt = counter.exists() ? counter.getTimestamp("reconciled_at") : null;
+            if (reconciledAt == null) {
+                return (int) reconcile(code);
+            }
+            if (System.currentTimeMillis() - reconciledAt.toDate().getTime() > reconcileIntervalMillis) {
+                reconcileInBackground(code);
+            }
+            return (int) Math.max(0, sumShards(snapshots.subList(1, snapshots.size())));
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.println("ReferralCounterService: Error leyendo contador de " + code + ", usando agregación count(): " + e.getMessage());
+            return (int) aggregateCount(code);
+        }
+    }
+
+    /**
+     * Recalcula el contador con una agregación count() y deja el total en el fragmento 0.
+     * La transacción lee los fragmentos para reintentar si entra un incremento mientras tanto.
+     */
+    public long reconcile(String code) {
+        try {
+            long total = firestore.runTransaction(transaction -> {
+                List<DocumentReference> shards = shardRefs(code);
+                transaction.getAll(shards.toArray(new DocumentReference[0])).get();
+                long count = transaction.get(referralsQuery(code)).get().getCount();
+
+                Map<String, Object> counter = new HashMap<>();
+                counter.put("reconciled_at", Timestamp.now());
+                counter.put("shards", shards.size());
+                transaction.set(counterRef(code), counter);
+                for (int i = 0; i < shards.size(); i++) {
+                    transaction.set(shards.get(i), Map.of(COUNT_FIELD, i == 0 ? count : 0L));
+                }
+                return count;
+            }).get();
+            reconciliations.incrementAndGet();
+            System.out.println("ReferralCounterService: Contador de " + code + " reconciliado: " + total);
+            return total;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.println("ReferralCounterService: Error reconciliando contador de " + code + ": " + e.getMessage());
+            return aggregateCount(code);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("hotCodes", hotCodes);
+        metrics.put("hotShards", hotShards);
+        metrics.put("increments", increments.get());
+        metrics.put("decrements", decrements.get());
+        metrics.put("counterReads", counterReads.get());
+        metrics.put("aggregationFallbacks", aggregationFallbacks.get());
+        metrics.put("reconciliations", reconciliations.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    int shardCount(String code) {
+        return hotCodes.contains(code) ? hotShards : 1;
+    }
+
+    static long sumShards(List<DocumentSnapshot> shards) {
+        long total = 0;
+        for (DocumentSnapshot shard : shards) {
+            Long count = shard.exists() ? shard.getLong(COUNT_FIELD) : null;
+            if (count != null) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private void adjust(WriteBatch batch, String code, long delta) {
+        if (!isValidCode(code)) {
+            return;
+        }
+        (delta > 0 ? increments : decrements).incrementAndGet();
+        int shard = ThreadLocalRandom.current().nextInt(shardCount(code));
+        batch.set(counterRef(code).collection(SHARDS_COLLECTION).document(String.valueOf(shard)),
+                Map.of(COUNT_FIELD, FieldValue.increment(delta)), SetOptions.merge());
+    }
+
+    private void reconcileInBackground(String code) {
+        if (!reconciling.add(code)) {
+            return;
+        }
+        Thread.ofVirtual().name("referral-counter-reconcile").start(() -> {
+            try {
+                reconcile(code);
+            } finally {
+                reconciling.remove(code);
+            }
+        });
+    }
+
+    private long aggregateCount(String code) {
+        aggregationFallbacks.incrementAndGet();
+        try {
+            return referralsQuery(code).get().get().getCount();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.println("ERROR: Error al contar referidos para código " + code + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private AggregateQuery referralsQuery(String code) {
+        return firestore.collection("users").whereEqualTo("referred_by_code", code).count();
+    }
+
+    private DocumentReference counterRef(String code) {
+        return firestore.collection(COLLECTION).document(code);
+    }
+
+    private List<DocumentReference> shardRefs(String code) {
+        int shards = shardCount(code);
+        List<DocumentReference> refs = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            refs.add(counterRef(code).collection(SHARDS_COLLECTION).document(String.valueOf(i)));
+        }
+        return refs;
+    }
+
+    private static boolean isValidCode(String code) {
+        return code != null && !code.isEmpty() && !code.contains("/") && !code.equals(".") && !code.equals("..");
+    }
+}
@@ -0,0 +1,255 @@
+package com.politicalreferralswa.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Grafo de referidos en memoria: para cada referente, un arreglo compacto con los IDs enteros (ver
+ * CompactUserIndex) de los usuarios que invitó y un contador de los que ya completaron el registro.
+ * Se mantiene al día con los cambios del índice de usuarios (ver UserIndexService): un registro con
+ * referente agrega la arista y un reinicio (que limpia 'referred_by_code' y 'referred_by_phone') o
+ * una baja la quita.
+ *
+ * Cada referido cuelga del código de referido de quien lo invitó ('referred_by_code') o, si no lo
+ * tiene, de su teléfono ('referred_by_phone'). Así los referidos se encuentran aunque el referente
+ * todavía no esté en el índice o cambie de documento.
+ */
+@Service
+public class ReferralGraph implements UserIndexService.Listener {
+
+    // Referido que completó el flujo de registro (voluntario activo)
+    private static final String COMPLETED = "COMPLETED";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Referidos de un usuario
+     *
+     * @param referralsThisMonth referidos creados hace 30 días completos o menos
+     */
+    public record Stats(int totalInvited, int activeVolunteers, int referralsThisMonth) {
+    }
+
+    private final CompactUserIndex index;
+    private final UserIndexService userIndexService;
+
+    // Grupo de referidos por clave del referente: código de referido o teléfono
+    private final CompactUserIndex.LongIntHashMap groupByCode = new CompactUserIndex.LongIntHashMap(1024);
+    private final CompactUserIndex.LongIntHashMap groupByPhone = new CompactUserIndex.LongIntHashMap(1024);
+    private int[][] members = new int[64][];
+    private int[] memberCounts = new int[64];
+    private int[] activeCounts = new int[64];
+    private int groups = 0;
+
+    // Por referido: grupo, posición dentro del grupo y si cuenta como activo
+    private int[] groupById;
+    private int[] positionById;
+    private boolean[] activeById;
+    private long edges = 0;
+
+    @Autowired
+    public ReferralGraph(UserIndexService userIndexService) {
+        this(userIndexService.index(), userIndexService);
+    }
+
+    /**
+     * Grafo sobre un CompactUserIndex que se actualiza a mano: quien lo modifica llama a onUpsert y onRemove
+     */
+    public ReferralGraph(CompactUserIndex index) {
+        this(index, null);
+    }
+
+    private ReferralGraph(CompactUserIndex index, UserIndexService userIndexService) {
+        this.index = index;
+        this.userIndexService = userIndexService;
+        int expected = Math.max(16, index.idLimit());
+        groupById = new int[expected];
+        Arrays.fill(groupById, -1);
+        positionById = new int[expected];
+        activeById = new boolean[expected];
+    }
+
+    /**
+     * Se registra como Listener de UserIndexService (si lo hay) y carga los usuarios que ya están en el
+     * índice. Spring lo llama al crear el bean; quien lo construye a mano sobre un CompactUserIndex
+     * lo llama antes de usarlo.
+     */
+    @PostConstruct
+    public void init() {
+        // Se registra antes de recorrer el índice para no perder cambios entre ambos pasos
+        if (userIndexService != null) {
+            userIndexService.addListener(this);
+        }
+        int[] ids = new int[index.idLimit()];
+        int[] count = {0};
+        index.forEach(id -> {
+            if (count[0] < ids.length) {
+                ids[count[0]++] = id;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            onUpsert(ids[i]);
+        }
+    }
+
+    /**
+     * true cuando el índice de usuarios ya terminó su carga inicial
+     */
+    public boolean isReady() {
+        return userIndexService == null || userIndexService.isReady();
+    }
+
+    /**
+     * Referidos del usuario, o null si no está en el índice. O(referidos).
+     */
+    public synchronized Stats statsOf(String documentId, long nowMillis) {
+        int id = index.idOf(documentId);
+        if (id < 0) {
+            return null;
+        }
+        int byCode = groupOf(groupByCode, index.referralCodeKey(id));
+        int byPhone = groupOf(groupByPhone, index.phoneKey(id));
+        // Los referidos de este mes son los creados después de este instante (en segundos)
+        long since = Math.floorDiv(nowMillis - 31 * DAY_MILLIS, 1000);
+        int total = 0;
+        int active = 0;
+        int recent = 0;
+        for (int group : new int[]{byCode, byPhone}) {
+            if (group < 0) {
+                continue;
+            }
+            total += memberCounts[group];
+            active += activeCounts[group];
+            for (int i = 0; i < memberCounts[group]; i++) {
+                long createdAt = index.createdAtSeconds(members[group][i]);
+                if (createdAt != CompactUserIndex.NO_TIMESTAMP && createdAt > since) {
+                    recent++;
+                }
+            }
+        }
+        return new Stats(total, active, recent);
+    }
+
+    @Override
+    public synchronized void onUpsert(int id) {
+        ensureCapacity(id);
+        if (!index.contains(id)) {
+            removeEdge(id);
+            return;
+        }
+        int group = -1;
+        long referredByCode = index.referredByCodeKey(id);
+        long referredByPhone = index.referredByPhoneKey(id);
+        // Quien se refiere a sí mismo no cuenta como su propio referido
+        if (referredByCode != 0) {
+            if (referredByCode != index.referralCodeKey(id)) {
+                group = groupFor(groupByCode, referredByCode);
+            }
+        } else if (referredByPhone != 0 && referredByPhone != index.phoneKey(id)) {
+            group = groupFor(groupByPhone, referredByPhone);
+        }
+        boolean active = COMPLETED.equals(index.chatbotState(id));
+        if (group == groupById[id]) {
+            if (group >= 0 && active != activeById[id]) {
+                activeCounts[group] += active ? 1 : -1;
+                activeById[id] = active;
+            }
+            return;
+        }
+        removeEdge(id);
+        if (group >= 0) {
+            addEdge(group, id, active);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(int id) {
+        if (id < groupById.length) {
+            removeEdge(id);
+        }
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", isReady());
+        metrics.put("referrers", groups);
+        metrics.put("edges", edges);
+        int largest = 0;
+        long bytes = (long) groupById.length * (2 * Integer.BYTES + 1) + groupByCode.bytes() + groupByPhone.bytes();
+        for (int group = 0; group < groups; group++) {
+            largest = Math.max(largest, memberCounts[group]);
+            bytes += (long) members[group].length * Integer.BYTES + 2 * Integer.BYTES;
+        }
+        metrics.put("largestReferrer", largest);
+        metrics.put("estimatedBytes", bytes);
+        return metrics;
+    }
+
+    private static int groupOf(CompactUserIndex.LongIntHashMap groupsByKey, long key) {
+        return key == 0 ? -1 : groupsByKey.get(key);
+    }
+
+    // Los grupos vacíos se conservan: el mismo referente suele volver a recibir referidos
+    private int groupFor(CompactUserIndex.LongIntHashMap groupsByKey, long key) {
+        int group = groupsByKey.get(key);
+        if (group < 0) {
+            if (groups == members.length) {
+                int capacity = groups * 2;
+                members = Arrays.copyOf(members, capacity);
+                memberCounts = Arrays.copyOf(memberCounts, capacity);
+                activeCounts = Arrays.copyOf(activeCounts, capacity);
+            }
+            group = groups++;
+            members[group] = new int[2];
+            groupsByKey.put(key, group);
+        }
+        return group;
+    }
+
+    private void addEdge(int group, int id, boolean active) {
+        if (memberCounts[group] == members[group].length) {
+            members[group] = Arrays.copyOf(members[group], members[group].length * 2);
+        }
+        positionById[id] = memberCounts[group];
+        members[group][memberCounts[group]++] = id;
+        groupById[id] = group;
+        activeById[id] = active;
+        if (active) {
+            activeCounts[group]++;
+        }
+        edges++;
+    }
+
+    // Quita la arista en O(1): el último del grupo ocupa su lugar
+    private void removeEdge(int id) {
+        int group = groupById[id];
+        if (group < 0) {
+            return;
+        }
+        int position = positionById[id];
+        int last = members[group][--memberCounts[group]];
+        members[group][position] = last;
+        positionById[last] = position;
+        if (activeById[id]) {
+            activeCounts[group]--;
+        }
+        groupById[id] = -1;
+        activeById[id] = false;
+        edges--;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= groupById.length) {
+            int capacity = Math.max(id + 1, groupById.length + (groupById.length >> 1));
+            int previous = groupById.length;
+            groupById = Arrays.copyOf(groupById, capacity);
+            Arrays.fill(groupById, previous, capacity, -1);
+            positionById = Arrays.copyOf(positionById, capacity);
+            activeById = Arrays.copyOf(activeById, capacity);
+        }
+    }
+}
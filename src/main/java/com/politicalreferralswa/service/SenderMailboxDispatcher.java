@@ -0,0 +1,122 @@
+package com.politicalreferralswa.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Buzón por remitente: garantiza que los mensajes de un mismo remitente se procesen
+ * estrictamente en orden de llegada, mientras que remitentes distintos se procesan en paralelo.
+ *
+ * No hay un lock global: cada buzón vive en un ConcurrentHashMap y sólo se modifica dentro de
+ * compute/computeIfPresent, que bloquea únicamente el bucket de esa clave. Cada buzón activo
+ * tiene como máximo un drenador en el ejecutor; cuando su cola queda vacía el buzón se elimina
+ * del mapa, así que los remitentes inactivos no ocupan memoria.
+ *
+ * @param <T> Tipo de elemento encolado
+ */
+public class SenderMailboxDispatcher<T> {
+
+    private final ConcurrentHashMap<String, Mailbox<T>> mailboxes = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private final Consumer<T> handler;
+
+    public SenderMailboxDispatcher(Executor executor, Consumer<T> handler) {
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Encola un elemento en el buzón del remitente y arranca su drenador si no está activo.
+     *
+     * @throws RejectedExecutionException si el ejecutor ya no acepta tareas (apagado)
+     */
+    public void dispatch(String senderKey, T item) {
+        boolean[] startDrainer = new boolean[1];
+        mailboxes.compute(senderKey, (key, mailbox) -> {
+            if (mailbox == null) {
+                mailbox = new Mailbox<>();
+            }
+            mailbox.queue.add(item);
+            if (!mailbox.draining) {
+                mailbox.draining = true;
+                startDrainer[0] = true;
+            }
+            return mailbox;
+        });
+
+        if (startDrainer[0]) {
+            try {
+                executor.execute(() -> drain(senderKey));
+            } catch (RejectedExecutionException e) {
+                mailboxes.remove(senderKey);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Saca del buzón, desde el propio handler, los siguientes elementos pendientes mientras cumplan
+     * la condición (hasta 'max'), para procesarlos junto con el actual. El buzón no se elimina aunque
+     * quede vacío: el drenador en curso lo hará en su siguiente poll.
+     */
+    public List<T> pollWhile(String senderKey, Predicate<T> condition, int max) {
+        List<T> items = new ArrayList<>();
+        mailboxes.computeIfPresent(senderKey, (key, mailbox) -> {
+            while (items.size() < max && !mailbox.queue.isEmpty() && condition.test(mailbox.queue.peek())) {
+                items.add(mailbox.queue.poll());
+            }
+            return mailbox;
+        });
+        return items;
+    }
+
+    /**
+     * Número de remitentes con mensajes pendientes o en proceso
+     */
+    public int activeMailboxes() {
+        return mailboxes.size();
+    }
+
+    private void drain(String senderKey) {
+        T next;
+        while ((next = poll(senderKey)) != null) {
+            try {
+                handler.accept(next);
+            } catch (Throwable t) {
+                // Un error no debe detener el procesamiento del resto de mensajes del remitente
+                System.err.println("SenderMailboxDispatcher: ERROR no controlado procesando mensaje de " + senderKey + ": " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Saca el siguiente elemento del buzón. Si está vacío, el buzón se elimina del mapa de forma
+     * atómica, de manera que un dispatch concurrente creará uno nuevo con su propio drenador.
+     */
+    private T poll(String senderKey) {
+        Object[] holder = new Object[1];
+        mailboxes.computeIfPresent(senderKey, (key, mailbox) -> {
+            T item = mailbox.queue.poll();
+            if (item == null) {
+                return null;
+            }
+            holder[0] = item;
+            return mailbox;
+        });
+        @SuppressWarnings("unchecked")
+        T item = (T) holder[0];
+        return item;
+    }
+
+    // Sólo se accede a sus campos dentro de compute sobre la misma clave
+    private static final class Mailbox<T> {
+        final ArrayDeque<T> queue = new ArrayDeque<>();
+        boolean draining;
+    }
+}
@@ -13,15 +13,17 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class SystemConfigService {
     
     private final FirestoreConfigService firestoreConfigService;
+    private final ChangeFeedService changeFeedService;
     private final AtomicBoolean aiEnabled = new AtomicBoolean(true);
     
     // Clave para la configuración de IA en Firestore - AMBIENTE ESPECÍFICO
     private final String AI_ENABLED_KEY;
     
     @Autowired
-    public SystemConfigService(FirestoreConfigService firestoreConfigService,
+    public SystemConfigService(FirestoreConfigService firestoreConfigService, ChangeFeedService changeFeedService,
                               @Value("${spring.profiles.active:dev}") String activeProfile) {
         this.firestoreConfigService = firestoreConfigService;
+        this.changeFeedService = changeFeedService;
         
         // Crear clave específica para cada ambiente para evitar sincronización entre dev/prod
         if ("prod".equals(activeProfile)) {
@@ -33,6 +35,9 @@ public class SystemConfigService {
         }
         
         System.out.println("SystemConfigService: Configurado para ambiente '" + activeProfile + "' con clave: " + AI_ENABLED_KEY);
+        
+        // Cambios hechos desde otra instancia o directamente en Firestore
+        changeFeedService.subscribe("system-config", this::onConfigurationChange, ChangeFeedService.SYSTEM_CONFIGURATION);
     }
     
     /**
@@ -71,10 +76,14 @@ public class SystemConfigService {
     
     /**
      * Verifica si la IA está habilitada globalmente en el sistema
-     * LEE DIRECTAMENTE DESDE LA BD para asegurar estado actualizado
+     * Con el listener de 'system_configuration' activo usa el estado en memoria, que el listener
+     * mantiene al día; si no, LEE DIRECTAMENTE DESDE LA BD para asegurar estado actualizado
      * @return true si la IA está habilitada, false si está deshabilitada
      */
     public boolean isAIEnabled() {
+        if (changeFeedService.isLive(ChangeFeedService.SYSTEM_CONFIGURATION)) {
+            return aiEnabled.get();
+        }
         try {
             // Leer directamente desde la BD para estado en tiempo real
             Optional<String> aiState = firestoreConfigService.findValueByConfigKey(AI_ENABLED_KEY);
@@ -185,6 +194,22 @@ public class SystemConfigService {
         }
     }
     
+    /**
+     * Aplica los cambios de la clave de IA de este ambiente recibidos por ChangeFeedService
+     */
+    private void onConfigurationChange(ChangeEvent event) {
+        if (!AI_ENABLED_KEY.equals(event.documentId())) {
+            return;
+        }
+        // Sin documento se usa el valor por defecto (HABILITADA), igual que al leer desde la BD
+        boolean enabled = event.type() == ChangeEvent.Type.DELETED
+                || Boolean.parseBoolean(String.valueOf(event.data().get("configValue")));
+        boolean wasChanged = aiEnabled.getAndSet(enabled) != enabled;
+        if (wasChanged) {
+            System.out.println("SystemConfigService: Estado de IA actualizado por cambio en Firestore (" + AI_ENABLED_KEY + "): " + (enabled ? "HABILITADA" : "DESHABILITADA"));
+        }
+    }
+    
     /**
      * Persiste el estado de la IA en Firestore
      * @param enabled el estado a persistir
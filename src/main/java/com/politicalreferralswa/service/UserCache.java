@@ -0,0 +1,221 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché en memoria de usuarios delante de las búsquedas de ChatbotService.findUserByAnyIdentifier.
+ *
+ * Cada entrada se guarda por ID de documento y se indexa además por teléfono ('phone') y por
+ * 'telegram_chat_id'. Se llena al leer de Firestore, se actualiza al guardar (write-through desde
+ * ChatbotService.saveUser) y se invalida explícitamente cuando otro componente modifica el
+ * documento (UserResetController). Está acotada por tamaño (LRU) y por TTL.
+ *
+ * Con el listener de 'users' de ChangeFeedService activo, las entradas presentes se actualizan o
+ * eliminan también cuando el documento cambia desde otra instancia.
+ *
+ * Se guardan y se devuelven copias, para que un User modificado por el llamador no altere la caché
+ * antes de guardarse. Con varias instancias sin afinidad de sesión el TTL es lo que acota cuánto
+ * puede quedar desactualizada una entrada escrita desde otra instancia; por eso es corto por defecto.
+ */
+@Service
+public class UserCache {
+
+    private final boolean enabled;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    // Acceso siempre bajo el lock del objeto
+    private final LinkedHashMap<String, Entry> byDocumentId = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<String, String> documentIdByPhone = new HashMap<>();
+    private final Map<String, String> documentIdByTelegramChatId = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong sizeEvictions = new AtomicLong(0);
+    private final AtomicLong expiredEvictions = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final AtomicLong remoteUpdates = new AtomicLong(0);
+
+    public UserCache(@Value("${user-cache.enabled:true}") boolean enabled,
+                     @Value("${user-cache.max-size:20000}") int maxSize,
+                     @Value("${user-cache.ttl-seconds:30}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        System.out.println("UserCache: " + (enabled ? "HABILITADA" : "DESHABILITADA")
+                + " (máximo: " + maxSize + " usuarios, TTL: " + ttlSeconds + " s)");
+    }
+
+    /**
+     * Usuario encontrado en la caché junto con el ID del documento del que proviene
+     */
+    public record Hit(String documentId, User user) {
+    }
+
+    /**
+     * Busca un usuario por teléfono (formato '+57...'), por ID de documento o por chat ID de Telegram,
+     * en ese orden. Cualquiera de los identificadores puede ser null.
+     */
+    public Optional<User> find(String phone, String documentId, String telegramChatId) {
+        return lookup(phone, documentId, telegramChatId).map(Hit::user);
+    }
+
+    /**
+     * Como find, devolviendo también el ID de documento
+     */
+    public Optional<Hit> lookup(String phone, String documentId, String telegramChatId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            String[] candidates = {documentIdByPhone.get(phone), documentId, documentIdByTelegramChatId.get(telegramChatId)};
+            for (String candidate : candidates) {
+                User user = get(candidate);
+                if (user != null) {
+                    hits.incrementAndGet();
+                    return Optional.of(new Hit(candidate, user));
+                }
+            }
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Guarda (o reemplaza) el usuario almacenado en el documento indicado
+     */
+    public void put(String documentId, User user) {
+        if (!enabled || documentId == null || user == null) {
+            return;
+        }
+        User copy = user.toBuilder().build();
+        synchronized (this) {
+            removeEntry(documentId);
+            byDocumentId.put(documentId, new Entry(copy, System.nanoTime() + ttlNanos));
+            if (copy.getPhone() != null && !copy.getPhone().isEmpty()) {
+                documentIdByPhone.put(copy.getPhone(), documentId);
+            }
+            if (copy.getTelegram_chat_id() != null && !copy.getTelegram_chat_id().isEmpty()) {
+                documentIdByTelegramChatId.put(copy.getTelegram_chat_id(), documentId);
+            }
+            while (byDocumentId.size() > maxSize) {
+                removeEntry(byDocumentId.keySet().iterator().next());
+                sizeEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Elimina de la caché el usuario almacenado en el documento indicado
+     */
+    public void invalidate(String documentId) {
+        if (!enabled || documentId == null) {
+            return;
+        }
+        synchronized (this) {
+            if (removeEntry(documentId)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Reemplaza el usuario sólo si ya está en la caché y la versión recibida no es más antigua
+     * ('updated_at') que la guardada, p. ej. el eco de una escritura anterior de esta instancia
+     */
+    public void refresh(String documentId, User user) {
+        if (!enabled || documentId == null || user == null) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = byDocumentId.get(documentId);
+            if (entry == null || isOlder(user, entry.user)) {
+                return;
+            }
+            put(documentId, user);
+            remoteUpdates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Mantiene la caché al día con los cambios de 'users' hechos desde otras instancias
+     */
+    @Autowired
+    public void listenTo(ChangeFeedService changeFeedService) {
+        changeFeedService.subscribe("user-cache", event -> {
+            if (event.initial()) {
+                return;
+            }
+            if (event.type() == ChangeEvent.Type.DELETED) {
+                invalidate(event.documentId());
+            } else {
+                refresh(event.documentId(), event.as(User.class));
+            }
+        }, ChangeFeedService.USERS);
+    }
+
+    public Map<String, Object> getMetrics() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        synchronized (this) {
+            metrics.put("size", byDocumentId.size());
+        }
+        metrics.put("maxSize", maxSize);
+        metrics.put("ttlSeconds", ttlNanos / 1_000_000_000L);
+        metrics.put("hits", hitCount);
+        metrics.put("misses", misses.get());
+        metrics.put("hitRate", lookups > 0 ? (double) hitCount / lookups : 0.0);
+        metrics.put("sizeEvictions", sizeEvictions.get());
+        metrics.put("expiredEvictions", expiredEvictions.get());
+        metrics.put("invalidations", invalidations.get());
+        metrics.put("remoteUpdates", remoteUpdates.get());
+        return metrics;
+    }
+
+    // Se llama con el lock tomado
+    private User get(String documentId) {
+        if (documentId == null) {
+            return null;
+        }
+        Entry entry = byDocumentId.get(documentId);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAtNanos > 0) {
+            removeEntry(documentId);
+            expiredEvictions.incrementAndGet();
+            return null;
+        }
+        return entry.user.toBuilder().build();
+    }
+
+    // Se llama con el lock tomado
+    private boolean removeEntry(String documentId) {
+        Entry removed = byDocumentId.remove(documentId);
+        if (removed == null) {
+            return false;
+        }
+        documentIdByPhone.remove(removed.user.getPhone(), documentId);
+        documentIdByTelegramChatId.remove(removed.user.getTelegram_chat_id(), documentId);
+        return true;
+    }
+
+    private static boolean isOlder(User received, User cached) {
+        return received.getUpdated_at() != null && cached.getUpdated_at() != null
+                && received.getUpdated_at().compareTo(cached.getUpdated_at()) < 0;
+    }
+
+    private record Entry(User user, long expiresAtNanos) {
+    }
+}
@@ -0,0 +1,278 @@
+package com.politicalreferralswa.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.politicalreferralswa.model.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Migración en segundo plano de los documentos de 'users' que siguen guardados bajo un UUID
+ * aunque el usuario ya tiene teléfono (su ID canónico es el teléfono sin '+').
+ *
+ * Recorre la colección con un cursor por ID de documento (páginas de 'user-migration.page-size')
+ * y mueve cada documento con un WriteBatch propio, a 'user-migration.max-ops-per-second' como máximo:
+ * create() del documento por teléfono (falla si ya existe, así nunca pisa datos) y delete() del
+ * documento UUID con precondición sobre el 'updateTime' leído. El batch es atómico: si el documento
+ * UUID cambió después de leerlo no se escribe nada, y nunca quedan los dos documentos con el de
+ * teléfono desactualizado. En ese caso se vuelve a leer y se copia la versión más reciente (hasta
+ * MAX_ATTEMPTS intentos).
+ *
+ * Si ambos documentos ya existen con los mismos datos (una migración anterior a este esquema cortada
+ * entre los dos pasos) sólo se elimina el documento UUID. Si el documento por teléfono existe con
+ * datos distintos se cuenta como conflicto y no se toca.
+ */
+@Service
+public class UserDocumentMigrator {
+
+    private static final String USERS_COLLECTION = "users";
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Firestore firestore;
+    private final IdentityIndexService identityIndexService;
+    private final UserCache userCache;
+    private final int pageSize;
+    private final int maxOpsPerSecond;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong scanned = new AtomicLong(0);
+    private final AtomicLong candidates = new AtomicLong(0);
+    private final AtomicLong migrated = new AtomicLong(0);
+    private final AtomicLong resumed = new AtomicLong(0);
+    private final AtomicLong conflicts = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private volatile String lastDocumentId;
+    private volatile Timestamp startedAt;
+    private volatile Timestamp finishedAt;
+    private volatile String lastError;
+    // Siguiente instante (System.nanoTime) en que se puede enviar otra escritura
+    private long nextWriteNanos;
+
+    public UserDocumentMigrator(Firestore firestore, IdentityIndexService identityIndexService, UserCache userCache,
+                                @Value("${user-migration.page-size:300}") int pageSize,
+                                @Value("${user-migration.max-ops-per-second:100}") int maxOpsPerSecond) {
+        this.firestore = firestore;
+        this.identityIndexService = identityIndexService;
+        this.userCache = userCache;
+        this.pageSize = pageSize;
+        this.maxOpsPerSecond = maxOpsPerSecond;
+    }
+
+    /**
+     * Inicia la migración en un hilo virtual.
+     *
+     * @return false si ya hay una migración en curso
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        scanned.set(0);
+        candidates.set(0);
+        migrated.set(0);
+        resumed.set(0);
+        conflicts.set(0);
+        failures.set(0);
+        lastDocumentId = null;
+        lastError = null;
+        startedAt = Timestamp.now();
+        finishedAt = null;
+        Thread.ofVirtual().name("user-document-migrator").start(this::run);
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("pageSize", pageSize);
+        status.put("maxOpsPerSecond", maxOpsPerSecond);
+        status.put("scanned", scanned.get());
+        status.put("candidates", candidates.get());
+        status.put("migrated", migrated.get());
+        status.put("resumed", resumed.get());
+        status.put("conflicts", conflicts.get());
+        status.put("failures", failures.get());
+        status.put("lastDocumentId", lastDocumentId);
+        status.put("startedAt", startedAt != null ? startedAt.toString() : null);
+        status.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+        status.put("lastError", lastError);
+        return status;
+    }
+
+    /**
+     * true si el documento está guardado bajo un ID distinto del canónico (el teléfono sin '+')
+     */
+    static boolean needsMigration(String documentId, User user) {
+        return user != null && user.getPhone() != null && !user.getPhone().isEmpty()
+                && !documentId.equals(UserWriteCoalescer.documentIdOf(user));
+    }
+
+    private void run() {
+        System.out.println("UserDocumentMigrator: Iniciando migración (página: " + pageSize + ", máx. " + maxOpsPerSecond + " ops/s)");
+        nextWriteNanos = System.nanoTime();
+        try {
+            Query query = firestore.collection(USERS_COLLECTION).orderBy(FieldPath.documentId()).limit(pageSize);
+            QueryDocumentSnapshot cursor = null;
+            while (true) {
+                List<QueryDocumentSnapshot> page = (cursor == null ? query : query.startAfter(cursor)).get().get().getDocuments();
+                if (page.isEmpty()) {
+                    break;
+                }
+                migratePage(page);
+                cursor = page.get(page.size() - 1);
+                lastDocumentId = cursor.getId();
+                if (page.size() < pageSize) {
+                    break;
+                }
+            }
+            System.out.println("UserDocumentMigrator: Migración finalizada: " + getStatus());
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            System.err.println("UserDocumentMigrator: Migración interrumpida en " + lastDocumentId + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            finishedAt = Timestamp.now();
+            running.set(false);
+        }
+    }
+
+    private void migratePage(List<QueryDocumentSnapshot> page) throws ExecutionException, InterruptedException {
+        scanned.addAndGet(page.size());
+        List<QueryDocumentSnapshot> sources = new ArrayList<>();
+        List<DocumentReference> targets = new ArrayList<>();
+        for (QueryDocumentSnapshot document : page) {
+            User user = document.toObject(User.class);
+            if (needsMigration(document.getId(), user)) {
+                sources.add(document);
+                targets.add(firestore.collection(USERS_COLLECTION).document(UserWriteCoalescer.documentIdOf(user)));
+            }
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        candidates.addAndGet(sources.size());
+
+        // Una sola lectura para saber qué documentos destino ya existen
+        List<DocumentSnapshot> existingTargets = firestore.getAll(targets.toArray(new DocumentReference[0])).get();
+        Map<String, DocumentSnapshot> targetsByPath = new LinkedHashMap<>();
+        for (DocumentSnapshot target : existingTargets) {
+            targetsByPath.put(target.getReference().getPath(), target);
+        }
+
+        // Un batch por documento, todos en vuelo a la vez dentro del límite de escrituras por segundo
+        List<Migration> migrations = new ArrayList<>();
+        List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            Migration migration = prepare(sources.get(i), targetsByPath.get(targets.get(i).getPath()), targets.get(i));
+            migrations.add(migration);
+            commits.add(commit(migration));
+        }
+
+        for (int i = 0; i < sources.size(); i++) {
+            Migration migration = migrations.get(i);
+            ApiFuture<List<WriteResult>> commit = commits.get(i);
+            int attempt = 1;
+            while (migration != null && !succeeded(commit, migration.sourceId(), attempt == MAX_ATTEMPTS)) {
+                if (attempt++ == MAX_ATTEMPTS) {
+                    migration = null;
+                    break;
+                }
+                // El documento UUID cambió (o apareció el destino) después de leerlo: leer de nuevo y reintentar
+                List<DocumentSnapshot> latest = firestore.getAll(sources.get(i).getReference(), targets.get(i)).get();
+                migration = prepare(latest.get(0), latest.get(1), targets.get(i));
+                commit = commit(migration);
+            }
+            if (migration == null) {
+                continue;
+            }
+            (migration.resumed() ? resumed : migrated).incrementAndGet();
+            userCache.invalidate(migration.sourceId());
+            identityIndexService.record(targets.get(i).getId(), migration.user());
+        }
+        System.out.println("UserDocumentMigrator: Página hasta " + page.get(page.size() - 1).getId() + " procesada: " + getStatus());
+    }
+
+    /**
+     * Arma el batch que mueve 'source' a 'targetRef', o null si no hay nada que mover (el documento
+     * ya no existe o ya no necesita migración) o si el destino existe con datos distintos (conflicto)
+     */
+    private Migration prepare(DocumentSnapshot source, DocumentSnapshot target, DocumentReference targetRef) {
+        if (!source.exists()) {
+            return null;
+        }
+        User user = source.toObject(User.class);
+        if (!needsMigration(source.getId(), user) || !UserWriteCoalescer.documentIdOf(user).equals(targetRef.getId())) {
+            return null;
+        }
+        boolean resume = target != null && target.exists();
+        if (resume && !source.getData().equals(target.getData())) {
+            conflicts.incrementAndGet();
+            System.err.println("UserDocumentMigrator: Conflicto, " + source.getId() + " y " + targetRef.getId()
+                    + " existen con datos distintos; no se migra");
+            return null;
+        }
+        WriteBatch batch = firestore.batch();
+        if (!resume) {
+            batch.create(targetRef, source.getData());
+        }
+        batch.delete(source.getReference(), Precondition.updatedAt(source.getUpdateTime()));
+        return new Migration(batch, resume ? 1 : 2, source.getId(), user, resume);
+    }
+
+    private ApiFuture<List<WriteResult>> commit(Migration migration) throws InterruptedException {
+        if (migration == null) {
+            return null;
+        }
+        pace(migration.writes());
+        return migration.batch().commit();
+    }
+
+    // Espera lo necesario para no superar maxOpsPerSecond escrituras por segundo
+    private void pace(int writes) throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextWriteNanos > now) {
+            TimeUnit.NANOSECONDS.sleep(nextWriteNanos - now);
+        }
+        nextWriteNanos = Math.max(now, nextWriteNanos) + writes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, maxOpsPerSecond);
+    }
+
+    private boolean succeeded(ApiFuture<List<WriteResult>> commit, String documentId, boolean lastAttempt) {
+        try {
+            commit.get();
+            return true;
+        } catch (Exception e) {
+            if (lastAttempt) {
+                failures.incrementAndGet();
+                lastError = e.getMessage();
+                System.err.println("UserDocumentMigrator: Error migrando documento " + documentId + ": " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    // Batch que mueve un documento y lo que hace falta para contabilizarlo
+    private record Migration(WriteBatch batch, int writes, String sourceId, User user, boolean resumed) {
+    }
+}
@@ -0,0 +1,251 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mantiene en memoria el índice compacto de todos los usuarios (ver CompactUserIndex), base de las
+ * consultas de analytics que necesitan recorrer la colección completa.
+ *
+ * - Con el listener de 'users' de ChangeFeedService activo, el índice se llena con el primer snapshot
+ *   del listener (un evento 'initial' por documento) y queda listo cuando termina de recibirlo; los
+ *   cambios siguientes llegan al momento, incluidos los eliminados, en el mismo orden. Así la
+ *   colección se lee una sola vez al arrancar y ningún recorrido más viejo pisa un cambio más nuevo.
+ * - Sin listener, se llena desde el snapshot local de UserSnapshotService, si está habilitado, o con
+ *   un recorrido de 'users' que procesa los documentos a medida que llegan, sin retener la lista
+ *   completa; y cada 'user-index.catch-up-seconds' se piden los usuarios con 'updated_at' posterior
+ *   al último visto. Por esa vía no se ven los eliminados. La misma consulta cubre los cortes del
+ *   listener mientras se reconecta.
+ * - Las estructuras derivadas (p. ej. UserLeaderboard) se registran como Listener y reciben cada
+ *   alta, cambio o baja con el ID entero del usuario, en el mismo orden en que se aplican al índice.
+ */
+@Service
+public class UserIndexService {
+
+    /**
+     * Recibe los cambios del índice. Se llama con el índice ya actualizado y nunca en paralelo.
+     */
+    public interface Listener {
+        void onUpsert(int id);
+
+        void onRemove(int id);
+    }
+
+    private final UserRepository userRepository;
+    private final ChangeFeedService changeFeedService;
+    private final UserSnapshotService userSnapshotService;
+    private final boolean enabled;
+    private final CompactUserIndex index;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object writeLock = new Object();
+
+    private volatile boolean ready = false;
+    private volatile long watermarkMillis = Long.MIN_VALUE;
+    private final long createdAtNanos = System.nanoTime();
+
+    // Métricas
+    private volatile String source = "none";
+    private volatile long loadMillis = -1;
+    private final AtomicLong feedUpdates = new AtomicLong(0);
+    private final AtomicLong catchUpRows = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    /**
+     * @param userSnapshotService snapshot local desde el que se carga el índice, o null para cargarlo
+     *                            siempre con un recorrido de 'users'
+     */
+    public UserIndexService(UserRepository userRepository, ChangeFeedService changeFeedService,
+                            UserSnapshotService userSnapshotService,
+                            @Value("${user-index.enabled:true}") boolean enabled,
+                            @Value("${user-index.expected-users:100000}") int expectedUsers) {
+        this.userRepository = userRepository;
+        this.changeFeedService = changeFeedService;
+        this.userSnapshotService = userSnapshotService;
+        this.enabled = enabled;
+        this.index = new CompactUserIndex(enabled ? expectedUsers : 16);
+    }
+
+    /**
+     * Se suscribe a los cambios de 'users' (con el listener activo, también a su primer snapshot)
+     */
+    @PostConstruct
+    public void subscribe() {
+        if (!enabled) {
+            return;
+        }
+        changeFeedService.subscribe("user-index", event -> {
+            if (event.type() == ChangeEvent.Type.DELETED) {
+                delete(event.documentId());
+            } else {
+                User user = event.as(User.class);
+                apply(event.documentId(), user);
+                advanceWatermark(user);
+            }
+            if (!event.initial()) {
+                feedUpdates.incrementAndGet();
+            }
+        }, collection -> synced(), ChangeFeedService.USERS);
+    }
+
+    /**
+     * Llena el índice en un hilo aparte para no retrasar el arranque
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!enabled) {
+            System.out.println("UserIndexService: Índice compacto de usuarios DESHABILITADO");
+            return;
+        }
+        if (changeFeedService.listens(ChangeFeedService.USERS)) {
+            System.out.println("UserIndexService: El índice se llena con el primer snapshot del listener de 'users'");
+            return;
+        }
+        Thread.ofVirtual().name("user-index-load").start(() -> {
+            synchronized (this) {
+                try {
+                    long startedAt = System.nanoTime();
+                    long loaded;
+                    if (userSnapshotService != null && userSnapshotService.awaitReady()) {
+                        AtomicLong rows = new AtomicLong(0);
+                        userSnapshotService.forEach(row -> {
+                            apply(row);
+                            rows.incrementAndGet();
+                        });
+                        watermarkMillis = Math.max(watermarkMillis, userSnapshotService.watermarkMillis());
+                        loaded = rows.get();
+                        source = "snapshot";
+                    } else {
+                        loaded = userRepository.streamAll(stored -> {
+                            apply(stored.documentId(), stored.user());
+                            advanceWatermark(stored.user());
+                        }).join();
+                        source = "scan";
+                    }
+                    loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    ready = true;
+                    System.out.println("UserIndexService: Índice cargado desde " + source + " en " + loadMillis + " ms ("
+                            + loaded + " usuarios, ~" + index.estimatedBytes() / (1024 * 1024) + " MB)");
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println("UserIndexService: Error cargando índice de usuarios: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * El listener de 'users' terminó de entregar su primer snapshot: el índice tiene todos los usuarios
+     */
+    private void synced() {
+        if (ready) {
+            return;
+        }
+        source = "change-feed";
+        loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAtNanos);
+        ready = true;
+        System.out.println("UserIndexService: Índice cargado desde " + source + " en " + loadMillis + " ms ("
+                + index.size() + " usuarios, ~" + index.estimatedBytes() / (1024 * 1024) + " MB)");
+    }
+
+    /**
+     * Sin listener de 'users' (o mientras se reconecta), trae los usuarios cambiados desde la última consulta
+     */
+    @Scheduled(fixedDelayString = "${user-index.catch-up-seconds:60}", timeUnit = TimeUnit.SECONDS)
+    public synchronized void catchUp() {
+        if (!ready || changeFeedService.isLive(ChangeFeedService.USERS)) {
+            return;
+        }
+        try {
+            long changed = userRepository.streamUpdatedSince(watermarkMillis, stored -> {
+                apply(stored.documentId(), stored.user());
+                advanceWatermark(stored.user());
+            }).join();
+            catchUpRows.addAndGet(changed);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.println("UserIndexService: Error actualizando índice de usuarios: " + e.getMessage());
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public CompactUserIndex index() {
+        return index;
+    }
+
+    /**
+     * Registra un Listener; los usuarios que ya están en el índice no se le notifican
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("ready", ready);
+        metrics.put("source", source);
+        metrics.put("loadMillis", loadMillis);
+        metrics.putAll(index.getMetrics());
+        metrics.put("feedUpdates", feedUpdates.get());
+        metrics.put("catchUpRows", catchUpRows.get());
+        metrics.put("watermarkMillis", watermarkMillis);
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    // La carga de arranque, el listener y la consulta por 'updated_at' escriben desde hilos
+    // distintos: se serializan para que los Listener vean los cambios en el orden del índice
+    void apply(String documentId, User user) {
+        synchronized (writeLock) {
+            upserted(index.upsert(documentId, user));
+        }
+    }
+
+    void apply(UserSnapshot.Row row) {
+        synchronized (writeLock) {
+            upserted(index.upsert(row.documentId(), row.phone(), row.city(), row.state(), row.chatbotState(),
+                    row.hasCreatedAt() ? Math.floorDiv(row.createdAtMillis(), 1000) : CompactUserIndex.NO_TIMESTAMP,
+                    row.hasUpdatedAt() ? Math.floorDiv(row.updatedAtMillis(), 1000) : CompactUserIndex.NO_TIMESTAMP,
+                    row.referralCode(), row.referredByCode(), row.referredByPhone(), row.acceptedTerms()));
+        }
+    }
+
+    void delete(String documentId) {
+        synchronized (writeLock) {
+            int id = index.idOf(documentId);
+            if (id >= 0 && index.remove(documentId)) {
+                for (Listener listener : listeners) {
+                    listener.onRemove(id);
+                }
+            }
+        }
+    }
+
+    private void upserted(int id) {
+        for (Listener listener : listeners) {
+            listener.onUpsert(id);
+        }
+    }
+
+    private void advanceWatermark(User user) {
+        if (user.getUpdated_at() != null) {
+            watermarkMillis = Math.max(watermarkMillis, user.getUpdated_at().toDate().getTime());
+        }
+    }
+}
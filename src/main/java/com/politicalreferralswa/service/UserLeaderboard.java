@@ -0,0 +1,250 @@
+package com.politicalreferralswa.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranking de usuarios por puntos, mantenido al día con cada alta, cambio o baja del índice de
+ * usuarios (ver UserIndexService) en lugar de descargar y ordenar la colección en cada consulta.
+ *
+ * Los puntos (ver points()) dependen de los días desde la creación, que avanzan con el reloj, más un
+ * bono fijo por tener código de referido y por aceptar términos. Como el bono sólo toma 4 valores,
+ * los usuarios se reparten en 4 árboles de orden estadístico (ver OrderStatisticTree) por fecha de
+ * creación: "cuántos tienen más puntos que P" es, en cada árbol, "cuántos se crearon antes de
+ * cierta fecha", que se responde en O(log n) sin recalcular nada cuando pasa el tiempo.
+ */
+@Service
+public class UserLeaderboard implements UserIndexService.Listener {
+
+    private static final int BASE_POINTS = 100;
+    private static final int POINTS_PER_DAY = 10;
+    private static final int REFERRAL_CODE_POINTS = 50;
+    private static final int TERMS_POINTS = 200;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final int[] BONUSES = {0, REFERRAL_CODE_POINTS, TERMS_POINTS, REFERRAL_CODE_POINTS + TERMS_POINTS};
+
+    // Sin fecha de creación cuenta como recién creado
+    private static final long NO_CREATED_AT_KEY = Long.MAX_VALUE;
+
+    /**
+     * Usuario del ranking con sus puntos
+     */
+    public record Entry(String documentId, int points) {
+    }
+
+    private final CompactUserIndex index;
+    private final UserIndexService userIndexService;
+    private final OrderStatisticTree[] trees = new OrderStatisticTree[BONUSES.length];
+    private byte[] bonusClassById;
+    private long[] keyById;
+
+    @Autowired
+    public UserLeaderboard(UserIndexService userIndexService) {
+        this(userIndexService.index(), userIndexService);
+    }
+
+    /**
+     * Ranking sobre un índice que se actualiza a mano: quien modifica el índice llama a onUpsert y onRemove
+     */
+    public UserLeaderboard(CompactUserIndex index) {
+        this(index, null);
+    }
+
+    private UserLeaderboard(CompactUserIndex index, UserIndexService userIndexService) {
+        this.index = index;
+        this.userIndexService = userIndexService;
+        int expected = Math.max(16, index.idLimit());
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = new OrderStatisticTree(expected / 2);
+        }
+        bonusClassById = new byte[expected];
+        Arrays.fill(bonusClassById, (byte) -1);
+        keyById = new long[expected];
+    }
+
+    /**
+     * Se registra como Listener de UserIndexService (si lo hay) y carga los usuarios que ya están en el
+     * índice. Spring lo llama al crear el bean; quien lo construye a mano sobre un CompactUserIndex
+     * lo llama antes de usarlo.
+     */
+    @PostConstruct
+    public void init() {
+        // Se registra antes de recorrer el índice para no perder cambios entre ambos pasos
+        if (userIndexService != null) {
+            userIndexService.addListener(this);
+        }
+        // Los IDs se copian primero para no esperar el monitor con el lock de lectura del índice tomado
+        int[] ids = new int[index.idLimit()];
+        int[] count = {0};
+        index.forEach(id -> {
+            if (count[0] < ids.length) {
+                ids[count[0]++] = id;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            onUpsert(ids[i]);
+        }
+    }
+
+    /**
+     * Puntos de un usuario: base, 10 por cada día completo desde la creación, 50 por tener código de
+     * referido y 200 por aceptar términos
+     */
+    public static int points(long createdAtSeconds, boolean hasReferralCode, boolean acceptedTerms, long nowMillis) {
+        return BASE_POINTS + agePoints(createdAtSeconds, nowMillis)
+                + (hasReferralCode ? REFERRAL_CODE_POINTS : 0) + (acceptedTerms ? TERMS_POINTS : 0);
+    }
+
+    /**
+     * true cuando el índice de usuarios ya terminó su carga inicial
+     */
+    public boolean isReady() {
+        return userIndexService == null || userIndexService.isReady();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (OrderStatisticTree tree : trees) {
+            size += tree.size();
+        }
+        return size;
+    }
+
+    /**
+     * Posición que corresponde a esos puntos: 1 + usuarios con más puntos
+     */
+    public synchronized int rankOf(int points, long nowMillis) {
+        int above = 0;
+        for (int bonusClass = 0; bonusClass < BONUSES.length; bonusClass++) {
+            // Más puntos que 'points' <=> días > floor((points - base - bono) / 10)
+            long minDays = Math.floorDiv(points - BASE_POINTS - BONUSES[bonusClass], POINTS_PER_DAY) + 1L;
+            OrderStatisticTree tree = trees[bonusClass];
+            above += minDays <= 0 ? tree.size() : tree.countAtMost(latestCreatedAtWithDays(minDays, nowMillis));
+        }
+        return above + 1;
+    }
+
+    /**
+     * Posición del usuario, o -1 si no está en el índice
+     */
+    public int rankOf(String documentId, long nowMillis) {
+        int id = index.idOf(documentId);
+        if (id < 0) {
+            return -1;
+        }
+        return rankOf(points(index.createdAtSeconds(id), index.hasReferralCode(id), index.acceptedTerms(id), nowMillis), nowMillis);
+    }
+
+    /**
+     * Los n usuarios con más puntos; a igual puntos, primero el más antiguo
+     */
+    public synchronized List<Entry> top(int n, long nowMillis) {
+        int[] next = new int[trees.length];
+        List<Entry> top = new ArrayList<>(Math.min(n, size()));
+        while (top.size() < n) {
+            int best = -1;
+            int bestNode = -1;
+            int bestPoints = Integer.MIN_VALUE;
+            for (int bonusClass = 0; bonusClass < trees.length; bonusClass++) {
+                if (next[bonusClass] >= trees[bonusClass].size()) {
+                    continue;
+                }
+                // En cada árbol el más antiguo es el de más puntos
+                int node = trees[bonusClass].nodeAt(next[bonusClass]);
+                int points = pointsOfKey(trees[bonusClass].keyAt(node), bonusClass, nowMillis);
+                if (points > bestPoints || (points == bestPoints
+                        && trees[bonusClass].keyAt(node) < trees[best].keyAt(bestNode))) {
+                    best = bonusClass;
+                    bestNode = node;
+                    bestPoints = points;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            next[best]++;
+            top.add(new Entry(index.documentId(trees[best].valueAt(bestNode)), bestPoints));
+        }
+        return top;
+    }
+
+    @Override
+    public synchronized void onUpsert(int id) {
+        ensureCapacity(id);
+        if (!index.contains(id)) {
+            removeEntry(id);
+            return;
+        }
+        long createdAt = index.createdAtSeconds(id);
+        long key = createdAt == CompactUserIndex.NO_TIMESTAMP ? NO_CREATED_AT_KEY : createdAt;
+        int bonusClass = (index.hasReferralCode(id) ? 1 : 0) | (index.acceptedTerms(id) ? 2 : 0);
+        if (bonusClassById[id] == bonusClass && keyById[id] == key) {
+            return;
+        }
+        removeEntry(id);
+        trees[bonusClass].insert(key, id);
+        bonusClassById[id] = (byte) bonusClass;
+        keyById[id] = key;
+    }
+
+    @Override
+    public synchronized void onRemove(int id) {
+        if (id < bonusClassById.length) {
+            removeEntry(id);
+        }
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", isReady());
+        metrics.put("users", size());
+        long bytes = (long) bonusClassById.length * (1 + Long.BYTES);
+        for (OrderStatisticTree tree : trees) {
+            bytes += tree.bytes();
+        }
+        metrics.put("estimatedBytes", bytes);
+        return metrics;
+    }
+
+    private void removeEntry(int id) {
+        if (bonusClassById[id] >= 0) {
+            trees[bonusClassById[id]].remove(keyById[id], id);
+            bonusClassById[id] = -1;
+        }
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= bonusClassById.length) {
+            int capacity = Math.max(id + 1, bonusClassById.length + (bonusClassById.length >> 1));
+            int previous = bonusClassById.length;
+            bonusClassById = Arrays.copyOf(bonusClassById, capacity);
+            Arrays.fill(bonusClassById, previous, capacity, (byte) -1);
+            keyById = Arrays.copyOf(keyById, capacity);
+        }
+    }
+
+    private static int pointsOfKey(long key, int bonusClass, long nowMillis) {
+        long createdAt = key == NO_CREATED_AT_KEY ? CompactUserIndex.NO_TIMESTAMP : key;
+        return BASE_POINTS + agePoints(createdAt, nowMillis) + BONUSES[bonusClass];
+    }
+
+    private static int agePoints(long createdAtSeconds, long nowMillis) {
+        if (createdAtSeconds == CompactUserIndex.NO_TIMESTAMP) {
+            return 0;
+        }
+        long days = (nowMillis - createdAtSeconds * 1000) / DAY_MILLIS;
+        return Math.max(0, (int) days * POINTS_PER_DAY);
+    }
+
+    // Última fecha de creación (en segundos) con al menos 'days' días completos
+    private static long latestCreatedAtWithDays(long days, long nowMillis) {
+        return Math.floorDiv(nowMillis - days * DAY_MILLIS, 1000);
+    }
+}
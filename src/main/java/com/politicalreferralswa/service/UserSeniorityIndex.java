@@ -0,0 +1,256 @@
+package com.politicalreferralswa.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Antigüedad de cada usuario dentro de su ciudad y su departamento: un árbol de orden estadístico
+ * (ver OrderStatisticTree) por fecha de creación para cada ciudad y cada departamento, mantenido al
+ * día con los cambios del índice de usuarios (ver UserIndexService).
+ *
+ * La posición (1 + usuarios del mismo grupo creados antes) y el tamaño del grupo se responden en
+ * O(log n), sin recorrer los usuarios de la ciudad como hacía LocalAnalyticsService.
+ */
+@Service
+public class UserSeniorityIndex implements UserIndexService.Listener {
+
+    // Sin fecha de creación no cuenta como anterior a nadie
+    private static final long NO_CREATED_AT_KEY = Long.MAX_VALUE;
+
+    /**
+     * Posición del usuario en su grupo y tamaño del grupo
+     */
+    public record Position(int position, int cohortSize) {
+    }
+
+    private final CompactUserIndex index;
+    private final UserIndexService userIndexService;
+    private final List<OrderStatisticTree> byCity = new ArrayList<>();
+    private final List<OrderStatisticTree> byState = new ArrayList<>();
+    private int[] cityById;
+    private int[] stateById;
+    private long[] keyById;
+
+    @Autowired
+    public UserSeniorityIndex(UserIndexService userIndexService) {
+        this(userIndexService.index(), userIndexService);
+    }
+
+    /**
+     * Índice sobre un CompactUserIndex que se actualiza a mano: quien lo modifica llama a onUpsert y onRemove
+     */
+    public UserSeniorityIndex(CompactUserIndex index) {
+        this(index, null);
+    }
+
+    private UserSeniorityIndex(CompactUserIndex index, UserIndexService userIndexService) {
+        this.index = index;
+        this.userIndexService = userIndexService;
+        int expected = Math.max(16, index.idLimit());
+        cityById = new int[expected];
+        stateById = new int[expected];
+        Arrays.fill(cityById, -1);
+        Arrays.fill(stateById, -1);
+        keyById = new long[expected];
+    }
+
+    /**
+     * Se registra como Listener de UserIndexService (si lo hay) y carga los usuarios que ya están en el
+     * índice. Spring lo llama al crear el bean; quien lo construye a mano sobre un CompactUserIndex
+     * lo llama antes de usarlo.
+     */
+    @PostConstruct
+    public void init() {
+        // Se registra antes de recorrer el índice para no perder cambios entre ambos pasos
+        if (userIndexService != null) {
+            userIndexService.addListener(this);
+        }
+        int[] ids = new int[index.idLimit()];
+        int[] count = {0};
+        index.forEach(id -> {
+            if (count[0] < ids.length) {
+                ids[count[0]++] = id;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            onUpsert(ids[i]);
+        }
+    }
+
+    /**
+     * true cuando el índice de usuarios ya terminó su carga inicial
+     */
+    public boolean isReady() {
+        return userIndexService == null || userIndexService.isReady();
+    }
+
+    /**
+     * Posición del usuario entre los de su ciudad, o null si no está en el índice o no tiene ciudad
+     */
+    public Position cityPosition(String documentId) {
+        return position(documentId, byCity, true);
+    }
+
+    /**
+     * Posición del usuario entre los de su departamento, o null si no está en el índice o no tiene departamento
+     */
+    public Position statePosition(String documentId) {
+        return position(documentId, byState, false);
+    }
+
+    /**
+     * Posición que corresponde en la ciudad a un usuario creado en 'createdAtSeconds' (1 + usuarios de
+     * la ciudad creados antes), aunque el índice todavía no lo tenga
+     *
+     * @param createdAtSeconds CompactUserIndex.NO_TIMESTAMP si no tiene fecha de creación
+     */
+    public synchronized Position cityPosition(String city, long createdAtSeconds) {
+        return positionIn(byCity, index.cityCodeOf(city), createdAtSeconds);
+    }
+
+    /**
+     * Como cityPosition(String, long), en el departamento
+     */
+    public synchronized Position statePosition(String state, long createdAtSeconds) {
+        return positionIn(byState, index.stateCodeOf(state), createdAtSeconds);
+    }
+
+    /**
+     * Usuarios en el índice
+     */
+    public int totalUsers() {
+        return index.size();
+    }
+
+    public synchronized int cityCohortSize(String city) {
+        return cohortSize(byCity, index.cityCodeOf(city));
+    }
+
+    public synchronized int stateCohortSize(String state) {
+        return cohortSize(byState, index.stateCodeOf(state));
+    }
+
+    @Override
+    public synchronized void onUpsert(int id) {
+        ensureCapacity(id);
+        if (!index.contains(id)) {
+            removeEntry(id);
+            return;
+        }
+        long createdAt = index.createdAtSeconds(id);
+        long key = createdAt == CompactUserIndex.NO_TIMESTAMP ? NO_CREATED_AT_KEY : createdAt;
+        int city = index.cityCode(id);
+        int state = index.stateCode(id);
+        if (cityById[id] == city && stateById[id] == state && keyById[id] == key) {
+            return;
+        }
+        removeEntry(id);
+        if (city >= 0) {
+            tree(byCity, city).insert(key, id);
+        }
+        if (state >= 0) {
+            tree(byState, state).insert(key, id);
+        }
+        cityById[id] = city;
+        stateById[id] = state;
+        keyById[id] = key;
+    }
+
+    @Override
+    public synchronized void onRemove(int id) {
+        if (id < cityById.length) {
+            removeEntry(id);
+        }
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", isReady());
+        metrics.put("cities", byCity.size());
+        metrics.put("states", byState.size());
+        metrics.put("largestCity", largest(byCity));
+        metrics.put("largestState", largest(byState));
+        long bytes = (long) cityById.length * (2 * Integer.BYTES + Long.BYTES);
+        for (OrderStatisticTree tree : byCity) {
+            bytes += tree.bytes();
+        }
+        for (OrderStatisticTree tree : byState) {
+            bytes += tree.bytes();
+        }
+        metrics.put("estimatedBytes", bytes);
+        return metrics;
+    }
+
+    private synchronized Position position(String documentId, List<OrderStatisticTree> cohorts, boolean city) {
+        int id = index.idOf(documentId);
+        if (id < 0 || id >= cityById.length) {
+            return null;
+        }
+        int code = city ? cityById[id] : stateById[id];
+        if (code < 0) {
+            return null;
+        }
+        OrderStatisticTree tree = cohorts.get(code);
+        int position = keyById[id] == NO_CREATED_AT_KEY ? 1 : tree.countBelow(keyById[id]) + 1;
+        return new Position(position, tree.size());
+    }
+
+    private static Position positionIn(List<OrderStatisticTree> cohorts, int code, long createdAtSeconds) {
+        if (code < 0 || code >= cohorts.size()) {
+            return new Position(1, 0);
+        }
+        OrderStatisticTree tree = cohorts.get(code);
+        int position = createdAtSeconds == CompactUserIndex.NO_TIMESTAMP ? 1 : tree.countBelow(createdAtSeconds) + 1;
+        return new Position(position, tree.size());
+    }
+
+    private static int cohortSize(List<OrderStatisticTree> cohorts, int code) {
+        return code < 0 || code >= cohorts.size() ? 0 : cohorts.get(code).size();
+    }
+
+    private void removeEntry(int id) {
+        if (cityById[id] >= 0) {
+            byCity.get(cityById[id]).remove(keyById[id], id);
+            cityById[id] = -1;
+        }
+        if (stateById[id] >= 0) {
+            byState.get(stateById[id]).remove(keyById[id], id);
+            stateById[id] = -1;
+        }
+    }
+
+    // Los códigos de ciudad y departamento son consecutivos (ver CompactUserIndex)
+    private static OrderStatisticTree tree(List<OrderStatisticTree> cohorts, int code) {
+        while (cohorts.size() <= code) {
+            cohorts.add(new OrderStatisticTree(16));
+        }
+        return cohorts.get(code);
+    }
+
+    private static int largest(List<OrderStatisticTree> cohorts) {
+        int largest = 0;
+        for (OrderStatisticTree tree : cohorts) {
+            largest = Math.max(largest, tree.size());
+        }
+        return largest;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= cityById.length) {
+            int capacity = Math.max(id + 1, cityById.length + (cityById.length >> 1));
+            int previous = cityById.length;
+            cityById = Arrays.copyOf(cityById, capacity);
+            stateById = Arrays.copyOf(stateById, capacity);
+            Arrays.fill(cityById, previous, capacity, -1);
+            Arrays.fill(stateById, previous, capacity, -1);
+            keyById = Arrays.copyOf(keyById, capacity);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot columnar de la colección 'users' en un archivo mapeado en memoria (fuera del heap).
+ *
+ * Sólo guarda los campos que usan el bot y las analíticas (los del índice compacto de usuarios, que
+ * se carga desde aquí: ver UserIndexService). Los textos se codifican con un diccionario compartido
+ * por todas las columnas (una ciudad o un código de referido repetido se guarda una vez) y cada
+ * columna es un arreglo de primitivos:
+ *
+ *   [cabecera 32 bytes: magic, versión, filas, tamaño del diccionario, watermark, escrito en]
+ *   [int offsets del diccionario (tamaño + 1)][bytes UTF-8 del diccionario, alineados a 8]
+ *   [long created_at por fila][long updated_at por fila]
+ *   [int código de diccionario por fila, una columna por Column][int banderas por fila]
+ *
+ * Las filas van ordenadas por ID de documento (comparando sus bytes UTF-8), así que buscar un
+ * usuario es una búsqueda binaria sobre el archivo mapeado. El watermark es el mayor 'updated_at'
+ * incluido: los cambios posteriores se piden a Firestore al cargar (ver UserSnapshotService).
+ */
+public final class UserSnapshot {
+
+    private static final int MAGIC = 0x55534E50; // "USNP"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int NULL_CODE = -1;
+    private static final long NULL_TIMESTAMP = Long.MIN_VALUE;
+    private static final int ACCEPTED_TERMS = 1;
+
+    /**
+     * Columnas de texto del snapshot
+     */
+    public enum Column {
+        DOCUMENT_ID, PHONE, CITY, STATE, REFERRAL_CODE, REFERRED_BY_CODE, REFERRED_BY_PHONE, CHATBOT_STATE
+    }
+
+    /**
+     * Fila del snapshot. createdAtMillis y updatedAtMillis son Long.MIN_VALUE si el usuario no tiene
+     * 'created_at' o 'updated_at'.
+     */
+    public record Row(String documentId, String phone, String city, String state, long createdAtMillis,
+                      long updatedAtMillis, String referralCode, String referredByCode, String referredByPhone,
+                      String chatbotState, boolean acceptedTerms) {
+
+        public static Row of(String documentId, User user) {
+            return new Row(documentId, user.getPhone(), user.getCity(), user.getState(), millis(user.getCreated_at()),
+                    millis(user.getUpdated_at()), user.getReferral_code(), user.getReferred_by_code(),
+                    user.getReferred_by_phone(), user.getChatbot_state(), user.isAceptaTerminos());
+        }
+
+        public boolean hasCreatedAt() {
+            return createdAtMillis != NULL_TIMESTAMP;
+        }
+
+        public boolean hasUpdatedAt() {
+            return updatedAtMillis != NULL_TIMESTAMP;
+        }
+
+        private static long millis(Timestamp timestamp) {
+            return timestamp != null ? timestamp.toDate().getTime() : NULL_TIMESTAMP;
+        }
+
+        String get(Column column) {
+            return switch (column) {
+                case DOCUMENT_ID -> documentId;
+                case PHONE -> phone;
+                case CITY -> city;
+                case STATE -> state;
+                case REFERRAL_CODE -> referralCode;
+                case REFERRED_BY_CODE -> referredByCode;
+                case REFERRED_BY_PHONE -> referredByPhone;
+                case CHATBOT_STATE -> chatbotState;
+            };
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int rowCount;
+    private final int dictionarySize;
+    private final long watermarkMillis;
+    private final long writtenAtMillis;
+    private final int offsetsStart;
+    private final int blobStart;
+    private final int createdAtStart;
+    private final int updatedAtStart;
+    private final int columnsStart;
+    private final int flagsStart;
+
+    private UserSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("No es un snapshot de usuarios (versión " + VERSION + ")");
+        }
+        this.rowCount = buffer.getInt(8);
+        this.dictionarySize = buffer.getInt(12);
+        this.watermarkMillis = buffer.getLong(16);
+        this.writtenAtMillis = buffer.getLong(24);
+        this.offsetsStart = HEADER_BYTES;
+        this.blobStart = offsetsStart + (dictionarySize + 1) * Integer.BYTES;
+        this.createdAtStart = blobStart + align8(buffer.getInt(offsetsStart + dictionarySize * Integer.BYTES));
+        this.updatedAtStart = createdAtStart + rowCount * Long.BYTES;
+        this.columnsStart = updatedAtStart + rowCount * Long.BYTES;
+        this.flagsStart = columnsStart + Column.values().length * rowCount * Integer.BYTES;
+        long expectedBytes = (long) flagsStart + (long) rowCount * Integer.BYTES;
+        if (expectedBytes != buffer.capacity()) {
+            throw new IllegalArgumentException("Snapshot de usuarios truncado: " + buffer.capacity()
+                    + " bytes, se esperaban " + expectedBytes);
+        }
+    }
+
+    /**
+     * Mapea el archivo en memoria (sólo lectura). Los datos no se copian al heap: se leen del
+     * archivo a medida que se consultan.
+     */
+    public static UserSnapshot load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new UserSnapshot(mapped);
+        }
+    }
+
+    /**
+     * Escribe las filas en un archivo temporal y lo mueve sobre el destino, de modo que quien lea
+     * el archivo nunca vea un snapshot a medio escribir.
+     *
+     * @param watermarkMillis mayor 'updated_at' incluido en las filas
+     */
+    public static void write(Path file, Collection<Row> rows, long watermarkMillis) throws IOException {
+        List<Row> sorted = new ArrayList<>(rows);
+        Map<String, byte[]> documentIdBytes = new HashMap<>();
+        for (Row row : sorted) {
+            documentIdBytes.put(row.documentId(), row.documentId().getBytes(StandardCharsets.UTF_8));
+        }
+        sorted.sort((a, b) -> Arrays.compareUnsigned(documentIdBytes.get(a.documentId()), documentIdBytes.get(b.documentId())));
+
+        // Diccionario compartido por todas las columnas
+        Map<String, Integer> codes = new HashMap<>();
+        List<byte[]> dictionary = new ArrayList<>();
+        Column[] columns = Column.values();
+        int[][] columnCodes = new int[columns.length][sorted.size()];
+        int blobBytes = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            for (Column column : columns) {
+                String value = sorted.get(i).get(column);
+                if (value == null) {
+                    columnCodes[column.ordinal()][i] = NULL_CODE;
+                    continue;
+                }
+                Integer code = codes.get(value);
+                if (code == null) {
+                    code = dictionary.size();
+                    codes.put(value, code);
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    dictionary.add(bytes);
+                    blobBytes += bytes.length;
+                }
+                columnCodes[column.ordinal()][i] = code;
+            }
+        }
+
+        long totalBytes = HEADER_BYTES + (long) (dictionary.size() + 1) * Integer.BYTES + align8(blobBytes)
+                + 2L * sorted.size() * Long.BYTES + (long) (columns.length + 1) * sorted.size() * Integer.BYTES;
+        if (totalBytes > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot de usuarios demasiado grande: " + totalBytes + " bytes");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) totalBytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(dictionary.size())
+                .putLong(watermarkMillis).putLong(System.currentTimeMillis());
+        int offset = 0;
+        for (byte[] bytes : dictionary) {
+            out.putInt(offset);
+            offset += bytes.length;
+        }
+        out.putInt(offset);
+        for (byte[] bytes : dictionary) {
+            out.put(bytes);
+        }
+        out.position(out.position() + align8(blobBytes) - blobBytes);
+        for (Row row : sorted) {
+            out.putLong(row.createdAtMillis());
+        }
+        for (Row row : sorted) {
+            out.putLong(row.updatedAtMillis());
+        }
+        for (int[] codesOfColumn : columnCodes) {
+            for (int code : codesOfColumn) {
+                out.putInt(code);
+            }
+        }
+        for (Row row : sorted) {
+            out.putInt(row.acceptedTerms() ? ACCEPTED_TERMS : 0);
+        }
+        out.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public int dictionarySize() {
+        return dictionarySize;
+    }
+
+    public int byteSize() {
+        return buffer.capacity();
+    }
+
+    public long watermarkMillis() {
+        return watermarkMillis;
+    }
+
+    public long writtenAtMillis() {
+        return writtenAtMillis;
+    }
+
+    /**
+     * Código de diccionario de la columna en la fila, o -1 si el valor es null. Dos filas con el
+     * mismo texto (en cualquier columna) tienen el mismo código.
+     */
+    public int code(Column column, int row) {
+        checkRow(row);
+        return buffer.getInt(columnsStart + (column.ordinal() * rowCount + row) * Integer.BYTES);
+    }
+
+    /**
+     * Texto del diccionario, o null para el código -1
+     */
+    public String string(int code) {
+        if (code == NULL_CODE) {
+            return null;
+        }
+        int start = buffer.getInt(offsetsStart + code * Integer.BYTES);
+        int end = buffer.getInt(offsetsStart + (code + 1) * Integer.BYTES);
+        byte[] bytes = new byte[end - start];
+        buffer.get(blobStart + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String get(Column column, int row) {
+        return string(code(column, row));
+    }
+
+    public long createdAtMillis(int row) {
+        checkRow(row);
+        return buffer.getLong(createdAtStart + row * Long.BYTES);
+    }
+
+    public long updatedAtMillis(int row) {
+        checkRow(row);
+        return buffer.getLong(updatedAtStart + row * Long.BYTES);
+    }
+
+    public boolean acceptedTerms(int row) {
+        checkRow(row);
+        return (buffer.getInt(flagsStart + row * Integer.BYTES) & ACCEPTED_TERMS) != 0;
+    }
+
+    public Row row(int row) {
+        return new Row(get(Column.DOCUMENT_ID, row), get(Column.PHONE, row), get(Column.CITY, row),
+                get(Column.STATE, row), createdAtMillis(row), updatedAtMillis(row), get(Column.REFERRAL_CODE, row),
+                get(Column.REFERRED_BY_CODE, row), get(Column.REFERRED_BY_PHONE, row), get(Column.CHATBOT_STATE, row),
+                acceptedTerms(row));
+    }
+
+    /**
+     * Fila del documento (búsqueda binaria sobre el archivo), o -1 si no está en el snapshot
+     */
+    public int find(String documentId) {
+        byte[] target = documentId.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = rowCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareDictionaryEntry(code(Column.DOCUMENT_ID, middle), target);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // Compara sin decodificar: bytes UTF-8 sin signo, el mismo orden con el que se escribieron las filas
+    private int compareDictionaryEntry(int code, byte[] target) {
+        int start = blobStart + buffer.getInt(offsetsStart + code * Integer.BYTES);
+        int length = buffer.getInt(offsetsStart + (code + 1) * Integer.BYTES) - (start - blobStart);
+        int common = Math.min(length, target.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = Byte.compareUnsigned(buffer.get(start + i), target[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, target.length);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Fila " + row + " fuera del snapshot (" + rowCount + " filas)");
+        }
+    }
+
+    private static int align8(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+}
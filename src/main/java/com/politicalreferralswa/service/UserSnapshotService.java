@@ -0,0 +1,336 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Índice de usuarios para arrancar en caliente: en lugar de descargar toda la colección 'users'
+ * por gRPC, la instancia mapea el último snapshot local (ver UserSnapshot) y sólo pide a Firestore
+ * los usuarios con 'updated_at' posterior al watermark del snapshot.
+ *
+ * - Al arrancar: se carga 'user-snapshot.path' si existe (y es de la versión actual); si no, se
+ *   construye con un recorrido completo de 'users' y se escribe para el siguiente arranque.
+ *   Sin listener de 'users', UserIndexService espera a este arranque y llena el índice compacto
+ *   desde el snapshot (forEach) en lugar de hacer su propio recorrido.
+ * - Los usuarios cambiados después del snapshot quedan en un mapa en memoria (overlay) que tiene
+ *   prioridad sobre las filas del archivo.
+ * - Cada 'user-snapshot.refresh-minutes' se piden los cambios nuevos y, si hay, se reescribe el
+ *   archivo con el overlay incluido.
+ * - Con el listener de 'users' de ChangeFeedService activo, los cambios llegan además al momento,
+ *   incluidos los documentos eliminados (que la consulta por 'updated_at' no puede ver). Las filas
+ *   que no vienen en el primer snapshot del listener son usuarios eliminados mientras ninguna
+ *   instancia corría (p. ej. un reinicio de usuario) y se quitan.
+ *
+ * Deshabilitado por defecto ('user-snapshot.enabled'): sólo tiene sentido con un disco que
+ * sobreviva al reinicio de la instancia, y sólo ahorra lecturas con 'change-feed.users.enabled=false'.
+ * El listener de Firestore no se puede reanudar desde un punto, así que al arrancar descarga igual
+ * todos los documentos; con el listener activo el índice de usuarios se llena desde él y el snapshot
+ * sólo sirve para quitar los eliminados del archivo.
+ */
+@Service
+public class UserSnapshotService {
+
+    // Campos de 'users' que guarda el snapshot (ver UserSnapshot.Row)
+    private static final String[] SNAPSHOT_FIELDS = {
+            "phone", "city", "state", "created_at", "referral_code", "referred_by_code", "referred_by_phone",
+            "chatbot_state", "aceptaTerminos"};
+
+    private final UserRepository userRepository;
+    private final boolean enabled;
+    private final Path path;
+
+    private volatile UserSnapshot snapshot;
+    private volatile boolean ready = false;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile long watermarkMillis = Long.MIN_VALUE;
+    private final Map<String, UserSnapshot.Row> overlay = new ConcurrentHashMap<>();
+    private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+    // Documentos del primer snapshot del listener, hasta quitar del archivo los que ya no existen
+    private final Set<String> listenedIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean listenerSynced = false;
+    private boolean pruned = false;
+
+    // Métricas
+    private volatile String source = "none";
+    private volatile long loadMillis = -1;
+    private final AtomicLong catchUpRows = new AtomicLong(0);
+    private final AtomicLong rewrites = new AtomicLong(0);
+    private final AtomicLong prunedRows = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    public UserSnapshotService(UserRepository userRepository,
+                               @Value("${user-snapshot.enabled:false}") boolean enabled,
+                               @Value("${user-snapshot.path:/tmp/user-snapshot/users.snap}") String path) {
+        this.userRepository = userRepository;
+        this.enabled = enabled;
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Carga o construye el snapshot en un hilo aparte para no retrasar el arranque
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmStart() {
+        if (!enabled) {
+            System.out.println("UserSnapshotService: Snapshot de usuarios DESHABILITADO");
+            return;
+        }
+        Thread.ofVirtual().name("user-snapshot-warm-start").start(() -> {
+            synchronized (this) {
+                try {
+                    long startedAt = System.nanoTime();
+                    if (Files.exists(path) && loadFile()) {
+                        source = "file";
+                    } else {
+                        rebuild();
+                        source = "scan";
+                    }
+                    loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    System.out.println("UserSnapshotService: Snapshot cargado desde " + source + " en " + loadMillis
+                            + " ms (" + snapshot.size() + " usuarios, " + snapshot.byteSize() / 1024 + " KB)");
+                    catchUp();
+                    ready = true;
+                    prune();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println("UserSnapshotService: Error cargando snapshot de usuarios: " + e.getMessage());
+                } finally {
+                    started.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Trae los cambios posteriores al snapshot y, si hubo alguno, reescribe el archivo
+     */
+    @Scheduled(fixedDelayString = "${user-snapshot.refresh-minutes:60}", timeUnit = TimeUnit.MINUTES)
+    public synchronized void refresh() {
+        if (!ready) {
+            return;
+        }
+        try {
+            catchUp();
+            if (overlay.isEmpty() && deleted.isEmpty()) {
+                return;
+            }
+            Map<String, UserSnapshot.Row> written = Map.copyOf(overlay);
+            Set<String> removed = Set.copyOf(deleted);
+            List<UserSnapshot.Row> rows = new ArrayList<>(snapshot.size() + written.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                String documentId = snapshot.get(UserSnapshot.Column.DOCUMENT_ID, i);
+                if (!written.containsKey(documentId) && !removed.contains(documentId)) {
+                    rows.add(snapshot.row(i));
+                }
+            }
+            rows.addAll(written.values());
+            UserSnapshot.write(path, rows, watermarkMillis);
+            snapshot = UserSnapshot.load(path);
+            // Sólo se quitan las filas que siguen iguales: un cambio llegado durante la reescritura se conserva
+            written.forEach((documentId, row) -> overlay.remove(documentId, row));
+            deleted.removeAll(removed);
+            rewrites.incrementAndGet();
+            System.out.println("UserSnapshotService: Snapshot reescrito con " + (written.size() + removed.size())
+                    + " cambios (" + snapshot.size() + " usuarios)");
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.println("UserSnapshotService: Error actualizando snapshot de usuarios: " + e.getMessage());
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Espera a que termine la carga de arranque
+     *
+     * @return true si el snapshot quedó listo; false si está deshabilitado o la carga falló
+     */
+    public boolean awaitReady() throws InterruptedException {
+        if (!enabled) {
+            return false;
+        }
+        started.await();
+        return ready;
+    }
+
+    /**
+     * Mayor 'updated_at' incluido en el snapshot y su overlay
+     */
+    public long watermarkMillis() {
+        return watermarkMillis;
+    }
+
+    /**
+     * Recorre todos los usuarios conocidos: las filas del archivo que no cambiaron y luego el overlay
+     */
+    public void forEach(Consumer<UserSnapshot.Row> consumer) {
+        if (!ready) {
+            return;
+        }
+        UserSnapshot current = snapshot;
+        for (int i = 0; i < current.size(); i++) {
+            String documentId = current.get(UserSnapshot.Column.DOCUMENT_ID, i);
+            if (!overlay.containsKey(documentId) && !deleted.contains(documentId)) {
+                consumer.accept(current.row(i));
+            }
+        }
+        overlay.values().forEach(consumer);
+    }
+
+    /**
+     * Aplica al overlay los cambios de 'users' recibidos por ChangeFeedService y, con el primer
+     * snapshot del listener, quita las filas de usuarios que ya no existen
+     */
+    @Autowired
+    public void listenTo(ChangeFeedService changeFeedService) {
+        if (!enabled) {
+            return;
+        }
+        if (changeFeedService.listens(ChangeFeedService.USERS)) {
+            System.out.println("UserSnapshotService: Con el listener de 'users' activo el arranque descarga igual toda "
+                    + "la colección; el snapshot no ahorra lecturas (ver change-feed.users.enabled)");
+        }
+        changeFeedService.subscribe("user-snapshot", event -> {
+            if (event.initial()) {
+                // Los documentos iniciales ya están en el archivo o los trae catchUp
+                if (!listenerSynced) {
+                    listenedIds.add(event.documentId());
+                }
+                return;
+            }
+            if (event.type() == ChangeEvent.Type.DELETED) {
+                overlay.remove(event.documentId());
+                deleted.add(event.documentId());
+            } else if (event.type() == ChangeEvent.Type.CREATED || event.changed(SNAPSHOT_FIELDS)) {
+                put(event.documentId(), event.as(User.class));
+            }
+        }, collection -> {
+            if (!listenerSynced) {
+                listenerSynced = true;
+                prune();
+            }
+        }, ChangeFeedService.USERS);
+    }
+
+    public Map<String, Object> getMetrics() {
+        UserSnapshot current = snapshot;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("ready", ready);
+        metrics.put("source", source);
+        metrics.put("loadMillis", loadMillis);
+        metrics.put("snapshotUsers", current != null ? current.size() : 0);
+        metrics.put("snapshotBytes", current != null ? current.byteSize() : 0);
+        metrics.put("dictionarySize", current != null ? current.dictionarySize() : 0);
+        metrics.put("overlayUsers", overlay.size());
+        metrics.put("deletedUsers", deleted.size());
+        metrics.put("watermarkMillis", watermarkMillis);
+        metrics.put("catchUpRows", catchUpRows.get());
+        metrics.put("rewrites", rewrites.get());
+        metrics.put("prunedRows", prunedRows.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    // Un archivo de otra versión o truncado se descarta y se reconstruye
+    private boolean loadFile() {
+        try {
+            snapshot = UserSnapshot.load(path);
+            watermarkMillis = snapshot.watermarkMillis();
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println("UserSnapshotService: Snapshot " + path + " descartado (" + e.getMessage() + "), se reconstruye");
+            return false;
+        }
+    }
+
+    // Recorrido completo de 'users': sólo cuando no hay archivo válido
+    private void rebuild() throws IOException {
+        List<UserSnapshot.Row> rows = new ArrayList<>();
+        AtomicLong maxUpdatedAt = new AtomicLong(Long.MIN_VALUE);
+        userRepository.streamAll(stored -> {
+            rows.add(UserSnapshot.Row.of(stored.documentId(), stored.user()));
+            maxUpdatedAt.accumulateAndGet(updatedAtMillis(stored.user()), Math::max);
+        }).join();
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        UserSnapshot.write(path, rows, maxUpdatedAt.get());
+        snapshot = UserSnapshot.load(path);
+        watermarkMillis = snapshot.watermarkMillis();
+    }
+
+    private void catchUp() {
+        AtomicLong maxUpdatedAt = new AtomicLong(watermarkMillis);
+        long changed = userRepository.streamUpdatedSince(watermarkMillis, stored -> {
+            put(stored.documentId(), stored.user());
+            maxUpdatedAt.accumulateAndGet(updatedAtMillis(stored.user()), Math::max);
+        }).join();
+        watermarkMillis = maxUpdatedAt.get();
+        catchUpRows.addAndGet(changed);
+        if (changed > 0) {
+            System.out.println("UserSnapshotService: " + changed + " usuarios cambiados desde el snapshot");
+        }
+    }
+
+    /**
+     * Cuando el snapshot está listo y el listener entregó su primer snapshot, marca como eliminadas las
+     * filas del archivo que no vinieron en él; la próxima reescritura las quita. Se hace una sola vez.
+     */
+    private void prune() {
+        UserSnapshot current;
+        synchronized (listenedIds) {
+            if (pruned || !ready || !listenerSynced) {
+                return;
+            }
+            pruned = true;
+            current = snapshot;
+        }
+        long removed = 0;
+        for (int i = 0; i < current.size(); i++) {
+            String documentId = current.get(UserSnapshot.Column.DOCUMENT_ID, i);
+            if (!listenedIds.contains(documentId) && !overlay.containsKey(documentId) && deleted.add(documentId)) {
+                removed++;
+            }
+        }
+        listenedIds.clear();
+        prunedRows.addAndGet(removed);
+        if (removed > 0) {
+            System.out.println("UserSnapshotService: " + removed + " usuarios del snapshot ya no existen en Firestore");
+        }
+    }
+
+    private void put(String documentId, User user) {
+        overlay.put(documentId, UserSnapshot.Row.of(documentId, user));
+        deleted.remove(documentId);
+    }
+
+    private static long updatedAtMillis(User user) {
+        return user.getUpdated_at() != null ? user.getUpdated_at().toDate().getTime() : Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,232 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.model.UserFields;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unidad de trabajo por mensaje para las escrituras de User.
+ *
+ * Un mismo processIncomingMessage puede llamar a saveUser tres o cuatro veces (recuperación de
+ * estado, cambio de teléfono, handler del estado y cierre). Dentro de una unidad de trabajo
+ * saveUser sólo registra el usuario; al final (o en un flush explícito) se emite una única
+ * escritura por usuario:
+ * - set(campos, merge) con sólo los campos que cambiaron respecto a lo leído de Firestore
+ * - set completo si no se conoce el estado leído (usuario nuevo) o si cambia el ID de documento
+ * - ninguna escritura si no cambió nada (un cambio sólo de 'updated_at' no cuenta)
+ *
+ * El estado es por hilo: cada mensaje se procesa completo en el hilo de su remitente.
+ */
+@Service
+public class UserWriteCoalescer {
+
+    // Un cambio sólo en estos campos no justifica una escritura
+    private static final List<String> BOOKKEEPING_FIELDS = List.of("updated_at");
+
+    private final boolean enabled;
+    private final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    private final AtomicLong unitsOfWork = new AtomicLong(0);
+    private final AtomicLong saveCalls = new AtomicLong(0);
+    private final AtomicLong mergeWrites = new AtomicLong(0);
+    private final AtomicLong fullWrites = new AtomicLong(0);
+    private final AtomicLong immediateWrites = new AtomicLong(0);
+    private final AtomicLong writesAvoided = new AtomicLong(0);
+
+    public UserWriteCoalescer(@Value("${user-writes.coalescing.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+        System.out.println("UserWriteCoalescer: Agrupación de escrituras de usuario " + (enabled ? "HABILITADA" : "DESHABILITADA"));
+    }
+
+    /**
+     * Escritura resultante de una unidad de trabajo.
+     *
+     * @param documentId         Documento destino
+     * @param previousDocumentId Documento del que se leyó el usuario si es otro (migración), o null
+     * @param mergeFields        Campos a escribir con merge, o null para escribir el usuario completo
+     */
+    public record PlannedWrite(User user, String documentId, String previousDocumentId, Map<String, Object> mergeFields) {
+        public boolean isFullWrite() {
+            return mergeFields == null;
+        }
+    }
+
+    /**
+     * ID de documento en 'users': el teléfono sin '+' si existe, si no el ID (UUID) del usuario
+     */
+    public static String documentIdOf(User user) {
+        if (user.getPhone() != null && !user.getPhone().isEmpty()) {
+            return user.getPhone().startsWith("+") ? user.getPhone().substring(1) : user.getPhone();
+        }
+        return user.getId();
+    }
+
+    /**
+     * Abre una unidad de trabajo en el hilo actual (reentrante: sólo cuenta la más externa)
+     */
+    public void begin() {
+        if (!enabled) {
+            return;
+        }
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork != null) {
+            unitOfWork.depth++;
+            return;
+        }
+        current.set(new UnitOfWork());
+        unitsOfWork.incrementAndGet();
+    }
+
+    /**
+     * Cierra la unidad de trabajo. El llamador debe haber hecho antes el flush de drain().
+     */
+    public void end() {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork == null) {
+            return;
+        }
+        if (unitOfWork.depth > 0) {
+            unitOfWork.depth--;
+            return;
+        }
+        current.remove();
+    }
+
+    /**
+     * true si la unidad de trabajo del hilo es la más externa (la que debe hacer el flush final)
+     */
+    public boolean isOutermost() {
+        UnitOfWork unitOfWork = current.get();
+        return unitOfWork != null && unitOfWork.depth == 0;
+    }
+
+    /**
+     * Registra el estado de un usuario tal como se leyó de Firestore. Se ignora si ya hay un estado
+     * leído para ese usuario o si tiene escrituras pendientes (la caché podría devolver esos cambios).
+     */
+    public void loaded(String documentId, User user) {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork == null || documentId == null || user == null || user.getId() == null) {
+            return;
+        }
+        if (!unitOfWork.baselines.containsKey(user.getId()) && !unitOfWork.pending.containsKey(user.getId())) {
+            unitOfWork.baselines.put(user.getId(), new Baseline(documentId, user.toBuilder().build()));
+        }
+    }
+
+    /**
+     * Difiere la escritura del usuario hasta el flush de la unidad de trabajo.
+     *
+     * @return false si no hay unidad de trabajo abierta (el llamador debe escribir de inmediato)
+     */
+    public boolean defer(User user) {
+        saveCalls.incrementAndGet();
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork == null || user.getId() == null) {
+            immediateWrites.incrementAndGet();
+            return false;
+        }
+        unitOfWork.pending.put(user.getId(), user);
+        return true;
+    }
+
+    /**
+     * Olvida el estado leído y las escrituras pendientes de un usuario: su documento se eliminó o se
+     * modificó por otra vía, así que la siguiente escritura debe ser completa
+     */
+    public void forget(String userId) {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork != null && userId != null) {
+            unitOfWork.baselines.remove(userId);
+            unitOfWork.pending.remove(userId);
+        }
+    }
+
+    /**
+     * Calcula y retira las escrituras pendientes del hilo actual. Las escrituras sin cambios se
+     * descartan aquí y se cuentan como evitadas.
+     */
+    public List<PlannedWrite> drain() {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork == null || unitOfWork.pending.isEmpty()) {
+            return List.of();
+        }
+        List<PlannedWrite> writes = new ArrayList<>();
+        for (User user : unitOfWork.pending.values()) {
+            PlannedWrite write = plan(unitOfWork.baselines.get(user.getId()), user);
+            if (write != null) {
+                writes.add(write);
+            }
+        }
+        unitOfWork.pending.clear();
+        return writes;
+    }
+
+    /**
+     * Marca una escritura como aplicada: lo escrito pasa a ser el estado leído para el siguiente flush
+     */
+    public void written(PlannedWrite write) {
+        (write.isFullWrite() ? fullWrites : mergeWrites).incrementAndGet();
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork != null) {
+            unitOfWork.baselines.put(write.user().getId(), new Baseline(write.documentId(), write.user().toBuilder().build()));
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        long units = unitsOfWork.get();
+        long calls = saveCalls.get();
+        long writes = mergeWrites.get() + fullWrites.get() + immediateWrites.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("unitsOfWork", units);
+        metrics.put("saveCalls", calls);
+        metrics.put("mergeWrites", mergeWrites.get());
+        metrics.put("fullWrites", fullWrites.get());
+        metrics.put("immediateWrites", immediateWrites.get());
+        metrics.put("writesAvoided", Math.max(0, calls - writes));
+        metrics.put("unchangedWritesSkipped", writesAvoided.get());
+        metrics.put("writesAvoidedPerMessage", units > 0 ? (double) Math.max(0, calls - writes) / units : 0.0);
+        return metrics;
+    }
+
+    PlannedWrite plan(Baseline baseline, User user) {
+        String documentId = documentIdOf(user);
+        if (baseline == null) {
+            return new PlannedWrite(user, documentId, null, null);
+        }
+        if (!baseline.documentId().equals(documentId)) {
+            return new PlannedWrite(user, documentId, baseline.documentId(), null);
+        }
+        Map<String, Object> changed = changedFields(baseline.user(), user);
+        if (BOOKKEEPING_FIELDS.containsAll(changed.keySet())) {
+            writesAvoided.incrementAndGet();
+            return null;
+        }
+        return new PlannedWrite(user, documentId, null, changed);
+    }
+
+    /**
+     * Campos de 'after' que difieren de 'before', con el nombre que usa Firestore (el del campo)
+     */
+    static Map<String, Object> changedFields(User before, User after) {
+        return UserFields.changed(before, after);
+    }
+
+    record Baseline(String documentId, User user) {
+    }
+
+    private static final class UnitOfWork {
+        private final Map<String, Baseline> baselines = new HashMap<>();
+        private final Map<String, User> pending = new LinkedHashMap<>();
+        private int depth = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package com.politicalreferralswa.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.politicalreferralswa.model.WatiWebhookEvent;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Extrae los campos del webhook de Wati con un JsonParser de streaming, directamente sobre los
+ * bytes del cuerpo de la petición y sin construir un árbol JsonNode.
+ *
+ * Sólo se leen los campos de primer nivel que usa el chatbot (y 'buttonReply.body' /
+ * 'interactiveButtonReply.title'); el resto de subárboles se saltan con skipChildren().
+ */
+@Component
+public class WatiPayloadParser {
+
+    private final JsonFactory jsonFactory;
+
+    public WatiPayloadParser(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * @param payload Cuerpo del webhook de Wati (JSON en UTF-8)
+     * @return Campos extraídos; los ausentes quedan en null
+     * @throws IOException si el payload no es un objeto JSON válido
+     */
+    public WatiWebhookEvent parse(byte[] payload) throws IOException {
+        String eventType = null;
+        String type = null;
+        String waId = null;
+        String senderName = null;
+        String text = null;
+        String buttonReplyBody = null;
+        String interactiveButtonTitle = null;
+        String whatsappMessageId = null;
+        String id = null;
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("El payload de Wati no es un objeto JSON");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "eventType" -> eventType = scalarText(parser);
+                    case "type" -> type = scalarText(parser);
+                    case "waId" -> waId = scalarText(parser);
+                    case "senderName" -> senderName = scalarText(parser);
+                    case "text" -> text = scalarText(parser);
+                    case "whatsappMessageId" -> whatsappMessageId = scalarText(parser);
+                    case "id" -> id = scalarText(parser);
+                    case "buttonReply" -> buttonReplyBody = nestedText(parser, "body");
+                    case "interactiveButtonReply" -> interactiveButtonTitle = nestedText(parser, "title");
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        String messageId = whatsappMessageId != null ? whatsappMessageId : id;
+        return new WatiWebhookEvent(eventType, type, waId, senderName, text,
+                buttonReplyBody, interactiveButtonTitle, messageId);
+    }
+
+    // Valor escalar como texto; null para null, objetos y arreglos (que se saltan)
+    private static String scalarText(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return token == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    // Lee un único campo escalar de un objeto anidado y salta el resto
+    private static String nestedText(JsonParser parser, String nestedField) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (nestedField.equals(field)) {
+                value = scalarText(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,137 @@
+package com.politicalreferralswa.service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Descarta webhooks duplicados (reintentos de Wati, Meta o Telegram) antes de hacer cualquier trabajo.
+ *
+ * La clave es el ID de mensaje del proveedor (update_id en Telegram). Localmente se usa un
+ * RecentIdFilter (anillo exacto + Bloom rotativo). Opcionalmente, con 'webhook.dedup.redis.enabled',
+ * el ID se reclama también en Redis con SET NX para que un reintento que cae en otra instancia de
+ * Cloud Run también se descarte.
+ *
+ * Flujo esperado en los controladores:
+ *   tryClaim -> (procesar/encolar) -> confirm     si el mensaje fue aceptado
+ *   tryClaim -> (rechazo por saturación) -> release   para aceptar el reintento del proveedor
+ */
+@Service
+public class WebhookDeduplicationService {
+
+    private static final String REDIS_KEY_PREFIX = "webhook:dedup:";
+
+    private final RecentIdFilter recentIds;
+    private final StringRedisTemplate redisTemplate;
+    private final Duration window;
+
+    private final AtomicLong claimedMessages = new AtomicLong(0);
+    private final AtomicLong duplicateMessages = new AtomicLong(0);
+    private final AtomicLong redisDuplicateMessages = new AtomicLong(0);
+    private final AtomicLong redisErrors = new AtomicLong(0);
+
+    public WebhookDeduplicationService(
+            @Value("${webhook.dedup.window-minutes:60}") long windowMinutes,
+            @Value("${webhook.dedup.expected-messages:200000}") int expectedMessages,
+            @Value("${webhook.dedup.recent-capacity:16384}") int recentCapacity,
+            @Value("${webhook.dedup.redis.enabled:false}") boolean redisEnabled,
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider) {
+        this.window = Duration.ofMinutes(windowMinutes);
+        this.recentIds = new RecentIdFilter(recentCapacity, expectedMessages, 1e-6, window.toMillis());
+        this.redisTemplate = redisEnabled ? redisTemplateProvider.getIfAvailable() : null;
+        System.out.println("WebhookDeduplicationService: Ventana de " + windowMinutes + " min, memoria Bloom: "
+                + (recentIds.bloomMemoryBytes() / 1024) + " KB, Redis: " + (this.redisTemplate != null ? "HABILITADO" : "DESHABILITADO"));
+    }
+
+    /**
+     * Reclama un ID de mensaje del proveedor.
+     *
+     * @param provider  Proveedor del webhook ("WATI", "META", "TELEGRAM")
+     * @param messageId ID del mensaje según el proveedor; si es null o vacío no se deduplica
+     * @return true si el mensaje es nuevo y debe procesarse, false si es un duplicado
+     */
+    public boolean tryClaim(String provider, String messageId) {
+        if (messageId == null || messageId.isEmpty()) {
+            return true;
+        }
+        String key = provider + ":" + messageId;
+
+        if (!recentIds.claim(key)) {
+            duplicateMessages.incrementAndGet();
+            System.out.println("WebhookDeduplicationService: Duplicado descartado (local): " + key);
+            return false;
+        }
+
+        if (redisTemplate != null) {
+            try {
+                Boolean claimed = redisTemplate.opsForValue().setIfAbsent(REDIS_KEY_PREFIX + key, "1", window);
+                if (Boolean.FALSE.equals(claimed)) {
+                    // Otra instancia ya lo aceptó: recordarlo localmente para no volver a consultar Redis
+                    recentIds.confirm(key);
+                    duplicateMessages.incrementAndGet();
+                    redisDuplicateMessages.incrementAndGet();
+                    System.out.println("WebhookDeduplicationService: Duplicado descartado (Redis): " + key);
+                    return false;
+                }
+            } catch (Exception e) {
+                // Redis no disponible: seguir sólo con la deduplicación local
+                redisErrors.incrementAndGet();
+                System.err.println("WebhookDeduplicationService: Error consultando Redis, usando sólo deduplicación local: " + e.getMessage());
+            }
+        }
+
+        claimedMessages.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Confirma que el mensaje reclamado fue aceptado, para recordarlo durante toda la ventana
+     */
+    public void confirm(String provider, String messageId) {
+        if (messageId == null || messageId.isEmpty()) {
+            return;
+        }
+        recentIds.confirm(provider + ":" + messageId);
+    }
+
+    /**
+     * Libera un mensaje reclamado que no se pudo aceptar, para que el reintento del proveedor se procese
+     */
+    public void release(String provider, String messageId) {
+        if (messageId == null || messageId.isEmpty()) {
+            return;
+        }
+        String key = provider + ":" + messageId;
+        recentIds.release(key);
+        if (redisTemplate != null) {
+            try {
+                redisTemplate.delete(REDIS_KEY_PREFIX + key);
+            } catch (Exception e) {
+                redisErrors.incrementAndGet();
+                System.err.println("WebhookDeduplicationService: Error liberando clave en Redis: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Obtiene las métricas actuales de deduplicación
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("windowMinutes", window.toMinutes());
+        metrics.put("redisEnabled", redisTemplate != null);
+        metrics.put("claimedMessages", claimedMessages.get());
+        metrics.put("duplicateMessages", duplicateMessages.get());
+        metrics.put("redisDuplicateMessages", redisDuplicateMessages.get());
+        metrics.put("redisErrors", redisErrors.get());
+        metrics.put("recentIds", recentIds.recentSize());
+        metrics.put("bloomMemoryBytes", recentIds.bloomMemoryBytes());
+        return metrics;
+    }
+}
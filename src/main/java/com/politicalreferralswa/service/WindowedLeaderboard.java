@@ -0,0 +1,415 @@
+package com.politicalreferralswa.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rankings por ventana de tiempo (hoy, últimos 7 días y últimos 31 días) con los puntos ganados en
+ * cada ventana: 100 por registrarse y 200 al referente por cada referido, el día de la creación del
+ * usuario (ver UserIndexService).
+ *
+ * Cada usuario con actividad en el último mes tiene una fila de 31 contadores diarios (un anillo por
+ * día en hora de Colombia) y la suma de cada ventana, que se ajustan con cada alta, cambio o baja y, al cambiar el
+ * día, restando los días que salen de cada ventana. Por ventana hay un árbol de orden estadístico
+ * (ver OrderStatisticTree) con los usuarios que tienen puntos, así que la posición (1 + usuarios con
+ * más puntos) es O(log n). Los usuarios sin actividad en el mes no ocupan fila.
+ *
+ * Se construye en la primera consulta después de la carga inicial del índice, cuando ya están todos
+ * los referentes; un referido que llega antes que su referente no le suma hasta que vuelva a cambiar.
+ */
+@Service
+public class WindowedLeaderboard implements UserIndexService.Listener {
+
+    public static final int SIGNUP_POINTS = 100;
+    public static final int REFERRAL_POINTS = 200;
+
+    public static final int TODAY = 0;
+    public static final int WEEK = 1;
+    public static final int MONTH = 2;
+    // Días que cubre cada ventana, contando hoy
+    static final int[] WINDOW_DAYS = {1, 7, 31};
+    static final int DAYS = 31;
+
+    // Los días se cortan a la medianoche de Colombia; como no tiene horario de verano el desfase es fijo (UTC-5)
+    private static final long ZONE_OFFSET_SECONDS =
+            ZoneId.of("America/Bogota").getRules().getOffset(Instant.now()).getTotalSeconds();
+    private static final long DAY_SECONDS = 24L * 60 * 60;
+    private static final int NO_DAY = Integer.MIN_VALUE;
+
+    /**
+     * Posición (1 + usuarios con más puntos) y puntos en una ventana
+     */
+    public record Position(int position, int points) {
+    }
+
+    /**
+     * Posiciones del usuario en las tres ventanas
+     */
+    public record Rankings(Position today, Position week, Position month) {
+    }
+
+    private final CompactUserIndex index;
+    private final UserIndexService userIndexService;
+    private final OrderStatisticTree[] trees = new OrderStatisticTree[WINDOW_DAYS.length];
+    private boolean built = false;
+    private int currentDay;
+    private long rollovers = 0;
+
+    // Por usuario: fila de contadores, día de su registro (si cae en el mes) y referente al que sumó
+    private int[] rowById;
+    private int[] signupDayById;
+    private int[] referrerById;
+    private int[] referrerGenerationById;
+    // Cambia con cada baja, para no restarle al nuevo dueño de un ID reutilizado
+    private int[] generationById;
+
+    // Por fila: 31 contadores diarios, la suma de cada ventana y el usuario dueño
+    private int[] buckets = new int[64 * DAYS];
+    private int[] sums = new int[64 * WINDOW_DAYS.length];
+    private int[] ownerByRow = new int[64];
+    private int rows = 0;
+    private int[] freeRows = new int[16];
+    private int freeRowCount = 0;
+
+    @Autowired
+    public WindowedLeaderboard(UserIndexService userIndexService) {
+        this(userIndexService.index(), userIndexService);
+    }
+
+    /**
+     * Rankings sobre un índice que se actualiza a mano: quien modifica el índice llama a onUpsert y onRemove
+     */
+    public WindowedLeaderboard(CompactUserIndex index) {
+        this(index, null);
+    }
+
+    private WindowedLeaderboard(CompactUserIndex index, UserIndexService userIndexService) {
+        this.index = index;
+        this.userIndexService = userIndexService;
+        int expected = Math.max(16, index.idLimit());
+        for (int window = 0; window < trees.length; window++) {
+            trees[window] = new OrderStatisticTree(64);
+        }
+        rowById = new int[expected];
+        Arrays.fill(rowById, -1);
+        signupDayById = new int[expected];
+        Arrays.fill(signupDayById, NO_DAY);
+        referrerById = new int[expected];
+        Arrays.fill(referrerById, -1);
+        referrerGenerationById = new int[expected];
+        generationById = new int[expected];
+    }
+
+    /**
+     * Se registra como Listener de UserIndexService, si lo hay (las ventanas se construyen con la
+     * primera consulta). Spring lo llama al crear el bean; sobre un CompactUserIndex que se actualiza a
+     * mano no hace falta.
+     */
+    @PostConstruct
+    public void init() {
+        if (userIndexService != null) {
+            userIndexService.addListener(this);
+        }
+    }
+
+    /**
+     * true cuando el índice de usuarios ya terminó su carga inicial
+     */
+    public boolean isReady() {
+        return userIndexService == null || userIndexService.isReady();
+    }
+
+    /**
+     * Día en hora de Colombia (contado desde 1970-01-01) de un instante en segundos
+     */
+    public static int epochDay(long seconds) {
+        return (int) Math.floorDiv(seconds + ZONE_OFFSET_SECONDS, DAY_SECONDS);
+    }
+
+    /**
+     * true si un evento de ese día cuenta en la ventana cuando el día actual es 'today'
+     */
+    public static boolean inWindow(int day, int today, int window) {
+        return day <= today && day > today - WINDOW_DAYS[window];
+    }
+
+    /**
+     * Posiciones del usuario en las tres ventanas, o null si no está en el índice
+     */
+    public synchronized Rankings rankingsOf(String documentId, long nowMillis) {
+        int id = index.idOf(documentId);
+        if (id < 0) {
+            return null;
+        }
+        advanceTo(epochDay(Math.floorDiv(nowMillis, 1000)));
+        ensureCapacity(id);
+        int row = rowById[id];
+        Position[] positions = new Position[WINDOW_DAYS.length];
+        for (int window = 0; window < positions.length; window++) {
+            int points = row < 0 ? 0 : sums[row * WINDOW_DAYS.length + window];
+            OrderStatisticTree tree = trees[window];
+            positions[window] = new Position(tree.size() - tree.countAtMost(points) + 1, points);
+        }
+        return new Rankings(positions[TODAY], positions[WEEK], positions[MONTH]);
+    }
+
+    /**
+     * Posiciones de un usuario sin puntos en ninguna ventana, p. ej. uno que el índice todavía no recibió
+     */
+    public synchronized Rankings unranked(long nowMillis) {
+        advanceTo(epochDay(Math.floorDiv(nowMillis, 1000)));
+        Position[] positions = new Position[WINDOW_DAYS.length];
+        for (int window = 0; window < positions.length; window++) {
+            positions[window] = new Position(trees[window].size() - trees[window].countAtMost(0) + 1, 0);
+        }
+        return new Rankings(positions[TODAY], positions[WEEK], positions[MONTH]);
+    }
+
+    @Override
+    public synchronized void onUpsert(int id) {
+        ensureCapacity(id);
+        if (!built) {
+            return;
+        }
+        if (!index.contains(id)) {
+            removeUser(id);
+            return;
+        }
+        long createdAt = index.createdAtSeconds(id);
+        if (createdAt != CompactUserIndex.NO_TIMESTAMP) {
+            // Un registro de un día posterior significa que el día cambió (sin pasar del reloj)
+            long nowSeconds = Math.floorDiv(System.currentTimeMillis(), 1000);
+            advanceTo(epochDay(Math.min(createdAt, nowSeconds)));
+        }
+        retract(id);
+        contribute(id);
+    }
+
+    @Override
+    public synchronized void onRemove(int id) {
+        ensureCapacity(id);
+        if (built) {
+            removeUser(id);
+        }
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", isReady());
+        metrics.put("built", built);
+        metrics.put("activeUsers", rows - freeRowCount);
+        metrics.put("rankedToday", trees[TODAY].size());
+        metrics.put("rankedWeek", trees[WEEK].size());
+        metrics.put("rankedMonth", trees[MONTH].size());
+        metrics.put("rollovers", rollovers);
+        long bytes = (long) rowById.length * 5 * Integer.BYTES
+                + (long) ownerByRow.length * (DAYS + WINDOW_DAYS.length + 1) * Integer.BYTES;
+        for (OrderStatisticTree tree : trees) {
+            bytes += tree.bytes();
+        }
+        metrics.put("estimatedBytes", bytes);
+        return metrics;
+    }
+
+    // Construye todo en la primera consulta o avanza el anillo hasta 'day'
+    private void advanceTo(int day) {
+        if (!built) {
+            if (!isReady()) {
+                return;
+            }
+            build(day);
+        } else if (day > currentDay) {
+            roll(day);
+        }
+    }
+
+    private void build(int day) {
+        currentDay = day;
+        built = true;
+        // Los IDs se copian primero para no recorrer el índice con su lock de lectura tomado
+        int[] ids = new int[index.idLimit()];
+        int[] count = {0};
+        index.forEach(id -> {
+            if (count[0] < ids.length) {
+                ids[count[0]++] = id;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            ensureCapacity(ids[i]);
+            contribute(ids[i]);
+        }
+    }
+
+    // Resta de cada ventana los días que salen y vacía sus contadores
+    private void roll(int day) {
+        rollovers++;
+        int gap = day - currentDay;
+        if (gap >= DAYS) {
+            for (int row = 0; row < rows; row++) {
+                if (ownerByRow[row] >= 0) {
+                    releaseRow(row);
+                }
+            }
+            currentDay = day;
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            int id = ownerByRow[row];
+            if (id < 0) {
+                continue;
+            }
+            for (int newDay = currentDay + 1; newDay <= day; newDay++) {
+                for (int window = 0; window < WINDOW_DAYS.length; window++) {
+                    int expired = buckets[row * DAYS + Math.floorMod(newDay - WINDOW_DAYS[window], DAYS)];
+                    if (expired != 0) {
+                        setSum(id, row, window, sums[row * WINDOW_DAYS.length + window] - expired);
+                    }
+                }
+                buckets[row * DAYS + Math.floorMod(newDay, DAYS)] = 0;
+            }
+            if (sums[row * WINDOW_DAYS.length + MONTH] == 0) {
+                releaseRow(row);
+            }
+        }
+        currentDay = day;
+    }
+
+    // Suma el registro del usuario y, si tiene referente, el referido al referente
+    private void contribute(int id) {
+        long createdAt = index.createdAtSeconds(id);
+        if (createdAt == CompactUserIndex.NO_TIMESTAMP) {
+            return;
+        }
+        int day = Math.min(epochDay(createdAt), currentDay);
+        if (!inWindow(day, currentDay, MONTH)) {
+            return;
+        }
+        signupDayById[id] = day;
+        add(id, day, SIGNUP_POINTS);
+        int referrer = referrerOf(id);
+        if (referrer >= 0 && referrer != id) {
+            ensureCapacity(referrer);
+            referrerById[id] = referrer;
+            referrerGenerationById[id] = generationById[referrer];
+            add(referrer, day, REFERRAL_POINTS);
+        }
+    }
+
+    private void retract(int id) {
+        int day = signupDayById[id];
+        if (day == NO_DAY) {
+            return;
+        }
+        add(id, day, -SIGNUP_POINTS);
+        int referrer = referrerById[id];
+        if (referrer >= 0 && generationById[referrer] == referrerGenerationById[id]) {
+            add(referrer, day, -REFERRAL_POINTS);
+        }
+        signupDayById[id] = NO_DAY;
+        referrerById[id] = -1;
+    }
+
+    private void removeUser(int id) {
+        retract(id);
+        if (rowById[id] >= 0) {
+            releaseRow(rowById[id]);
+        }
+        generationById[id]++;
+    }
+
+    // Igual que ReferralGraph: el código de referido manda; sin código, el teléfono del referente
+    private int referrerOf(int id) {
+        String referredByCode = index.referredByCode(id);
+        if (referredByCode != null) {
+            return index.idOfReferralCode(referredByCode);
+        }
+        long referredByPhone = index.referredByPhoneKey(id);
+        return referredByPhone == 0 ? -1 : index.idOfPhone("+" + referredByPhone);
+    }
+
+    private void add(int id, int day, int delta) {
+        // Los días que ya salieron del mes se restaron al avanzar el anillo
+        if (!inWindow(day, currentDay, MONTH)) {
+            return;
+        }
+        int row = rowById[id];
+        if (row < 0) {
+            row = allocateRow(id);
+        }
+        buckets[row * DAYS + Math.floorMod(day, DAYS)] += delta;
+        for (int window = 0; window < WINDOW_DAYS.length; window++) {
+            if (inWindow(day, currentDay, window)) {
+                setSum(id, row, window, sums[row * WINDOW_DAYS.length + window] + delta);
+            }
+        }
+        if (sums[row * WINDOW_DAYS.length + MONTH] == 0) {
+            releaseRow(row);
+        }
+    }
+
+    // Sólo los usuarios con puntos están en el árbol: los demás empatan en el último lugar
+    private void setSum(int id, int row, int window, int sum) {
+        int slot = row * WINDOW_DAYS.length + window;
+        if (sums[slot] > 0) {
+            trees[window].remove(sums[slot], id);
+        }
+        sums[slot] = sum;
+        if (sum > 0) {
+            trees[window].insert(sum, id);
+        }
+    }
+
+    private int allocateRow(int id) {
+        int row;
+        if (freeRowCount > 0) {
+            row = freeRows[--freeRowCount];
+        } else {
+            if (rows == ownerByRow.length) {
+                int capacity = rows * 2;
+                ownerByRow = Arrays.copyOf(ownerByRow, capacity);
+                buckets = Arrays.copyOf(buckets, capacity * DAYS);
+                sums = Arrays.copyOf(sums, capacity * WINDOW_DAYS.length);
+            }
+            row = rows++;
+        }
+        ownerByRow[row] = id;
+        rowById[id] = row;
+        return row;
+    }
+
+    private void releaseRow(int row) {
+        int id = ownerByRow[row];
+        for (int window = 0; window < WINDOW_DAYS.length; window++) {
+            setSum(id, row, window, 0);
+        }
+        Arrays.fill(buckets, row * DAYS, (row + 1) * DAYS, 0);
+        ownerByRow[row] = -1;
+        rowById[id] = -1;
+        if (freeRowCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeRowCount * 2);
+        }
+        freeRows[freeRowCount++] = row;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= rowById.length) {
+            int capacity = Math.max(id + 1, rowById.length + (rowById.length >> 1));
+            int previous = rowById.length;
+            rowById = Arrays.copyOf(rowById, capacity);
+            Arrays.fill(rowById, previous, capacity, -1);
+            signupDayById = Arrays.copyOf(signupDayById, capacity);
+            Arrays.fill(signupDayById, previous, capacity, NO_DAY);
+            referrerById = Arrays.copyOf(referrerById, capacity);
+            Arrays.fill(referrerById, previous, capacity, -1);
+            referrerGenerationById = Arrays.copyOf(referrerGenerationById, capacity);
+            generationById = Arrays.copyOf(generationById, capacity);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.politicalreferralswa.benchmark;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.service.CompactUserIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara la memoria y el tiempo de consulta del índice compacto de usuarios con el camino anterior
+ * (Map de ID de documento a User, más un Map de teléfono a ID de documento) para 100 mil, 1 millón
+ * y 5 millones de usuarios, con el mismo heap de 1 GB que usa el contenedor.
+ *
+ * La memoria retenida (heap usado tras GC, antes y después de construir la estructura) se imprime
+ * en el setup como bytes por usuario; si la estructura no cabe en el heap se informa y las
+ * mediciones de esa combinación no hacen nada.
+ *
+ * Ejecutar desde el IDE (main) o con el perfil de tests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class CompactUserIndexBenchmark {
+
+    private static final String[] CITIES = {"Bogotá", "Medellín", "Cali", "Barranquilla", "Cartagena",
+            "Bucaramanga", "Pereira", "Manizales", "Santa Marta", "Cúcuta", "Ibagué", "Villavicencio"};
+    private static final String[] STATES = {"Cundinamarca", "Antioquia", "Valle del Cauca", "Atlántico",
+            "Bolívar", "Santander", "Risaralda", "Caldas", "Magdalena", "Norte de Santander", "Tolima", "Meta"};
+    private static final String[] CHATBOT_STATES = {"WAITING_NAME", "WAITING_CITY", "WAITING_TERMS", "COMPLETED"};
+    private static final String ALPHABET = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
+
+    @Param({"100000", "1000000", "5000000"})
+    private int users;
+
+    @Param({"compact", "objects"})
+    private String structure;
+
+    private CompactUserIndex index;
+    private Map<String, User> usersById;
+    private Map<String, String> documentIdByPhone;
+    private boolean fits;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long before = retainedHeap();
+        try {
+            if ("compact".equals(structure)) {
+                index = new CompactUserIndex(users);
+                for (int i = 0; i < users; i++) {
+                    index.upsert(documentId(i), "+" + documentId(i), CITIES[i % CITIES.length], STATES[i % STATES.length],
+                            CHATBOT_STATES[i % CHATBOT_STATES.length], 1_700_000_000L + i, 1_700_000_000L + i,
+                            referralCode(i), i % 3 == 0 ? referralCode(i / 3) : null, null, i % 2 == 0);
+                }
+            } else {
+                usersById = new HashMap<>();
+                documentIdByPhone = new HashMap<>();
+                for (int i = 0; i < users; i++) {
+                    User user = user(i);
+                    usersById.put(documentId(i), user);
+                    documentIdByPhone.put(user.getPhone(), documentId(i));
+                }
+            }
+            fits = true;
+            long bytes = retainedHeap() - before;
+            System.out.printf("%n%s con %,d usuarios: %,d MB retenidos, %d bytes por usuario%n",
+                    structure, users, bytes / (1024 * 1024), bytes / users);
+        } catch (OutOfMemoryError e) {
+            index = null;
+            usersById = null;
+            documentIdByPhone = null;
+            fits = false;
+            System.out.printf("%n%s con %,d usuarios: NO CABE en un heap de %,d MB%n",
+                    structure, users, Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index = null;
+        usersById = null;
+        documentIdByPhone = null;
+    }
+
+    @Benchmark
+    public int lookupByPhone() {
+        if (!fits) {
+            return -1;
+        }
+        String phone = "+" + documentId(ThreadLocalRandom.current().nextInt(users));
+        if (index != null) {
+            int id = index.idOfPhone(phone);
+            return index.cityCode(id);
+        }
+        return usersById.get(documentIdByPhone.get(phone)).getCity().length();
+    }
+
+    @Benchmark
+    public int countUsersInCity() {
+        if (!fits) {
+            return -1;
+        }
+        if (index != null) {
+            int city = index.cityCodeOf("Medellín");
+            int[] count = {0};
+            index.forEach(id -> {
+                if (index.cityCode(id) == city) {
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+        int count = 0;
+        for (User user : usersById.values()) {
+            if ("Medellín".equals(user.getCity())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String documentId(int i) {
+        return Long.toString(573_000_000_000L + i);
+    }
+
+    private static String referralCode(int i) {
+        char[] code = new char[8];
+        long value = i * 2_654_435_761L;
+        for (int c = 0; c < code.length; c++) {
+            code[c] = ALPHABET.charAt((int) Math.floorMod(value >> (c * 5), ALPHABET.length()));
+        }
+        return new String(code);
+    }
+
+    // Como lo deja el chatbot: cada usuario con sus propios String y Timestamp
+    private static User user(int i) {
+        User user = new User();
+        user.setId(java.util.UUID.randomUUID().toString());
+        user.setPhone("+" + documentId(i));
+        user.setPhone_code("+57");
+        user.setName("Nombre " + i);
+        user.setLastname("Apellido " + i);
+        user.setCity(new String(CITIES[i % CITIES.length]));
+        user.setState(new String(STATES[i % STATES.length]));
+        user.setChatbot_state(new String(CHATBOT_STATES[i % CHATBOT_STATES.length]));
+        user.setReferral_code(referralCode(i));
+        user.setReferred_by_code(i % 3 == 0 ? referralCode(i / 3) : null);
+        user.setAceptaTerminos(i % 2 == 0);
+        user.setCreated_at(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L + i, 0));
+        user.setUpdated_at(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L + i, 0));
+        return user;
+    }
+
+    private static long retainedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CompactUserIndexBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,136 @@
+package com.politicalreferralswa.benchmark;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.service.CompactUserIndex;
+import com.politicalreferralswa.service.UserLeaderboard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara la posición en el ranking calculada con UserLeaderboard (y su top 10) con el recorrido
+ * anterior de LocalAnalyticsService.calculateUserRanking (un Map por usuario, ordenar la lista y
+ * contar), sobre los datos ya en memoria, para 10 mil, 100 mil y 1 millón de usuarios. También mide
+ * el costo de mantener el ranking al cambiar un usuario.
+ *
+ * Ejecutar desde el IDE (main) o con el perfil de tests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class UserLeaderboardBenchmark {
+
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    @Param({"10000", "100000", "1000000"})
+    private int users;
+
+    private long now;
+    private CompactUserIndex index;
+    private UserLeaderboard leaderboard;
+    private Map<String, Map<String, Object>> documents;
+
+    @Setup
+    public void setUp() {
+        now = System.currentTimeMillis();
+        index = new CompactUserIndex(users);
+        documents = new HashMap<>(users * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < users; i++) {
+            String documentId = Long.toString(573_000_000_000L + i);
+            User user = new User();
+            user.setCreated_at(Timestamp.ofTimeMicroseconds((now - random.nextLong(180 * DAY_MILLIS)) * 1000));
+            user.setReferral_code(random.nextBoolean() ? "AB" + Integer.toString(i, 36).toUpperCase() : null);
+            user.setAceptaTerminos(random.nextInt(4) != 0);
+            index.upsert(documentId, user);
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("created_at", user.getCreated_at());
+            data.put("referral_code", user.getReferral_code());
+            data.put("aceptaTerminos", user.isAceptaTerminos());
+            documents.put(documentId, data);
+        }
+        leaderboard = new UserLeaderboard(index);
+        leaderboard.init();
+    }
+
+    @Benchmark
+    public int leaderboardRank() {
+        return leaderboard.rankOf(randomDocumentId(), now);
+    }
+
+    @Benchmark
+    public List<UserLeaderboard.Entry> leaderboardTop10() {
+        return leaderboard.top(10, now);
+    }
+
+    @Benchmark
+    public int leaderboardUpdate() {
+        String documentId = randomDocumentId();
+        int id = index.idOf(documentId);
+        index.upsert(documentId, index.phone(id), null, null, null,
+                index.createdAtSeconds(id) - 1, CompactUserIndex.NO_TIMESTAMP,
+                index.referralCode(id), null, null, !index.acceptedTerms(id));
+        leaderboard.onUpsert(id);
+        return id;
+    }
+
+    @Benchmark
+    public int scanRank() {
+        // Igual que calculateUserRanking: puntos de todos, ordenar y contar los que tienen más
+        String userId = randomDocumentId();
+        int userPoints = points(documents.get(userId));
+        List<Map<String, Object>> allUsers = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> doc : documents.entrySet()) {
+            if (!doc.getKey().equals(userId)) {
+                allUsers.add(Map.of("id", doc.getKey(), "points", points(doc.getValue())));
+            }
+        }
+        allUsers.sort((a, b) -> Integer.compare((Integer) b.get("points"), (Integer) a.get("points")));
+        int betterUsers = 0;
+        for (Map<String, Object> user : allUsers) {
+            if ((Integer) user.get("points") > userPoints) {
+                betterUsers++;
+            }
+        }
+        return betterUsers + 1;
+    }
+
+    private int points(Map<String, Object> data) {
+        Timestamp created = (Timestamp) data.get("created_at");
+        return UserLeaderboard.points(created != null ? created.getSeconds() : CompactUserIndex.NO_TIMESTAMP,
+                data.get("referral_code") != null, Boolean.TRUE.equals(data.get("aceptaTerminos")), now);
+    }
+
+    private String randomDocumentId() {
+        return Long.toString(573_000_000_000L + ThreadLocalRandom.current().nextInt(users));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UserLeaderboardBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+package com.politicalreferralswa.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.politicalreferralswa.model.WatiWebhookEvent;
+import com.politicalreferralswa.service.WatiPayloadParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara el parser de streaming del webhook de Wati con el camino anterior
+ * (cuerpo como String + objectMapper.readTree + JsonNode.path).
+ *
+ * Ejecutar desde el IDE (main) o con el perfil de tests; para ver asignaciones por operación
+ * añadir '-prof gc' a los argumentos de JMH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WatiPayloadParserBenchmark {
+
+    // Payload real de Wati: incluye subárboles que el chatbot no usa
+    private static final String PAYLOAD = """
+            {
+              "id": "6512f1c2a8b3e4d5f6a7b8c9",
+              "created": "2025-07-14T15:04:05.000Z",
+              "whatsappMessageId": "wamid.HBgMNTczMDAxMjM0NTY3FQIAEhgUM0VCMDRGQjQ1",
+              "conversationId": "6512f1c2a8b3e4d5f6a7b8ca",
+              "ticketId": "6512f1c2a8b3e4d5f6a7b8cb",
+              "text": "Hola! Soy Dr. Miguel Rodríguez de Barranquilla, acepto sus términos",
+              "type": "text",
+              "data": null,
+              "sourceId": null,
+              "sourceUrl": null,
+              "timestamp": "1720969445",
+              "owner": false,
+              "eventType": "message",
+              "statusString": "SENT",
+              "avatarUrl": null,
+              "assignedId": "6512f1c2a8b3e4d5f6a7b8cc",
+              "operatorName": "Bot",
+              "operatorEmail": null,
+              "waId": "573001234567",
+              "messageContact": null,
+              "senderName": "Miguel",
+              "listReply": null,
+              "interactiveButtonReply": null,
+              "buttonReply": null,
+              "replyContextId": null,
+              "sourceType": 0,
+              "frequentlyForwarded": false,
+              "forwarded": false,
+              "channelPhoneNumber": "573009876543",
+              "tags": [{"id": "t1", "name": "referido"}, {"id": "t2", "name": "barranquilla"}],
+              "contact": {"id": "c1", "customParams": [{"name": "city", "value": "Barranquilla"}]}
+            }
+            """;
+
+    private ObjectMapper objectMapper;
+    private WatiPayloadParser parser;
+    private byte[] payloadBytes;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new ObjectMapper();
+        parser = new WatiPayloadParser(objectMapper);
+        payloadBytes = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public WatiWebhookEvent streamingParser() throws Exception {
+        return parser.parse(payloadBytes);
+    }
+
+    @Benchmark
+    public void treeModel(Blackhole blackhole) throws Exception {
+        // Spring convertía el cuerpo a String antes de llegar al controlador
+        String payload = new String(payloadBytes, StandardCharsets.UTF_8);
+        JsonNode rootNode = objectMapper.readTree(payload);
+        blackhole.consume(rootNode.path("eventType").asText());
+        blackhole.consume(rootNode.path("type").asText());
+        blackhole.consume(rootNode.path("waId").asText());
+        blackhole.consume(rootNode.path("text").asText());
+        blackhole.consume(rootNode.path("senderName").asText(null));
+        blackhole.consume(rootNode.path("whatsappMessageId").asText(rootNode.path("id").asText("")));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WatiPayloadParserBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,157 @@
+package com.politicalreferralswa.benchmark;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.service.CompactUserIndex;
+import com.politicalreferralswa.service.WindowedLeaderboard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara las posiciones de hoy, la semana y el mes calculadas con WindowedLeaderboard con el
+ * recorrido de LocalAnalyticsService.calculateWindowedRanking (dueños de cada código, puntos por
+ * ventana de todos y contar los que tienen más), sobre los datos ya en memoria, para 10 mil, 100 mil
+ * y 1 millón de usuarios. También mide el costo de mantener las ventanas al cambiar el referente de
+ * un usuario.
+ *
+ * Ejecutar desde el IDE (main) o con el perfil de tests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class WindowedLeaderboardBenchmark {
+
+    private static final long DAY_MILLIS = 86_400_000L;
+    private static final int REFERRERS = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    private int users;
+
+    private long now;
+    private CompactUserIndex index;
+    private WindowedLeaderboard leaderboard;
+    private Map<String, Map<String, Object>> documents;
+
+    @Setup
+    public void setUp() {
+        now = System.currentTimeMillis();
+        index = new CompactUserIndex(users);
+        documents = new HashMap<>(users * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < users; i++) {
+            String documentId = documentId(i);
+            User user = new User();
+            user.setPhone("+" + documentId);
+            user.setCreated_at(Timestamp.ofTimeMicroseconds((now - random.nextLong(60 * DAY_MILLIS)) * 1000));
+            user.setReferral_code(i < REFERRERS ? referralCode(i) : null);
+            user.setReferred_by_code(i >= REFERRERS && random.nextBoolean() ? referralCode(random.nextInt(REFERRERS)) : null);
+            index.upsert(documentId, user);
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("created_at", user.getCreated_at());
+            data.put("referral_code", user.getReferral_code());
+            data.put("referred_by_code", user.getReferred_by_code());
+            documents.put(documentId, data);
+        }
+        leaderboard = new WindowedLeaderboard(index);
+        // La primera consulta construye las ventanas
+        leaderboard.rankingsOf(documentId(0), now);
+    }
+
+    @Benchmark
+    public WindowedLeaderboard.Rankings leaderboardRankings() {
+        return leaderboard.rankingsOf(documentId(ThreadLocalRandom.current().nextInt(users)), now);
+    }
+
+    @Benchmark
+    public int leaderboardUpdate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String documentId = documentId(REFERRERS + random.nextInt(users - REFERRERS));
+        int id = index.idOf(documentId);
+        User user = new User();
+        user.setPhone(index.phone(id));
+        user.setCreated_at(Timestamp.ofTimeSecondsAndNanos(index.createdAtSeconds(id), 0));
+        user.setReferred_by_code(referralCode(random.nextInt(REFERRERS)));
+        leaderboard.onUpsert(index.upsert(documentId, user));
+        return id;
+    }
+
+    @Benchmark
+    public int scanRankings() {
+        // Igual que calculateWindowedRanking: dueño de cada código, puntos por ventana y contar
+        String userId = documentId(ThreadLocalRandom.current().nextInt(users));
+        int today = WindowedLeaderboard.epochDay(Math.floorDiv(now, 1000));
+        Map<String, String> ownerByCode = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> doc : documents.entrySet()) {
+            Object referralCode = doc.getValue().get("referral_code");
+            if (referralCode != null) {
+                ownerByCode.put(referralCode.toString(), doc.getKey());
+            }
+        }
+        Map<String, int[]> pointsById = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> doc : documents.entrySet()) {
+            Timestamp created = (Timestamp) doc.getValue().get("created_at");
+            int day = Math.min(WindowedLeaderboard.epochDay(created.getSeconds()), today);
+            if (!WindowedLeaderboard.inWindow(day, today, WindowedLeaderboard.MONTH)) {
+                continue;
+            }
+            addWindowPoints(pointsById, doc.getKey(), day, today, WindowedLeaderboard.SIGNUP_POINTS);
+            Object referredByCode = doc.getValue().get("referred_by_code");
+            String referrer = referredByCode != null ? ownerByCode.get(referredByCode.toString()) : null;
+            if (referrer != null) {
+                addWindowPoints(pointsById, referrer, day, today, WindowedLeaderboard.REFERRAL_POINTS);
+            }
+        }
+        int[] userPoints = pointsById.getOrDefault(userId, new int[3]);
+        int positions = 3;
+        for (int[] points : pointsById.values()) {
+            for (int window = 0; window < 3; window++) {
+                positions += points[window] > userPoints[window] ? 1 : 0;
+            }
+        }
+        return positions;
+    }
+
+    private static void addWindowPoints(Map<String, int[]> pointsById, String userId, int day, int today, int points) {
+        int[] windows = pointsById.computeIfAbsent(userId, id -> new int[3]);
+        for (int window = 0; window < windows.length; window++) {
+            if (WindowedLeaderboard.inWindow(day, today, window)) {
+                windows[window] += points;
+            }
+        }
+    }
+
+    private static String documentId(int i) {
+        return Long.toString(573_000_000_000L + i);
+    }
+
+    private static String referralCode(int i) {
+        return "AB" + Integer.toString(i, 36).toUpperCase();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WindowedLeaderboardBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,122 @@
+package com.politicalreferralswa.repository;
+
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para InMemoryUserRepository que documentan el repositorio de usuarios en memoria:
+ * - Un usuario guardado se encuentra por ID de documento, teléfono, chat de Telegram y código de referido
+ * - Un merge sólo cambia los campos indicados y mantiene los índices (p. ej. el conteo de referidos)
+ * - Mover un usuario de su documento UUID al documento por teléfono deja un solo documento
+ * - Las lecturas devuelven copias: modificar lo leído no cambia lo guardado
+ * - Los campos de un usuario leído tienen los nombres de Firestore y omiten los nulos (para las
+ *   estadísticas de LocalAnalyticsService)
+ */
+@DisplayName("InMemoryUserRepository - Tests del Repositorio en Memoria")
+class InMemoryUserRepositoryTest {
+
+    private final InMemoryUserRepository repository = new InMemoryUserRepository();
+
+    private static User user(String phone, String referralCode, String referredByCode) {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-" + phone.substring(phone.length() - 12));
+        user.setPhone(phone);
+        user.setName("Juan");
+        user.setCity("Medellín");
+        user.setReferral_code(referralCode);
+        user.setReferred_by_code(referredByCode);
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Un usuario guardado se encuentra por cada identificador")
+    void testFindByEveryIdentifier() {
+        User juan = user("+573001234567", "AB23CD45", null);
+        juan.setTelegram_chat_id("987654");
+        repository.save("573001234567", juan, null).join();
+
+        assertEquals("573001234567", repository.findByPhone("+573001234567").join().orElseThrow().documentId());
+        assertTrue(repository.findById("573001234567").join().isPresent());
+        assertTrue(repository.findByTelegramChatId("987654").join().isPresent());
+        assertTrue(repository.findByReferralCode("AB23CD45").join().isPresent());
+        assertTrue(repository.findByAnyIdentifier(null, "987654", "TELEGRAM").join().isPresent(),
+                "❌ En Telegram el remitente debe resolverse por su chat");
+        assertTrue(repository.findByAnyIdentifier("+573009999999", "573009999999", "WHATSAPP").join().isEmpty());
+    }
+
+    @Test
+    @DisplayName("✅ Un merge cambia sólo los campos indicados y actualiza los referidos")
+    void testMergeUpdatesFieldsAndIndexes() {
+        repository.save("573001234567", user("+573001234567", "AB23CD45", null), null).join();
+        repository.save("573002222222", user("+573002222222", "EF67GH89", "AB23CD45"), null).join();
+        assertEquals(1L, repository.countByReferrer("AB23CD45").join());
+
+        Map<String, Object> reset = new HashMap<>();
+        reset.put("chatbot_state", "NEW");
+        reset.put("aceptaTerminos", false);
+        reset.put("referred_by_code", null);
+        repository.merge("573002222222", reset, null, null).join();
+
+        User merged = repository.findById("573002222222").join().orElseThrow().user();
+        assertEquals("NEW", merged.getChatbot_state());
+        assertEquals("Juan", merged.getName(), "❌ Los campos no indicados deben conservarse");
+        assertEquals(0L, repository.countByReferrer("AB23CD45").join(), "❌ El referido debe dejar de contarse");
+        assertTrue(repository.findByReferrer("AB23CD45").join().isEmpty());
+    }
+
+    @Test
+    @DisplayName("✅ Mover un usuario deja un solo documento, bajo su teléfono")
+    void testMoveReplacesDocument() {
+        User telegramUser = user("+573003333333", "JK23LM45", null);
+        telegramUser.setPhone(null);
+        repository.save(telegramUser.getId(), telegramUser, null).join();
+
+        telegramUser.setPhone("+573003333333");
+        repository.move(telegramUser.getId(), "573003333333", telegramUser, null).join();
+
+        assertTrue(repository.findById(telegramUser.getId()).join().isEmpty(), "❌ El documento UUID debe eliminarse");
+        assertEquals("573003333333", repository.findByReferralCode("JK23LM45").join().orElseThrow().documentId());
+        assertEquals(1, repository.size());
+
+        List<String> medellin = new ArrayList<>();
+        assertEquals(1L, repository.streamByCity("Medellín", stored -> medellin.add(stored.documentId())).join());
+        assertEquals(List.of("573003333333"), medellin);
+    }
+
+    @Test
+    @DisplayName("✅ Las lecturas devuelven copias y los códigos asignados no se repiten")
+    void testCopiesAndReferralCodeAllocation() {
+        repository.save("573001234567", user("+573001234567", "AB23CD45", null), null).join();
+        repository.findById("573001234567").join().orElseThrow().user().setName("Modificado");
+        assertEquals("Juan", repository.findById("573001234567").join().orElseThrow().user().getName(),
+                "❌ Modificar un usuario leído no debe cambiar el guardado");
+
+        Set<String> codes = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            assertTrue(codes.add(repository.allocateReferralCode("57300" + i).join()), "❌ Código de referido repetido");
+        }
+        assertFalse(codes.contains("AB23CD45"));
+    }
+
+    @Test
+    @DisplayName("✅ Los campos de un usuario leído tienen los nombres de Firestore y omiten los nulos")
+    void testStoredUserFields() {
+        repository.save("573002222222", user("+573002222222", "EF67GH89", "AB23CD45"), null).join();
+
+        Map<String, Object> fields = repository.findById("573002222222").join().orElseThrow().fields();
+        assertEquals("Medellín", fields.get("city"));
+        assertEquals("AB23CD45", fields.get("referred_by_code"));
+        assertEquals(Boolean.FALSE, fields.get("aceptaTerminos"));
+        assertFalse(fields.containsKey("state"), "❌ Un campo nulo no debe aparecer, como en DocumentSnapshot.getData()");
+    }
+}
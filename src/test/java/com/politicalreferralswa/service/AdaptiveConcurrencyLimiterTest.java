@@ -0,0 +1,100 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.service.AdaptiveConcurrencyLimiter.Priority;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para AdaptiveConcurrencyLimiter que documentan la admisión de mensajes:
+ * - El límite baja cuando la latencia crece respecto a la latencia sin carga
+ * - El límite sube mientras la latencia se mantiene estable y el límite se usa
+ * - La cola admitida sigue al límite y la baja prioridad sólo usa una parte de ella
+ * - acquire() espera a que se libere un hueco en lugar de rechazar
+ */
+@DisplayName("AdaptiveConcurrencyLimiter - Tests de Control de Admisión")
+class AdaptiveConcurrencyLimiterTest {
+
+    private static final long BASE_RTT = 100_000_000L; // 100 ms
+
+    @Test
+    @DisplayName("✅ El límite baja cuando la latencia se dispara")
+    void testLimitDecreasesWhenLatencyGrows() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 10, 500, 0.5);
+        limiter.acquire(Priority.HIGH);
+        limiter.onComplete(BASE_RTT, false);
+
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(Priority.HIGH);
+            limiter.onComplete(BASE_RTT * 5, false);
+        }
+
+        assertTrue(limiter.getLimit() < 100, "❌ El límite debería bajar con latencia 5x, es " + limiter.getLimit());
+        assertTrue(limiter.getLimit() >= 10, "❌ El límite no puede bajar del mínimo");
+    }
+
+    @Test
+    @DisplayName("✅ El límite sube con latencia estable bajo carga")
+    void testLimitGrowsWithStableLatency() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(20, 10, 500, 0.5);
+        for (int round = 0; round < 20; round++) {
+            int inFlight = limiter.getLimit();
+            for (int i = 0; i < inFlight; i++) {
+                limiter.acquire(Priority.HIGH);
+            }
+            for (int i = 0; i < inFlight; i++) {
+                limiter.onComplete(BASE_RTT, false);
+            }
+        }
+
+        assertTrue(limiter.getLimit() > 20, "❌ El límite debería crecer, es " + limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("✅ La cola admitida se encoge con el límite y la baja prioridad se descarta primero")
+    void testAdmissionFollowsLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(500, 10, 500, 0.5);
+        assertEquals(2000, limiter.admissionBound(Priority.HIGH, 2000), "❌ Con el límite al tope se admite toda la cola");
+        assertEquals(1000, limiter.admissionBound(Priority.LOW, 2000), "❌ La API directa no debe usar más de la mitad de la cola");
+
+        limiter.acquire(Priority.HIGH);
+        limiter.onComplete(BASE_RTT, false);
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(Priority.HIGH);
+            limiter.onComplete(BASE_RTT * 5, false);
+        }
+
+        int bound = limiter.admissionBound(Priority.HIGH, 2000);
+        assertEquals(2000 * limiter.getLimit() / 500, bound, "❌ La cola admitida debe seguir al límite");
+        assertTrue(bound < 2000, "❌ Con latencia 5x se deben admitir menos mensajes, se admiten " + bound);
+        assertTrue(limiter.admissionBound(Priority.LOW, 2000) < bound);
+    }
+
+    @Test
+    @DisplayName("✅ acquire espera a que se libere un hueco")
+    void testAcquireWaitsForRelease() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 1.0);
+        limiter.acquire(Priority.HIGH);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                limiter.acquire(Priority.HIGH);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS), "❌ Sin huecos libres acquire debe esperar");
+        limiter.onComplete(BASE_RTT, false);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS), "❌ Al liberar el hueco el hilo en espera debe continuar");
+        waiter.join();
+        assertEquals(1, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,164 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.SystemConfiguration;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para ChangeFeedService que documentan la captura de cambios:
+ * - Un documento nuevo, modificado o eliminado se publica como CREATED, UPDATED (con los campos
+ *   que cambiaron) o DELETED, y un documento que llega sin cambios no se publica
+ * - Los campos modificados se detectan con huellas de los valores, sin guardar los documentos
+ * - Un suscriptor que no consume a tiempo frena la publicación (se cuenta) pero no pierde eventos
+ * - SystemConfigService actualiza el estado de la IA con los cambios de 'system_configuration'
+ */
+@DisplayName("ChangeFeedService - Tests de la Captura de Cambios")
+class ChangeFeedServiceTest {
+
+    private static ChangeFeedService feed(int bufferSize, long stallWarningMillis) {
+        return new ChangeFeedService(null, false, true, "firestore", bufferSize, stallWarningMillis, 10);
+    }
+
+    private static Map<String, Object> userData(String city, String chatbotState) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("phone", "+573001234567");
+        data.put("city", city);
+        data.put("chatbot_state", chatbotState);
+        return data;
+    }
+
+    @Test
+    @DisplayName("✅ Se publican creados, modificados con sus campos y eliminados")
+    void testPublishesTypedChanges() throws Exception {
+        ChangeFeedService changeFeed = feed(16, 1000);
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        changeFeed.subscribe("test", events::add, ChangeFeedService.USERS);
+
+        User user = new User();
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", userData("Medellín", "WAITING_NAME"), () -> user, true);
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", userData("Medellín", "WAITING_NAME"), () -> user, false);
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", userData("Medellín", "COMPLETED"), () -> user, false);
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", null, null, false);
+        changeFeed.apply(ChangeFeedService.USERS, "573009999999", null, null, false);
+
+        ChangeEvent created = events.poll(5, TimeUnit.SECONDS);
+        assertEquals(ChangeEvent.Type.CREATED, created.type());
+        assertTrue(created.initial(), "❌ Los documentos del primer snapshot deben marcarse como iniciales");
+        assertSame(user, created.as(User.class));
+
+        ChangeEvent updated = events.poll(5, TimeUnit.SECONDS);
+        assertEquals(ChangeEvent.Type.UPDATED, updated.type(), "❌ Un documento sin cambios no debe publicarse");
+        assertEquals(Set.of("chatbot_state"), updated.changedFields());
+
+        ChangeEvent deleted = events.poll(5, TimeUnit.SECONDS);
+        assertEquals(ChangeEvent.Type.DELETED, deleted.type());
+        assertEquals(Set.of("phone", "city", "chatbot_state"), deleted.changedFields(),
+                "❌ Un eliminado debe traer los campos que tenía");
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS), "❌ Eliminar un documento desconocido no debe publicarse");
+        assertEquals(0, documentsOf(changeFeed));
+    }
+
+    @Test
+    @DisplayName("✅ Los campos modificados se detectan con huellas, sin guardar los documentos")
+    void testChangedFieldsFromFingerprints() throws Exception {
+        ChangeFeedService changeFeed = feed(16, 1000);
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        changeFeed.subscribe("test", events::add, ChangeFeedService.USERS);
+
+        Map<String, Object> data = userData("Medellín", "COMPLETED");
+        data.put("created_at", Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 0));
+        data.put("aceptaTerminos", false);
+        data.put("referred_by_code", null);
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", new HashMap<>(data), User::new, false);
+        events.poll(5, TimeUnit.SECONDS);
+
+        data.put("created_at", Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 1));
+        data.put("aceptaTerminos", true);
+        data.put("referred_by_code", "AB23CD45");
+        data.remove("city");
+        data.put("name", "Juan");
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", new HashMap<>(data), User::new, false);
+        assertEquals(Set.of("created_at", "aceptaTerminos", "referred_by_code", "city", "name"),
+                events.poll(5, TimeUnit.SECONDS).changedFields(),
+                "❌ Deben detectarse cambios de fecha, booleano, null a valor, campos quitados y campos nuevos");
+
+        changeFeed.apply(ChangeFeedService.USERS, "573001234567", new HashMap<>(data), User::new, false);
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS), "❌ Los mismos valores no deben publicarse");
+        assertEquals(1, documentsOf(changeFeed));
+        assertNotEquals(ChangeFeedService.fingerprint(null), ChangeFeedService.fingerprint("null"));
+        assertNotEquals(ChangeFeedService.fingerprint(1L), ChangeFeedService.fingerprint(1.0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int documentsOf(ChangeFeedService changeFeed) {
+        Map<String, Map<String, Object>> collections = (Map<String, Map<String, Object>>) changeFeed.getMetrics().get("collections");
+        return (Integer) collections.get(ChangeFeedService.USERS).get("documents");
+    }
+
+    @Test
+    @DisplayName("✅ Un suscriptor atrasado frena la publicación sin perder eventos")
+    void testSlowSubscriberStallsWithoutLosingEvents() throws Exception {
+        ChangeFeedService changeFeed = feed(1, 20);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<ChangeEvent> slow = new LinkedBlockingQueue<>();
+        BlockingQueue<ChangeEvent> fast = new LinkedBlockingQueue<>();
+        changeFeed.subscribe("slow", event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            slow.add(event);
+        }, ChangeFeedService.USERS);
+        changeFeed.subscribe("fast", fast::add, ChangeFeedService.USERS);
+
+        Thread publisher = Thread.ofVirtual().start(() -> {
+            for (int i = 0; i < 10; i++) {
+                changeFeed.apply(ChangeFeedService.USERS, "57300000000" + i, userData("Cali", "NEW"), User::new, false);
+            }
+        });
+        publisher.join(200);
+        assertTrue(publisher.isAlive(), "❌ La publicación debe esperar al suscriptor atrasado");
+        release.countDown();
+        publisher.join(5000);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("57300000000" + i, slow.poll(5, TimeUnit.SECONDS).documentId(),
+                    "❌ El suscriptor atrasado debe recibir todos los eventos en orden");
+            assertNotNull(fast.poll(5, TimeUnit.SECONDS));
+        }
+        assertTrue((Long) changeFeed.getMetrics().get("stalls") > 0, "❌ Las esperas largas deben contarse");
+    }
+
+    @Test
+    @DisplayName("✅ El estado de la IA sigue los cambios de 'system_configuration'")
+    void testSystemConfigFollowsChanges() throws Exception {
+        ChangeFeedService changeFeed = feed(16, 1000);
+        SystemConfigService systemConfig = new SystemConfigService(new FirestoreConfigService(null), changeFeed, "dev");
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        changeFeed.subscribe("test", events::add, ChangeFeedService.SYSTEM_CONFIGURATION);
+
+        Map<String, Object> disabled = new HashMap<>();
+        disabled.put("configKey", "ai_enabled_dev");
+        disabled.put("configValue", "false");
+        changeFeed.apply(ChangeFeedService.SYSTEM_CONFIGURATION, "ai_enabled_dev", disabled, SystemConfiguration::new, false);
+        events.poll(5, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 100 && !"DESHABILITADA".equals(systemConfig.getAIStatus()); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("DESHABILITADA", systemConfig.getAIStatus(), "❌ El cambio en Firestore debe llegar al estado en memoria");
+    }
+}
@@ -0,0 +1,127 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para CompactUserIndex que documentan el índice compacto de usuarios:
+ * - Los campos guardados se leen iguales, tanto los que se codifican como número (teléfonos,
+ *   códigos de referido) como los que van al diccionario (UUID, códigos con otros caracteres)
+ * - Ciudades y departamentos repetidos comparten código
+ * - Un usuario se encuentra por ID de documento, teléfono y código de referido; al eliminarlo o
+ *   cambiarle el teléfono, las búsquedas anteriores dejan de encontrarlo
+ * - Una versión con 'updated_at' anterior no reemplaza a la guardada
+ * - La tabla hash sigue encontrando todas las claves tras muchas altas y bajas
+ */
+@DisplayName("CompactUserIndex - Tests del Índice Compacto de Usuarios")
+class CompactUserIndexTest {
+
+    private static User user(String phone, String city, String referralCode, long updatedAtSeconds) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setCity(city);
+        user.setState("Antioquia");
+        user.setChatbot_state("COMPLETED");
+        user.setReferral_code(referralCode);
+        user.setReferred_by_code("ABCD2345");
+        user.setAceptaTerminos(true);
+        user.setCreated_at(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 0));
+        user.setUpdated_at(Timestamp.ofTimeSecondsAndNanos(updatedAtSeconds, 0));
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Los campos se leen iguales y las ciudades repetidas comparten código")
+    void testRoundTrip() {
+        CompactUserIndex index = new CompactUserIndex(4);
+        int medellin = index.upsert("573001234567", user("+573001234567", "Medellín", "XK7P9QRT", 1_700_000_100L));
+        User withoutPhone = user("+573007654321", "Medellín", "code-with-dash", 1_700_000_100L);
+        withoutPhone.setPhone(null);
+        withoutPhone.setCreated_at(null);
+        int uuid = index.upsert("5f1c2a8b-3e4d-5f6a-7b8c-9d0e1f2a3b4c", withoutPhone);
+
+        assertEquals("573001234567", index.documentId(medellin));
+        assertEquals("+573001234567", index.phone(medellin));
+        assertEquals("XK7P9QRT", index.referralCode(medellin));
+        assertEquals("ABCD2345", index.referredByCode(medellin));
+        assertEquals("Medellín", index.city(medellin));
+        assertEquals("COMPLETED", index.chatbotState(medellin));
+        assertEquals(1_700_000_000L, index.createdAtSeconds(medellin));
+        assertTrue(index.acceptedTerms(medellin));
+
+        assertEquals("5f1c2a8b-3e4d-5f6a-7b8c-9d0e1f2a3b4c", index.documentId(uuid), "❌ Los IDs no numéricos deben ir al diccionario");
+        assertEquals("code-with-dash", index.referralCode(uuid));
+        assertNull(index.phone(uuid));
+        assertEquals(CompactUserIndex.NO_TIMESTAMP, index.createdAtSeconds(uuid));
+
+        assertEquals(index.cityCode(medellin), index.cityCode(uuid), "❌ La misma ciudad debe tener el mismo código");
+        assertEquals(index.cityCode(medellin), index.cityCodeOf("Medellín"));
+        assertEquals(-1, index.cityCodeOf("Cali"));
+        assertEquals(1, index.cityCount());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    @DisplayName("✅ Búsquedas por documento, teléfono y código; eliminar y cambiar teléfono")
+    void testLookupsFollowChanges() {
+        CompactUserIndex index = new CompactUserIndex(4);
+        int id = index.upsert("573001234567", user("+573001234567", "Cali", "XK7P9QRT", 1_700_000_100L));
+
+        assertEquals(id, index.idOf("573001234567"));
+        assertEquals(id, index.idOfPhone("+573001234567"));
+        assertEquals(id, index.idOfReferralCode("XK7P9QRT"));
+        assertEquals(-1, index.idOfPhone("573001234567"), "❌ El teléfono se busca con '+'");
+
+        index.upsert("573001234567", user("+573009999999", "Cali", "XK7P9QRT", 1_700_000_200L));
+        assertEquals(-1, index.idOfPhone("+573001234567"), "❌ El teléfono anterior no debe seguir apuntando al usuario");
+        assertEquals(id, index.idOfPhone("+573009999999"));
+
+        index.upsert("573001234567", user("+573001111111", "Bogotá", "XK7P9QRT", 1_700_000_150L));
+        assertEquals("+573009999999", index.phone(id), "❌ Una versión anterior no debe reemplazar a la guardada");
+
+        assertTrue(index.remove("573001234567"));
+        assertFalse(index.contains(id));
+        assertEquals(-1, index.idOf("573001234567"));
+        assertEquals(-1, index.idOfReferralCode("XK7P9QRT"));
+        assertEquals(0, index.size());
+
+        int reused = index.upsert("573002222222", user("+573002222222", "Cali", "MNPQ2345", 1_700_000_300L));
+        assertEquals(id, reused, "❌ El ID de un usuario eliminado debe reutilizarse");
+    }
+
+    @Test
+    @DisplayName("✅ La tabla hash encuentra todas las claves tras muchas altas y bajas")
+    void testHashMapSurvivesChurn() {
+        CompactUserIndex.LongIntHashMap map = new CompactUserIndex.LongIntHashMap(16);
+        Map<Long, Integer> expected = new HashMap<>();
+        List<Long> keys = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            if (!keys.isEmpty() && random.nextInt(3) == 0) {
+                long key = keys.remove(random.nextInt(keys.size()));
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                // Claves de pocos valores distintos para forzar colisiones
+                long key = 573_000_000_000L + random.nextInt(50_000);
+                map.put(key, i);
+                if (expected.put(key, i) == null) {
+                    keys.add(key);
+                }
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value.intValue(), map.get(key), "❌ Clave perdida: " + key));
+        assertEquals(-1, map.get(1L));
+    }
+}
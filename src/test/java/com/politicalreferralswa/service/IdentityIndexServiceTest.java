@@ -0,0 +1,60 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para las claves del índice de identidades que documentan:
+ * - Qué mapeos se escriben al guardar un usuario (teléfono, Telegram, UUID anterior)
+ * - Qué documentos y claves se leen en el único getAll de una búsqueda
+ */
+@DisplayName("IdentityIndexService - Tests de Claves de Identidad")
+class IdentityIndexServiceTest {
+
+    @Test
+    @DisplayName("✅ Un usuario migrado de UUID a teléfono registra las tres claves")
+    void testKeysForMigratedUser() {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-000000000001");
+        user.setPhone("+573001234567");
+        user.setTelegram_chat_id("998877");
+
+        assertEquals(List.of("phone:+573001234567", "telegram:998877", "legacy:3f2b8c1e-0000-4000-8000-000000000001"),
+                IdentityIndexService.keysFor("573001234567", user));
+    }
+
+    @Test
+    @DisplayName("✅ Un usuario de Telegram sin teléfono sólo registra su chat ID")
+    void testKeysForTelegramUserWithoutPhone() {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-000000000002");
+        user.setTelegram_chat_id("998877");
+
+        assertEquals(List.of("telegram:998877"),
+                IdentityIndexService.keysFor("3f2b8c1e-0000-4000-8000-000000000002", user),
+                "❌ El ID de documento actual no debe registrarse como clave heredada");
+    }
+
+    @Test
+    @DisplayName("✅ Una búsqueda lee los documentos candidatos y las claves del canal")
+    void testLookupCandidates() {
+        assertEquals(List.of("573001234567"),
+                IdentityIndexService.candidateDocumentIds("+573001234567", "573001234567"),
+                "❌ El documento por teléfono no debe leerse dos veces");
+        assertEquals(List.of("phone:+573001234567"),
+                IdentityIndexService.lookupKeys("+573001234567", "573001234567", "WHATSAPP"));
+
+        assertEquals(List.of("telegram:998877"),
+                IdentityIndexService.lookupKeys(null, "998877", "TELEGRAM"));
+        assertEquals(List.of("legacy:3f2b8c1e-0000-4000-8000-000000000001"),
+                IdentityIndexService.lookupKeys(null, "3f2b8c1e-0000-4000-8000-000000000001", "WHATSAPP"),
+                "❌ Un remitente no numérico puede ser un UUID migrado");
+        assertTrue(IdentityIndexService.candidateDocumentIds(null, "a/b").isEmpty(),
+                "❌ Un ID con '/' no es un ID de documento válido");
+    }
+}
@@ -0,0 +1,118 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.InboundMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para InboundJournal que documentan la recuperación tras un reinicio:
+ * - Los mensajes no procesados se reproducen al volver a abrir el diario
+ * - Los mensajes procesados (checkpoint) no se reproducen
+ * - Un arranque sin mensajes no impide volver a abrir el diario
+ * - Con el diario deshabilitado no se escribe nada
+ * - Un tamaño de segmento que no cabe en un buffer mapeado se rechaza en lugar de desbordarse
+ */
+@DisplayName("InboundJournal - Tests de Diario de Ingesta")
+class InboundJournalTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("inbound-journal-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("✅ Los mensajes no procesados se reproducen tras reiniciar")
+    void testUnprocessedMessagesAreRecovered() throws IOException {
+        InboundJournal journal = open();
+        long first = journal.append(new InboundMessage("WATI", "573001112233", "Hola", "Ana"));
+        long second = journal.append(new InboundMessage("TELEGRAM", "98765", "Medellín", null));
+        journal.markProcessed(first);
+        journal.close();
+
+        InboundJournal reopened = open();
+        List<InboundJournal.JournalRecord> records = reopened.drainRecovered();
+        reopened.close();
+
+        assertEquals(1, records.size(), "❌ Sólo debe reproducirse el mensaje no procesado");
+        assertEquals(second, records.get(0).seq());
+        assertEquals(new InboundMessage("TELEGRAM", "98765", "Medellín", null), records.get(0).message());
+    }
+
+    @Test
+    @DisplayName("✅ Las secuencias continúan después del reinicio")
+    void testSequencesContinueAfterRestart() throws IOException {
+        InboundJournal journal = open();
+        long seq = journal.append(new InboundMessage("WATI", "573001112233", "Hola", "Ana"));
+        journal.markProcessed(seq);
+        journal.close();
+
+        InboundJournal reopened = open();
+        assertTrue(reopened.drainRecovered().isEmpty(), "❌ No debe reproducirse un mensaje procesado");
+        assertTrue(reopened.append(new InboundMessage("WATI", "573001112233", "Otra", "Ana")) > seq,
+                "❌ La secuencia debe continuar después del checkpoint");
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("✅ El diario se vuelve a abrir después de un arranque sin mensajes")
+    void testReopenAfterRunWithoutAppends() throws IOException {
+        open().close();
+        open().close();
+
+        InboundJournal reopened = open();
+        long seq = reopened.append(new InboundMessage("WATI", "573001112233", "Hola", "Ana"));
+        reopened.close();
+
+        assertEquals(1, seq, "❌ La secuencia debe empezar en 1 si nunca se añadió nada");
+        InboundJournal afterAppend = open();
+        assertEquals(1, afterAppend.drainRecovered().size(), "❌ El mensaje del segmento reutilizado debe reproducirse");
+        afterAppend.close();
+    }
+
+    @Test
+    @DisplayName("✅ Con el diario deshabilitado no se persiste nada")
+    void testDisabledJournalIsNoOp() throws IOException {
+        InboundJournal journal = new InboundJournal(false, directory.toString(), 1);
+        journal.open();
+
+        assertEquals(-1, journal.append(new InboundMessage("WATI", "573001112233", "Hola", "Ana")));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count(), "❌ No deben crearse archivos con el diario deshabilitado");
+        }
+    }
+
+    @Test
+    @DisplayName("✅ Un tamaño de segmento de 2 GB o más se rechaza")
+    void testOversizedSegmentIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new InboundJournal(true, directory.toString(), 4096),
+                "❌ 4096 MB no caben en un int y no deben desbordarse a un tamaño negativo");
+        assertThrows(IllegalArgumentException.class, () -> new InboundJournal(true, directory.toString(), 0));
+        assertDoesNotThrow(() -> new InboundJournal(true, directory.toString(), 2047));
+    }
+
+    private InboundJournal open() throws IOException {
+        InboundJournal journal = new InboundJournal(true, directory.toString(), 1);
+        journal.open();
+        return journal;
+    }
+}
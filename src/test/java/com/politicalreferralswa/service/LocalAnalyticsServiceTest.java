@@ -0,0 +1,112 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.InMemoryUserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para LocalAnalyticsService que documentan las estadísticas servidas desde los índices en memoria:
+ * - today, week y month traen los puntos ganados en cada ventana; total, los puntos acumulados
+ *   (antigüedad, código de referido y términos) con la posición general
+ * - Con los índices listos, cada consulta cuesta una sola lectura (el usuario consultado), también
+ *   para un usuario sin ciudad o que los índices todavía no recibieron
+ */
+@DisplayName("LocalAnalyticsService - Tests de las Estadísticas desde los Índices")
+class LocalAnalyticsServiceTest {
+
+    private static final long DAY = 86_400_000L;
+
+    private InMemoryUserRepository repository;
+    private CompactUserIndex index;
+    private WindowedLeaderboard windowedLeaderboard;
+    private UserLeaderboard userLeaderboard;
+    private UserSeniorityIndex userSeniorityIndex;
+    private ReferralGraph referralGraph;
+    private LocalAnalyticsService service;
+
+    private static User user(String phone, String city, String referralCode, String referredByCode,
+                             boolean acceptedTerms, long createdAtMillis) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setCity(city);
+        user.setState(city);
+        user.setReferral_code(referralCode);
+        user.setReferred_by_code(referredByCode);
+        user.setAceptaTerminos(acceptedTerms);
+        user.setCreated_at(Timestamp.ofTimeMicroseconds(createdAtMillis * 1000));
+        return user;
+    }
+
+    private void add(String documentId, User user) throws Exception {
+        repository.save(documentId, user, null).get();
+        int id = index.upsert(documentId, user);
+        windowedLeaderboard.onUpsert(id);
+        userLeaderboard.onUpsert(id);
+        userSeniorityIndex.onUpsert(id);
+        referralGraph.onUpsert(id);
+    }
+
+    @BeforeEach
+    void setUp() {
+        repository = new InMemoryUserRepository();
+        index = new CompactUserIndex(16);
+        windowedLeaderboard = new WindowedLeaderboard(index);
+        userLeaderboard = new UserLeaderboard(index);
+        userSeniorityIndex = new UserSeniorityIndex(index);
+        referralGraph = new ReferralGraph(index);
+        service = new LocalAnalyticsService(repository, windowedLeaderboard, userLeaderboard, userSeniorityIndex,
+                referralGraph);
+    }
+
+    @Test
+    @DisplayName("✅ Las ventanas traen los puntos ganados en ellas y total los acumulados")
+    void testWindowAndTotalPoints() throws Exception {
+        long now = System.currentTimeMillis();
+        add("573100000001", user("+573100000001", "Bogotá", "XK7P9QRT", null, true, now - 90 * DAY));
+        add("573100000002", user("+573100000002", "Bogotá", null, "XK7P9QRT", false, now));
+        add("573100000003", user("+573100000003", "Bogotá", null, null, false, now - 3 * DAY));
+
+        LocalAnalyticsService.Ranking ranking = service.getUserStats("+573100000001").getRanking();
+        assertEquals(200, ranking.getToday().getPoints(), "❌ Hoy debe traer sólo los puntos del referido de hoy");
+        assertEquals(1, ranking.getToday().getPosition());
+        assertEquals(200, ranking.getMonth().getPoints());
+        assertEquals(100 + 90 * 10 + 50 + 200, ranking.getTotal().getPoints(),
+                "❌ Total debe traer los puntos acumulados por antigüedad, código y términos");
+        assertEquals(1, ranking.getTotal().getPosition());
+
+        ranking = service.getUserStats("573100000002").getRanking();
+        assertEquals(100, ranking.getToday().getPoints());
+        assertEquals(2, ranking.getToday().getPosition());
+        assertEquals(100, ranking.getTotal().getPoints());
+        assertEquals(3, ranking.getTotal().getPosition(), "❌ La posición general debe salir de los puntos acumulados");
+    }
+
+    @Test
+    @DisplayName("✅ Con los índices listos, cada consulta lee sólo el documento del usuario")
+    void testOneReadPerRequestOnceIndexesReady() throws Exception {
+        long now = System.currentTimeMillis();
+        add("573100000001", user("+573100000001", "Bogotá", "XK7P9QRT", null, true, now - 10 * DAY));
+        add("573100000002", user("+573100000002", "Bogotá", null, "XK7P9QRT", false, now - DAY));
+        // Usuario nuevo sin ciudad, guardado pero que los índices todavía no recibieron
+        User pending = new User();
+        pending.setPhone("+573100000003");
+        pending.setChatbot_state("NEW");
+        pending.setCreated_at(Timestamp.ofTimeMicroseconds(now * 1000));
+        repository.save("573100000003", pending, null).get();
+
+        service.getUserStats("+573100000001");
+        LocalAnalyticsService.UserStatsResponse stats = service.getUserStats("+573100000003");
+
+        assertEquals(1.0, service.getMetrics().get("readsPerRequest"), "❌ Cada consulta debe leer un solo documento");
+        assertEquals(0L, service.getMetrics().get("snapshotRequests"), "❌ No debe recorrerse la colección");
+        assertEquals(0, stats.getRanking().getToday().getPoints(), "❌ Un usuario sin índice no tiene puntos en las ventanas");
+        assertEquals(1, stats.getRanking().getToday().getPosition(), "❌ Nadie ganó puntos hoy");
+        assertEquals(0, stats.getReferrals().getTotalInvited(), "❌ Un usuario sin índice no tiene referidos");
+        assertEquals(3, stats.getRegion().getPosition(), "❌ Sin ciudad se ubica en Bogotá, después de los más antiguos");
+    }
+}
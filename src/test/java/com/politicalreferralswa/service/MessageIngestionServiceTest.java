@@ -0,0 +1,118 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.InboundMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para MessageIngestionService que documentan la agrupación de ráfagas:
+ * - Los fragmentos que llegan dentro de la ventana se procesan como un solo mensaje
+ * - Un mensaje con código de referido no se agrupa con los anteriores, para que el chatbot lo reconozca
+ * - Un mensaje cuyo procesamiento falla se marca como procesado en el diario y no se reproduce al arrancar
+ */
+@DisplayName("MessageIngestionService - Tests de Agrupación de Ráfagas")
+class MessageIngestionServiceTest {
+
+    private final List<String> processed = new CopyOnWriteArrayList<>();
+    private MessageIngestionService ingestion;
+
+    // Chatbot sin dependencias: todos los remitentes están en estado NEW y se registra cada llamada
+    private ChatbotService chatbot() {
+        return new ChatbotService(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null) {
+            @Override
+            public String getChatbotState(String fromId, String channelType) {
+                return "NEW";
+            }
+
+            @Override
+            public String processIncomingMessage(String fromId, String messageText, String channelType, String senderName) {
+                processed.add(messageText);
+                if (messageText.equals("falla")) {
+                    throw new IllegalStateException("Error simulado del chatbot");
+                }
+                return "ok";
+            }
+        };
+    }
+
+    @BeforeEach
+    void setUp() {
+        ingestion = new MessageIngestionService(chatbot(), new InboundJournal(false, "/tmp/unused", 1),
+                500, 2000, 100, 20, 0.5, 300, "NEW,WAITING_NAME,WAITING_CITY");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ingestion.shutdown();
+    }
+
+    private void submitBurst(String... texts) throws Exception {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            results[i] = ingestion.trySubmit(new InboundMessage("WATI", "573001112233", texts[i], "Ana"));
+        }
+        CompletableFuture.allOf(results).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("✅ Los fragmentos de una ráfaga se procesan juntos")
+    void testBurstIsCoalesced() throws Exception {
+        submitBurst("Hola", "soy Juan", "de Medellín");
+
+        assertEquals(List.of("Hola\nsoy Juan\nde Medellín"), processed);
+    }
+
+    @Test
+    @DisplayName("✅ Un código de referido dentro de una ráfaga se procesa solo")
+    void testReferralCodeIsNotCoalesced() throws Exception {
+        submitBurst("Hola", "Me referido por: XK7P9QRT", "soy Juan");
+
+        assertEquals(List.of("Hola", "Me referido por: XK7P9QRT", "soy Juan"), processed,
+                "❌ El código de referido no debe quedar detrás de otro fragmento");
+        assertTrue(ChatbotService.isReferralMessage(processed.get(1)));
+    }
+
+    @Test
+    @DisplayName("✅ Un mensaje que falla se marca como procesado y no se reproduce")
+    void testFailedMessageIsMarkedProcessed() throws Exception {
+        Path directory = Files.createTempDirectory("ingestion-journal-test");
+        InboundJournal journal = new InboundJournal(true, directory.toString(), 1);
+        journal.open();
+        MessageIngestionService journaled = new MessageIngestionService(chatbot(), journal,
+                500, 2000, 100, 20, 0.5, 0, "NEW");
+        try {
+            CompletableFuture<String> result = journaled.trySubmit(new InboundMessage("WATI", "573001112233", "falla", "Ana"));
+            assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 500 && !journal.getMetrics().get("pendingRecords").equals(0); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, journal.getMetrics().get("pendingRecords"), "❌ El mensaje fallido no debe quedar pendiente");
+        } finally {
+            journaled.shutdown();
+            journal.close();
+        }
+
+        InboundJournal reopened = new InboundJournal(true, directory.toString(), 1);
+        reopened.open();
+        List<InboundJournal.JournalRecord> records = reopened.drainRecovered();
+        reopened.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        assertTrue(records.isEmpty(), "❌ El mensaje fallido no debe reproducirse al arrancar");
+    }
+}
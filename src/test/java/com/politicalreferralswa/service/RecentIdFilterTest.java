@@ -0,0 +1,52 @@
+package com.politicalreferralswa.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para RecentIdFilter que documentan la deduplicación de webhooks:
+ * - Un ID reclamado se detecta como duplicado
+ * - Un ID liberado (rechazo por saturación) se puede volver a aceptar
+ * - Un ID confirmado se recuerda aunque salga del anillo exacto
+ */
+@DisplayName("RecentIdFilter - Tests de Deduplicación")
+class RecentIdFilterTest {
+
+    @Test
+    @DisplayName("✅ Un ID repetido se detecta como duplicado")
+    void testRepeatedIdIsDuplicate() {
+        RecentIdFilter filter = new RecentIdFilter(16, 1000, 1e-6, 60_000);
+
+        assertTrue(filter.claim("WATI:wamid.1"), "❌ El primer webhook debe aceptarse");
+        assertFalse(filter.claim("WATI:wamid.1"), "❌ El reenvío debe descartarse");
+        assertTrue(filter.claim("WATI:wamid.2"), "❌ Un mensaje distinto debe aceptarse");
+    }
+
+    @Test
+    @DisplayName("✅ Un ID liberado se acepta en el reintento")
+    void testReleasedIdCanBeClaimedAgain() {
+        RecentIdFilter filter = new RecentIdFilter(16, 1000, 1e-6, 60_000);
+
+        assertTrue(filter.claim("TELEGRAM:100"));
+        filter.release("TELEGRAM:100");
+        assertTrue(filter.claim("TELEGRAM:100"), "❌ El reintento tras un 429 debe aceptarse");
+    }
+
+    @Test
+    @DisplayName("✅ Un ID confirmado se recuerda después de salir del anillo")
+    void testConfirmedIdSurvivesRingEviction() {
+        RecentIdFilter filter = new RecentIdFilter(4, 1000, 1e-6, 60_000);
+
+        assertTrue(filter.claim("META:first"));
+        filter.confirm("META:first");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.claim("META:other-" + i));
+            filter.confirm("META:other-" + i);
+        }
+
+        assertEquals(4, filter.recentSize());
+        assertFalse(filter.claim("META:first"), "❌ El filtro de Bloom debe recordar el ID confirmado");
+    }
+}
@@ -0,0 +1,64 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.firestore.FirestoreException;
+import io.grpc.Status;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para ReferralCodeService que documentan la asignación de códigos:
+ * - Los códigos generados tienen 8 caracteres alfanuméricos en mayúscula, sin caracteres ambiguos
+ * - Una colisión (create() sobre un código existente) se reconoce aunque llegue envuelta
+ * - Tras migrar al dueño de documento, la búsqueda del código devuelve el documento nuevo
+ */
+@DisplayName("ReferralCodeService - Tests de Códigos de Referido")
+class ReferralCodeServiceTest {
+
+    private final ReferralCodeService service = new ReferralCodeService(null, 100, 5);
+
+    @Test
+    @DisplayName("✅ Los códigos generados cumplen el formato de código de referido")
+    void testRandomCodeFormat() {
+        Set<String> codes = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String code = service.randomCode();
+            assertEquals(ReferralCodeService.CODE_LENGTH, code.length());
+            assertTrue(code.matches("^[A-Za-z0-9]{8}$"), "❌ El código debe ser aceptado como código de referido: " + code);
+            assertFalse(code.matches(".*[01IO].*"), "❌ El código no debe tener caracteres ambiguos: " + code);
+            codes.add(code);
+        }
+        assertTrue(codes.size() > 990, "❌ Los códigos deben ser aleatorios");
+    }
+
+    @Test
+    @DisplayName("✅ Se reconoce la colisión de código aunque el error llegue envuelto")
+    void testAlreadyExistsIsDetected() {
+        FirestoreException alreadyExists = FirestoreException.forServerRejection(Status.ALREADY_EXISTS, "Document already exists");
+        assertTrue(ReferralCodeService.isAlreadyExists(new ExecutionException(alreadyExists)),
+                "❌ ALREADY_EXISTS dentro de ExecutionException debe contarse como colisión");
+
+        FirestoreException unavailable = FirestoreException.forServerRejection(Status.UNAVAILABLE, "Unavailable");
+        assertFalse(ReferralCodeService.isAlreadyExists(new ExecutionException(unavailable)),
+                "❌ Otros errores no son colisiones");
+        assertFalse(ReferralCodeService.isAlreadyExists(new RuntimeException("timeout")));
+    }
+
+    @Test
+    @DisplayName("✅ Tras migrar al dueño de documento el código apunta al documento nuevo")
+    void testMovedOwnerReplacesCachedDocument() {
+        service.moved("XK7P9QRT", "0b6c2f9e-uuid");
+        assertEquals("0b6c2f9e-uuid", service.findOwnerDocumentId("XK7P9QRT").orElseThrow());
+
+        service.moved("XK7P9QRT", "573100000001");
+        assertEquals("573100000001", service.findOwnerDocumentId("XK7P9QRT").orElseThrow(),
+                "❌ La búsqueda no debe devolver el documento anterior a la migración");
+        assertEquals(2L, service.getMetrics().get("reassignments"));
+        assertFalse(service.stage(null, "a/b", "573100000001"), "❌ Un código no indexable no se añade al lote");
+    }
+}
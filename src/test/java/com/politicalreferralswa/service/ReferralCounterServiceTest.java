@@ -0,0 +1,35 @@
+package com.politicalreferralswa.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para ReferralCounterService que documentan los contadores de referidos:
+ * - Sólo los códigos calientes configurados reparten el contador en varios fragmentos
+ * - Un cambio de referente al mismo código (o sin código) no ajusta ningún contador
+ */
+@DisplayName("ReferralCounterService - Tests de Contadores de Referidos")
+class ReferralCounterServiceTest {
+
+    private final ReferralCounterService service = new ReferralCounterService(null, " TESTCODE , VIP123 ", 10, 1440);
+
+    @Test
+    @DisplayName("✅ Los códigos calientes usan varios fragmentos y el resto uno")
+    void testShardCountByCode() {
+        assertEquals(10, service.shardCount("TESTCODE"), "❌ TESTCODE debe repartirse en los fragmentos configurados");
+        assertEquals(10, service.shardCount("VIP123"));
+        assertEquals(1, service.shardCount("AB12CD34"), "❌ Un código normal debe usar un solo fragmento");
+    }
+
+    @Test
+    @DisplayName("✅ Sin cambio de código de referente no se escribe ningún contador")
+    void testUnchangedReferrerIsNotCounted() {
+        service.stage(null, "TESTCODE", "TESTCODE");
+        service.stage(null, null, null);
+
+        assertEquals(0L, service.getMetrics().get("increments"), "❌ No debe sumarse a ningún contador");
+        assertEquals(0L, service.getMetrics().get("decrements"), "❌ No debe restarse a ningún contador");
+    }
+}
@@ -0,0 +1,115 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para ReferralGraph que documentan el grafo de referidos en memoria:
+ * - Un referido cuenta para quien lo invitó por código o, sin código, por teléfono en cualquiera
+ *   de los formatos en que se guarda ('3...', '57...', '+57...')
+ * - Completar el registro lo vuelve voluntario activo; los referidos de este mes son los creados
+ *   hace 30 días completos o menos
+ * - Un reinicio (que limpia el referente) o una baja quitan la arista
+ * - Tras muchos cambios los conteos coinciden con el recorrido completo
+ */
+@DisplayName("ReferralGraph - Tests del Grafo de Referidos")
+class ReferralGraphTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+    private static final long DAY = 86_400_000L;
+
+    private static User user(String phone, String referralCode, String referredByCode, String referredByPhone,
+                             String chatbotState, long createdAtMillis) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setReferral_code(referralCode);
+        user.setReferred_by_code(referredByCode);
+        user.setReferred_by_phone(referredByPhone);
+        user.setChatbot_state(chatbotState);
+        user.setCreated_at(Timestamp.ofTimeMicroseconds(createdAtMillis * 1000));
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Referidos por código y por teléfono, activos y de este mes")
+    void testStats() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        ReferralGraph graph = new ReferralGraph(index);
+        graph.onUpsert(index.upsert("573100000001", user("+573100000001", "XK7P9QRT", null, null, "COMPLETED", NOW - 90 * DAY)));
+        graph.onUpsert(index.upsert("573100000002", user("+573100000002", "MNPQ2345", "XK7P9QRT", null, "COMPLETED", NOW - 40 * DAY)));
+        graph.onUpsert(index.upsert("573100000003", user("+573100000003", "ABCD2345", null, "3100000001", "WAITING_CITY", NOW - 2 * DAY)));
+        graph.onUpsert(index.upsert("573100000004", user("+573100000004", "EFGH2345", null, "+573100000001", "COMPLETED", NOW - 30 * DAY - 1000)));
+        graph.onUpsert(index.upsert("573100000005", user("+573100000005", "JKLM2345", "XK7P9QRT", "573100000002", "WAITING_NAME", NOW)));
+
+        assertEquals(new ReferralGraph.Stats(4, 2, 3), graph.statsOf("573100000001", NOW),
+                "❌ Deben contarse los referidos por código y por teléfono en cualquier formato");
+        assertEquals(new ReferralGraph.Stats(0, 0, 0), graph.statsOf("573100000002", NOW),
+                "❌ Con código de referido, el teléfono no debe contar");
+        assertNull(graph.statsOf("573109999999", NOW));
+
+        graph.onUpsert(index.upsert("573100000003", user("+573100000003", "ABCD2345", null, "3100000001", "COMPLETED", NOW - 2 * DAY)));
+        assertEquals(new ReferralGraph.Stats(4, 3, 3), graph.statsOf("573100000001", NOW), "❌ Completar el registro lo vuelve activo");
+    }
+
+    @Test
+    @DisplayName("✅ Un reinicio o una baja quitan al referido")
+    void testResetAndDelete() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        ReferralGraph graph = new ReferralGraph(index);
+        graph.onUpsert(index.upsert("573100000001", user("+573100000001", "XK7P9QRT", null, null, "COMPLETED", NOW - 90 * DAY)));
+        graph.onUpsert(index.upsert("573100000002", user("+573100000002", null, "XK7P9QRT", null, "COMPLETED", NOW - DAY)));
+        graph.onUpsert(index.upsert("573100000003", user("+573100000003", null, "XK7P9QRT", null, "COMPLETED", NOW - DAY)));
+        graph.onUpsert(index.upsert("573100000004", user("+573100000004", "XK7P9QRT", "XK7P9QRT", null, "COMPLETED", NOW)));
+        assertEquals(2, graph.statsOf("573100000001", NOW).totalInvited(), "❌ Referirse a sí mismo no debe contar");
+
+        graph.onUpsert(index.upsert("573100000002", user("+573100000002", null, null, null, "NEW", NOW - DAY)));
+        int id = index.idOf("573100000003");
+        index.remove("573100000003");
+        graph.onRemove(id);
+
+        assertEquals(new ReferralGraph.Stats(0, 0, 0), graph.statsOf("573100000001", NOW));
+    }
+
+    @Test
+    @DisplayName("✅ Tras muchos cambios los conteos coinciden con el recorrido completo")
+    void testMatchesScan() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        ReferralGraph graph = new ReferralGraph(index);
+        String[] codes = {"CODEAAAA", "CODEBBBB", "CODECCCC"};
+        Random random = new Random(5);
+        for (int i = 0; i < 3_000; i++) {
+            String documentId = Long.toString(573_100_000_100L + random.nextInt(300));
+            if (random.nextInt(8) == 0) {
+                int id = index.idOf(documentId);
+                if (index.remove(documentId)) {
+                    graph.onRemove(id);
+                }
+            } else {
+                String referredBy = random.nextInt(4) == 0 ? null : codes[random.nextInt(codes.length)];
+                graph.onUpsert(index.upsert(documentId, user("+" + documentId, null, referredBy, null,
+                        random.nextBoolean() ? "COMPLETED" : "NEW", NOW - random.nextInt(60) * DAY)));
+            }
+        }
+        for (int c = 0; c < codes.length; c++) {
+            String documentId = "57310000000" + c;
+            graph.onUpsert(index.upsert(documentId, user("+" + documentId, codes[c], null, null, "COMPLETED", NOW - 90 * DAY)));
+            String code = codes[c];
+            int[] expected = new int[3];
+            index.forEach(id -> {
+                if (code.equals(index.referredByCode(id)) && !documentId.equals(index.documentId(id))) {
+                    expected[0]++;
+                    expected[1] += "COMPLETED".equals(index.chatbotState(id)) ? 1 : 0;
+                    expected[2] += (NOW - index.createdAtSeconds(id) * 1000) / DAY <= 30 ? 1 : 0;
+                }
+            });
+            assertEquals(new ReferralGraph.Stats(expected[0], expected[1], expected[2]), graph.statsOf(documentId, NOW),
+                    "❌ Conteos distintos del recorrido para " + code);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.politicalreferralswa.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para SenderMailboxDispatcher que documentan:
+ * - Orden estricto de mensajes de un mismo remitente
+ * - Procesamiento en paralelo entre remitentes distintos
+ * - Eliminación de buzones inactivos
+ * - Agrupación de los mensajes pendientes desde el handler
+ */
+@DisplayName("SenderMailboxDispatcher - Tests de Orden por Remitente")
+class SenderMailboxDispatcherTest {
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("✅ Los mensajes de un mismo remitente se procesan en orden")
+    void testMessagesFromSameSenderAreOrdered() throws InterruptedException {
+        int senders = 20;
+        int messagesPerSender = 200;
+        Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(senders * messagesPerSender);
+
+        SenderMailboxDispatcher<int[]> dispatcher = new SenderMailboxDispatcher<>(executor, item -> {
+            processed.computeIfAbsent("S" + item[0], k -> Collections.synchronizedList(new ArrayList<>())).add(item[1]);
+            done.countDown();
+        });
+
+        for (int seq = 0; seq < messagesPerSender; seq++) {
+            for (int sender = 0; sender < senders; sender++) {
+                dispatcher.dispatch("S" + sender, new int[]{sender, seq});
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS), "❌ No se procesaron todos los mensajes");
+        for (int sender = 0; sender < senders; sender++) {
+            List<Integer> order = processed.get("S" + sender);
+            assertEquals(messagesPerSender, order.size());
+            for (int seq = 0; seq < messagesPerSender; seq++) {
+                assertEquals(seq, order.get(seq), "❌ Mensaje fuera de orden para remitente S" + sender);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("✅ Un remitente lento no bloquea a los demás")
+    void testSlowSenderDoesNotBlockOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        SenderMailboxDispatcher<String> dispatcher = new SenderMailboxDispatcher<>(executor, item -> {
+            if (item.equals("slow")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                fastDone.countDown();
+            }
+        });
+
+        dispatcher.dispatch("A", "slow");
+        dispatcher.dispatch("B", "fast");
+
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS), "❌ El remitente B quedó bloqueado por A");
+        release.countDown();
+    }
+
+    @Test
+    @DisplayName("✅ Los buzones vacíos se eliminan")
+    void testIdleMailboxesAreEvicted() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        SenderMailboxDispatcher<String> dispatcher = new SenderMailboxDispatcher<>(executor, item -> done.countDown());
+
+        dispatcher.dispatch("A", "1");
+        dispatcher.dispatch("B", "1");
+        dispatcher.dispatch("C", "1");
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.activeMailboxes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.activeMailboxes(), "❌ Quedaron buzones inactivos en memoria");
+    }
+
+    @Test
+    @DisplayName("✅ El handler puede tomar los mensajes pendientes del mismo remitente")
+    void testHandlerCanPollPendingMessages() throws InterruptedException {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicReference<SenderMailboxDispatcher<String>> holder = new AtomicReference<>();
+
+        holder.set(new SenderMailboxDispatcher<>(executor, item -> {
+            List<String> batch = new ArrayList<>();
+            batch.add(item);
+            if (item.equals("Hola")) {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batch.addAll(holder.get().pollWhile("A", next -> !next.startsWith("/"), 10));
+            }
+            batches.add(batch);
+            done.countDown();
+        }));
+
+        holder.get().dispatch("A", "Hola");
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        holder.get().dispatch("A", "soy Juan");
+        holder.get().dispatch("A", "de Medellín");
+        holder.get().dispatch("A", "/menu");
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "❌ No se procesaron todos los mensajes");
+        assertEquals(List.of("Hola", "soy Juan", "de Medellín"), batches.get(0), "❌ La ráfaga debe agruparse en orden");
+        assertEquals(List.of("/menu"), batches.get(1), "❌ Un mensaje que no cumple la condición se procesa aparte");
+    }
+}
@@ -0,0 +1,94 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserCache que documentan:
+ * - Búsqueda por teléfono, ID de documento y chat ID de Telegram
+ * - Las copias devueltas no comparten estado con la caché
+ * - Expiración por TTL y expulsión por tamaño
+ * - Invalidación explícita (reset de usuario)
+ */
+@DisplayName("UserCache - Tests de Caché de Usuarios")
+class UserCacheTest {
+
+    private static User user(String phone, String telegramChatId, String state) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setTelegram_chat_id(telegramChatId);
+        user.setChatbot_state(state);
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Un usuario se encuentra por cualquiera de sus identificadores")
+    void testLookupByAnyIdentifier() {
+        UserCache cache = new UserCache(true, 100, 60);
+        cache.put("573001234567", user("+573001234567", "998877", "COMPLETED"));
+
+        assertTrue(cache.find("+573001234567", null, null).isPresent(), "❌ Debe encontrarse por teléfono");
+        assertTrue(cache.find(null, "573001234567", null).isPresent(), "❌ Debe encontrarse por ID de documento");
+        assertTrue(cache.find(null, null, "998877").isPresent(), "❌ Debe encontrarse por chat ID de Telegram");
+        assertFalse(cache.find("+573009999999", "573009999999", null).isPresent(), "❌ Un usuario desconocido no debe encontrarse");
+
+        assertEquals(3L, cache.getMetrics().get("hits"));
+        assertEquals(1L, cache.getMetrics().get("misses"));
+    }
+
+    @Test
+    @DisplayName("✅ Modificar el usuario devuelto no altera la caché")
+    void testReturnedUserIsACopy() {
+        UserCache cache = new UserCache(true, 100, 60);
+        User original = user("+573001234567", null, "WAITING_NAME");
+        cache.put("573001234567", original);
+        original.setChatbot_state("MODIFIED_BEFORE_SAVE");
+
+        User found = cache.find("+573001234567", null, null).orElseThrow();
+        assertEquals("WAITING_NAME", found.getChatbot_state(), "❌ La caché debe guardar una copia");
+
+        found.setChatbot_state("WAITING_CITY");
+        assertEquals("WAITING_NAME", cache.find("+573001234567", null, null).orElseThrow().getChatbot_state(),
+                "❌ La caché debe devolver una copia");
+    }
+
+    @Test
+    @DisplayName("✅ Las entradas expiran y se expulsan por tamaño")
+    void testTtlAndSizeEviction() throws InterruptedException {
+        UserCache expiring = new UserCache(true, 100, 0);
+        expiring.put("573001234567", user("+573001234567", null, "COMPLETED"));
+        Thread.sleep(2);
+        assertFalse(expiring.find("+573001234567", null, null).isPresent(), "❌ Una entrada vencida no debe devolverse");
+        assertEquals(1L, expiring.getMetrics().get("expiredEvictions"));
+
+        UserCache bounded = new UserCache(true, 2, 60);
+        bounded.put("A", user("+57300000001", null, "COMPLETED"));
+        bounded.put("B", user("+57300000002", null, "COMPLETED"));
+        bounded.find(null, "A", null); // A pasa a ser la más reciente
+        bounded.put("C", user("+57300000003", null, "COMPLETED"));
+
+        assertTrue(bounded.find(null, "A", null).isPresent(), "❌ La entrada usada recientemente debe conservarse");
+        assertFalse(bounded.find("+57300000002", null, null).isPresent(), "❌ La entrada menos usada debe expulsarse");
+        assertEquals(1L, bounded.getMetrics().get("sizeEvictions"));
+    }
+
+    @Test
+    @DisplayName("✅ Invalidar un documento elimina todos sus índices")
+    void testInvalidateRemovesAllIndexes() {
+        UserCache cache = new UserCache(true, 100, 60);
+        cache.put("573001234567", user("+573001234567", "998877", "COMPLETED"));
+
+        cache.invalidate("573001234567");
+
+        Optional<User> byPhone = cache.find("+573001234567", null, null);
+        Optional<User> byTelegram = cache.find(null, null, "998877");
+        assertFalse(byPhone.isPresent(), "❌ El reset debe invalidar la búsqueda por teléfono");
+        assertFalse(byTelegram.isPresent(), "❌ El reset debe invalidar la búsqueda por Telegram");
+        assertEquals(1L, cache.getMetrics().get("invalidations"));
+    }
+}
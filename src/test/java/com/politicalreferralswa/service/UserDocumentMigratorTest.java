@@ -0,0 +1,38 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserDocumentMigrator que documentan qué documentos se migran:
+ * - Un documento UUID de un usuario con teléfono se migra
+ * - Un documento ya guardado por teléfono, o de un usuario sin teléfono, no se toca
+ */
+@DisplayName("UserDocumentMigrator - Tests de Selección de Documentos")
+class UserDocumentMigratorTest {
+
+    @Test
+    @DisplayName("✅ Un documento UUID de un usuario con teléfono se migra")
+    void testUuidDocumentWithPhoneNeedsMigration() {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-000000000001");
+        user.setPhone("+573001234567");
+
+        assertTrue(UserDocumentMigrator.needsMigration("3f2b8c1e-0000-4000-8000-000000000001", user));
+        assertFalse(UserDocumentMigrator.needsMigration("573001234567", user), "❌ El documento por teléfono ya es el canónico");
+    }
+
+    @Test
+    @DisplayName("✅ Un usuario de Telegram sin teléfono se queda en su documento UUID")
+    void testUserWithoutPhoneIsNotMigrated() {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-000000000002");
+        user.setTelegram_chat_id("998877");
+
+        assertFalse(UserDocumentMigrator.needsMigration("3f2b8c1e-0000-4000-8000-000000000002", user));
+        assertFalse(UserDocumentMigrator.needsMigration("otro-id", null));
+    }
+}
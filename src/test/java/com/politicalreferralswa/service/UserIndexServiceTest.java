@@ -0,0 +1,63 @@
+package com.politicalreferralswa.service;
+
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.InMemoryUserRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserIndexService que documentan la carga del índice de usuarios:
+ * - Con el listener de 'users' activo, el índice se llena con el primer snapshot del listener, sin
+ *   recorrer la colección, y queda listo cuando termina; los cambios siguientes se aplican en orden
+ */
+@DisplayName("UserIndexService - Tests de la Carga del Índice de Usuarios")
+class UserIndexServiceTest {
+
+    private static User user(String phone, String city) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setCity(city);
+        return user;
+    }
+
+    private static void publish(ChangeFeedService changeFeed, String documentId, User user, boolean initial) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("phone", user.getPhone());
+        data.put("city", user.getCity());
+        changeFeed.apply(ChangeFeedService.USERS, documentId, data, () -> user, initial);
+    }
+
+    @Test
+    @DisplayName("✅ Con listener, el índice se llena con su primer snapshot y no con un recorrido")
+    void testLoadsFromListenerSnapshot() throws Exception {
+        InMemoryUserRepository repository = new InMemoryUserRepository();
+        repository.save("573009999999", user("+573009999999", "Pasto"), null).join();
+        ChangeFeedService changeFeed = new ChangeFeedService(null, true, true, "firestore", 16, 1000, 10);
+        UserIndexService userIndexService = new UserIndexService(repository, changeFeed, null, true, 16);
+        userIndexService.subscribe();
+        userIndexService.load();
+
+        publish(changeFeed, "573001111111", user("+573001111111", "Medellín"), true);
+        publish(changeFeed, "573002222222", user("+573002222222", "Bogotá"), true);
+        assertFalse(userIndexService.isReady(), "❌ El índice no debe estar listo antes del fin del primer snapshot");
+        changeFeed.synced(ChangeFeedService.USERS);
+        publish(changeFeed, "573002222222", user("+573002222222", "Cali"), false);
+        changeFeed.apply(ChangeFeedService.USERS, "573001111111", null, null, false);
+        for (int i = 0; i < 500 && (!userIndexService.isReady() || userIndexService.index().size() != 1); i++) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(userIndexService.isReady());
+        assertEquals("change-feed", userIndexService.getMetrics().get("source"));
+        CompactUserIndex index = userIndexService.index();
+        assertEquals(-1, index.idOf("573009999999"), "❌ No debe recorrerse la colección");
+        assertEquals(-1, index.idOf("573001111111"), "❌ La baja posterior debe aplicarse");
+        assertEquals("Cali", index.city(index.idOf("573002222222")), "❌ El cambio posterior debe aplicarse");
+        assertEquals(2L, userIndexService.getMetrics().get("feedUpdates"));
+    }
+}
@@ -0,0 +1,153 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.InMemoryUserRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserLeaderboard y OrderStatisticTree que documentan el ranking en memoria:
+ * - La posición coincide con la del recorrido completo (1 + usuarios con más puntos), también tras
+ *   cambios y bajas, y a medida que pasan los días
+ * - El top N sale ordenado por puntos y, a igual puntos, por antigüedad
+ * - El ranking sigue los cambios que UserIndexService aplica al índice
+ * - El árbol de orden estadístico cuenta y selecciona igual que un TreeSet
+ */
+@DisplayName("UserLeaderboard - Tests del Ranking en Memoria")
+class UserLeaderboardTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+    private static final long DAY = 86_400_000L;
+
+    private static User user(long createdAtMillis, String referralCode, boolean acceptedTerms) {
+        User user = new User();
+        user.setCreated_at(createdAtMillis < 0 ? null : Timestamp.ofTimeMicroseconds(createdAtMillis * 1000));
+        user.setReferral_code(referralCode);
+        user.setAceptaTerminos(acceptedTerms);
+        return user;
+    }
+
+    // Recorrido completo como el que hacía LocalAnalyticsService
+    private static int scanRank(CompactUserIndex index, int points, long now) {
+        int[] above = {0};
+        index.forEach(id -> {
+            if (UserLeaderboard.points(index.createdAtSeconds(id), index.hasReferralCode(id), index.acceptedTerms(id), now) > points) {
+                above[0]++;
+            }
+        });
+        return above[0] + 1;
+    }
+
+    @Test
+    @DisplayName("✅ La posición coincide con el recorrido completo tras cambios, bajas y días")
+    void testRankMatchesScan() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        UserLeaderboard leaderboard = new UserLeaderboard(index);
+        Random random = new Random(7);
+        for (int i = 0; i < 2_000; i++) {
+            String documentId = Long.toString(573_000_000_000L + random.nextInt(800));
+            if (random.nextInt(5) == 0) {
+                int id = index.idOf(documentId);
+                if (index.remove(documentId)) {
+                    leaderboard.onRemove(id);
+                }
+            } else {
+                long createdAt = random.nextInt(20) == 0 ? -1 : NOW - (long) (random.nextDouble() * 90 * DAY);
+                int id = index.upsert(documentId, user(createdAt, random.nextBoolean() ? "ABCD2345" : null, random.nextBoolean()));
+                leaderboard.onUpsert(id);
+            }
+        }
+        assertEquals(index.size(), leaderboard.size());
+
+        for (long now : new long[]{NOW, NOW + DAY / 2, NOW + 3 * DAY}) {
+            for (int points = 50; points < 1_300; points += 7) {
+                assertEquals(scanRank(index, points, now), leaderboard.rankOf(points, now),
+                        "❌ Posición distinta del recorrido para " + points + " puntos");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("✅ El top N sale por puntos y, a igual puntos, por antigüedad")
+    void testTopOrdering() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        UserLeaderboard leaderboard = new UserLeaderboard(index);
+        leaderboard.onUpsert(index.upsert("573000000001", user(NOW - 10 * DAY, null, false)));        // 200
+        leaderboard.onUpsert(index.upsert("573000000002", user(NOW - 2 * DAY, "ABCD2345", true)));    // 370
+        leaderboard.onUpsert(index.upsert("573000000003", user(NOW - 37 * DAY, null, false)));        // 470
+        leaderboard.onUpsert(index.upsert("573000000004", user(NOW - 2 * DAY - 1000, "MNPQ2345", true))); // 370, más antiguo
+        leaderboard.onUpsert(index.upsert("573000000005", user(-1, null, false)));                    // 100
+
+        List<UserLeaderboard.Entry> top = leaderboard.top(4, NOW);
+        assertEquals(List.of(
+                new UserLeaderboard.Entry("573000000003", 470),
+                new UserLeaderboard.Entry("573000000004", 370),
+                new UserLeaderboard.Entry("573000000002", 370),
+                new UserLeaderboard.Entry("573000000001", 200)), top);
+        assertEquals(5, leaderboard.top(10, NOW).size());
+        assertEquals(2, leaderboard.rankOf("573000000002", NOW), "❌ Con igual puntos la posición es la misma");
+        assertEquals(-1, leaderboard.rankOf("573009999999", NOW));
+    }
+
+    @Test
+    @DisplayName("✅ El ranking sigue los cambios que aplica UserIndexService")
+    void testFollowsUserIndexService() {
+        ChangeFeedService changeFeed = new ChangeFeedService(null, false, true, "firestore", 16, 1000, 10);
+        UserIndexService userIndexService = new UserIndexService(new InMemoryUserRepository(), changeFeed, null, true, 16);
+        userIndexService.subscribe();
+        UserLeaderboard leaderboard = new UserLeaderboard(userIndexService);
+        leaderboard.init();
+
+        userIndexService.apply("573000000001", user(NOW - 5 * DAY, null, false));
+        userIndexService.apply("573000000002", user(NOW - DAY, null, false));
+        assertEquals(2, leaderboard.rankOf("573000000002", NOW));
+
+        userIndexService.apply("573000000002", user(NOW - DAY, "ABCD2345", true));
+        assertEquals(1, leaderboard.rankOf("573000000002", NOW), "❌ Un cambio de puntos debe reflejarse en la posición");
+
+        userIndexService.delete("573000000002");
+        assertEquals(1, leaderboard.size());
+        assertEquals(1, leaderboard.rankOf("573000000001", NOW));
+    }
+
+    @Test
+    @DisplayName("✅ El árbol de orden estadístico cuenta y selecciona igual que un TreeSet")
+    void testOrderStatisticTreeMatchesTreeSet() {
+        OrderStatisticTree tree = new OrderStatisticTree(16);
+        TreeSet<long[]> expected = new TreeSet<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        List<long[]> present = new ArrayList<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            if (!present.isEmpty() && random.nextInt(3) == 0) {
+                long[] pair = present.remove(random.nextInt(present.size()));
+                assertTrue(tree.remove(pair[0], (int) pair[1]));
+                expected.remove(pair);
+            } else {
+                long[] pair = {random.nextInt(500), i};
+                tree.insert(pair[0], i);
+                expected.add(pair);
+                present.add(pair);
+            }
+        }
+        assertFalse(tree.remove(-5, 0), "❌ Quitar un par ausente no debe modificar el árbol");
+        assertEquals(expected.size(), tree.size());
+        for (long key = -1; key <= 501; key += 3) {
+            long at = key;
+            assertEquals(expected.headSet(new long[]{at, Long.MAX_VALUE}, true).size(), tree.countAtMost(key));
+        }
+        int rank = 0;
+        for (long[] pair : expected) {
+            int node = tree.nodeAt(rank++);
+            assertEquals(pair[0], tree.keyAt(node));
+            assertEquals(pair[1], tree.valueAt(node));
+        }
+    }
+}
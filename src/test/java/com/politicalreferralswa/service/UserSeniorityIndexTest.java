@@ -0,0 +1,105 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserSeniorityIndex que documentan la antigüedad por ciudad y departamento:
+ * - La posición (1 + usuarios del grupo creados antes) y el tamaño del grupo coinciden con el
+ *   recorrido de los usuarios del grupo, también tras mudanzas y bajas
+ * - Un usuario sin fecha de creación queda primero y no cuenta como anterior a nadie
+ * - Un usuario sin ciudad no tiene posición en ciudad
+ */
+@DisplayName("UserSeniorityIndex - Tests de la Antigüedad por Ciudad y Departamento")
+class UserSeniorityIndexTest {
+
+    private static final String[] CITIES = {"Bogotá", "Medellín", "Cali", "Pasto"};
+    private static final String[] STATES = {"Cundinamarca", "Antioquia", "Valle del Cauca", "Nariño"};
+
+    private static User user(String city, String state, long createdAtSeconds) {
+        User user = new User();
+        user.setCity(city);
+        user.setState(state);
+        user.setCreated_at(createdAtSeconds < 0 ? null : Timestamp.ofTimeSecondsAndNanos(createdAtSeconds, 0));
+        return user;
+    }
+
+    // Recorrido de los usuarios de la misma ciudad, como calculateCityPosition
+    private static int scanCityPosition(CompactUserIndex index, int userId) {
+        long created = index.createdAtSeconds(userId);
+        if (created == CompactUserIndex.NO_TIMESTAMP) {
+            return 1;
+        }
+        int[] position = {1};
+        index.forEach(id -> {
+            long other = index.createdAtSeconds(id);
+            if (id != userId && index.cityCode(id) == index.cityCode(userId)
+                    && other != CompactUserIndex.NO_TIMESTAMP && other < created) {
+                position[0]++;
+            }
+        });
+        return position[0];
+    }
+
+    @Test
+    @DisplayName("✅ Posición y tamaño del grupo coinciden con el recorrido tras mudanzas y bajas")
+    void testPositionsMatchScan() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        UserSeniorityIndex seniority = new UserSeniorityIndex(index);
+        Random random = new Random(3);
+        for (int i = 0; i < 3_000; i++) {
+            String documentId = Long.toString(573_000_000_000L + random.nextInt(600));
+            if (random.nextInt(6) == 0) {
+                int id = index.idOf(documentId);
+                if (index.remove(documentId)) {
+                    seniority.onRemove(id);
+                }
+            } else {
+                int city = random.nextInt(CITIES.length);
+                long createdAt = random.nextInt(30) == 0 ? -1 : 1_700_000_000L + random.nextInt(5_000);
+                seniority.onUpsert(index.upsert(documentId, user(CITIES[city], STATES[city], createdAt)));
+            }
+        }
+
+        for (String city : CITIES) {
+            int[] members = {0};
+            index.forEach(id -> {
+                if (city.equals(index.city(id))) {
+                    members[0]++;
+                }
+            });
+            assertEquals(members[0], seniority.cityCohortSize(city), "❌ Tamaño distinto para " + city);
+        }
+        index.forEach(id -> {
+            UserSeniorityIndex.Position position = seniority.cityPosition(index.documentId(id));
+            assertEquals(scanCityPosition(index, id), position.position(), "❌ Posición distinta del recorrido");
+            assertEquals(seniority.cityCohortSize(index.city(id)), position.cohortSize());
+            assertEquals(position, seniority.statePosition(index.documentId(id)), "❌ Cada ciudad está en un solo departamento");
+        });
+    }
+
+    @Test
+    @DisplayName("✅ Sin fecha de creación queda primero; sin ciudad no tiene posición")
+    void testMissingFields() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        UserSeniorityIndex seniority = new UserSeniorityIndex(index);
+        seniority.onUpsert(index.upsert("573000000001", user("Cali", "Valle del Cauca", 1_700_000_000L)));
+        seniority.onUpsert(index.upsert("573000000002", user("Cali", "Valle del Cauca", -1)));
+        seniority.onUpsert(index.upsert("573000000003", user("Cali", "Valle del Cauca", 1_700_000_500L)));
+        seniority.onUpsert(index.upsert("573000000004", user(null, "Valle del Cauca", 1_699_000_000L)));
+
+        assertEquals(new UserSeniorityIndex.Position(1, 3), seniority.cityPosition("573000000002"));
+        assertEquals(new UserSeniorityIndex.Position(2, 3), seniority.cityPosition("573000000003"),
+                "❌ Un usuario sin fecha no debe contar como anterior");
+        assertNull(seniority.cityPosition("573000000004"));
+        assertEquals(new UserSeniorityIndex.Position(2, 4), seniority.statePosition("573000000001"));
+        assertNull(seniority.cityPosition("573009999999"));
+        assertEquals(0, seniority.cityCohortSize("Bogotá"));
+    }
+}
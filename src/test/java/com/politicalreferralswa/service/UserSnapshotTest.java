@@ -0,0 +1,218 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import com.politicalreferralswa.repository.InMemoryUserRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserSnapshot y UserSnapshotService que documentan el snapshot local de usuarios:
+ * - Las filas escritas se leen iguales desde el archivo mapeado, incluidos los campos null
+ * - Los textos repetidos (ciudades, códigos) se guardan una sola vez en el diccionario
+ * - Un usuario se encuentra por ID de documento con búsqueda binaria
+ * - Al arrancar se construye el snapshot y los cambios posteriores se traen por 'updated_at'
+ * - Un archivo de otra versión se reconstruye, y UserIndexService se carga desde el snapshot
+ * - Las filas que no vienen en el primer snapshot del listener (usuarios eliminados con la
+ *   instancia apagada) se quitan
+ */
+@DisplayName("UserSnapshot - Tests del Snapshot Columnar de Usuarios")
+class UserSnapshotTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("user-snapshot-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static User user(String phone, String city, String referredByCode, long updatedAtSeconds) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setCity(city);
+        user.setState("Antioquia");
+        user.setChatbot_state("COMPLETED");
+        user.setReferral_code("RC" + phone.substring(phone.length() - 6));
+        user.setReferred_by_code(referredByCode);
+        user.setCreated_at(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 0));
+        user.setUpdated_at(Timestamp.ofTimeSecondsAndNanos(updatedAtSeconds, 0));
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Las filas se leen iguales y los textos repetidos comparten código")
+    void testRoundTripWithSharedDictionary() throws Exception {
+        List<UserSnapshot.Row> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String phone = "+57300" + String.format("%07d", i);
+            rows.add(UserSnapshot.Row.of(phone.substring(1), user(phone, i % 2 == 0 ? "Medellín" : "Bogotá", "TESTCODE", 1)));
+        }
+        rows.add(new UserSnapshot.Row("3f2b8c1e-uuid", null, null, null, Long.MIN_VALUE, Long.MIN_VALUE, null, null, null,
+                "NEW", false));
+
+        Path file = directory.resolve("users.snap");
+        UserSnapshot.write(file, rows, 1234L);
+        UserSnapshot snapshot = UserSnapshot.load(file);
+
+        assertEquals(1001, snapshot.size());
+        assertEquals(1234L, snapshot.watermarkMillis());
+        assertEquals(Files.size(file), snapshot.byteSize());
+
+        int row = snapshot.find("573000000042");
+        assertTrue(row >= 0, "❌ El usuario debe encontrarse por ID de documento");
+        assertEquals(rows.get(42), snapshot.row(row));
+        assertEquals(snapshot.code(UserSnapshot.Column.CITY, row), snapshot.code(UserSnapshot.Column.CITY, snapshot.find("573000000000")),
+                "❌ La misma ciudad debe tener el mismo código de diccionario");
+
+        UserSnapshot.Row telegramUser = snapshot.row(snapshot.find("3f2b8c1e-uuid"));
+        assertNull(telegramUser.phone(), "❌ Los campos null deben seguir siendo null");
+        assertFalse(telegramUser.hasCreatedAt());
+        assertFalse(telegramUser.hasUpdatedAt());
+        assertEquals(-1, snapshot.find("573009999999"));
+
+        // 1001 IDs + 1000 teléfonos + 1000 códigos propios + 2 ciudades + estado + chatbot_state x2 + TESTCODE
+        assertEquals(3007, snapshot.dictionarySize(), "❌ Cada texto distinto debe guardarse una sola vez");
+    }
+
+    @Test
+    @DisplayName("✅ Sin archivo se construye el snapshot y luego se traen sólo los cambios")
+    void testWarmStartBuildsAndCatchesUp() throws Exception {
+        InMemoryUserRepository repository = new InMemoryUserRepository();
+        repository.save("573001111111", user("+573001111111", "Medellín", null, 100), null).join();
+        repository.save("573002222222", user("+573002222222", "Bogotá", null, 200), null).join();
+
+        Path file = directory.resolve("users.snap");
+        UserSnapshotService service = new UserSnapshotService(repository, true, file.toString());
+        service.warmStart();
+        waitUntilReady(service);
+
+        assertTrue(Files.exists(file), "❌ El snapshot construido debe escribirse para el siguiente arranque");
+        assertEquals("scan", service.getMetrics().get("source"));
+        assertEquals(200_000L, UserSnapshot.load(file).watermarkMillis());
+
+        repository.save("573002222222", user("+573002222222", "Cali", null, 300), null).join();
+        service.refresh();
+
+        assertEquals("Cali", cityOf(service, "573002222222"), "❌ El cambio posterior debe verse");
+        assertEquals(1L, service.getMetrics().get("catchUpRows"), "❌ Sólo debe traerse el usuario cambiado");
+        assertEquals("Cali", UserSnapshot.load(file).row(UserSnapshot.load(file).find("573002222222")).city(),
+                "❌ El archivo reescrito debe incluir el cambio");
+
+        UserSnapshotService restarted = new UserSnapshotService(repository, true, file.toString());
+        restarted.warmStart();
+        waitUntilReady(restarted);
+        assertEquals("file", restarted.getMetrics().get("source"));
+        assertEquals(0L, restarted.getMetrics().get("catchUpRows"));
+        List<String> cities = new ArrayList<>();
+        restarted.forEach(row -> cities.add(row.city()));
+        assertEquals(2, cities.size());
+        assertTrue(cities.contains("Cali"));
+    }
+
+    @Test
+    @DisplayName("✅ Un archivo de otra versión se reconstruye y el índice de usuarios se carga del snapshot")
+    void testUserIndexLoadsFromSnapshot() throws Exception {
+        InMemoryUserRepository repository = new InMemoryUserRepository();
+        User referrer = user("+573001111111", "Medellín", null, 100);
+        referrer.setAceptaTerminos(true);
+        repository.save("573001111111", referrer, null).join();
+        User referred = user("+573002222222", "Bogotá", "RC111111", 200);
+        referred.setReferred_by_phone("3001111111");
+        repository.save("573002222222", referred, null).join();
+
+        Path file = directory.resolve("users.snap");
+        Files.write(file, new byte[64]);
+        UserSnapshotService snapshotService = new UserSnapshotService(repository, true, file.toString());
+        snapshotService.warmStart();
+        waitUntilReady(snapshotService);
+        assertEquals("scan", snapshotService.getMetrics().get("source"), "❌ Un archivo inválido debe reconstruirse");
+
+        ChangeFeedService changeFeed = new ChangeFeedService(null, false, true, "firestore", 16, 1000, 10);
+        UserIndexService userIndexService = new UserIndexService(repository, changeFeed, snapshotService, true, 16);
+        userIndexService.subscribe();
+        userIndexService.load();
+        for (int i = 0; i < 500 && !userIndexService.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(userIndexService.isReady(), "❌ El índice debe cargarse al arrancar");
+        assertEquals("snapshot", userIndexService.getMetrics().get("source"));
+        assertEquals(200_000L, userIndexService.getMetrics().get("watermarkMillis"));
+
+        CompactUserIndex index = userIndexService.index();
+        int referrerId = index.idOf("573001111111");
+        int referredId = index.idOf("573002222222");
+        assertTrue(index.acceptedTerms(referrerId), "❌ El snapshot debe conservar 'aceptaTerminos'");
+        assertEquals("+573001111111", index.referredByPhone(referredId), "❌ El snapshot debe conservar 'referred_by_phone'");
+        assertEquals(referrerId, index.idOfReferralCode(index.referredByCode(referredId)));
+    }
+
+    @Test
+    @DisplayName("✅ Los usuarios que faltan en el primer snapshot del listener se quitan del archivo")
+    void testListenerSnapshotRemovesDeletedRows() throws Exception {
+        InMemoryUserRepository repository = new InMemoryUserRepository();
+        repository.save("573001111111", user("+573001111111", "Medellín", null, 100), null).join();
+        repository.save("573002222222", user("+573002222222", "Bogotá", null, 200), null).join();
+        Path file = directory.resolve("users.snap");
+        UserSnapshotService first = new UserSnapshotService(repository, true, file.toString());
+        first.warmStart();
+        waitUntilReady(first);
+
+        // Eliminado mientras ninguna instancia corría: ni el archivo ni 'updated_at' lo ven
+        repository.delete("573002222222", null).join();
+        ChangeFeedService changeFeed = new ChangeFeedService(null, true, true, "firestore", 16, 1000, 10);
+        UserSnapshotService restarted = new UserSnapshotService(repository, true, file.toString());
+        restarted.listenTo(changeFeed);
+        restarted.warmStart();
+        User remaining = user("+573001111111", "Medellín", null, 100);
+        changeFeed.apply(ChangeFeedService.USERS, "573001111111", Map.of("phone", remaining.getPhone()),
+                () -> remaining, true);
+        changeFeed.synced(ChangeFeedService.USERS);
+        waitUntilReady(restarted);
+        for (int i = 0; i < 500 && (Long) restarted.getMetrics().get("prunedRows") == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1L, restarted.getMetrics().get("prunedRows"));
+        assertNull(cityOf(restarted, "573002222222"), "❌ El usuario eliminado no debe seguir en el snapshot");
+        assertEquals("Medellín", cityOf(restarted, "573001111111"));
+        restarted.refresh();
+        assertEquals(1, UserSnapshot.load(file).size(), "❌ La reescritura debe quitar la fila del archivo");
+    }
+
+    private static String cityOf(UserSnapshotService service, String documentId) {
+        List<String> cities = new ArrayList<>();
+        service.forEach(row -> {
+            if (row.documentId().equals(documentId)) {
+                cities.add(row.city());
+            }
+        });
+        return cities.isEmpty() ? null : cities.get(0);
+    }
+
+    private static void waitUntilReady(UserSnapshotService service) throws InterruptedException {
+        for (int i = 0; i < 500 && !service.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(service.isReady(), "❌ El snapshot debe cargarse al arrancar");
+    }
+}
@@ -0,0 +1,119 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para UserWriteCoalescer que documentan la escritura agrupada por mensaje:
+ * - Varias llamadas a saveUser producen una sola escritura con los campos modificados
+ * - Sin cambios (o sólo 'updated_at') no se escribe
+ * - Un usuario nuevo o que cambia de ID de documento se escribe completo
+ * - Fuera de una unidad de trabajo la escritura es inmediata
+ */
+@DisplayName("UserWriteCoalescer - Tests de Escritura Agrupada")
+class UserWriteCoalescerTest {
+
+    private UserWriteCoalescer coalescer;
+
+    @BeforeEach
+    void setUp() {
+        coalescer = new UserWriteCoalescer(true);
+        coalescer.begin();
+    }
+
+    @AfterEach
+    void tearDown() {
+        coalescer.end();
+    }
+
+    private static User storedUser() {
+        User user = new User();
+        user.setId("3f2b8c1e-0000-4000-8000-000000000001");
+        user.setPhone("+573001234567");
+        user.setName("Juan");
+        user.setChatbot_state("WAITING_CITY");
+        return user;
+    }
+
+    @Test
+    @DisplayName("✅ Varias llamadas a saveUser generan una escritura con los campos modificados")
+    void testSavesAreMergedIntoOneWrite() {
+        User user = storedUser();
+        coalescer.loaded("573001234567", user);
+
+        user.setCity("Medellín");
+        assertTrue(coalescer.defer(user));
+        user.setChatbot_state("WAITING_TERMS_ACCEPTANCE");
+        user.setUpdated_at(Timestamp.now());
+        assertTrue(coalescer.defer(user));
+
+        List<UserWriteCoalescer.PlannedWrite> writes = coalescer.drain();
+        assertEquals(1, writes.size(), "❌ Debe haber una sola escritura por usuario");
+        UserWriteCoalescer.PlannedWrite write = writes.get(0);
+        assertFalse(write.isFullWrite());
+        assertEquals("573001234567", write.documentId());
+        assertEquals(Map.of("city", "Medellín", "chatbot_state", "WAITING_TERMS_ACCEPTANCE", "updated_at", user.getUpdated_at()),
+                write.mergeFields(), "❌ Sólo deben escribirse los campos modificados");
+
+        coalescer.written(write);
+        assertEquals(1L, coalescer.getMetrics().get("writesAvoided"));
+    }
+
+    @Test
+    @DisplayName("✅ Sin cambios, o sólo con 'updated_at', no se escribe")
+    void testUnchangedUserIsNotWritten() {
+        User user = storedUser();
+        coalescer.loaded("573001234567", user);
+
+        user.setUpdated_at(Timestamp.now());
+        coalescer.defer(user);
+
+        assertTrue(coalescer.drain().isEmpty(), "❌ Un cambio sólo de 'updated_at' no debe escribirse");
+        assertEquals(1L, coalescer.getMetrics().get("unchangedWritesSkipped"));
+    }
+
+    @Test
+    @DisplayName("✅ Un usuario nuevo o que cambia de documento se escribe completo")
+    void testNewAndMigratedUsersAreFullWrites() {
+        User newUser = storedUser();
+        coalescer.defer(newUser);
+        // Lo que devuelva la caché después de un saveUser no es el estado leído de Firestore
+        coalescer.loaded("573001234567", newUser);
+        UserWriteCoalescer.PlannedWrite newWrite = coalescer.drain().get(0);
+        assertTrue(newWrite.isFullWrite(), "❌ Un usuario sin estado leído debe escribirse completo");
+        assertNull(newWrite.previousDocumentId());
+
+        User telegramUser = storedUser();
+        telegramUser.setPhone(null);
+        coalescer.forget(telegramUser.getId());
+        coalescer.loaded(telegramUser.getId(), telegramUser);
+        telegramUser.setPhone("+573009998877");
+        coalescer.defer(telegramUser);
+
+        UserWriteCoalescer.PlannedWrite migration = coalescer.drain().get(0);
+        assertTrue(migration.isFullWrite());
+        assertEquals("573009998877", migration.documentId());
+        assertEquals(telegramUser.getId(), migration.previousDocumentId(), "❌ Debe eliminarse el documento UUID anterior");
+    }
+
+    @Test
+    @DisplayName("✅ Sin unidad de trabajo la escritura es inmediata")
+    void testWithoutUnitOfWorkWritesImmediately() {
+        coalescer.end();
+        try {
+            assertFalse(coalescer.defer(storedUser()), "❌ Fuera de un mensaje saveUser debe escribir de inmediato");
+            assertTrue(coalescer.drain().isEmpty());
+        } finally {
+            coalescer.begin();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.politicalreferralswa.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.politicalreferralswa.model.WatiWebhookEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para WatiPayloadParser que documentan la extracción de campos del webhook de Wati:
+ * - Mensajes de texto, de botón e interactivos
+ * - Subárboles no usados que contienen campos con el mismo nombre se ignoran
+ * - Payloads que no son objetos JSON se rechazan
+ */
+@DisplayName("WatiPayloadParser - Tests de Parsing en Streaming")
+class WatiPayloadParserTest {
+
+    private WatiPayloadParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new WatiPayloadParser(new ObjectMapper());
+    }
+
+    @Test
+    @DisplayName("✅ Extrae los campos de un mensaje de texto")
+    void testParsesTextMessage() throws IOException {
+        WatiWebhookEvent event = parse("""
+                {"eventType":"message","id":"abc","whatsappMessageId":"wamid.1","type":"text",
+                 "waId":"+573001234567","senderName":"Miguel","text":"Hola, soy de Barranquilla",
+                 "tags":[{"id":"t1"}],"contact":{"waId":"otro","text":"ignorado"}}
+                """);
+
+        assertTrue(event.isMessage());
+        assertEquals("+573001234567", event.waId(), "❌ waId de un subárbol no debe sobrescribir el de primer nivel");
+        assertEquals("Miguel", event.senderName());
+        assertEquals("Hola, soy de Barranquilla", event.messageText());
+        assertEquals("wamid.1", event.messageId(), "❌ whatsappMessageId tiene prioridad sobre id");
+    }
+
+    @Test
+    @DisplayName("✅ Extrae el texto de respuestas de botón e interactivas")
+    void testParsesButtonReplies() throws IOException {
+        WatiWebhookEvent button = parse("""
+                {"eventType":"message","type":"button","waId":"573001234567",
+                 "buttonReply":{"payload":"x","body":"Sí, acepto"},"id":"b1"}
+                """);
+        WatiWebhookEvent interactive = parse("""
+                {"eventType":"message","type":"interactive","waId":"573001234567",
+                 "interactiveButtonReply":{"id":"1","title":"Ver mi link"}}
+                """);
+        WatiWebhookEvent emptyButton = parse("""
+                {"eventType":"message","type":"button","waId":"573001234567","buttonReply":null}
+                """);
+
+        assertEquals("Sí, acepto", button.messageText());
+        assertEquals("b1", button.messageId(), "❌ Sin whatsappMessageId se usa id");
+        assertEquals("Ver mi link", interactive.messageText());
+        assertNull(emptyButton.messageText(), "❌ Un botón sin texto no está soportado");
+    }
+
+    @Test
+    @DisplayName("✅ Rechaza payloads que no son objetos JSON")
+    void testRejectsNonObjectPayload() {
+        assertThrows(IOException.class, () -> parse("[1,2,3]"));
+        assertThrows(IOException.class, () -> parse("{\"eventType\":"));
+    }
+
+    private WatiWebhookEvent parse(String json) throws IOException {
+        return parser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,178 @@
+package com.politicalreferralswa.service;
+
+import com.google.cloud.Timestamp;
+import com.politicalreferralswa.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests para WindowedLeaderboard que documentan los rankings de hoy, la semana y el mes:
+ * - El registro suma al usuario y el referido (por código o por teléfono) a su referente, el día
+ *   de la creación y sólo en las ventanas que cubren ese día
+ * - Los días se cortan a la medianoche de Colombia (UTC-5), no a la de UTC
+ * - Al cambiar el día los puntos salen de cada ventana; una baja quita los puntos que aportó
+ * - Tras muchos cambios y días, puntos y posiciones coinciden con el recorrido completo
+ */
+@DisplayName("WindowedLeaderboard - Tests de los Rankings por Ventana")
+class WindowedLeaderboardTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+    private static final long DAY = 86_400_000L;
+
+    private static User user(String phone, String referralCode, String referredByCode, String referredByPhone,
+                             long createdAtMillis) {
+        User user = new User();
+        user.setPhone(phone);
+        user.setReferral_code(referralCode);
+        user.setReferred_by_code(referredByCode);
+        user.setReferred_by_phone(referredByPhone);
+        user.setCreated_at(Timestamp.ofTimeMicroseconds(createdAtMillis * 1000));
+        return user;
+    }
+
+    private static WindowedLeaderboard.Rankings rankings(int todayPosition, int todayPoints, int weekPosition,
+                                                         int weekPoints, int monthPosition, int monthPoints) {
+        return new WindowedLeaderboard.Rankings(new WindowedLeaderboard.Position(todayPosition, todayPoints),
+                new WindowedLeaderboard.Position(weekPosition, weekPoints),
+                new WindowedLeaderboard.Position(monthPosition, monthPoints));
+    }
+
+    // Puntos por ventana recorriendo el índice, como calculateWindowedRanking
+    private static Map<Integer, int[]> scan(CompactUserIndex index, long nowMillis) {
+        int today = WindowedLeaderboard.epochDay(nowMillis / 1000);
+        Map<Integer, int[]> points = new HashMap<>();
+        index.forEach(id -> {
+            int day = Math.min(WindowedLeaderboard.epochDay(index.createdAtSeconds(id)), today);
+            String code = index.referredByCode(id);
+            long phone = CompactUserIndex.referredByPhoneKey(index.referredByPhone(id));
+            int referrer = code != null ? index.idOfReferralCode(code) : phone != 0 ? index.idOfPhone("+" + phone) : -1;
+            for (int window = 0; window < 3; window++) {
+                if (WindowedLeaderboard.inWindow(day, today, window)) {
+                    points.computeIfAbsent(id, k -> new int[3])[window] += WindowedLeaderboard.SIGNUP_POINTS;
+                    if (referrer >= 0 && referrer != id) {
+                        points.computeIfAbsent(referrer, k -> new int[3])[window] += WindowedLeaderboard.REFERRAL_POINTS;
+                    }
+                }
+            }
+        });
+        return points;
+    }
+
+    @Test
+    @DisplayName("✅ Registro y referidos suman en las ventanas que cubren su día")
+    void testPointsByWindow() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        WindowedLeaderboard leaderboard = new WindowedLeaderboard(index);
+        assertEquals(rankings(1, 0, 1, 0, 1, 0), leaderboard.rankingsOf(
+                index.documentId(index.upsert("573100000001", user("+573100000001", "XK7P9QRT", null, null, NOW - 90 * DAY))), NOW));
+
+        leaderboard.onUpsert(index.upsert("573100000002", user("+573100000002", null, "XK7P9QRT", null, NOW)));
+        leaderboard.onUpsert(index.upsert("573100000003", user("+573100000003", null, null, "3100000001", NOW - 3 * DAY)));
+        leaderboard.onUpsert(index.upsert("573100000004", user("+573100000004", null, "XK7P9QRT", null, NOW - 20 * DAY)));
+        leaderboard.onUpsert(index.upsert("573100000005", user("+573100000005", null, "XK7P9QRT", null, NOW - 40 * DAY)));
+
+        assertEquals(rankings(1, 200, 1, 400, 1, 600), leaderboard.rankingsOf("573100000001", NOW),
+                "❌ Los referidos por código y por teléfono deben sumar en las ventanas de su día");
+        assertEquals(rankings(2, 100, 2, 100, 2, 100), leaderboard.rankingsOf("573100000002", NOW));
+        assertEquals(rankings(3, 0, 2, 100, 2, 100), leaderboard.rankingsOf("573100000003", NOW));
+        assertEquals(rankings(3, 0, 4, 0, 5, 0), leaderboard.rankingsOf("573100000005", NOW),
+                "❌ Un registro de hace más de un mes no debe sumar");
+        assertNull(leaderboard.rankingsOf("573109999999", NOW));
+    }
+
+    @Test
+    @DisplayName("✅ El día se corta a la medianoche de Colombia")
+    void testDayStartsAtColombiaMidnight() {
+        // 2025-10-09 00:00 en Colombia = 05:00 UTC
+        long midnight = 1_759_986_000_000L;
+        assertEquals(WindowedLeaderboard.epochDay(midnight / 1000) - 1, WindowedLeaderboard.epochDay(midnight / 1000 - 60),
+                "❌ Las 04:59 UTC todavía son el día anterior en Colombia");
+        assertEquals(WindowedLeaderboard.epochDay(midnight / 1000), WindowedLeaderboard.epochDay(midnight / 1000 + DAY / 1000 - 1));
+
+        CompactUserIndex index = new CompactUserIndex(16);
+        WindowedLeaderboard leaderboard = new WindowedLeaderboard(index);
+        index.upsert("573100000001", user("+573100000001", "XK7P9QRT", null, null, midnight - 90 * DAY));
+        leaderboard.rankingsOf("573100000001", midnight + 3_600_000L);
+        leaderboard.onUpsert(index.upsert("573100000002", user("+573100000002", null, "XK7P9QRT", null, midnight - 60_000L)));
+        leaderboard.onUpsert(index.upsert("573100000003", user("+573100000003", null, "XK7P9QRT", null, midnight)));
+
+        assertEquals(rankings(1, 200, 1, 400, 1, 400), leaderboard.rankingsOf("573100000001", midnight + 3_600_000L),
+                "❌ El referido de las 23:59 de Colombia debe contar en el día anterior");
+    }
+
+    @Test
+    @DisplayName("✅ Al cambiar el día los puntos salen de cada ventana; una baja quita sus puntos")
+    void testRolloverAndRemove() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        WindowedLeaderboard leaderboard = new WindowedLeaderboard(index);
+        index.upsert("573100000001", user("+573100000001", "XK7P9QRT", null, null, NOW - 90 * DAY));
+        leaderboard.rankingsOf("573100000001", NOW);
+        leaderboard.onUpsert(index.upsert("573100000002", user("+573100000002", null, "XK7P9QRT", null, NOW)));
+
+        assertEquals(rankings(1, 0, 1, 200, 1, 200), leaderboard.rankingsOf("573100000001", NOW + DAY));
+        assertEquals(rankings(1, 0, 1, 0, 1, 200), leaderboard.rankingsOf("573100000001", NOW + 7 * DAY));
+        assertEquals(rankings(1, 0, 1, 0, 1, 0), leaderboard.rankingsOf("573100000001", NOW + 31 * DAY),
+                "❌ Después de 31 días el referido no debe sumar");
+
+        leaderboard.onUpsert(index.upsert("573100000003", user("+573100000003", null, "XK7P9QRT", null, NOW + 31 * DAY)));
+        assertEquals(200, leaderboard.rankingsOf("573100000001", NOW + 31 * DAY).today().points());
+        int id = index.idOf("573100000003");
+        index.remove("573100000003");
+        leaderboard.onRemove(id);
+        assertEquals(rankings(1, 0, 1, 0, 1, 0), leaderboard.rankingsOf("573100000001", NOW + 31 * DAY),
+                "❌ Una baja debe quitar los puntos que aportó");
+    }
+
+    @Test
+    @DisplayName("✅ Tras muchos cambios y días, puntos y posiciones coinciden con el recorrido completo")
+    void testMatchesScan() {
+        CompactUserIndex index = new CompactUserIndex(16);
+        WindowedLeaderboard leaderboard = new WindowedLeaderboard(index);
+        String[] codes = {"CODEAAAA", "CODEBBBB", "CODECCCC"};
+        for (int c = 0; c < codes.length; c++) {
+            index.upsert("57310000000" + c, user("+57310000000" + c, codes[c], null, null, NOW - 90 * DAY));
+        }
+        Random random = new Random(7);
+        long now = NOW;
+        leaderboard.rankingsOf("573100000000", now);
+        for (int step = 0; step < 40; step++) {
+            now += random.nextInt(3) * DAY + random.nextInt((int) (DAY / 1000)) * 1000L;
+            for (int i = 0; i < 150; i++) {
+                String documentId = Long.toString(573_100_000_100L + random.nextInt(300));
+                if (random.nextInt(8) == 0) {
+                    int id = index.idOf(documentId);
+                    if (index.remove(documentId)) {
+                        leaderboard.onRemove(id);
+                    }
+                } else {
+                    String referredByCode = random.nextInt(3) == 0 ? null : codes[random.nextInt(codes.length)];
+                    String referredByPhone = random.nextBoolean() ? "310000000" + random.nextInt(codes.length) : null;
+                    leaderboard.onUpsert(index.upsert(documentId, user("+" + documentId, null, referredByCode,
+                            referredByPhone, now - random.nextInt(40) * DAY)));
+                }
+            }
+
+            Map<Integer, int[]> expected = scan(index, now);
+            long current = now;
+            index.forEach(id -> {
+                int[] points = expected.getOrDefault(id, new int[3]);
+                WindowedLeaderboard.Rankings rankings = leaderboard.rankingsOf(index.documentId(id), current);
+                WindowedLeaderboard.Position[] positions = {rankings.today(), rankings.week(), rankings.month()};
+                for (int window = 0; window < 3; window++) {
+                    int position = 1;
+                    for (int[] other : expected.values()) {
+                        position += other[window] > points[window] ? 1 : 0;
+                    }
+                    assertEquals(new WindowedLeaderboard.Position(position, points[window]), positions[window],
+                            "❌ Ventana " + window + " distinta del recorrido");
+                }
+            });
+        }
+    }
+}